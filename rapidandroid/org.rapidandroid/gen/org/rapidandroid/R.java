@@ -134,6 +134,7 @@ public final class R {
         public static final int formeditor_menu_cancel=0x7f05000a;
         public static final int formeditor_menu_save=0x7f05000b;
         public static final int formreview_dump_csv=0x7f05001a;
+        public static final int formreview_dump_new_csv=0x7f050035;
         public static final int formreview_menu_done=0x7f050015;
         public static final int formreview_menu_format=0x7f050016;
         public static final int formreview_upload_csv=0x7f05001b;
@@ -26,7 +26,6 @@ import java.io.InputStreamReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.rapidandroid.receiver.SmsParseReceiver;
 
 import android.content.Context;
 import android.util.Log;
@@ -183,7 +183,22 @@ public class ChartData extends Activity {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
+	 * @see android.app.Activity#onDestroy()
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		// don't leave a graph nobody will see queued in front of the next
+		// chart's
+		if (mBroker != null) {
+			mBroker.cancelLoad();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
 	 * @see android.app.Activity#onCreateDialog(int)
 	 */
 	@Override
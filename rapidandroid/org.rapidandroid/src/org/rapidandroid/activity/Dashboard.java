@@ -23,10 +23,13 @@ package org.rapidandroid.activity;
 import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.rapidandroid.R;
 import org.rapidandroid.content.translation.ModelTranslator;
-import org.rapidandroid.data.controller.DashboardDataLayer;
+import org.rapidandroid.data.controller.DashboardPages;
 import org.rapidandroid.data.controller.MessageDataReporter;
 import org.rapidandroid.data.controller.ParsedDataReporter;
 import org.rapidandroid.view.SingleRowHeaderView;
@@ -34,8 +37,12 @@ import org.rapidandroid.view.adapter.FormDataGridCursorAdapter;
 import org.rapidandroid.view.adapter.MessageCursorAdapter;
 import org.rapidandroid.view.adapter.SummaryCursorAdapter;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.ingest.IRowListener;
+import org.rapidsms.java.core.ingest.RowFeed;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -50,9 +57,12 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.CursorAdapter;
 import android.widget.ImageButton;
+import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.RadioButton;
 import android.widget.Spinner;
@@ -75,12 +85,16 @@ public class Dashboard extends Activity {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see android.app.Activity#onRestart()
+	 * @see android.app.Activity#onDestroy()
 	 */
 	@Override
-	protected void onRestart() {
-		// TODO Auto-generated method stub
-		super.onRestart();
+	protected void onDestroy() {
+		super.onDestroy();
+		RowFeed.getDefault().removeListener(mRowListener);
+		if (mPages != null) {
+			mPages.close();
+			mPages = null;
+		}
 	}
 
 	/*
@@ -90,8 +104,25 @@ public class Dashboard extends Activity {
 	 */
 	@Override
 	protected void onResume() {
-		// TODO Auto-generated method stub
 		super.onResume();
+		mResumed = true;
+		// merge what arrived while something else was in front
+		if (!mFeedRows.isEmpty()) {
+			mDashboardHandler.post(mFeedMerge);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.app.Activity#onPause()
+	 */
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mResumed = false;
+		// the rows are kept until the list is back in front
+		mDashboardHandler.removeCallbacks(mFeedMerge);
 	}
 
 	private SingleRowHeaderView headerView;
@@ -140,7 +171,26 @@ public class Dashboard extends Activity {
 	private static final int LISTVIEW_MODE_TABLE_VIEW = 1;
 	// private static final int LISTVIEW_MODE_SUMMARY_VIEW = 0;
 
-	private static final int SHOW_ALL = 5000;
+	private static final int SHOW_ALL = Integer.MAX_VALUE;
+	/**
+	 * The rows read at a time, as the list is scrolled toward the end of them.
+	 */
+	private static final int PAGE_SIZE = 100;
+	/**
+	 * How close to the last row read the next page is started.
+	 */
+	private static final int PAGE_PREFETCH = 20;
+
+	/**
+	 * The thread the list's pages are read on, one at a time.
+	 */
+	private static final ExecutorService sPageLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DashboardPages");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	private static final CharSequence TXT_WAIT = "Please Wait...";
 
 	private int mFormViewMode = LISTVIEW_MODE_TABLE_VIEW;
@@ -151,6 +201,50 @@ public class Dashboard extends Activity {
 	boolean mIsInitializing = false;
 	boolean resetCursor = true;
 	Cursor mListviewCursor = null;
+	/**
+	 * the rows mListviewCursor is over
+	 */
+	DashboardPages mPages = null;
+	boolean mLoadingPage = false;
+
+	/**
+	 * How long rows from the feed are gathered before they're merged into the
+	 * list. A steady stream of messages costs one merge a second instead of
+	 * one per message.
+	 */
+	private static final long FEED_MERGE_DELAY = 1000;
+
+	/**
+	 * The most rows from the feed merged one by one, past that the list is
+	 * read again.
+	 */
+	private static final int FEED_MAX_ROWS = 500;
+
+	/**
+	 * the ids published for the form mPages shows, ALL_MESSAGES for the
+	 * messages, that haven't been merged yet
+	 */
+	private final RowFeed.Pending mFeedRows = new RowFeed.Pending(FEED_MAX_ROWS);
+
+	private volatile boolean mResumed = false;
+
+	private final IRowListener mRowListener = new IRowListener() {
+		public void rowsCommitted(int formId, long[] ids) {
+			// on the thread storing the rows, only schedule the merge. The rows
+			// arriving before it runs ride along.
+			if (mFeedRows.add(formId, ids)) {
+				mDashboardHandler.postDelayed(mFeedMerge, FEED_MERGE_DELAY);
+			}
+		}
+	};
+
+	private final Runnable mFeedMerge = new Runnable() {
+		public void run() {
+			if (mResumed) {
+				beginRowsMerge();
+			}
+		}
+	};
 
 	// private Date mStartDate = Constants.NULLDATE;
 	// private Date mEndDate = Constants.NULLDATE;
@@ -198,6 +292,8 @@ public class Dashboard extends Activity {
 		requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
 		setTitle("RapidAndroid :: Dashboard");
 		setContentView(R.layout.dashboard);
+		// kept through onPause(), so nothing stored meanwhile is missed
+		RowFeed.getDefault().addListener(mRowListener);
 
 		this.initFormSpinner();
 		// Set the event listeners for the spinner and the listview
@@ -223,6 +319,16 @@ public class Dashboard extends Activity {
 		mScreenWidth = dm.widthPixels - 8;
 
 		lsv.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
+		lsv.setOnScrollListener(new AbsListView.OnScrollListener() {
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH) {
+					beginNextPage();
+				}
+			}
+
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+		});
 
 		// // bind a context menu
 		// lsv.setOnCreateContextMenuListener(new
@@ -326,7 +432,7 @@ public class Dashboard extends Activity {
 					this.mListCount = 500;
 				} else if (chosenRadio == 2) {
 					rball.setChecked(true);
-					this.mListCount = 5000;
+					this.mListCount = SHOW_ALL;
 				}
 
 				mIsInitializing = false;
@@ -397,12 +503,9 @@ public class Dashboard extends Activity {
 			case ACTIVITY_CHARTS:
 				// dialogMessage = "Activity Done";
 				// showDialog(13);
-				resetCursor = true;
-				beginListViewReload();
-				break;
 			case ACTIVITY_GLOBALSETTINGS:
-				resetCursor = true;
-				beginListViewReload();
+				// neither changes the rows, onResume() merges in the ones
+				// that arrived
 				break;
 			// case ACTIVITY_DATERANGE:
 			// if (extras != null) {
@@ -585,7 +688,7 @@ public class Dashboard extends Activity {
 						+ Message.COL_JOINED_MESSAGE_TIME);
 
 				try {
-					startDate = Message.SQLDateFormatter.parse(datestring);
+					startDate = TimestampCodec.SQL.parse(datestring);
 				} catch (ParseException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
@@ -606,7 +709,7 @@ public class Dashboard extends Activity {
 			if (mListviewCursor.getCount() > 0) {
 				mListviewCursor.moveToLast();
 				try {
-					startDate = Message.SQLDateFormatter.parse(mListviewCursor.getString(Message.COL_TIME));
+					startDate = TimestampCodec.SQL.parse(mListviewCursor.getString(Message.COL_TIME));
 				} catch (ParseException e) {
 					setDate = true;
 				}
@@ -673,6 +776,9 @@ public class Dashboard extends Activity {
 	}
 
 	private synchronized void finishListViewReload() {
+		if (mListviewCursor == null && mPages != null) {
+			mListviewCursor = mPages.newCursor();
+		}
 		if (mListviewCursor == null) {
 			return;
 		}
@@ -701,6 +807,10 @@ public class Dashboard extends Activity {
 			finishListViewReload();
 			mViewSwitcher.showNext();
 			// }
+			// rows stored while the list was read
+			if (!mFeedRows.isEmpty()) {
+				mDashboardHandler.post(mFeedMerge);
+			}
 		}
 	};
 
@@ -720,23 +830,123 @@ public class Dashboard extends Activity {
 		lbl_recents.setText(TXT_WAIT);
 		mViewSwitcher.showNext();
 		resetListAdapters();
-		new Thread(new Runnable() {
+		if (mPages == null) {
+			if (mChosenForm != null && !mShowAllMessages) {
+				mFeedRows.reset(mChosenForm.getFormId());
+				mPages = new DashboardPages(this, mChosenForm, PAGE_SIZE, mListCount);
+			} else if (mShowAllMessages && mChosenForm == null) {
+				mFeedRows.reset(RollupAccumulator.ALL_MESSAGES);
+				mPages = new DashboardPages(this, null, PAGE_SIZE, mListCount);
+			}
+		}
+		final DashboardPages pages = mPages;
+		sPageLoader.execute(new Runnable() {
 			public void run() {
-				fillCursorInBackground();
+				// only the first page, the rest are read as the list scrolls
+				if (pages != null && pages.getCount() == 0) {
+					pages.loadNextPage();
+				}
 				mIsInitializing = false;
 				// finishListViewReload();//might puke
 				mDashboardHandler.post(mUpdateResults);
 			}
-		}).start();
+		});
 	}
 
-	private synchronized void fillCursorInBackground() {
-		if (mListviewCursor == null) {
-			if (mChosenForm != null && !mShowAllMessages) {
-				mListviewCursor = DashboardDataLayer.getCursorForFormData(this, mChosenForm, mListCount);
-			} else if (mShowAllMessages && mChosenForm == null) {
-				mListviewCursor = DashboardDataLayer.getCursorForRawMessages(this, mListCount);
+	/**
+	 * Read the page after the last row in the list, and add it to the end.
+	 */
+	private void beginNextPage() {
+		final DashboardPages pages = mPages;
+		if (pages == null || mListviewCursor == null || mIsInitializing || mLoadingPage || pages.isExhausted()) {
+			return;
+		}
+		mLoadingPage = true;
+		setProgressBarIndeterminateVisibility(true);
+		sPageLoader.execute(new Runnable() {
+			public void run() {
+				final boolean added = pages.loadNextPage();
+				mDashboardHandler.post(new Runnable() {
+					public void run() {
+						mLoadingPage = false;
+						setProgressBarIndeterminateVisibility(false);
+						if (added && pages == mPages) {
+							swapListCursor(DashboardPages.NO_POSITIONS);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Read the rows the feed published since the last merge by their _ids,
+	 * and put each in the list where it sorts. A message's time is when it was
+	 * sent, so one that arrives late belongs further down than the head.
+	 */
+	private void beginRowsMerge() {
+		final DashboardPages pages = mPages;
+		if (pages == null || mListviewCursor == null || mIsInitializing) {
+			// a reload in progress merges them once it's done
+			return;
+		}
+		final long[] ids = mFeedRows.take();
+		if (ids == null) {
+			// too many to merge one by one
+			resetCursor = true;
+			beginListViewReload();
+			return;
+		}
+		if (ids.length == 0) {
+			return;
+		}
+		sPageLoader.execute(new Runnable() {
+			public void run() {
+				final int[] inserted = pages.loadRows(ids);
+				if (inserted.length == 0) {
+					return;
+				}
+				mDashboardHandler.post(new Runnable() {
+					public void run() {
+						if (pages == mPages) {
+							swapListCursor(inserted);
+						}
+					}
+				});
 			}
+		});
+	}
+
+	/**
+	 * Show the pages read so far in the list's adapter, keeping the rows on
+	 * screen where they are.
+	 * 
+	 * @param inserted
+	 *            the positions rows were just put at
+	 */
+	private void swapListCursor(int[] inserted) {
+		ListView lsv = (ListView) findViewById(R.id.lsv_dashboardmessages);
+		ListAdapter adapter = lsv.getAdapter();
+		mListviewCursor = mPages.newCursor();
+		if (!(adapter instanceof CursorAdapter)) {
+			// it was showing "No data"
+			finishListViewReload();
+			return;
+		}
+		int first = lsv.getFirstVisiblePosition();
+		View top = lsv.getChildAt(0);
+		int offset = top == null ? 0 : top.getTop();
+
+		// the adapter closes the cursor it had, that leaves the pages open
+		((CursorAdapter) adapter).changeCursor(mListviewCursor);
+		if (adapter == summaryView) {
+			summaryView.shiftExpanded(inserted);
+		}
+		TextView lbl_recents = (TextView) findViewById(R.id.lbl_dashboardmessages);
+		lbl_recents.setText(mListviewCursor.getCount() + " Messages");
+		int shifted = DashboardPages.shiftPosition(first, inserted);
+		if (shifted != first) {
+			lsv.setSelectionFromTop(shifted, offset);
 		}
 	}
 
@@ -813,6 +1023,10 @@ public class Dashboard extends Activity {
 				mListviewCursor.close();
 				mListviewCursor = null;
 			}
+			if (mPages != null) {
+				mPages.close();
+				mPages = null;
+			}
 			resetCursor = false;
 		}
 	}
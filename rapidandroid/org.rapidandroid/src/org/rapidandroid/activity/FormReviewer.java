@@ -26,18 +26,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.rapidandroid.R;
 import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.content.translation.ModelTranslator;
@@ -46,23 +42,28 @@ import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.controller.ParsedDataReporter;
 import org.rapidandroid.view.adapter.FieldViewAdapter;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.TimestampCodec;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.model.Monitor;
 import org.rapidsms.java.core.parser.IParseResult;
 import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.upload.ChunkedUploader;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.AlertDialog.Builder;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Debug;
 import android.os.Handler;
+import android.os.RemoteException;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -91,10 +92,34 @@ public class FormReviewer extends Activity {
 	private static final int MENU_DUMP_CSV = Menu.FIRST + 2;
 	private static final int MENU_HTTP_UPLOAD = Menu.FIRST + 3;
 	private static final int MENU_INJECT_DEBUG = Menu.FIRST + 4;
+	private static final int MENU_DUMP_NEW_CSV = Menu.FIRST + 5;
 
 	public static final int ACTIVITY_FILE_BROWSE = 0;
 
+	/**
+	 * the sandbox/httpendpoint receiver
+	 */
+	private static final String UPLOAD_URL = "http://192.168.7.127:8160/upload";
+
+	private final ChunkedUploader mUploader = new ChunkedUploader(UPLOAD_URL);
+
+	/**
+	 * the delta each form's upload is sending, by form id, held until the
+	 * server takes it so that a retry resends the same file and resumes it
+	 * instead of exporting a new one. Uploads run one at a time under this
+	 * lock.
+	 */
+	private static final HashMap<Integer, ParsedDataReporter.DeltaExport> sPendingUploads = new HashMap<Integer, ParsedDataReporter.DeltaExport>();
+
 	boolean success = false;
+	/**
+	 * rows in the last CSV export, -1 if it failed
+	 */
+	long mCsvRows = 0;
+	/**
+	 * whether the last CSV export was only the data new since the one before
+	 */
+	boolean mCsvDelta = false;
 
 	private Form mForm;
 	final Handler mDebugHandler = new Handler();
@@ -162,6 +187,8 @@ public class FormReviewer extends Activity {
 
 		menu.add(0, MENU_DUMP_CSV, 0, R.string.formreview_dump_csv).setIcon(android.R.drawable.ic_menu_save);
 
+		menu.add(0, MENU_DUMP_NEW_CSV, 0, R.string.formreview_dump_new_csv).setIcon(android.R.drawable.ic_menu_save);
+
 //		menu.add(0, MENU_HTTP_UPLOAD, 0, R.string.formreview_upload_csv).setIcon(android.R.drawable.ic_menu_upload);
 
 		//menu.add(0, MENU_INJECT_DEBUG, 0, "Generate Data").setIcon(android.R.drawable.ic_menu_manage);
@@ -191,6 +218,7 @@ public class FormReviewer extends Activity {
 				showDialog(0);
 				return true;
 			case MENU_DUMP_CSV:
+			case MENU_DUMP_NEW_CSV:
 				if (ParsedDataReporter.getOldestMessageDate(this, mForm).equals(Constants.NULLDATE)) {
 					Builder noDateDialog = new AlertDialog.Builder(this);
 					noDateDialog.setPositiveButton("Ok", null);
@@ -200,10 +228,10 @@ public class FormReviewer extends Activity {
 					return true;
 				}
 
-				outputCSV();
+				outputCSV(item.getItemId() == MENU_DUMP_NEW_CSV);
 				break;
 			case MENU_HTTP_UPLOAD:
-				chooseFile();
+				uploadNewFormData();
 				break;
 			case MENU_INJECT_DEBUG:
 				injectMessages();
@@ -259,9 +287,17 @@ public class FormReviewer extends Activity {
 	}
 
 	private void alertCSVStatus() {
-
-		Toast.makeText(getApplicationContext(), "CSV Save Complete", Toast.LENGTH_LONG).show();
-
+		if (mCsvRows >= 0 && !mCsvDelta) {
+			Toast.makeText(getApplicationContext(), "CSV Save Complete", Toast.LENGTH_LONG).show();
+		} else if (mCsvRows > 0) {
+			Toast.makeText(getApplicationContext(), "CSV Save Complete, " + mCsvRows + " new rows",
+							Toast.LENGTH_LONG).show();
+		} else if (mCsvRows == 0) {
+			Toast.makeText(getApplicationContext(), "No new form data since the last CSV save", Toast.LENGTH_LONG)
+					.show();
+		} else {
+			Toast.makeText(getApplicationContext(), "CSV Save failed", Toast.LENGTH_LONG).show();
+		}
 	}
 
 	private void updateResultsInUi() {
@@ -269,45 +305,59 @@ public class FormReviewer extends Activity {
 
 	}
 
-	private void chooseFile() {
-		// spawn the activity for file browsing
-		Intent i;
-		i = new Intent(this, FileBrowser.class);
-		startActivityForResult(i, ACTIVITY_FILE_BROWSE);
-		// on activity return do the upload
-	}
-
 	private void uploadFile(final String filename) {
 		Toast.makeText(getApplicationContext(), "File upload begun", Toast.LENGTH_LONG).show();
 		Thread t = new Thread() {
 			@Override
 			public void run() {
 				try {
-					DefaultHttpClient httpclient = new DefaultHttpClient();
-
-					File f = new File(filename);
-
-					HttpPost httpost = new HttpPost("http://192.168.7.127:8160/upload/upload");
-					MultipartEntity entity = new MultipartEntity();
-					entity.addPart("myIdentifier", new StringBody("somevalue"));
-					entity.addPart("myFile", new FileBody(f));
-					httpost.setEntity(entity);
-
-					HttpResponse response;
-
-					// Post, check and show the result (not really spectacular,
-					// but works):
-					response = httpclient.execute(httpost);
-
-					Log.d("httpPost", "Login form get: " + response.getStatusLine());
+					success = postFile(new File(filename));
+				} finally {
+					mDebugHandler.post(mFinishUpload);
+				}
+			}
+		};
+		t.start();
+	}
 
-					if (entity != null) {
-						entity.consumeContent();
+	/**
+	 * Upload the form data that's come in since the last successful upload,
+	 * and move the upload watermark past it once the server accepts it. A
+	 * delta that didn't make it is retried as is until it does, and only then
+	 * is the next one exported.
+	 */
+	private void uploadNewFormData() {
+		Toast.makeText(getApplicationContext(), "Upload of new form data begun", Toast.LENGTH_LONG).show();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					synchronized (sPendingUploads) {
+						Integer formId = Integer.valueOf(mForm.getFormId());
+						ParsedDataReporter.DeltaExport export = sPendingUploads.get(formId);
+						if (export == null || !export.getFile().exists()) {
+							// not gzipped here, the uploader gzips each chunk
+							export = ParsedDataReporter.exportNewFormData(getBaseContext(), mForm,
+									RapidSmsDBConstants.ExportWatermark.DESTINATION_UPLOAD, false, null);
+							if (export == null) {
+								sPendingUploads.remove(formId);
+							} else {
+								sPendingUploads.put(formId, export);
+							}
+						}
+						if (export == null) {
+							// nothing new, nothing to send
+							success = true;
+						} else {
+							success = postFile(export.getFile());
+							if (success) {
+								ParsedDataReporter.commitExport(getBaseContext(), export);
+								sPendingUploads.remove(formId);
+							}
+						}
 					}
-
-					success = true;
-				} catch (Exception ex) {
-					Log.d("FormReviewer", "Upload failed: " + ex.getMessage() + " Stacktrace: " + ex.getStackTrace());
+				} catch (IOException ex) {
+					Log.d("FormReviewer", "Upload export failed: " + ex.getMessage());
 					success = false;
 				} finally {
 					mDebugHandler.post(mFinishUpload);
@@ -318,20 +368,63 @@ public class FormReviewer extends Activity {
 	}
 
 	/**
-	 * 
+	 * @param f
+	 * @return true if the server accepted the file
+	 */
+	private boolean postFile(File f) {
+		try {
+			// resumes from the chunks the server already has if an earlier
+			// upload of this file was cut off
+			ChunkedUploader.Result result = mUploader.upload(f, f.getName(), null);
+			Log.d("FormReviewer", "Uploaded " + f.getName() + ": " + result.getChunks() + " chunks, resumed from "
+					+ result.getResumedFrom() + ", " + result.getBytesSent() + " bytes sent");
+			return true;
+		} catch (IOException ex) {
+			Log.d("FormReviewer", "Upload failed: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @param delta
+	 *            only what's come in since the last delta export, instead of
+	 *            the whole history
 	 */
-	private void outputCSV() {
+	private void outputCSV(final boolean delta) {
 		Toast.makeText(getApplicationContext(), "CSV output job has begun", Toast.LENGTH_LONG).show();
 		// Fire off a thread to do some work that we shouldn't do directly in
 		// the UI thread
 		Thread t = new Thread() {
 			@Override
 			public void run() {
-				Calendar now = Calendar.getInstance();
-				Calendar then = Calendar.getInstance();
-				then.set(Calendar.YEAR, 1990);
-				ParsedDataReporter.exportFormDataToCSV(getBaseContext(), mForm, then, now);
-				mDebugHandler.post(mCsvSaveCompleted);
+				mCsvDelta = delta;
+				if (!delta) {
+					Calendar now = Calendar.getInstance();
+					// the export runs up to the start of the end day, so end
+					// it tomorrow to take in today's data
+					now.add(Calendar.DATE, 1);
+					Calendar then = Calendar.getInstance();
+					then.set(Calendar.YEAR, 1990);
+					File file = ParsedDataReporter.exportFormDataToCSV(getBaseContext(), mForm, then, now);
+					mCsvRows = file == null ? -1 : 0;
+					mDebugHandler.post(mCsvSaveCompleted);
+					return;
+				}
+				try {
+					ParsedDataReporter.DeltaExport export = ParsedDataReporter.exportNewFormData(getBaseContext(),
+							mForm, RapidSmsDBConstants.ExportWatermark.DESTINATION_CSV, false, null);
+					if (export == null) {
+						mCsvRows = 0;
+					} else {
+						ParsedDataReporter.commitExport(getBaseContext(), export);
+						mCsvRows = export.getRows();
+					}
+				} catch (IOException e) {
+					Log.d("FormReviewer", "CSV export failed: " + e.getMessage());
+					mCsvRows = -1;
+				} finally {
+					mDebugHandler.post(mCsvSaveCompleted);
+				}
 
 			}
 		};
@@ -419,6 +512,7 @@ public class FormReviewer extends Activity {
 			}
 		}
 		int len = lines.size();
+		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
 
 		for (int i = 0; i < len; i++) {
 			String[] csvline = lines.get(i);
@@ -427,7 +521,7 @@ public class FormReviewer extends Activity {
 
 			Date dateval = new Date();
 			try {
-				dateval = Message.SQLDateFormatter.parse(datestr);
+				dateval = TimestampCodec.SQL.parse(datestr);
 			} catch (ParseException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -442,26 +536,56 @@ public class FormReviewer extends Activity {
 			messageValues.put(RapidSmsDBConstants.Message.MESSAGE, text);
 			messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
 
-			messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(dateval));
-			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, Message.SQLDateFormatter.format(dateval));
+			messageValues.put(RapidSmsDBConstants.Message.TIME, TimestampCodec.SQL.format(dateval));
+			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, TimestampCodec.SQL.format(dateval));
+			messageValues.put(RapidSmsDBConstants.Message.TIME_MILLIS, dateval.getTime());
+			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME_MILLIS, dateval.getTime());
 			messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
 
-			Uri msgUri = null;
-			
-			msgUri = this.getContentResolver().insert(RapidSmsDBConstants.Message.CONTENT_URI, messageValues);
-			Vector<IParseResult> results = ParsingService.ParseMessage(mForm, text);
-			ParsedDataTranslator.InsertFormData(this, mForm, Integer.valueOf(msgUri.getPathSegments().get(1))
-																			.intValue(), results);
+			addMessageOperations(ops, messageValues, text);
 		}
+		applyOperations(ops);
+	}
 
+	/**
+	 * Queue the insert of a message and of its parsed form data, which gets
+	 * the message's id from the first insert once the batch is applied.
+	 */
+	private void addMessageOperations(ArrayList<ContentProviderOperation> ops, ContentValues messageValues,
+			String text) {
+		int messageOp = ops.size();
+		ops.add(ContentProviderOperation.newInsert(RapidSmsDBConstants.Message.CONTENT_URI)
+										.withValues(messageValues).build());
+		Vector<IParseResult> results = ParsingService.ParseMessage(mForm, text);
+		if (results == null) {
+			return;
+		}
+		ops.add(ContentProviderOperation.newInsert(
+													Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX
+															+ mForm.getFormId()))
+										.withValues(ParsedDataTranslator.getFormDataValues(mForm, results))
+										.withValueBackReference(RapidSmsDBConstants.FormData.MESSAGE, messageOp)
+										.build());
+	}
 
-
+	/**
+	 * Apply the queued inserts as one transaction.
+	 */
+	private void applyOperations(ArrayList<ContentProviderOperation> ops) {
+		try {
+			getContentResolver().applyBatch(RapidSmsDBConstants.AUTHORITY, ops);
+		} catch (RemoteException e) {
+			Log.e("FormReviewer", "Debug data injection failed", e);
+		} catch (OperationApplicationException e) {
+			Log.e("FormReviewer", "Debug data injection failed", e);
+		}
 	}
 	
 	private void doRandomizedInjection() {
 		Random r = new Random();
 
 		// Debug.startMethodTracing("injection");
+		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
 		for (int i = 0; i < 100; i++) {
 
 			// first, let's get the
@@ -469,8 +593,6 @@ public class FormReviewer extends Activity {
 															// 36);
 			Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(this, token);
 
-			Uri writeMessageUri = RapidSmsDBConstants.Message.CONTENT_URI;
-
 			StringBuilder sb = this.generateRandomMessage();
 			ContentValues messageValues = new ContentValues();
 			messageValues.put(RapidSmsDBConstants.Message.MESSAGE, sb.toString());
@@ -478,17 +600,13 @@ public class FormReviewer extends Activity {
 
 			Date now = getRandomDate();
 
-			messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(now));
+			messageValues.put(RapidSmsDBConstants.Message.TIME, TimestampCodec.SQL.format(now));
+			messageValues.put(RapidSmsDBConstants.Message.TIME_MILLIS, now.getTime());
 			messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
 
-			Uri msgUri = null;
-
-			msgUri = getContentResolver().insert(writeMessageUri, messageValues);
-
-			Vector<IParseResult> results = ParsingService.ParseMessage(mForm, sb.toString());
-			ParsedDataTranslator.InsertFormData(this, mForm, Integer.valueOf(msgUri.getPathSegments().get(1))
-																	.intValue(), results);
+			addMessageOperations(ops, messageValues, sb.toString());
 		}
+		applyOperations(ops);
 
 		Debug.stopMethodTracing();
 
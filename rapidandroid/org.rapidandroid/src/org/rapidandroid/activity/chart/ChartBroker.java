@@ -18,16 +18,23 @@
 package org.rapidandroid.activity.chart;
 
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.chart.CancellationToken;
+import org.rapidsms.java.core.chart.ChartCache;
+import org.rapidsms.java.core.chart.ChartLoadQueue;
+import org.rapidsms.java.core.chart.GraphJsonWriter;
+import org.rapidsms.java.core.chart.TimeBuckets;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 import android.app.Activity;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -44,6 +51,10 @@ import android.webkit.WebView;
  * Java object that the WebView will need to call, specifically the method
  * jsLoadGraph().
  * 
+ * The graph is computed on the chart load thread, not the one the WebView
+ * calls in on. doLoadGraph() runs there, and should check its token between
+ * the rows it reads.
+ * 
  * @author Daniel Myung dmyung@dimagi.com
  * @created Jan 29, 2009
  * 
@@ -55,7 +66,8 @@ public abstract class ChartBroker {
 	private static final String EMPTY_FILE = "file:///android_asset/flot/html/empty.html";
 
 	/**
-	 * Enumeration for display types (date) for level of bucketization
+	 * Enumeration for display types (date) for level of bucketization. The
+	 * ordinals are the TimeBuckets types.
 	 * 
 	 * @author Cory Zue
 	 * 
@@ -83,8 +95,26 @@ public abstract class ChartBroker {
 	protected boolean isShowing = false;
 	private String mGraphTitle = "";
 
-	protected JSONArray mGraphData;
-	protected JSONObject mGraphOptions;
+	/**
+	 * the chart's data and options, serialized
+	 */
+	protected String mGraphData;
+	protected String mGraphOptions;
+
+	/**
+	 * the buffer the charts' series are written into, and then the script
+	 * handing them to the page. Only the chart load thread uses it.
+	 */
+	protected final GraphJsonWriter mJson = new GraphJsonWriter();
+
+	/**
+	 * The tag the payloads are logged under, at VERBOSE. They can be
+	 * megabytes, so they're only logged when it's turned on with "setprop
+	 * log.tag.ChartBroker VERBOSE".
+	 */
+	protected static final String TAG = "ChartBroker";
+
+	private static final String EMPTY_DATA = "[[0,0]]";
 
 	protected final Handler mTitleHandler = new Handler();
 	protected final Runnable mUpdateActivityTitle = new Runnable() {
@@ -113,7 +143,32 @@ public abstract class ChartBroker {
 	};
 	// private boolean mChartPageLoaded;
 	// private boolean mAlreadyLoading;
-	private final DateFormat sqlDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * The column the chart queries that still read the messages filter on.
+	 */
+	protected static final String TIME_COLUMN = "rapidandroid_message.time_millis";
+
+	/**
+	 * Charts computed by every broker, kept while they fit in a sixteenth of
+	 * the heap so switching back to one doesn't query for it again.
+	 * RapidSmsContentProvider drops a form's charts, through
+	 * ChartCache.invalidateFormInAll(), when rows of it are inserted or
+	 * deleted.
+	 */
+	private static final ChartCache<JSONGraphData> sGraphCache = new ChartCache<JSONGraphData>(Runtime
+			.getRuntime().maxMemory() / 16);
+
+	/**
+	 * The thread every broker's graphs are computed on, one at a time. A few
+	 * charts' loads can wait for it, past that the oldest waiting is dropped.
+	 */
+	private static final ThreadPoolExecutor sLoadExecutor = ChartLoadQueue.newExecutor("ChartLoad", 4);
+
+	/**
+	 * this broker's loads, a newer one cancels the one before it
+	 */
+	private final ChartLoadQueue mLoads = new ChartLoadQueue(sLoadExecutor);
 
 	protected ChartBroker(Activity activity, WebView appView, Date startDate, Date endDate) {
 		mParentActivity = activity;
@@ -125,12 +180,8 @@ public abstract class ChartBroker {
 		mEndDate = endDate;
 	}
 
-	public String getGraphData() {
-		if (mGraphData != null) {
-			return mGraphData.toString();
-		} else {
-			return null;
-		}
+	public synchronized String getGraphData() {
+		return mGraphData;
 	}
 
 	public synchronized void jsPrintDebug(String debugstring) {
@@ -140,7 +191,8 @@ public abstract class ChartBroker {
 	public synchronized void setGraphData(String jsonarr) {
 
 		try {
-			this.mGraphData = new JSONArray(jsonarr);
+			new JSONArray(jsonarr);
+			this.mGraphData = jsonarr;
 		} catch (JSONException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -150,7 +202,8 @@ public abstract class ChartBroker {
 	public synchronized void setGraphOptions(String jsonobj) {
 
 		try {
-			this.mGraphOptions = new JSONObject(jsonobj);
+			new JSONObject(jsonobj);
+			this.mGraphOptions = jsonobj;
 		} catch (JSONException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -158,34 +211,152 @@ public abstract class ChartBroker {
 	}
 
 	public synchronized String getGraphOptions() {
-		if (mGraphOptions != null) {
-			return mGraphOptions.toString();
-		} else {
-			return null;
-		}
+		return mGraphOptions;
 	}
 
-	protected abstract void doLoadGraph();
+	/**
+	 * Compute the graph for the current variable and range. Runs on the chart
+	 * load thread.
+	 * 
+	 * @param token
+	 *            cancelled when the load is superseded, check it in the loops
+	 *            over cursors
+	 * @return the graph, null if there's nothing to show
+	 */
+	protected abstract JSONGraphData doLoadGraph(CancellationToken token);
 
 	/**
 	 * This is the primary method that the JavaScript in our HTML form will need
 	 * access to in order to display graph data.
 	 * 
+	 * The graph is loaded in the background, and a load still running is
+	 * cancelled. The thinker is shown until the page calls jsFinishGraph().
+	 * 
 	 * This SHOULD NOT be called from java, javascript should call it.
 	 */
-	public synchronized final void jsLoadGraph() {		
+	public final void jsLoadGraph() {
 		// Debug.startMethodTracing("graphing_" + this.getClass().getName() +
 		// traceCount++);
-		// trying to get this to work, but it's quite annoying
-		// if (!mAlreadyLoading) {
 		mDialogHandler.post(mStartThinker);
-		if (mGraphData == null && mGraphOptions == null) {
-			doLoadGraph();
+		mLoads.submit(new GraphLoad());
+	}
+
+	/**
+	 * Cancel the load in progress, if there is one. Call it when the chart
+	 * goes away.
+	 */
+	public void cancelLoad() {
+		mLoads.cancel();
+	}
+
+	/**
+	 * A jsLoadGraph(), computed on the chart load thread and handed to the page
+	 * on the UI thread, unless a newer one has taken its place by then.
+	 */
+	private final class GraphLoad implements ChartLoadQueue.IChartLoad {
+		public void load(final CancellationToken token) {
+			JSONGraphData graph;
+			try {
+				graph = loadGraphCached(token);
+			} catch (RuntimeException e) {
+				if (token.isCancelled()) {
+					// the variable or range was changed under it
+					return;
+				}
+				// nothing on the load thread would report it, and the
+				// dialog would stay up
+				Log.e(TAG, "Failed to load the graph", e);
+				mDialogHandler.post(mStopThinker);
+				return;
+			}
+			final String script = getGraphScript(graph);
+			synchronized (ChartBroker.this) {
+				if (!mLoads.isCurrent(token)) {
+					return;
+				}
+				mGraphData = graph.getData();
+				mGraphOptions = graph.getOptions();
+			}
+			mDialogHandler.post(new Runnable() {
+				public void run() {
+					if (mLoads.isCurrent(token)) {
+						loadGraphFinish(script);
+					}
+				}
+			});
+		}
+
+		public void dropped() {
+			// other charts' loads pushed it out, nothing will finish it
+			mDialogHandler.post(mStopThinker);
 		}
-		loadGraphFinish();
-		// } else {
-		// mAlreadyLoading = false;
-		// }
+	}
+
+	/**
+	 * The key this broker's current chart is cached under.
+	 * 
+	 * @return null if it isn't to be cached
+	 */
+	protected ChartCache.Key getCacheKey() {
+		return null;
+	}
+
+	/**
+	 * A key for the current chart over the current range.
+	 * 
+	 * @param formId
+	 *            the form whose changes invalidate it
+	 * @param field
+	 *            the field plotted, null if none
+	 */
+	protected ChartCache.Key newCacheKey(int formId, String field) {
+		return new ChartCache.Key(getName(), formId, field, mChosenVariable, mStartDate.getTime(),
+									mEndDate.getTime(), getDisplayType(mStartDate, mEndDate).ordinal());
+	}
+
+	/**
+	 * The graph already loaded, or doLoadGraph() unless the chart is cached.
+	 * 
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the load was cancelled, the graph it computed may not be
+	 *             the current variable's
+	 */
+	private JSONGraphData loadGraphCached(CancellationToken token) {
+		ChartCache.Key key;
+		synchronized (this) {
+			if (mGraphData != null && mGraphOptions != null) {
+				return new JSONGraphData(mGraphData, mGraphOptions);
+			}
+			key = getCacheKey();
+		}
+		if (key == null) {
+			return loadGraph(token);
+		}
+		JSONGraphData cached = sGraphCache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		// read first, a chart that misses rows inserted while it's computed
+		// won't be cached
+		long generation = sGraphCache.getGeneration(key.getFormId());
+		JSONGraphData graph = loadGraph(token);
+		long bytes = 2L * (graph.getData().length() + graph.getOptions().length());
+		sGraphCache.put(key, graph, bytes, generation);
+		return graph;
+	}
+
+	/**
+	 * doLoadGraph(), with an empty graph for nothing to show.
+	 */
+	private JSONGraphData loadGraph(CancellationToken token) {
+		JSONGraphData graph = doLoadGraph(token);
+		// setVariable() and setRange() cancel before they change anything, so
+		// past here the graph is the one asked for
+		token.throwIfCancelled();
+		if (graph == null) {
+			graph = new JSONGraphData(getEmptyData(), "{}");
+		}
+		return graph;
 	}
 
 	protected void getPrettyTitleString() {
@@ -215,11 +386,46 @@ public abstract class ChartBroker {
 
 	}
 
-	protected void loadGraphFinish() {		
+	/**
+	 * The most points a line series is given, whatever the screen. flot
+	 * draws far more slowly than this once a series reaches the tens of
+	 * thousands, and the JSON for it alone runs to megabytes.
+	 */
+	protected static final int MAX_SERIES_POINTS = 2000;
+
+	/**
+	 * @return the width in pixels the chart is drawn at, which is the most
+	 *         points a line series can show
+	 */
+	protected int getDisplayWidth() {
+		return this.mParentActivity.getWindowManager().getDefaultDisplay().getWidth();
+	}
+
+	/**
+	 * @return the script handing the graph to the page, built in mJson's
+	 *         buffer so it's the one copy of the payload made here
+	 */
+	private String getGraphScript(JSONGraphData graph) {
+		StringBuilder script = mJson.reset().getBuffer();
+		script.append("javascript:GotGraph(").append(graph.getData()).append(',').append(graph.getOptions())
+				.append(')');
+		String url = script.toString();
+		mJson.release();
+		return url;
+	}
+
+	/**
+	 * Size the graph to the screen and hand it to the page. Runs on the UI
+	 * thread.
+	 * 
+	 * @param script
+	 *            from getGraphScript()
+	 */
+	protected void loadGraphFinish(String script) {
 		Display display = this.mParentActivity.getWindowManager().getDefaultDisplay();
 		//Get the screen orientation
 			
-		int width = display.getWidth();
+		int width = getDisplayWidth();
 		int height = display.getHeight();	
 		
 		Log.d("ChartBroker", "getWidth: " + width);
@@ -229,12 +435,14 @@ public abstract class ChartBroker {
 		mAppView.loadUrl("javascript:SetGraph(\"" + width + "px\", \"" + height + "px\")");
 		Log.d("ChartBroker", "javascript:SetGraph(\"" + width + "px\", \"" + height + "px\")");
 		
-		mAppView.loadUrl("javascript:GotGraph(" + mGraphData.toString() + "," + mGraphOptions.toString() + ")");
-		Log.d("ChartBroker", "javascript:GotGraph(" + mGraphData.toString() + "," + mGraphOptions.toString() + ")");
+		if (Log.isLoggable(TAG, Log.VERBOSE)) {
+			Log.v(TAG, script);
+		}
+		mAppView.loadUrl(script);
 	}
 
-	private boolean hasData() {
-		if (mGraphData == null || this.getEmptyData().toString().equals(mGraphData.toString())) {
+	private synchronized boolean hasData() {
+		if (mGraphData == null || EMPTY_DATA.equals(mGraphData)) {
 			return false;
 		}
 		return true;
@@ -256,64 +464,166 @@ public abstract class ChartBroker {
 	 * @return
 	 */
 	protected DateDisplayTypes getDisplayType(Date startDate, Date endDate) {
-		Calendar startCal = Calendar.getInstance();
-		startCal.setTime(startDate);
-		Calendar endCal = Calendar.getInstance();
-		endCal.setTime(endDate);
+		return DateDisplayTypes.values()[TimeBuckets.getDisplayType(TimeZone.getDefault(), startDate.getTime(),
+																		endDate.getTime())];
+	}
 
-		Calendar tempCal = Calendar.getInstance();
-		tempCal.setTime(startDate);
-		tempCal.add(Calendar.DATE, 3);
-		if (endCal.before(tempCal)) {
-			// within 3 days, we do it by hour. with day shading
-			return DateDisplayTypes.Hourly;
-		}
+	/**
+	 * The rollup table the buckets for displayType are built from: hours from
+	 * the hourly rollups, everything else from whole days.
+	 */
+	protected static String getRollupTable(DateDisplayTypes displayType) {
+		return displayType == DateDisplayTypes.Hourly ? RapidSmsDBConstants.Rollup.HOURLY_TABLE
+				: RapidSmsDBConstants.Rollup.DAILY_TABLE;
+	}
 
-		tempCal.setTime(startDate);
-		tempCal.add(Calendar.MONTH, 3);
+	private static long getRollupWidth(DateDisplayTypes displayType) {
+		return displayType == DateDisplayTypes.Hourly ? RollupAccumulator.HOUR_MILLIS : RollupAccumulator.DAY_MILLIS;
+	}
 
-		if (endCal.before(tempCal)) {
-			// within 3 months, we break it down by day with week & month
-			// shading?
-			return DateDisplayTypes.Daily;
-		}
-		tempCal.setTime(startDate);
-		tempCal.add(Calendar.YEAR, 2);
-		if (endCal.before(tempCal)) {
-			// within 2 years, we break it down by week with month shading
-			return DateDisplayTypes.Weekly;
-		}
-		tempCal.setTime(startDate);
-		tempCal.add(Calendar.YEAR, 4);
+	/**
+	 * A query of one rollup series, with a row per displayType bucket in the
+	 * range, in order. Column 0 is the first rollup bucket in it, turn that
+	 * into a time with getRollupMillis(). Run it with getRollupArgs().
+	 * 
+	 * The rollups are read in whole buckets, so the buckets at either end of
+	 * the range count all of their messages.
+	 * 
+	 * @param displayType
+	 * @param columns
+	 *            the aggregates to select after the bucket, eg sum(count)
+	 * @param startDate
+	 *            the range being charted, NULLDATE if it's open
+	 * @param endDate
+	 * @return
+	 */
+	protected String getRollupQuery(DateDisplayTypes displayType, String columns, Date startDate, Date endDate) {
+		String group = getRollupGroupString(displayType, startDate, endDate);
+		StringBuilder query = new StringBuilder();
+		query.append("select min(").append(RapidSmsDBConstants.Rollup.BUCKET).append("), ").append(columns);
+		query.append(" from ").append(getRollupTable(displayType));
+		query.append(" where ").append(RapidSmsDBConstants.Rollup.FORM).append(" = ? and ");
+		query.append(RapidSmsDBConstants.Rollup.FIELD).append(" = ?");
+		if (startDate.compareTo(Constants.NULLDATE) != 0 && endDate.compareTo(Constants.NULLDATE) != 0) {
+			TimeZone zone = TimeZone.getDefault();
+			long width = getRollupWidth(displayType);
+			query.append(" and ").append(RapidSmsDBConstants.Rollup.BUCKET).append(" >= ");
+			query.append(RollupAccumulator.localBucket(zone, startDate.getTime(), width));
+			query.append(" and ").append(RapidSmsDBConstants.Rollup.BUCKET).append(" <= ");
+			query.append(RollupAccumulator.localBucket(zone, endDate.getTime(), width));
+		}
+		query.append(" group by ").append(group);
+		query.append(" order by ").append(group).append(" ASC");
+		return query.toString();
+	}
+
+	/**
+	 * @param formId
+	 *            the form, or RollupAccumulator.ALL_MESSAGES
+	 * @param field
+	 *            the field name, or RollupAccumulator.COUNT_SERIES
+	 * @return the selection args for getRollupQuery()
+	 */
+	protected static String[] getRollupArgs(int formId, String field) {
+		return new String[] { String.valueOf(formId), field };
+	}
 
-		if (endCal.before(tempCal)) {
-			// 2-4 years break it down by month with year shading
-			return DateDisplayTypes.Monthly;
-		} else { // if(endCal.get(Calendar.YEAR) - startCal.get(Calendar.YEAR)
-					// >= 4) {
-			// we need to break it down by year. with year shading
-			return DateDisplayTypes.Yearly;
+	/**
+	 * @return the time the rollup bucket read by a getRollupQuery() for
+	 *         displayType starts
+	 */
+	protected static long getRollupMillis(DateDisplayTypes displayType, long bucket) {
+		return RollupAccumulator.bucketStart(TimeZone.getDefault(), bucket, getRollupWidth(displayType));
+	}
+
+	/**
+	 * @param formId
+	 *            the form, or RollupAccumulator.ALL_MESSAGES
+	 * @return the start of the first day with a message for the form,
+	 *         NULLDATE if there aren't any. It's the first row of the
+	 *         form's daily count, so it's an index lookup.
+	 */
+	protected Date getFirstRollupDate(int formId) {
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = db.rawQuery("select min(" + RapidSmsDBConstants.Rollup.BUCKET + ") from "
+				+ RapidSmsDBConstants.Rollup.DAILY_TABLE + " where " + RapidSmsDBConstants.Rollup.FORM + " = ? and "
+				+ RapidSmsDBConstants.Rollup.FIELD + " = ?", getRollupArgs(formId, RollupAccumulator.COUNT_SERIES));
+		Date first = Constants.NULLDATE;
+		if (cr.moveToFirst() && !cr.isNull(0)) {
+			first = new Date(getRollupMillis(DateDisplayTypes.Daily, cr.getLong(0)));
 		}
+		cr.close();
+		return first;
 	}
 
-	protected String getSelectionString(DateDisplayTypes displayType) {
+	/**
+	 * The group by expression for bucketing the rollups by displayType. Hours
+	 * and days are the rollup buckets themselves. Weeks are groups of 7 days,
+	 * months and years are looked up against their first days in the range.
+	 * 
+	 * @param displayType
+	 * @param startDate
+	 *            the range being charted, NULLDATE if it's open
+	 * @param endDate
+	 * @return
+	 */
+	protected String getRollupGroupString(DateDisplayTypes displayType, Date startDate, Date endDate) {
 		switch (displayType) {
 			case Hourly:
-				return "  strftime('%Y-%m-%d %H',time) ";
 			case Daily:
-				return " strftime('%Y-%m-%d', time) ";
+				return " " + RapidSmsDBConstants.Rollup.BUCKET + " ";
 			case Weekly:
-				return " strftime('%Y-%W', time) ";
+				// day 0 was a thursday, +4 days starts the weeks on sunday
+				return " ((" + RapidSmsDBConstants.Rollup.BUCKET + " + 4) / 7) ";
 			case Monthly:
-				return " strftime('%Y-%m',time) ";
+				return getBoundaryString(TimeBuckets.MONTHLY, startDate, endDate);
 			case Yearly:
-				return " strftime('%Y',time) ";
+				return getBoundaryString(TimeBuckets.YEARLY, startDate, endDate);
 			default:
 				return "";
 
 		}
 	}
 
+	/**
+	 * The where clause restricting rapidandroid_message.time_millis to the
+	 * range. An open range still skips messages with no time_millis, old rows
+	 * whose time string couldn't be read back on upgrade.
+	 */
+	protected String getRangeString(Date startDate, Date endDate) {
+		if (startDate.compareTo(Constants.NULLDATE) == 0 || endDate.compareTo(Constants.NULLDATE) == 0) {
+			return " WHERE " + TIME_COLUMN + " IS NOT NULL ";
+		}
+		return " WHERE " + TIME_COLUMN + " > " + startDate.getTime() + " AND " + TIME_COLUMN + " < "
+				+ endDate.getTime() + " ";
+	}
+
+	/**
+	 * A CASE mapping a daily rollup bucket to the first day of its local
+	 * month or year, for the calendar units that aren't a fixed number of
+	 * days. The boundaries are computed once for the range.
+	 * 
+	 * @param type
+	 *            TimeBuckets.MONTHLY or TimeBuckets.YEARLY
+	 */
+	private static String getBoundaryString(int type, Date startDate, Date endDate) {
+		TimeZone zone = TimeZone.getDefault();
+		long end = endDate.compareTo(Constants.NULLDATE) == 0 ? System.currentTimeMillis() : endDate.getTime();
+		TimeBuckets buckets = new TimeBuckets(zone, type, startDate.getTime(), Math.max(startDate.getTime(), end));
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(" CASE");
+		long bucket = RollupAccumulator.localBucket(zone, buckets.getStart(0), RollupAccumulator.DAY_MILLIS);
+		for (int i = 1; i < buckets.size(); i++) {
+			long next = RollupAccumulator.localBucket(zone, buckets.getStart(i), RollupAccumulator.DAY_MILLIS);
+			sb.append(" WHEN ").append(RapidSmsDBConstants.Rollup.BUCKET).append(" < ").append(next);
+			sb.append(" THEN ").append(bucket);
+			bucket = next;
+		}
+		sb.append(" ELSE ").append(bucket).append(" END ");
+		return sb.toString();
+	}
+
 	protected String getLegendString(DateDisplayTypes displayType) {
 		switch (displayType) {
 			case Hourly:
@@ -347,148 +657,52 @@ public abstract class ChartBroker {
 		}
 	}
 
-	protected Date getNextValue(DateDisplayTypes displayType, Date date) {
-		Calendar cal = Calendar.getInstance();
-		cal.setTime(date);
-		switch (displayType) {
-			case Hourly:
-				cal.add(Calendar.HOUR, 1);
-				break;
-			case Daily:
-				cal.add(Calendar.DATE, 1);
-				break;
-			case Weekly:
-				cal.add(Calendar.WEEK_OF_YEAR, 1);
-				break;
-			case Monthly:
-				cal.add(Calendar.MONTH, 1);
-				break;
-			case Yearly:
-				cal.add(Calendar.YEAR, 1);
-				break;
-			default:
-				throw new IllegalArgumentException("Bad display type: " + displayType);
-		}
-		return cal.getTime();
-	}
-
-	protected boolean isBefore(DateDisplayTypes displayType, Date date1, Date date2) {
-		Calendar cal1 = Calendar.getInstance();
-		cal1.setTime(date1);
-		Calendar cal2 = Calendar.getInstance();
-		cal2.setTime(date2);
-		if (cal2.before(cal1)) {
-			return false;
-		}
-		// i really feel like there should be a cleaner way to do this but it
-		// escapes me
-		if (cal1.get(Calendar.YEAR) < cal2.get(Calendar.YEAR)) {
-			return true;
-		} else if (cal1.get(Calendar.YEAR) > cal2.get(Calendar.YEAR) || displayType == DateDisplayTypes.Yearly) {
-			return false;
-		}
-		// we know the years are the same and we're comparing less than years
-		if (cal1.get(Calendar.MONTH) < cal2.get(Calendar.MONTH)) {
-			return true;
-		} else if (cal1.get(Calendar.MONTH) > cal2.get(Calendar.MONTH) || displayType == DateDisplayTypes.Monthly) {
-			return false;
-		}
-		// we know months and years are the same and we're comparing less than
-		// months
-		if (cal1.get(Calendar.WEEK_OF_YEAR) < cal2.get(Calendar.WEEK_OF_YEAR)) {
-			return true;
-		} else if (cal1.get(Calendar.WEEK_OF_YEAR) > cal2.get(Calendar.WEEK_OF_YEAR)
-				|| displayType == DateDisplayTypes.Weekly) {
-			return false;
-		}
-		// we know months, years, and weeks are the same and we're comparing
-		// less than weeks
-		if (cal1.get(Calendar.DATE) < cal2.get(Calendar.DATE)) {
-			return true;
-		} else if (cal1.get(Calendar.DATE) > cal2.get(Calendar.DATE) || displayType == DateDisplayTypes.Daily) {
-			return false;
-		}
-		// we know months, years,weeks, and days are the same and we're
-		// comparing less than days
-		if (cal1.get(Calendar.HOUR) < cal2.get(Calendar.HOUR)) {
-			return true;
-		}
-		// anything else is not before
-		return false;
-	}
-
-	protected Date getDate(DateDisplayTypes displayType, String string) {
-
-		Date rawDate;
-		try {
-			rawDate = sqlDateFormat.parse(string);
-		} catch (ParseException e) {
-			Log.d("ChartBroker", "unparseable date: " + string);
-			// this is actually a hard failure. Just not sure what to do
-			return Constants.NULLDATE;
-		}
-		Calendar rawCal = Calendar.getInstance();
-		rawCal.setTime(rawDate);
-		Calendar calToReturn = Calendar.getInstance();
-		rawCal.set(Calendar.MINUTE, 0);
-		rawCal.set(Calendar.SECOND, 0);
-		switch (displayType) {
-			case Hourly:
-				break;
-			case Daily:
-				rawCal.set(Calendar.HOUR, 0);
-				break;
-			case Weekly:
-				rawCal.set(Calendar.HOUR, 0);
-				rawCal.set(Calendar.DAY_OF_WEEK, 1);
-				break;
-			case Monthly:
-				rawCal.set(Calendar.HOUR, 0);
-				rawCal.set(Calendar.DAY_OF_MONTH, 1);
-				break;
-			case Yearly:
-				rawCal.set(Calendar.HOUR, 0);
-				rawCal.set(Calendar.DAY_OF_MONTH, 1);
-				rawCal.set(Calendar.MONTH, 1);
-				break;
-			default:
-				return rawCal.getTime();
-		}
-		Date toReturn = calToReturn.getTime();
-		Date reallyToReturn = rawCal.getTime();
-		return reallyToReturn;
-
+	/**
+	 * @return the start of the displayType bucket holding millis
+	 */
+	protected Date getDate(DateDisplayTypes displayType, long millis) {
+		return new Date(TimeBuckets.floor(TimeZone.getDefault(), displayType.ordinal(), millis));
 	}
 
-	protected JSONGraphData getDateQuery(DateDisplayTypes displayType, Cursor cr, SQLiteDatabase db) {
-		// TODO Auto-generated method stub
+	/**
+	 * Chart the counts from a getRollupQuery(), the first rollup bucket in
+	 * column 0 and the count in column 1.
+	 * 
+	 * @throws java.util.concurrent.CancellationException
+	 *             if token is cancelled while the cursor is read
+	 */
+	protected JSONGraphData getDateQuery(DateDisplayTypes displayType, Cursor cr, SQLiteDatabase db,
+			CancellationToken token) {
 		int barCount = cr.getCount();
 
 		if (barCount == 0) {
 			db.close();
 			cr.close();
 		} else {
-			Date[] xVals = new Date[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				xVals[i] = getDate(displayType, cr.getString(0));
-				yVals[i] = cr.getInt(1);
-				i++;
-			} while (cr.moveToNext());
-
 			try {
+				Date[] xVals = new Date[barCount];
+				int[] yVals = new int[barCount];
+				cr.moveToFirst();
+				int i = 0;
+				do {
+					token.throwIfCancelled();
+					xVals[i] = getDate(displayType, getRollupMillis(displayType, cr.getLong(0)));
+					yVals[i] = cr.getInt(1);
+					i++;
+				} while (cr.moveToNext());
+
 				// result.put("label", fieldToPlot.getName());
 				// result.put("data", prepareData(xVals, yVals));
 				// result.put("bars", getShowTrue());
 				// result.put("xaxis", getXaxisOptions(xVals));
 				// todo
 				String legend = this.getLegendString(displayType);
-				return new JSONGraphData(prepareDateHistogramData(displayType, xVals, yVals, legend),
-											loadOptionsForDateGraph(xVals, true, displayType));
+				mJson.reset().beginArray();
+				writeDateHistogram(displayType, xVals, yVals, legend, null);
+				mJson.endArray();
+				return new JSONGraphData(mJson.toString(), loadOptionsForDateGraph(barCount, true, displayType));
 
-			} catch (Exception ex) {
+			} catch (JSONException ex) {
 
 			} finally {
 				if (!cr.isClosed()) {
@@ -504,7 +718,11 @@ public abstract class ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	protected JSONObject loadOptionsForDateGraph(Date[] vals, boolean displayLegend, DateDisplayTypes displayType)
+	/**
+	 * @param points
+	 *            the most points in a series, a few are marked
+	 */
+	protected JSONObject loadOptionsForDateGraph(int points, boolean displayLegend, DateDisplayTypes displayType)
 			throws JSONException {
 
 		JSONObject toReturn = new JSONObject();
@@ -513,7 +731,7 @@ public abstract class ChartBroker {
 		toReturn.put("bars", getShowFalse());
 		toReturn.put("lines", getShowTrue());
 		// if just a couple points, show them
-		if (vals.length < 10) {
+		if (points < 10) {
 			toReturn.put("points", getShowTrue());
 		} else {
 			toReturn.put("points", getShowFalse());
@@ -594,50 +812,39 @@ public abstract class ChartBroker {
 		return toReturn;
 	}
 
-	private JSONArray prepareDateHistogramData(DateDisplayTypes displayType, Date[] xvals, int[] yvals, String legend)
-			throws JSONException {
-		JSONArray outerArray = new JSONArray();
-		JSONArray innerArray = getJSONArrayForValues(displayType, xvals, yvals);
-		JSONObject finalObj = new JSONObject();
-		finalObj.put("data", innerArray);
-		finalObj.put("label", legend);
-		outerArray.put(finalObj);
-		return outerArray;
-	}
-
-	protected JSONArray getJSONArrayForValues(DateDisplayTypes displayType, Date[] xvals, int[] yvals) {
-		JSONArray toReturn = new JSONArray();
+	/**
+	 * Write the counts to mJson as a series of [time, count] pairs, with a 0
+	 * for every displayType bucket between the first and last of them that
+	 * has no count.
+	 * 
+	 * @param xvals
+	 *            in order
+	 * @param show
+	 *            passed on to GraphJsonWriter.beginSeries()
+	 */
+	protected void writeDateHistogram(DateDisplayTypes displayType, Date[] xvals, int[] yvals, String legend,
+			String show) {
+		mJson.beginSeries(legend, show);
 		int datalen = xvals.length;
-		Date prevVal = null;
-		for (int i = 0; i < datalen; i++) {
-			Date thisVal = xvals[i];
-			if (prevVal != null) {
-				// add logic to fill in zeros
-				Date nextInSeries = getNextValue(displayType, prevVal);
-				while (isBefore(displayType, nextInSeries, thisVal)) {
-					JSONArray elem = new JSONArray();
-					elem.put(nextInSeries.getTime());
-					elem.put(0);
-					toReturn.put(elem);
-					nextInSeries = getNextValue(displayType, nextInSeries);
-				}
+		if (datalen > 0) {
+			TimeBuckets buckets = new TimeBuckets(TimeZone.getDefault(), displayType.ordinal(), xvals[0].getTime(),
+													xvals[datalen - 1].getTime());
+			int[] counts = new int[buckets.size()];
+			for (int i = 0; i < datalen; i++) {
+				counts[buckets.indexOf(xvals[i].getTime())] += yvals[i];
+			}
+			for (int b = 0; b < counts.length; b++) {
+				mJson.point(buckets.getStart(b), counts[b]);
 			}
-			JSONArray elem = new JSONArray();
-			elem.put(xvals[i].getTime());
-			elem.put(yvals[i]);
-			toReturn.put(elem);
-			prevVal = thisVal;
 		}
-		return toReturn;
+		mJson.endSeries();
 	}
 
-	protected JSONArray getEmptyData() {
-		JSONArray toReturn = new JSONArray();
-		JSONArray innerArray = new JSONArray();
-		innerArray.put(0);
-		innerArray.put(0);
-		toReturn.put(innerArray);
-		return toReturn;
+	/**
+	 * @return the data of a chart with nothing in it
+	 */
+	protected String getEmptyData() {
+		return EMPTY_DATA;
 	}
 
 	/**
@@ -660,13 +867,19 @@ public abstract class ChartBroker {
 
 	public abstract String getGraphTitle();
 
+	/**
+	 * Change what's charted. A load in progress is cancelled first, so it can't
+	 * finish with the old variable's graph.
+	 */
 	public synchronized void setVariable(int id) {
+		mLoads.cancel();
 		mChosenVariable = id;
 		mGraphData = null;
 		mGraphOptions = null;
 	}
 
 	public synchronized void setRange(Date startTime, Date endTime) {
+		mLoads.cancel();
 		mStartDate = startTime;
 		mEndDate = endTime;
 
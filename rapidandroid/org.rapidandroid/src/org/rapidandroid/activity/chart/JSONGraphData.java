@@ -17,40 +17,45 @@
 
 package org.rapidandroid.activity.chart;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
- * Data class for storing options of a JSON Graph
+ * Data class for storing the data and options of a JSON Graph, serialized.
+ * The data is written by a GraphJsonWriter, the options are small enough to
+ * build as a JSONObject.
  * 
  * @author Cory Zue
  * 
  */
 public class JSONGraphData {
 
-	private JSONArray _data;
-	private JSONObject _options;
+	private String _data;
+	private String _options;
 
-	public JSONGraphData(JSONArray data, JSONObject options) {
+	public JSONGraphData(String data, String options) {
 		_data = data;
 		_options = options;
 	}
 
+	public JSONGraphData(String data, JSONObject options) {
+		this(data, options.toString());
+	}
+
 	/**
 	 * Get the data
 	 * 
-	 * @return
+	 * @return the data as a JSON array
 	 */
-	public JSONArray getData() {
+	public String getData() {
 		return _data;
 	}
 
 	/**
 	 * Get the options
 	 * 
-	 * @return
+	 * @return the options as a JSON object
 	 */
-	public JSONObject getOptions() {
+	public String getOptions() {
 		return _options;
 	}
 }
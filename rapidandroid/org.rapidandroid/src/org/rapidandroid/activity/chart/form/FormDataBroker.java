@@ -17,20 +17,20 @@
 
 package org.rapidandroid.activity.chart.form;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
-import org.json.JSONArray;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.rapidandroid.activity.chart.ChartBroker;
 import org.rapidandroid.activity.chart.JSONGraphData;
 import org.rapidandroid.data.RapidSmsDBConstants;
-import org.rapidandroid.data.controller.ParsedDataReporter;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.chart.CancellationToken;
+import org.rapidsms.java.core.chart.ChartCache;
+import org.rapidsms.java.core.chart.LttbDownsampler;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
-import org.rapidsms.java.core.model.Message;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 
 import android.app.Activity;
 import android.database.Cursor;
@@ -39,6 +39,12 @@ import android.util.Log;
 import android.webkit.WebView;
 
 public class FormDataBroker extends ChartBroker {
+
+	/**
+	 * The most readings loadNumericLine() will read to plot them one by one.
+	 */
+	private static final long MAX_RAW_POINTS = 200000;
+
 	public static final int PLOT_ALL_MESSAGES_FOR_FORM = 0;
 	public static final int PLOT_NUMERIC_FIELD_VALUE = 1;
 	public static final int PLOT_NUMERIC_FIELD_ADDITIVE = 2;
@@ -60,116 +66,73 @@ public class FormDataBroker extends ChartBroker {
 	}
 
 	@Override
-	public void doLoadGraph() {
+	protected JSONGraphData doLoadGraph(CancellationToken token) {
 		// mProgress = ProgressDialog.show(mAppView.getContext(),
 		// "Rendering Graph...", "Please Wait",true,false);
 		JSONGraphData allData = null;
 
 		if (fieldToPlot == null) {
 			// we're going to do all messages over timereturn;
-			allData = loadMessageOverTimeHistogram();
+			allData = loadMessageOverTimeHistogram(token);
 		} else if (fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("word")) {
-			allData = loadHistogramFromField();
+			allData = loadHistogramFromField(token);
 		} else if (fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("boolean")
 				|| fieldToPlot.getFieldType().getParsedDataType().toLowerCase().equals("yes/no")) {
-			allData = loadBooleanPlot();
+			allData = loadBooleanPlot(token);
 		} else {
-			allData = loadNumericLine();
+			allData = loadNumericLine(token);
 			// data.put(loadNumericLine());
 		}
-		if (allData != null) {
-			mGraphData = allData.getData();
-			mGraphOptions = allData.getOptions();
+		if (allData != null && Log.isLoggable(TAG, Log.VERBOSE)) {
+			Log.v(TAG, allData.getData());
+			Log.v(TAG, allData.getOptions());
 		}
-		Log.d("FormDataBroker", mGraphData.toString());
-		Log.d("FormDataBroker", mGraphOptions.toString());
+		return allData;
 	}
 
-	private JSONGraphData loadBooleanPlot() {
+	/**
+	 * Yes and no counts per bucket, from the field's rollups. A boolean's sum
+	 * is its number of trues.
+	 */
+	private JSONGraphData loadBooleanPlot(CancellationToken token) {
 
 		Date startDateToUse = getStartDate();
 		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
 
-		String selectionArg = getSelectionString(displayType);
-
-		StringBuilder rawQuery = new StringBuilder();
-
-		String fieldcol = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldToPlot.getName();
-
-		rawQuery.append("select time, " + fieldcol + ", count(*) from  ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
-
-		rawQuery.append(" group by ").append(selectionArg).append(", " + fieldcol);
-		rawQuery.append(" order by ").append("time").append(" ASC");
+		String rawQuery = getRollupQuery(displayType, "sum(" + RapidSmsDBConstants.Rollup.COUNT + "), sum("
+				+ RapidSmsDBConstants.Rollup.SUM + ")", startDateToUse, mEndDate);
 
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-		// the string value is column 0
-		// the magnitude is column 1
-		Log.d("query", rawQuery.toString());
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
-		// TODO Auto-generated method stub
+		// the first bucket is column 0
+		// the count and the number of trues are columns 1 and 2
+		Log.d("query", rawQuery);
+		Cursor cr = db.rawQuery(rawQuery, getRollupArgs(mForm.getFormId(), fieldToPlot.getName()));
 		int barCount = cr.getCount();
-		Date[] allDates = new Date[barCount];
 		if (barCount == 0) {
 			db.close();
 			cr.close();
 		} else {
-			List<Date> xValsTrue = new ArrayList<Date>();
-			// Date[] xValsTrue = new Date[barCount];
-			List<Integer> yValsTrue = new ArrayList<Integer>();
-			List<Date> xValsFalse = new ArrayList<Date>();
-			// Date[] xValsTrue = new Date[barCount];
-			List<Integer> yValsFalse = new ArrayList<Integer>();
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				String trueFalse = cr.getString(1);
-				// int trueFalse2 = cr.getInt(fieldcol);
-				// String trueFalseStr = cr.getString(1);
-
-				Date thisDate = getDate(displayType, cr.getString(0));
-				Log.d("FormDataBroker: ", cr.getString(0) + ", " + trueFalse + " , " + cr.getInt(2));
-
-				if (trueFalse.equals("true")) {
-					xValsFalse.add(thisDate);
-					yValsFalse.add(new Integer(cr.getInt(2)));
-				} else {
-					xValsTrue.add(thisDate);
-					yValsTrue.add(new Integer(cr.getInt(2)));
-				}
-				allDates[i] = thisDate;
-				i++;
-			} while (cr.moveToNext());
-
 			try {
-				String legend = this.getLegendString(displayType);
-				int[] yVals = getIntsFromList(yValsTrue);
-				JSONArray trueArray = getJSONArrayForValues(displayType, xValsTrue.toArray(new Date[0]), yVals);
-				yVals = getIntsFromList(yValsFalse);
-				JSONArray falseArray = getJSONArrayForValues(displayType, xValsFalse.toArray(new Date[0]), yVals);
-				JSONArray finalValues = new JSONArray();
-				JSONObject trueElem = new JSONObject();
-				trueElem.put("data", trueArray);
-				trueElem.put("label", "Yes");
-				trueElem.put("lines", getShowTrue());
-				finalValues.put(trueElem);
-				JSONObject falseElem = new JSONObject();
-				falseElem.put("data", falseArray);
-				falseElem.put("label", "No");
-				falseElem.put("lines", getShowTrue());
-				finalValues.put(falseElem);
-				return new JSONGraphData(finalValues, loadOptionsForDateGraph(allDates, true, displayType));
-
-			} catch (Exception ex) {
+				Date[] allDates = new Date[barCount];
+				int[] yValsTrue = new int[barCount];
+				int[] yValsFalse = new int[barCount];
+				cr.moveToFirst();
+				int i = 0;
+				do {
+					token.throwIfCancelled();
+					allDates[i] = getDate(displayType, getRollupMillis(displayType, cr.getLong(0)));
+					yValsTrue[i] = (int) cr.getLong(2);
+					yValsFalse[i] = (int) (cr.getLong(1) - cr.getLong(2));
+					i++;
+				} while (cr.moveToNext());
+
+				mJson.reset().beginArray();
+				writeDateHistogram(displayType, allDates, yValsTrue, "Yes", "lines");
+				writeDateHistogram(displayType, allDates, yValsFalse, "No", "lines");
+				mJson.endArray();
+				return new JSONGraphData(mJson.toString(), loadOptionsForDateGraph(barCount, true, displayType));
+
+			} catch (JSONException ex) {
 
 			} finally {
 				if (!cr.isClosed()) {
@@ -185,67 +148,147 @@ public class FormDataBroker extends ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private int[] getIntsFromList(List<Integer> values) {
-		int[] toReturn = new int[values.size()];
-		for (int i = 0; i < values.size(); i++) {
-			toReturn[i] = values.get(i);
+	/**
+	 * A numeric field over time. Ranges of up to MAX_RAW_POINTS readings are
+	 * plotted from the readings themselves, downsampled to the chart width.
+	 * Past that, reading them all costs more than the chart is worth, so the
+	 * average, min and max per bucket are plotted from the rollups instead.
+	 */
+	private JSONGraphData loadNumericLine(CancellationToken token) {
+		Date startDateToUse = getStartDate();
+		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
+
+		// the rollup counts say how many readings there are without reading
+		// them
+		long readings = 0;
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+		Cursor cr = db.rawQuery(getRollupQuery(displayType, "sum(" + RapidSmsDBConstants.Rollup.COUNT + ")",
+				startDateToUse, mEndDate), getRollupArgs(mForm.getFormId(), fieldToPlot.getName()));
+		try {
+			while (cr.moveToNext()) {
+				token.throwIfCancelled();
+				readings += cr.getLong(1);
+			}
+		} finally {
+			cr.close();
 		}
-		return toReturn;
-	}
 
-	private JSONGraphData loadNumericLine() {
-		Date startDateToUse = getStartDate();
+		if (readings == 0) {
+			return new JSONGraphData(getEmptyData(), new JSONObject());
+		} else if (readings <= MAX_RAW_POINTS) {
+			return loadNumericLineReadings(startDateToUse, displayType, token);
+		} else {
+			return loadNumericLineRollups(startDateToUse, displayType, token);
+		}
+	}
 
+	/**
+	 * Every reading in the range, streamed off the cursor in time order
+	 * through an LttbDownsampler with a bucket per pixel of chart width, so
+	 * the series never has more points than the chart can draw.
+	 */
+	private JSONGraphData loadNumericLineReadings(Date startDateToUse, DateDisplayTypes displayType,
+			CancellationToken token) {
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
+		String formTable = RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix();
 		String fieldcol = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fieldToPlot.getName();
 		StringBuilder rawQuery = new StringBuilder();
-		rawQuery.append("select rapidandroid_message.time, " + fieldcol);
+		rawQuery.append("select " + TIME_COLUMN + ", " + fieldcol);
 		rawQuery.append(" from ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
+		rawQuery.append(formTable);
 
 		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
+		rawQuery.append(formTable);
 		rawQuery.append(".message_id = rapidandroid_message._id");
 		rawQuery.append(") ");
 
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
+		rawQuery.append(getRangeString(startDateToUse, mEndDate));
+		rawQuery.append(" and " + fieldcol + " is not null");
 
-		rawQuery.append(" order by rapidandroid_message.time ASC");
+		rawQuery.append(" order by " + TIME_COLUMN + " ASC");
 
-		// the string value is column 0
-		// the magnitude is column 1
+		// the time is column 0
+		// the value is column 1
 
+		long start = startDateToUse.getTime();
+		long end = mEndDate.compareTo(Constants.NULLDATE) == 0 ? System.currentTimeMillis() : mEndDate.getTime();
+		LttbDownsampler lttb = new LttbDownsampler(start, end, Math.min(getDisplayWidth(), MAX_SERIES_POINTS));
+
+		// walked with moveToNext() alone, getCount() would read every row an
+		// extra time just to count them
 		Cursor cr = db.rawQuery(rawQuery.toString(), null);
+		try {
+			while (cr.moveToNext()) {
+				token.throwIfCancelled();
+				lttb.add(cr.getLong(0), cr.getDouble(1));
+			}
+		} finally {
+			cr.close();
+		}
+		int points = lttb.finish();
+		if (points == 0) {
+			return new JSONGraphData(getEmptyData(), new JSONObject());
+		}
+
+		// straight from the downsampler to the buffer
+		mJson.reset().beginArray().beginSeries(fieldToPlot.getName(), null);
+		for (int i = 0; i < points; i++) {
+			mJson.point(lttb.getX(i), lttb.getY(i));
+		}
+		mJson.endSeries().endArray();
+		try {
+			return new JSONGraphData(mJson.toString(), loadOptionsForDateGraph(points, false, displayType));
+		} catch (JSONException ex) {
+			// either there was no data or something bad happened
+			return new JSONGraphData(getEmptyData(), new JSONObject());
+		}
+	}
+
+	/**
+	 * The average, min and max of a numeric field per bucket, from its
+	 * rollups.
+	 */
+	private JSONGraphData loadNumericLineRollups(Date startDateToUse, DateDisplayTypes displayType,
+			CancellationToken token) {
+		SQLiteDatabase db = rawDB.getReadableDatabase();
+
+		String rawQuery = getRollupQuery(displayType, "sum(" + RapidSmsDBConstants.Rollup.COUNT + "), sum("
+				+ RapidSmsDBConstants.Rollup.SUM + "), min(" + RapidSmsDBConstants.Rollup.MIN + "), max("
+				+ RapidSmsDBConstants.Rollup.MAX + ")", startDateToUse, mEndDate);
+
+		// the first bucket is column 0
+		// count, sum, min and max are columns 1 to 4
+
+		Cursor cr = db.rawQuery(rawQuery, getRollupArgs(mForm.getFormId(), fieldToPlot.getName()));
 		int barCount = cr.getCount();
 
 		if (barCount == 0) {
 			cr.close();
 		} else {
-			Date[] xVals = new Date[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				try {
-					xVals[i] = Message.SQLDateFormatter.parse(cr.getString(0));
-					yVals[i] = cr.getInt(1);
-				} catch (Exception ex) {
-
-				}
-				i++;
-			} while (cr.moveToNext());
-
-			// xaxis: { ticks: [0, [Math.PI/2, "\u03c0/2"], [Math.PI, "\u03c0"],
-			// [Math.PI * 3/2, "3\u03c0/2"], [Math.PI * 2, "2\u03c0"]]},
-
 			try {
-				return new JSONGraphData(prepareDateData(xVals, yVals), loadOptionsForDateGraph(xVals, false,
-																								DateDisplayTypes.Daily));
-			} catch (Exception ex) {
+				long[] xVals = new long[barCount];
+				double[] avgVals = new double[barCount];
+				double[] minVals = new double[barCount];
+				double[] maxVals = new double[barCount];
+				cr.moveToFirst();
+				int i = 0;
+				do {
+					token.throwIfCancelled();
+					xVals[i] = getDate(displayType, getRollupMillis(displayType, cr.getLong(0))).getTime();
+					avgVals[i] = cr.getDouble(2) / cr.getLong(1);
+					minVals[i] = cr.getDouble(3);
+					maxVals[i] = cr.getDouble(4);
+					i++;
+				} while (cr.moveToNext());
+
+				mJson.reset().beginArray();
+				mJson.series("Average", null, xVals, avgVals, barCount);
+				mJson.series("Min", null, xVals, minVals, barCount);
+				mJson.series("Max", null, xVals, maxVals, barCount);
+				mJson.endArray();
+				return new JSONGraphData(mJson.toString(), loadOptionsForDateGraph(barCount, true, displayType));
+			} catch (JSONException ex) {
 
 			} finally {
 				if (!cr.isClosed()) {
@@ -258,54 +301,23 @@ public class FormDataBroker extends ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private JSONArray prepareDateData(Date[] xvals, int[] yvals) {
-		JSONArray outerArray = new JSONArray();
-		JSONArray innerArray = new JSONArray();
-		int datalen = xvals.length;
-		for (int i = 0; i < datalen; i++) {
-			JSONArray elem = new JSONArray();
-			elem.put(xvals[i].getTime());
-			elem.put(yvals[i]);
-			innerArray.put(elem);
-		}
-		outerArray.put(innerArray);
-		return outerArray;
-	}
-
-	private JSONGraphData loadMessageOverTimeHistogram() {
+	private JSONGraphData loadMessageOverTimeHistogram(CancellationToken token) {
 		Date startDateToUse = getStartDate();
 		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
 
-		String selectionArg = getSelectionString(displayType);
-
-		StringBuilder rawQuery = new StringBuilder();
-
-		rawQuery.append("select time, count(*) from  ");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-
-		rawQuery.append(" join rapidandroid_message on (");
-		rawQuery.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + mForm.getPrefix());
-		rawQuery.append(".message_id = rapidandroid_message._id");
-		rawQuery.append(") ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
-
-		rawQuery.append(" group by ").append(selectionArg);
-		rawQuery.append("order by ").append(selectionArg).append(" ASC");
+		String rawQuery = getRollupQuery(displayType, "sum(" + RapidSmsDBConstants.Rollup.COUNT + ")",
+											startDateToUse, mEndDate);
 
 		// the X date value is column 0
 		// the y value magnitude is column 1
 		SQLiteDatabase db = rawDB.getReadableDatabase();
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
-		return getDateQuery(displayType, cr, db);
+		Cursor cr = db.rawQuery(rawQuery, getRollupArgs(mForm.getFormId(), RollupAccumulator.COUNT_SERIES));
+		return getDateQuery(displayType, cr, db, token);
 
 	}
 
 	private Date getStartDate() {
-		// TODO Auto-generated method stub
-		Date firstDateFromForm = ParsedDataReporter.getOldestMessageDate(rawDB, mForm);
+		Date firstDateFromForm = getFirstRollupDate(mForm.getFormId());
 		if (firstDateFromForm.after(mStartDate)) {
 			// first date in the form is more recent than the start date, so
 			// just go with that.
@@ -321,7 +333,7 @@ public class FormDataBroker extends ChartBroker {
 	 * 
 	 * @return
 	 */
-	private JSONGraphData loadHistogramFromField() {
+	private JSONGraphData loadHistogramFromField(CancellationToken token) {
 		// JSONObject result = new JSONObject();
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
@@ -336,10 +348,7 @@ public class FormDataBroker extends ChartBroker {
 		rawQuery.append(".message_id = rapidandroid_message._id");
 		rawQuery.append(") ");
 
-		if (mStartDate.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(mStartDate)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
+		rawQuery.append(getRangeString(mStartDate, mEndDate));
 
 		rawQuery.append(" group by " + fieldcol);
 		rawQuery.append(" order by " + fieldcol);
@@ -351,26 +360,28 @@ public class FormDataBroker extends ChartBroker {
 		int barCount = cr.getCount();
 
 		if (barCount != 0) {
-			String[] xVals = new String[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
-			int i = 0;
-			do {
-				xVals[i] = cr.getString(0);
-				yVals[i] = cr.getInt(1);
-				i++;
-			} while (cr.moveToNext());
-
-			// xaxis: { ticks: [0, [Math.PI/2, "\u03c0/2"], [Math.PI, "\u03c0"],
-			// [Math.PI * 3/2, "3\u03c0/2"], [Math.PI * 2, "2\u03c0"]]},
-
 			try {
+				String[] xVals = new String[barCount];
+				int[] yVals = new int[barCount];
+				cr.moveToFirst();
+				int i = 0;
+				do {
+					token.throwIfCancelled();
+					xVals[i] = cr.getString(0);
+					yVals[i] = cr.getInt(1);
+					i++;
+				} while (cr.moveToNext());
+
+				// xaxis: { ticks: [0, [Math.PI/2, "\u03c0/2"], [Math.PI, "\u03c0"],
+				// [Math.PI * 3/2, "3\u03c0/2"], [Math.PI * 2, "2\u03c0"]]},
+
 				// result.put("label", fieldToPlot.getName());
 				// result.put("data", prepareData(xVals, yVals));
 				// result.put("bars", getShowTrue());
 				// result.put("xaxis", getXaxisOptions(xVals));
-				return new JSONGraphData(prepareHistogramData(xVals, yVals), loadOptionsForHistogram(xVals));
-			} catch (Exception ex) {
+				writeHistogram(xVals, yVals);
+				return new JSONGraphData(mJson.toString(), loadOptionsForHistogram(xVals));
+			} catch (JSONException ex) {
 
 			} finally {
 				if (!cr.isClosed()) {
@@ -385,25 +396,17 @@ public class FormDataBroker extends ChartBroker {
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private JSONArray prepareHistogramData(String[] names, int[] counts) throws JSONException {
-		// TODO Auto-generated method stub
-		JSONArray arr = new JSONArray();
+	/**
+	 * A bar per value, each its own series so it gets its own label.
+	 */
+	private void writeHistogram(String[] names, int[] counts) {
+		mJson.reset().beginArray();
 		int datalen = names.length;
 		for (int i = 0; i < datalen; i++) {
-
-			JSONObject elem = new JSONObject();
 			// values will just be an array of length 1 with a single value
-			JSONArray values = new JSONArray();
-			JSONArray value = new JSONArray();
-			value.put(i);
-			value.put(counts[i]);
-			values.put(value);
-			elem.put("data", values);
-			elem.put("bars", getShowTrue());
-			elem.put("label", names[i]);
-			arr.put(elem);
+			mJson.beginSeries(names[i], "bars").point(i, counts[i]).endSeries();
 		}
-		return arr;
+		mJson.endArray();
 	}
 
 	@Override
@@ -418,16 +421,14 @@ public class FormDataBroker extends ChartBroker {
 	 */
 
 	@Override
-	public void setVariable(int id) {
-		// TODO Auto-generated method stub
+	public synchronized void setVariable(int id) {
+		// cancels the load in progress before the field changes under it
+		super.setVariable(id);
 		if (id == 0) {
 			this.fieldToPlot = null;
 		} else {
 			this.fieldToPlot = mForm.getFields()[id - 1];
 		}
-		mChosenVariable = id;
-		this.mGraphData = null;
-		this.mGraphOptions = null;
 	}
 
 	/*
@@ -440,4 +441,9 @@ public class FormDataBroker extends ChartBroker {
 	public String getName() {
 		return "graph_form";
 	}
+
+	@Override
+	protected ChartCache.Key getCacheKey() {
+		return newCacheKey(mForm.getFormId(), fieldToPlot == null ? null : fieldToPlot.getName());
+	}
 }
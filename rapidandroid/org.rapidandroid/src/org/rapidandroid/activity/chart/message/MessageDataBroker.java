@@ -19,12 +19,13 @@ package org.rapidandroid.activity.chart.message;
 
 import java.util.Date;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.rapidandroid.activity.chart.ChartBroker;
 import org.rapidandroid.activity.chart.JSONGraphData;
-import org.rapidsms.java.core.Constants;
-import org.rapidsms.java.core.model.Message;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.chart.CancellationToken;
+import org.rapidsms.java.core.chart.ChartCache;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 
 import android.app.Activity;
 import android.database.Cursor;
@@ -59,7 +60,7 @@ public class MessageDataBroker extends ChartBroker {
 	 */
 
 	@Override
-	public void doLoadGraph() {
+	protected JSONGraphData doLoadGraph(CancellationToken token) {
 		// mParentActivity.showDialog(160);
 		// Progress = ProgressDialog.show(mAppView.getContext(),
 		// "Rendering Graph...", "Please Wait",true,false);
@@ -69,21 +70,14 @@ public class MessageDataBroker extends ChartBroker {
 			// this is a count of messages per day
 			// select date(time), count(*) from rapidandroid_message group by
 			// date(time)
-			allData = loadMessageTrends();
+			allData = loadMessageTrends(token);
 		} else if (mChosenVariable == 1) {
-			allData = chartMessagesPerHour();
+			allData = chartMessagesPerHour(token);
 		}
-		if (allData != null) {
-			mGraphData = allData.getData();
-			mGraphOptions = allData.getOptions();
-		} else {
-			mGraphData = this.getEmptyData();
-			mGraphOptions = new JSONObject();
-		}
-
+		return allData;
 	}
 
-	private JSONGraphData loadMessageTrends() {
+	private JSONGraphData loadMessageTrends(CancellationToken token) {
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
 		Date startDateToUse = mStartDate;
@@ -94,79 +88,62 @@ public class MessageDataBroker extends ChartBroker {
 		// }
 		DateDisplayTypes displayType = this.getDisplayType(startDateToUse, mEndDate);
 
-		String selectionArg = getSelectionString(displayType);
-
-		StringBuilder rawQuery = new StringBuilder();
-		rawQuery.append("select time, count(*) from rapidandroid_message ");
-		if (startDateToUse.compareTo(Constants.NULLDATE) != 0 && mEndDate.compareTo(Constants.NULLDATE) != 0) {
-			rawQuery.append(" WHERE rapidandroid_message.time > '" + Message.SQLDateFormatter.format(startDateToUse)
-					+ "' AND rapidandroid_message.time < '" + Message.SQLDateFormatter.format(mEndDate) + "' ");
-		}
-		rawQuery.append(" group by ").append(selectionArg);
-		rawQuery.append(" order by ").append(selectionArg).append(" ASC");
+		String rawQuery = getRollupQuery(displayType, "sum(" + RapidSmsDBConstants.Rollup.COUNT + ")",
+											startDateToUse, mEndDate);
 
 		// the X date value is column 0
 		// the y value magnitude is column 1
 
-		Cursor cr = db.rawQuery(rawQuery.toString(), null);
-		return this.getDateQuery(displayType, cr, db);
+		Cursor cr = db.rawQuery(rawQuery, getRollupArgs(RollupAccumulator.ALL_MESSAGES,
+														RollupAccumulator.COUNT_SERIES));
+		return this.getDateQuery(displayType, cr, db, token);
 	}
 
-	private JSONGraphData chartMessagesPerHour() {
-		JSONObject result = new JSONObject();
+	private JSONGraphData chartMessagesPerHour(CancellationToken token) {
 		SQLiteDatabase db = rawDB.getReadableDatabase();
 
-		String rawQuery = "select strftime('%H',time), count(*) from rapidandroid_message group by strftime('%H',time) order by strftime('%H',time)";
+		// the hourly rollup buckets are local hours, so the hour of the day is
+		// just the bucket mod 24
+		String hourOfDay = "(" + RapidSmsDBConstants.Rollup.BUCKET + " % 24)";
+		String rawQuery = "select " + hourOfDay + ", sum(" + RapidSmsDBConstants.Rollup.COUNT + ") from "
+				+ RapidSmsDBConstants.Rollup.HOURLY_TABLE + " where " + RapidSmsDBConstants.Rollup.FORM
+				+ " = ? and " + RapidSmsDBConstants.Rollup.FIELD + " = ? group by " + hourOfDay + " order by "
+				+ hourOfDay;
 
 		// the string value is column 0
 		// the magnitude is column 1
 
-		Cursor cr = db.rawQuery(rawQuery, null);
+		Cursor cr = db.rawQuery(rawQuery, getRollupArgs(RollupAccumulator.ALL_MESSAGES,
+														RollupAccumulator.COUNT_SERIES));
 		int barCount = cr.getCount();
 
 		if (barCount != 0) {
-			String[] xVals = new String[barCount];
-			int[] yVals = new int[barCount];
-			cr.moveToFirst();
+			// [i, count] bars, written as they're read
+			mJson.reset().beginArray().beginSeries("Messages", "bars");
 			int i = 0;
-			do {
-				xVals[i] = cr.getString(0);
-				yVals[i] = cr.getInt(1);
-				i++;
-			} while (cr.moveToNext());
-
 			try {
-				result.put("label", "Messages");
-				result.put("data", prepareData(yVals));
-				result.put("bars", getShowTrue());
-
-			} catch (Exception ex) {
-
+				while (cr.moveToNext()) {
+					token.throwIfCancelled();
+					mJson.point(i++, cr.getLong(1));
+				}
+			} finally {
+				cr.close();
 			}
-			cr.close();
-			JSONArray values = new JSONArray();
-			values.put(result);
-			return new JSONGraphData(values, new JSONObject());
+			mJson.endSeries().endArray();
+			return new JSONGraphData(mJson.toString(), "{}");
 		}
 		// either there was no data or something bad happened
 		return new JSONGraphData(getEmptyData(), new JSONObject());
 	}
 
-	private JSONArray prepareData(int[] values) {
-		JSONArray arr = new JSONArray();
-		int datalen = values.length;
-		for (int i = 0; i < datalen; i++) {
-			JSONArray elem = new JSONArray();
-			elem.put(i);
-			elem.put(values[i]);
-			arr.put(elem);
-		}
-		return arr;
-	}
-
 	@Override
 	public String getName() {
 		return "graph_msg";
 	}
 
+	@Override
+	protected ChartCache.Key getCacheKey() {
+		return newCacheKey(RollupAccumulator.ALL_MESSAGES, null);
+	}
+
 }
@@ -20,6 +20,8 @@ package org.rapidandroid.activity.chart.monitor;
 import java.util.Date;
 
 import org.rapidandroid.activity.chart.ChartBroker;
+import org.rapidandroid.activity.chart.JSONGraphData;
+import org.rapidsms.java.core.chart.CancellationToken;
 
 /**
  * @author Daniel Myung dmyung@dimagi.com
@@ -52,9 +54,9 @@ public class MonitorDataBroker extends ChartBroker {
 	 */
 
 	@Override
-	public void doLoadGraph() {
+	protected JSONGraphData doLoadGraph(CancellationToken token) {
 		// TODO Auto-generated method stub
-
+		return null;
 	}
 
 	/*
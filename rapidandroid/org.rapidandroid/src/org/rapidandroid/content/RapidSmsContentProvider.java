@@ -17,20 +17,38 @@
 
 package org.rapidandroid.content;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TimeZone;
+
 import org.rapidandroid.content.translation.MessageTranslator;
 import org.rapidandroid.content.translation.ModelTranslator;
+import org.rapidandroid.data.ExportWatermarks;
+import org.rapidandroid.data.InsertStatements;
 import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.RollupTables;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.chart.ChartCache;
+import org.rapidsms.java.core.ingest.RowFeed;
+import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
@@ -56,6 +74,15 @@ import android.text.TextUtils;
  * <li>Create and store and query data tables generated by the Form definition.</li>
  * </ul>
  * 
+ * bulkInsert() and applyBatch() run the whole batch in one transaction,
+ * insert through compiled statements, and send one change notification per
+ * table after the batch commits, instead of a transaction and a notification
+ * per row.
+ * 
+ * Inserting messages and form data also adds them to the chart rollup tables
+ * (see RollupTables), in the same transaction. A single insert is run as a
+ * batch of one for that.
+ * 
  * 
  * @author Daniel Myung dmyung@dimagi.com
  * @created Jan 09, 2009
@@ -97,6 +124,42 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 	private static final UriMatcher sUriMatcher;
 
+	/**
+	 * The work a batch running on the current thread puts off until it
+	 * commits.
+	 */
+	private static class Batch {
+		final HashSet<Uri> notifications = new HashSet<Uri>();
+		final HashMap<String, InsertStatements> inserts = new HashMap<String, InsertStatements>();
+		/**
+		 * monitor rows saved by the batch, with their _id, registered once
+		 * it commits
+		 */
+		final ArrayList<ContentValues> monitors = new ArrayList<ContentValues>();
+		/**
+		 * rollups of the messages and form data inserted by the batch,
+		 * written just before it commits
+		 */
+		final RollupAccumulator rollups = new RollupAccumulator(TimeZone.getDefault());
+		/**
+		 * the forms whose data the batch inserted, ALL_MESSAGES for the
+		 * messages, whose cached charts go once it commits
+		 */
+		final HashSet<Integer> changedForms = new HashSet<Integer>();
+		/**
+		 * the _ids of the message and form data rows the batch inserted,
+		 * published to the RowFeed once it commits
+		 */
+		final RowFeed.Rows rows = new RowFeed.Rows();
+		/**
+		 * looks up the time of a form data row's message, compiled on first
+		 * use
+		 */
+		SQLiteStatement messageTime = null;
+	}
+
+	private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
 	static {
 		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		sUriMatcher.addURI(RapidSmsDBConstants.AUTHORITY, RapidSmsDBConstants.Message.URI_PART, MESSAGE);
@@ -208,7 +271,7 @@ public class RapidSmsContentProvider extends ContentProvider {
 	private Uri insertFormData(Uri uri, ContentValues values) {
 		// sanity check, see if the table exists
 		String formid = uri.getPathSegments().get(1);
-		String formprefix = ModelTranslator.getFormById(Integer.valueOf(formid).intValue()).getPrefix();
+		Form form = ModelTranslator.getFormById(Integer.valueOf(formid).intValue());
 		// SQLiteDatabase dbr = mOpenHelper.getReadableDatabase();
 		// Cursor table_exists = dbr.rawQuery("select count(*) from formdata_"
 		// + formprefix, null);
@@ -220,14 +283,24 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 		// doInsert doesn't apply well here.
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		long rowId = db.insert(RapidSmsDBConstants.FormData.TABLE_PREFIX + formprefix,
-								RapidSmsDBConstants.FormData.MESSAGE, values);
-		if (rowId > 0) {
+		boolean owner = beginBatch();
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			long rowId = insertRow(db, RapidSmsDBConstants.FormData.TABLE_PREFIX + form.getPrefix(),
+									RapidSmsDBConstants.FormData.MESSAGE, values);
+			if (rowId <= 0) {
+				throw new SQLException("Failed to insert row into " + uri);
+			}
+			rollupFormData(db, form, rowId, values);
+			commitBatch(db, owner);
+			committed = true;
 			Uri fieldUri = ContentUris.withAppendedId(RapidSmsDBConstants.Form.CONTENT_URI, rowId);
-			getContext().getContentResolver().notifyChange(fieldUri, null);
+			notifyChange(fieldUri);
 			return Uri.parse(uri.toString() + "/" + rowId);
-		} else {
-			throw new SQLException("Failed to insert row into " + uri);
+		} finally {
+			db.endTransaction();
+			endBatch(owner, committed);
 		}
 	}
 
@@ -249,16 +322,273 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-		long rowId = db.insert(tablename, nullvalue, values);
+		long rowId = insertRow(db, tablename, nullvalue, values);
 		if (rowId > 0) {
 			Uri retUri = ContentUris.withAppendedId(uri, rowId);
-			getContext().getContentResolver().notifyChange(retUri, null);
+			notifyChange(retUri);
 			return retUri;
 		} else {
 			throw new SQLException("Failed to insert row into " + uri);
 		}
 	}
 
+	/**
+	 * Insert a row, through the batch's compiled statement for the table if
+	 * there's a batch running.
+	 */
+	private long insertRow(SQLiteDatabase db, String tablename, String nullvalue, ContentValues values) {
+		Batch batch = mBatch.get();
+		if (batch == null || values.size() == 0) {
+			return db.insert(tablename, nullvalue, values);
+		}
+		InsertStatements inserts = batch.inserts.get(tablename);
+		if (inserts == null) {
+			inserts = new InsertStatements(db, tablename);
+			batch.inserts.put(tablename, inserts);
+		}
+		return inserts.insert(values);
+	}
+
+	/**
+	 * Notify observers of a change, or if there's a batch running, hold the
+	 * notification until it commits. A batch notifies the whole table once
+	 * (content://authority/table), which reaches the observers of every row
+	 * in it.
+	 */
+	private void notifyChange(Uri uri) {
+		Batch batch = mBatch.get();
+		if (batch == null) {
+			getContext().getContentResolver().notifyChange(uri, null);
+			return;
+		}
+		batch.notifications.add(new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority())
+													.appendPath(uri.getPathSegments().get(0)).build());
+	}
+
+	/**
+	 * Start a batch on this thread.
+	 * 
+	 * @return false if one is already running, in which case the outer one
+	 *         finishes it
+	 */
+	private boolean beginBatch() {
+		if (mBatch.get() != null) {
+			return false;
+		}
+		mBatch.set(new Batch());
+		return true;
+	}
+
+	/**
+	 * Mark the batch's transaction successful. The batch that began it first
+	 * writes out its rollups.
+	 */
+	private void commitBatch(SQLiteDatabase db, boolean owner) {
+		if (owner) {
+			RollupTables.write(db, mBatch.get().rollups);
+		}
+		db.setTransactionSuccessful();
+	}
+
+	/**
+	 * Add a message to the batch's rollups and to the rows it publishes.
+	 */
+	private void rollupMessage(long rowId, ContentValues values) {
+		mBatch.get().changedForms.add(Integer.valueOf(RollupAccumulator.ALL_MESSAGES));
+		mBatch.get().rows.add(RollupAccumulator.ALL_MESSAGES, rowId);
+		Long millis = values.getAsLong(RapidSmsDBConstants.Message.TIME_MILLIS);
+		if (millis != null) {
+			mBatch.get().rollups.addMessage(millis.longValue());
+		}
+	}
+
+	/**
+	 * Add a form data row to the batch's rollups, bucketed by the time of its
+	 * message. The message is normally in the same batch, just inserted. The
+	 * row goes in the rows the batch publishes too.
+	 */
+	private void rollupFormData(SQLiteDatabase db, Form form, long rowId, ContentValues values) {
+		Batch batch = mBatch.get();
+		batch.changedForms.add(Integer.valueOf(form.getFormId()));
+		batch.rows.add(form.getFormId(), rowId);
+		Long messageId = values.getAsLong(RapidSmsDBConstants.FormData.MESSAGE);
+		if (messageId == null) {
+			return;
+		}
+		if (batch.messageTime == null) {
+			batch.messageTime = db.compileStatement("select " + RapidSmsDBConstants.Message.TIME_MILLIS + " from "
+					+ RapidSmsDBConstants.Message.TABLE + " where " + BaseColumns._ID + " = ? and "
+					+ RapidSmsDBConstants.Message.TIME_MILLIS + " is not null");
+		}
+		batch.messageTime.bindLong(1, messageId.longValue());
+		long millis;
+		try {
+			millis = batch.messageTime.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			// no message, or no time to bucket it by
+			return;
+		}
+		batch.rollups.addCount(form.getFormId(), millis);
+		Field[] fields = form.getFields();
+		for (int i = 0; i < fields.length; i++) {
+			batch.rollups.addField(form.getFormId(), fields[i].getName(),
+									fields[i].getFieldType().getParsedDataType(), millis,
+									values.get(RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName()));
+		}
+	}
+
+	/**
+	 * Finish the batch begun by beginBatch(), after its transaction has
+	 * ended. Only a committed batch sends its notifications and publishes its
+	 * rows.
+	 */
+	private void endBatch(boolean owner, boolean committed) {
+		if (!owner) {
+			return;
+		}
+		Batch batch = mBatch.get();
+		mBatch.remove();
+		for (InsertStatements inserts : batch.inserts.values()) {
+			inserts.close();
+		}
+		if (batch.messageTime != null) {
+			batch.messageTime.close();
+		}
+		if (!committed) {
+			return;
+		}
+		for (ContentValues monitor : batch.monitors) {
+			MessageTranslator.registerMonitor(monitor.getAsLong(BaseColumns._ID).longValue(), monitor);
+		}
+		for (Integer formId : batch.changedForms) {
+			ChartCache.invalidateFormInAll(formId.intValue());
+		}
+		for (Uri uri : batch.notifications) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+		RowFeed.getDefault().publish(batch.rows);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.content.ContentProvider#bulkInsert(android.net.Uri,
+	 * android.content.ContentValues[])
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		boolean owner = beginBatch();
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			int count;
+			switch (sUriMatcher.match(uri)) {
+				case MESSAGE:
+					count = bulkInsertMessages(db, uri, values);
+					break;
+				case MONITOR:
+					count = bulkInsertMonitors(db, uri, values);
+					break;
+				case FORMDATA_ID:
+					count = bulkInsertFormData(db, uri, values);
+					break;
+				default:
+					// row by row through insert(), but still one transaction
+					count = super.bulkInsert(uri, values);
+					break;
+			}
+			commitBatch(db, owner);
+			committed = true;
+			return count;
+		} finally {
+			db.endTransaction();
+			endBatch(owner, committed);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		boolean owner = beginBatch();
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			// each operation comes back through insert()/delete(), which use
+			// the batch's statements and hold their notifications
+			ContentProviderResult[] results = super.applyBatch(operations);
+			commitBatch(db, owner);
+			committed = true;
+			return results;
+		} finally {
+			db.endTransaction();
+			endBatch(owner, committed);
+		}
+	}
+
+	private int bulkInsertMessages(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+		for (int i = 0; i < values.length; i++) {
+			ContentValues row = new ContentValues(values[i]);
+			prepareMessage(row);
+			long rowId = insertRow(db, RapidSmsDBConstants.Message.TABLE, RapidSmsDBConstants.Message.MESSAGE, row);
+			rollupMessage(rowId, row);
+		}
+		notifyChange(uri);
+		return values.length;
+	}
+
+	/**
+	 * Monitors are unique by phone, same as insertMonitor. A phone that's
+	 * already there, or earlier in the batch, is skipped.
+	 * 
+	 * @return the number of monitors actually inserted
+	 */
+	private int bulkInsertMonitors(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+		SQLiteStatement existing = db.compileStatement("select _id from " + RapidSmsDBConstants.Monitor.TABLE
+				+ " where " + RapidSmsDBConstants.Monitor.PHONE + " = ?");
+		int inserted = 0;
+		try {
+			for (int i = 0; i < values.length; i++) {
+				ContentValues row = new ContentValues(values[i]);
+				prepareMonitor(row);
+				existing.bindString(1, row.getAsString(RapidSmsDBConstants.Monitor.PHONE));
+				try {
+					existing.simpleQueryForLong();
+					continue;
+				} catch (SQLiteDoneException e) {
+					// no such monitor yet
+				}
+				long rowId = insertRow(db, RapidSmsDBConstants.Monitor.TABLE, RapidSmsDBConstants.Monitor.PHONE, row);
+				monitorSaved(rowId, row);
+				inserted++;
+			}
+		} finally {
+			existing.close();
+		}
+		if (inserted > 0) {
+			notifyChange(uri);
+		}
+		return inserted;
+	}
+
+	private int bulkInsertFormData(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+		String formid = uri.getPathSegments().get(1);
+		Form form = ModelTranslator.getFormById(Integer.valueOf(formid).intValue());
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + form.getPrefix();
+		for (int i = 0; i < values.length; i++) {
+			long rowId = insertRow(db, table, RapidSmsDBConstants.FormData.MESSAGE, values[i]);
+			rollupFormData(db, form, rowId, values[i]);
+		}
+		notifyChange(uri);
+		return values.length;
+	}
+
 	// Insert Methods
 	private Uri insertField(Uri uri, ContentValues values) {
 		if (values.containsKey(RapidSmsDBConstants.Field.FORM) == false
@@ -296,6 +626,9 @@ public class RapidSmsContentProvider extends ContentProvider {
 			db.execSQL(dropstatement);
 		} while (formsCursor.moveToNext());
 		formsCursor.close();
+		RollupTables.clearForms(db);
+		db.delete(RapidSmsDBConstants.ExportWatermark.TABLE, null, null);
+		ChartCache.invalidateAllCaches();
 	}
 
 	/**
@@ -303,12 +636,39 @@ public class RapidSmsContentProvider extends ContentProvider {
 	 * @param values
 	 */
 	private Uri insertMessage(Uri uri, ContentValues values) {
-		Long now = Long.valueOf(System.currentTimeMillis());
+		prepareMessage(values);
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		boolean owner = beginBatch();
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			Uri ret = doInsert(uri, values, RapidSmsDBConstants.Message.TABLE, RapidSmsDBConstants.Message.MESSAGE);
+			rollupMessage(ContentUris.parseId(ret), values);
+			commitBatch(db, owner);
+			committed = true;
+			return ret;
+		} finally {
+			db.endTransaction();
+			endBatch(owner, committed);
+		}
+	}
 
+	/**
+	 * Check a message row and fill in its defaults.
+	 * 
+	 * @param values
+	 * @throws SQLException
+	 *             if a required field is missing
+	 */
+	private void prepareMessage(ContentValues values) {
 		// Make sure that the fields are all set
-		if (values.containsKey(RapidSmsDBConstants.Message.TIME) == false) {
-			values.put(RapidSmsDBConstants.Message.TIME, now);
+		if (values.containsKey(RapidSmsDBConstants.Message.TIME) == false
+				&& values.containsKey(RapidSmsDBConstants.Message.TIME_MILLIS) == false) {
+			values.put(RapidSmsDBConstants.Message.TIME_MILLIS, System.currentTimeMillis());
 		}
+		fillMessageTime(values, RapidSmsDBConstants.Message.TIME, RapidSmsDBConstants.Message.TIME_MILLIS);
+		fillMessageTime(values, RapidSmsDBConstants.Message.RECEIVE_TIME,
+						RapidSmsDBConstants.Message.RECEIVE_TIME_MILLIS);
 
 		if (values.containsKey(RapidSmsDBConstants.Message.MESSAGE) == false) {
 			throw new SQLException("No message");
@@ -348,8 +708,34 @@ public class RapidSmsContentProvider extends ContentProvider {
 		if (values.containsKey(RapidSmsDBConstants.Message.IS_VIRTUAL) == false) {
 			values.put(RapidSmsDBConstants.Message.IS_VIRTUAL, false);
 		}
+	}
 
-		return doInsert(uri, values, RapidSmsDBConstants.Message.TABLE, RapidSmsDBConstants.Message.MESSAGE);
+	/**
+	 * Each message time is stored twice, as a datetime string for display and
+	 * as epoch millis for filtering and sorting. Callers can give either one
+	 * (or both), this fills in the other.
+	 * 
+	 * @param values
+	 * @param stringColumn
+	 * @param millisColumn
+	 */
+	private void fillMessageTime(ContentValues values, String stringColumn, String millisColumn) {
+		Object text = values.get(stringColumn);
+		Long millis = values.getAsLong(millisColumn);
+		if (millis == null) {
+			if (text instanceof Number) {
+				// a bare millis value in the string column, move it over
+				millis = Long.valueOf(((Number) text).longValue());
+			} else if (text != null) {
+				millis = SmsDbHelper.parseMessageTime(text.toString());
+			}
+			if (millis != null) {
+				values.put(millisColumn, millis);
+			}
+		}
+		if (millis != null && (text == null || text instanceof Number)) {
+			values.put(stringColumn, TimestampCodec.SQL.format(millis.longValue()));
+		}
 	}
 
 	/**
@@ -357,6 +743,51 @@ public class RapidSmsContentProvider extends ContentProvider {
 	 * @param values
 	 */
 	private Uri insertMonitor(Uri uri, ContentValues values) {
+		prepareMonitor(values);
+
+		// Check if mMonitorString exists, if it doesn't insert a new one, else
+		// return the old one.
+		Cursor exists = query(uri, null, RapidSmsDBConstants.Monitor.PHONE + "='"
+				+ values.getAsString(RapidSmsDBConstants.Monitor.PHONE) + "'", null, null);
+
+		if (exists.getCount() == 1) {
+			exists.moveToFirst();
+			int existingMonitorId = exists.getInt(0);
+			exists.close();
+			return ContentUris.withAppendedId(RapidSmsDBConstants.Monitor.CONTENT_URI, existingMonitorId);
+		} else {
+			exists.close();
+		}
+
+		Uri ret = doInsert(uri, values, RapidSmsDBConstants.Monitor.TABLE, RapidSmsDBConstants.Monitor.PHONE);
+		monitorSaved(ContentUris.parseId(ret), values);
+		return ret;
+	}
+
+	/**
+	 * Add a new monitor to MessageTranslator's registry, or if there's a batch
+	 * running, once it commits. Only the new row is added, the monitor table
+	 * isn't reread.
+	 */
+	private void monitorSaved(long id, ContentValues values) {
+		Batch batch = mBatch.get();
+		if (batch == null) {
+			MessageTranslator.registerMonitor(id, values);
+			return;
+		}
+		ContentValues saved = new ContentValues(values);
+		saved.put(BaseColumns._ID, id);
+		batch.monitors.add(saved);
+	}
+
+	/**
+	 * Check a monitor row and fill in its defaults.
+	 * 
+	 * @param values
+	 * @throws SQLException
+	 *             if there's no phone
+	 */
+	private void prepareMonitor(ContentValues values) {
 		// Make sure that the fields are all set
 		if (values.containsKey(RapidSmsDBConstants.Monitor.PHONE) == false) {
 			throw new SQLException("No phone");
@@ -381,24 +812,6 @@ public class RapidSmsContentProvider extends ContentProvider {
 		if (values.containsKey(RapidSmsDBConstants.Monitor.INCOMING_MESSAGES) == false) {
 			values.put(RapidSmsDBConstants.Monitor.INCOMING_MESSAGES, 0);
 		}
-
-		// Check if mMonitorString exists, if it doesn't insert a new one, else
-		// return the old one.
-		Cursor exists = query(uri, null, RapidSmsDBConstants.Monitor.PHONE + "='"
-				+ values.getAsString(RapidSmsDBConstants.Monitor.PHONE) + "'", null, null);
-
-		if (exists.getCount() == 1) {
-			exists.moveToFirst();
-			int existingMonitorId = exists.getInt(0);
-			exists.close();
-			return ContentUris.withAppendedId(RapidSmsDBConstants.Monitor.CONTENT_URI, existingMonitorId);
-		} else {
-			exists.close();
-		}
-
-		Uri ret = doInsert(uri, values, RapidSmsDBConstants.Monitor.TABLE, RapidSmsDBConstants.Monitor.PHONE);
-		MessageTranslator.updateMonitorHash(getContext());
-		return ret;
 	}
 
 	@Override
@@ -407,6 +820,8 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 		String table;
 		String finalWhere = "";
+		// the form whose rollups need rebuilding, if only one does
+		Form rollupForm = null;
 
 		switch (sUriMatcher.match(uri)) {
 			case MESSAGE:
@@ -443,6 +858,7 @@ public class RapidSmsContentProvider extends ContentProvider {
 				String formid = uri.getPathSegments().get(1);
 				Form f = ModelTranslator.getFormById(Integer.valueOf(formid).intValue());
 				table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix();
+				rollupForm = f;
 				break;
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
@@ -452,9 +868,31 @@ public class RapidSmsContentProvider extends ContentProvider {
 			finalWhere = where;
 		}
 
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-		int result = db.delete(table, finalWhere, whereArgs);
-
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int result;
+		db.beginTransaction();
+		try {
+			result = db.delete(table, finalWhere, whereArgs);
+			// rollups can't be subtracted from, so rebuild the ones the
+			// deleted rows were counted in. Deleting messages can orphan form
+			// data of any form.
+			if (result > 0 && rollupForm != null) {
+				RollupTables.rebuildForm(db, rollupForm.getFormId());
+				ExportWatermarks.clamp(db, rollupForm.getFormId(), table);
+			} else if (result > 0 && table.equals(RapidSmsDBConstants.Message.TABLE)) {
+				RollupTables.rebuildAll(db);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		// only once it's committed, or a chart computed in between would be
+		// cached with the deleted rows
+		if (result > 0 && rollupForm != null) {
+			ChartCache.invalidateFormInAll(rollupForm.getFormId());
+		} else if (result > 0 && table.equals(RapidSmsDBConstants.Message.TABLE)) {
+			ChartCache.invalidateAllCaches();
+		}
 		return result;
 	}
 
@@ -530,9 +968,9 @@ public class RapidSmsContentProvider extends ContentProvider {
 
 				if (selection != null) {
 					query.append(" WHERE " + selection);
-					query.append(" ORDER BY rapidandroid_message.time DESC");
+					query.append(" ORDER BY rapidandroid_message.time_millis DESC");
 				} else {
-					query.append(" ORDER BY RAPIDANDROID_MESSAGE.time DESC");
+					query.append(" ORDER BY RAPIDANDROID_MESSAGE.time_millis DESC");
 				}
 				SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 				Cursor c = db.rawQuery(query.toString(), null);
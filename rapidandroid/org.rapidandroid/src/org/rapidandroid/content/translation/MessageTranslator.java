@@ -17,13 +17,18 @@
 
 package org.rapidandroid.content.translation;
 
+import java.text.ParseException;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 
 import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.model.IMonitorStore;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.model.Monitor;
+import org.rapidsms.java.core.model.MonitorRegistry;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -44,47 +49,59 @@ import android.net.Uri;
 
 public class MessageTranslator {
 
-	private static HashMap<Integer, Monitor> mMonitorHash = new HashMap<Integer, Monitor>();
-	private static HashMap<String, Monitor> mMonitorHashByPhone = new HashMap<String, Monitor>();
+	/**
+	 * Every monitor by id and by phone, so saving a message doesn't need a
+	 * monitor query. Kept current one monitor at a time by the content
+	 * provider as monitors are saved.
+	 */
+	private static final MonitorRegistry sMonitors = new MonitorRegistry(null);
 
 	/**
-	 * To ease DB hits on the insert of messages, the monitorhash has two
-	 * hastables indexed by phone number and ID. We need to update this thing on
-	 * each new insert.
+	 * Load the monitor registry from the monitor table. Only needed at
+	 * startup; new monitors are added to it with registerMonitor() as they
+	 * are saved.
 	 * 
 	 * @param context
 	 */
-	public static synchronized void updateMonitorHash(Context context) {
-
-		mMonitorHash = new HashMap<Integer, Monitor>();
-		mMonitorHashByPhone = new HashMap<String, Monitor>();
+	public static void updateMonitorHash(Context context) {
+		ArrayList<Monitor> monitors = new ArrayList<Monitor>();
 		Cursor monitorCursor = context.getContentResolver().query(RapidSmsDBConstants.Monitor.CONTENT_URI, null, null,
 																	null, null);
-		// if (monitorCursor.getCount() == 0) {
-		// monitorCursor.close();
-		// return;
-		// }
-
 		if (monitorCursor.moveToFirst()) {
-
 			do {
-				// (int id, String firstName, String lastName, String alias,
-				// String phone, String email, int incomingMessages) {
-
-				Monitor newMonitor = new Monitor(monitorCursor.getInt(Monitor.COL_ID),
-													monitorCursor.getString(Monitor.COL_FIRSTNAME),
-													monitorCursor.getString(Monitor.COL_LASTNAME),
-													monitorCursor.getString(Monitor.COL_ALIAS),
-													monitorCursor.getString(Monitor.COL_PHONE),
-													monitorCursor.getString(Monitor.COL_EMAIL),
-													monitorCursor.getInt(Monitor.COL_MESSAGECOUNT),
-													monitorCursor.getInt(Monitor.COL_RECEIVE_REPLY) == 1);
-				mMonitorHash.put(Integer.valueOf(newMonitor.getID()), newMonitor);
-				mMonitorHashByPhone.put(newMonitor.getPhone(), newMonitor);
+				monitors.add(readMonitor(monitorCursor));
 			} while (monitorCursor.moveToNext());
 		}
-
 		monitorCursor.close();
+		sMonitors.replaceAll(monitors);
+	}
+
+	private static Monitor readMonitor(Cursor monitorCursor) {
+		// (int id, String firstName, String lastName, String alias,
+		// String phone, String email, int incomingMessages) {
+		return new Monitor(monitorCursor.getInt(Monitor.COL_ID), monitorCursor.getString(Monitor.COL_FIRSTNAME),
+							monitorCursor.getString(Monitor.COL_LASTNAME), monitorCursor.getString(Monitor.COL_ALIAS),
+							monitorCursor.getString(Monitor.COL_PHONE), monitorCursor.getString(Monitor.COL_EMAIL),
+							monitorCursor.getInt(Monitor.COL_MESSAGECOUNT),
+							monitorCursor.getInt(Monitor.COL_RECEIVE_REPLY) == 1);
+	}
+
+	/**
+	 * Add a just saved monitor row to the registry.
+	 * 
+	 * @param id
+	 * @param values
+	 *            the row as inserted, defaults filled in
+	 */
+	public static void registerMonitor(long id, ContentValues values) {
+		Integer messages = values.getAsInteger(RapidSmsDBConstants.Monitor.INCOMING_MESSAGES);
+		Boolean reply = values.getAsBoolean(RapidSmsDBConstants.Monitor.RECEIVE_REPLY);
+		sMonitors.put(new Monitor((int) id, values.getAsString(RapidSmsDBConstants.Monitor.FIRST_NAME),
+									values.getAsString(RapidSmsDBConstants.Monitor.LAST_NAME),
+									values.getAsString(RapidSmsDBConstants.Monitor.ALIAS),
+									values.getAsString(RapidSmsDBConstants.Monitor.PHONE),
+									values.getAsString(RapidSmsDBConstants.Monitor.EMAIL), messages == null ? 0
+											: messages.intValue(), reply != null && reply.booleanValue()));
 	}
 
 	/**
@@ -94,14 +111,27 @@ public class MessageTranslator {
 	 * @param monitorID
 	 * @return
 	 */
-	public static synchronized Monitor GetMonitor(Context context, int monitorID) {
-		Integer monID = Integer.valueOf(monitorID);
-		if (mMonitorHash.containsKey(monID)) {
-			return mMonitorHash.get(monID);
-		} else {
-			throw new IllegalArgumentException(
-												"Error in application state.  The monitor hash should always be up to date when querying");
+	public static Monitor GetMonitor(Context context, int monitorID) {
+		Monitor monitor = sMonitors.get(monitorID);
+		if (monitor != null) {
+			return monitor;
 		}
+		// saved by someone who didn't register it, fetch just that row
+		Cursor monitorCursor = context.getContentResolver().query(
+																	ContentUris.withAppendedId(
+																								RapidSmsDBConstants.Monitor.CONTENT_URI,
+																								monitorID), null, null,
+																	null, null);
+		try {
+			if (!monitorCursor.moveToFirst()) {
+				throw new IllegalArgumentException("No monitor with id " + monitorID);
+			}
+			monitor = readMonitor(monitorCursor);
+		} finally {
+			monitorCursor.close();
+		}
+		sMonitors.put(monitor);
+		return monitor;
 	}
 
 	/**
@@ -111,23 +141,38 @@ public class MessageTranslator {
 	 *          message to a Monitor.ID
 	 * 
 	 */
-	public static synchronized Monitor GetMonitorAndInsertIfNew(Context context, String phone) {
-		if (mMonitorHashByPhone.containsKey(phone)) {
-			return mMonitorHashByPhone.get(phone);
-		} else {
-			ContentValues cv = new ContentValues();
-			cv.put(RapidSmsDBConstants.Monitor.PHONE, phone);
-			Uri newUri = context.getContentResolver().insert(RapidSmsDBConstants.Monitor.CONTENT_URI, cv);
-			// updateMonitorHash(context);
-			return mMonitorHashByPhone.get(phone);
-		}
+	public static Monitor GetMonitorAndInsertIfNew(final Context context, String phone) {
+		return sMonitors.getOrInsert(phone, new IMonitorStore() {
+			public Monitor insertMonitor(String newPhone) {
+				ContentValues cv = new ContentValues();
+				cv.put(RapidSmsDBConstants.Monitor.PHONE, newPhone);
+				Uri newUri = context.getContentResolver().insert(RapidSmsDBConstants.Monitor.CONTENT_URI, cv);
+				// the provider registers what it saves, the lookup only
+				// misses if the row was already there
+				return GetMonitor(context, (int) ContentUris.parseId(newUri));
+			}
+		});
 	}
 
-	public static synchronized Message GetMessage(Context context, int messageID) {
-		if (mMonitorHash == null) {
-			updateMonitorHash(context);
+	/**
+	 * Read one of a message's times from a full message row, from the millis
+	 * column when it's set and otherwise from the datetime string.
+	 * 
+	 * @return the time, or null if neither column has one
+	 * @throws ParseException
+	 */
+	private static Date getMessageTime(Cursor msgCursor, int millisColumn, int stringColumn) throws ParseException {
+		if (!msgCursor.isNull(millisColumn)) {
+			return new Date(msgCursor.getLong(millisColumn));
+		}
+		String datestring = msgCursor.getString(stringColumn);
+		if (datestring == null || datestring.length() == 0) {
+			return null;
 		}
+		return TimestampCodec.SQL.parse(datestring);
+	}
 
+	public static Message GetMessage(Context context, int messageID) {
 		Uri getMessageUri = Uri.parse(RapidSmsDBConstants.Message.CONTENT_URI_STRING + messageID);
 
 		Cursor msgCursor = context.getContentResolver().query(getMessageUri, null, null, null, null);
@@ -137,24 +182,19 @@ public class MessageTranslator {
 			return null;
 		} else {
 			try {
-				String datestring = msgCursor.getString(Message.COL_TIME);
-				Date msgDate = Message.SQLDateFormatter.parse(datestring);
-
-				String recvstring = msgCursor.getString(Message.COL_RECEIVE_TIME);
-				Date recvDate = msgDate; // for old entries, should we set it to
-				// null or just copy it?
-				if (recvstring == null || recvstring == "") {
-					recvDate = Message.SQLDateFormatter.parse(datestring);
+				Date msgDate = getMessageTime(msgCursor, Message.COL_TIME_MILLIS, Message.COL_TIME);
+				Date recvDate = getMessageTime(msgCursor, Message.COL_RECEIVE_TIME_MILLIS, Message.COL_RECEIVE_TIME);
+				if (recvDate == null) {
+					// for old entries, should we set it to null or just copy
+					// it?
+					recvDate = msgDate;
 				}
 
 				Message newMessage = new Message(
 													msgCursor.getInt(Message.COL_ID),
 													msgCursor.getString(Message.COL_MESSAGE),
 													msgDate,
-													mMonitorHash
-																.get(Integer
-																			.valueOf(msgCursor
-																								.getInt(Message.COL_MONITOR))),
+													sMonitors.get(msgCursor.getInt(Message.COL_MONITOR)),
 													recvDate);
 				msgCursor.close();
 				return newMessage;
@@ -164,10 +204,7 @@ public class MessageTranslator {
 		}
 	}
 
-	public static synchronized Message[] GetMessages(Context context, int[] messages) {
-		if (mMonitorHash == null) {
-			updateMonitorHash(context);
-		}
+	public static Message[] GetMessages(Context context, int[] messages) {
 		Uri getMessageUri = RapidSmsDBConstants.Message.CONTENT_URI;
 		String whereclause = "_id in (";
 		int length = messages.length;
@@ -179,32 +216,27 @@ public class MessageTranslator {
 		}
 		whereclause += ")";
 
-		Cursor msgCursor = context.getContentResolver().query(getMessageUri, null, whereclause, null, "time DESC");
+		Cursor msgCursor = context.getContentResolver().query(getMessageUri, null, whereclause, null,
+																	RapidSmsDBConstants.Message.TIME_MILLIS + " DESC");
 		int retlen = msgCursor.getCount();
 		Message[] ret = new Message[retlen];
 
 		msgCursor.moveToFirst();
 		for (int i = 0; i < retlen; i++) {
 			try {
-				String datestring = msgCursor.getString(Message.COL_TIME);
-				Date msgDate = Message.SQLDateFormatter.parse(datestring);
-
-				String recvstring = msgCursor.getString(Message.COL_RECEIVE_TIME);
-				Date recvDate = msgDate; // for old entries, should we set it to
-				// null or just copy it?
-
-				if (recvstring == null || recvstring == "") {
-					recvDate = Message.SQLDateFormatter.parse(datestring);
+				Date msgDate = getMessageTime(msgCursor, Message.COL_TIME_MILLIS, Message.COL_TIME);
+				Date recvDate = getMessageTime(msgCursor, Message.COL_RECEIVE_TIME_MILLIS, Message.COL_RECEIVE_TIME);
+				if (recvDate == null) {
+					// for old entries, should we set it to null or just copy
+					// it?
+					recvDate = msgDate;
 				}
 
 				Message newMessage = new Message(
 													msgCursor.getInt(Message.COL_ID),
 													msgCursor.getString(Message.COL_MESSAGE),
 													msgDate,
-													mMonitorHash
-																.get(Integer
-																			.valueOf(msgCursor
-																								.getInt(Message.COL_MONITOR))),
+													sMonitors.get(msgCursor.getInt(Message.COL_MONITOR)),
 													recvDate);
 				ret[i] = newMessage;
 			} catch (Exception ex) {
@@ -20,9 +20,11 @@ package org.rapidandroid.content.translation;
 import java.util.HashMap;
 import java.util.Vector;
 
+import org.rapidandroid.data.ExportWatermarks;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
-import org.rapidandroid.receiver.SmsParseReceiver;
+import org.rapidandroid.receiver.IngestQueue;
+import org.rapidsms.java.core.chart.ChartCache;
 import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.SimpleFieldType;
@@ -156,7 +158,7 @@ public class ModelTranslator {
 		// the form table if it doesn't exist yet.
 		generateFormTable(f);
 
-		SmsParseReceiver.initFormCache();
+		IngestQueue.initFormCache();
 	}
 
 	/**
@@ -224,7 +226,7 @@ public class ModelTranslator {
 			// Field[] fields = getFieldsForForm(provider, id); // hack way
 			Field[] fields = getFieldsForForm(id); // real way
 
-			Form theForm = new Form(id, name, prefix, description, fields, ParserType.SIMPLEREGEX);
+			Form theForm = new Form(id, name, prefix, description, fields, ParserType.COMPILEDREGEX);
 
 			formIdCache.put(idInt, theForm);
 			ret[i] = theForm;
@@ -285,7 +287,7 @@ public class ModelTranslator {
 		// Field[] fields = getFieldsForForm(provider, id); // hack way
 		Field[] fields = getFieldsForForm(id); // real way
 
-		Form ret = new Form(formCursor.getInt(0), name, prefix, description, fields, ParserType.SIMPLEREGEX);
+		Form ret = new Form(formCursor.getInt(0), name, prefix, description, fields, ParserType.COMPILEDREGEX);
 		formIdCache.put(Integer.valueOf(id), ret);
 		formCursor.close();
 		return ret;
@@ -516,6 +518,10 @@ public class ModelTranslator {
 		sb.append(" );");
 
 		db.execSQL(sb.toString());
+		SmsDbHelper.createFormDataIndex(db, form.getPrefix());
+		// a new table hands out _ids from 1 again
+		ExportWatermarks.reset(db, form.getFormId());
+		ChartCache.invalidateFormInAll(form.getFormId());
 	}
 
 }
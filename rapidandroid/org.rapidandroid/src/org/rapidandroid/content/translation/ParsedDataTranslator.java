@@ -18,7 +18,6 @@
 package org.rapidandroid.content.translation;
 
 import java.util.HashMap;
-import java.util.Random;
 import java.util.Vector;
 
 import org.rapidandroid.data.RapidSmsDBConstants;
@@ -26,6 +25,8 @@ import org.rapidsms.java.core.model.Field;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.IParseResult.ValueType;
+import org.rapidsms.java.core.parser.ParseRecord;
 import org.rapidsms.java.core.parser.SimpleParseResult;
 import org.rapidsms.java.core.parser.token.ITokenParser;
 
@@ -45,6 +46,13 @@ import android.net.Uri;
 
 public class ParsedDataTranslator {
 
+	/**
+	 * booleans have always been stored as the text of Boolean.toString(), and
+	 * the chart code compares against it
+	 */
+	private static final String TRUE_VALUE = "true";
+	private static final String FALSE_VALUE = "false";
+
 	/**
 	 * Called after a message is parsed. For a given form, the results are put
 	 * into a ParseResult for each field, typed out according to the fieldtype
@@ -56,28 +64,113 @@ public class ParsedDataTranslator {
 	 * @return
 	 */
 	public static boolean InsertFormData(Context context, Form f, int message_id, Vector<IParseResult> results) {
+		ContentValues cv = getFormDataValues(f, results);
+		cv.put(RapidSmsDBConstants.FormData.MESSAGE, message_id);
+		context.getContentResolver().insert(Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX + f.getFormId()),
+											cv);
+		return true;
+	}
 
+	/**
+	 * The form data row for a set of parse results, without the message id, so
+	 * it can go into a batch that fills it in from the message insert.
+	 * 
+	 * @param f
+	 * @param results
+	 * @return
+	 */
+	public static ContentValues getFormDataValues(Form f, Vector<IParseResult> results) {
 		ContentValues cv = new ContentValues();
-		cv.put(RapidSmsDBConstants.FormData.MESSAGE, message_id);
 		Field[] fields = f.getFields();
 		int len = fields.length;
-		Random r = new Random();
 
 		for (int i = 0; i < len; i++) {
-			Field field = fields[i];
+			String column = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName();
 			IParseResult res = results.get(i);
-			if (res != null) {
-				cv.put(RapidSmsDBConstants.FormData.COLUMN_PREFIX + field.getName(), res.getValue().toString());
-			} else {
-				cv.put(RapidSmsDBConstants.FormData.COLUMN_PREFIX + field.getName(), "");
+			if (res == null) {
+				cv.put(column, "");
+				continue;
+			}
+			switch (res.getValueType()) {
+				case INTEGER:
+					cv.put(column, res.getLong());
+					break;
+				case FLOAT:
+					cv.put(column, res.getDouble());
+					break;
+				case BOOLEAN:
+					cv.put(column, res.getBoolean() ? TRUE_VALUE : FALSE_VALUE);
+					break;
+				case WORD:
+					cv.put(column, res.getValue().toString());
+					break;
+				default:
+					cv.put(column, "");
+					break;
 			}
 		}
-		Uri inserted = context.getContentResolver().insert(
-															Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX
-																	+ f.getFormId()), cv);
+		return cv;
+	}
+
+	/**
+	 * Same as the Vector version, but reads the values from a ParseRecord as
+	 * primitives so numbers go into the row as numbers, not as the String of a
+	 * boxed Float.
+	 * 
+	 * @param context
+	 * @param f
+	 * @param message_id
+	 * @param record
+	 * @return
+	 */
+	public static boolean InsertFormData(Context context, Form f, int message_id, ParseRecord record) {
+		ContentValues cv = getFormDataValues(f, record);
+		cv.put(RapidSmsDBConstants.FormData.MESSAGE, message_id);
+		context.getContentResolver().insert(Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX + f.getFormId()),
+											cv);
 		return true;
 	}
 
+	/**
+	 * The form data row for a ParseRecord, without the message id.
+	 * 
+	 * @param f
+	 * @param record
+	 * @return
+	 */
+	public static ContentValues getFormDataValues(Form f, ParseRecord record) {
+		ContentValues cv = new ContentValues();
+		Field[] fields = f.getFields();
+		int len = fields.length;
+
+		for (int i = 0; i < len; i++) {
+			String column = RapidSmsDBConstants.FormData.COLUMN_PREFIX + fields[i].getName();
+			ValueType type = record.getValueType(i);
+			if (type == null) {
+				cv.put(column, "");
+				continue;
+			}
+			switch (type) {
+				case INTEGER:
+					cv.put(column, record.getLong(i));
+					break;
+				case FLOAT:
+					cv.put(column, record.getDouble(i));
+					break;
+				case BOOLEAN:
+					cv.put(column, record.getBoolean(i) ? TRUE_VALUE : FALSE_VALUE);
+					break;
+				case WORD:
+					cv.put(column, record.getToken(i));
+					break;
+				default:
+					cv.put(column, "");
+					break;
+			}
+		}
+		return cv;
+	}
+
 	/**
 	 * An expensive call to get all parsed messages for a given Form. Loads it
 	 * all into memory.
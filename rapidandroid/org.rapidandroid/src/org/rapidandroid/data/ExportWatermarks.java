@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Reads and advances the per form export watermarks.
+ * 
+ * A watermark records the highest form data _id that's been exported to a
+ * destination, so the next delta export only reads the rows after it. The
+ * export never moves it itself: the caller advances it once the file is
+ * written, or the upload accepted, so a failed transfer is simply sent again.
+ * 
+ * Form data _ids are plain integer primary keys, and sqlite hands out
+ * max(_id) + 1, so deleting form data pulls the watermark back to the highest
+ * _id that's left. Otherwise rows inserted afterwards could reuse _ids below it and be
+ * skipped.
+ */
+public final class ExportWatermarks {
+
+	/**
+	 * One form's watermark for one destination.
+	 */
+	public static final class Watermark {
+		private final int mFormId;
+		private final String mDestination;
+		private final long mLastId;
+		private final long mLastTimeMillis;
+
+		public Watermark(int formId, String destination, long lastId, long lastTimeMillis) {
+			mFormId = formId;
+			mDestination = destination;
+			mLastId = lastId;
+			mLastTimeMillis = lastTimeMillis;
+		}
+
+		public int getFormId() {
+			return mFormId;
+		}
+
+		public String getDestination() {
+			return mDestination;
+		}
+
+		/**
+		 * @return the highest form data _id exported, 0 if nothing has been
+		 */
+		public long getLastId() {
+			return mLastId;
+		}
+
+		/**
+		 * @return the latest message time among the rows exported, 0 if
+		 *         nothing has been
+		 */
+		public long getLastTimeMillis() {
+			return mLastTimeMillis;
+		}
+	}
+
+	private ExportWatermarks() {
+	}
+
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS \"" + RapidSmsDBConstants.ExportWatermark.TABLE + "\" (" + "\""
+				+ RapidSmsDBConstants.ExportWatermark.FORM + "\" integer NOT NULL," + "\""
+				+ RapidSmsDBConstants.ExportWatermark.DESTINATION + "\" varchar(32) NOT NULL," + "\""
+				+ RapidSmsDBConstants.ExportWatermark.LAST_ID + "\" integer NOT NULL," + "\""
+				+ RapidSmsDBConstants.ExportWatermark.LAST_TIME_MILLIS + "\" integer NOT NULL," + "\""
+				+ RapidSmsDBConstants.ExportWatermark.EXPORTED_MILLIS + "\" integer NOT NULL," + "PRIMARY KEY (\""
+				+ RapidSmsDBConstants.ExportWatermark.FORM + "\", \""
+				+ RapidSmsDBConstants.ExportWatermark.DESTINATION + "\"));");
+	}
+
+	/**
+	 * @param db
+	 * @param formId
+	 * @param destination
+	 * @return the watermark, at 0 if the form has never been exported there
+	 */
+	public static Watermark get(SQLiteDatabase db, int formId, String destination) {
+		Cursor cr = db.rawQuery("select " + RapidSmsDBConstants.ExportWatermark.LAST_ID + ", "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_TIME_MILLIS + " from "
+				+ RapidSmsDBConstants.ExportWatermark.TABLE + " where " + RapidSmsDBConstants.ExportWatermark.FORM
+				+ " = ? and " + RapidSmsDBConstants.ExportWatermark.DESTINATION + " = ?", new String[] {
+				Integer.toString(formId), destination });
+		try {
+			if (cr.moveToFirst()) {
+				return new Watermark(formId, destination, cr.getLong(0), cr.getLong(1));
+			}
+			return new Watermark(formId, destination, 0, 0);
+		} finally {
+			cr.close();
+		}
+	}
+
+	/**
+	 * Move a watermark forward. It never moves back, so an export that
+	 * finishes after a later one doesn't undo it.
+	 * 
+	 * @param db
+	 * @param watermark
+	 *            where the export that just completed got to
+	 */
+	public static void advance(SQLiteDatabase db, Watermark watermark) {
+		// bound as numbers, a string in max() would compare above any integer
+		Integer formId = Integer.valueOf(watermark.getFormId());
+		Long lastId = Long.valueOf(watermark.getLastId());
+		Long lastTime = Long.valueOf(watermark.getLastTimeMillis());
+		Long now = Long.valueOf(System.currentTimeMillis());
+		db.beginTransaction();
+		try {
+			// no upsert on the phone's sqlite, same as RollupTables
+			db.execSQL("INSERT OR IGNORE INTO " + RapidSmsDBConstants.ExportWatermark.TABLE + " ("
+					+ RapidSmsDBConstants.ExportWatermark.FORM + ", " + RapidSmsDBConstants.ExportWatermark.DESTINATION
+					+ ", " + RapidSmsDBConstants.ExportWatermark.LAST_ID + ", "
+					+ RapidSmsDBConstants.ExportWatermark.LAST_TIME_MILLIS + ", "
+					+ RapidSmsDBConstants.ExportWatermark.EXPORTED_MILLIS + ") VALUES (?, ?, 0, 0, 0)", new Object[] {
+					formId, watermark.getDestination() });
+			db.execSQL("UPDATE " + RapidSmsDBConstants.ExportWatermark.TABLE + " SET "
+					+ RapidSmsDBConstants.ExportWatermark.LAST_ID + " = max("
+					+ RapidSmsDBConstants.ExportWatermark.LAST_ID + ", ?), "
+					+ RapidSmsDBConstants.ExportWatermark.LAST_TIME_MILLIS + " = max("
+					+ RapidSmsDBConstants.ExportWatermark.LAST_TIME_MILLIS + ", ?), "
+					+ RapidSmsDBConstants.ExportWatermark.EXPORTED_MILLIS + " = ? WHERE "
+					+ RapidSmsDBConstants.ExportWatermark.FORM + " = ? AND "
+					+ RapidSmsDBConstants.ExportWatermark.DESTINATION + " = ?", new Object[] { lastId, lastTime, now,
+					formId, watermark.getDestination() });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Pull a form's watermarks back to the highest form data _id left after
+	 * a delete. Call it in the deleting transaction.
+	 * 
+	 * @param db
+	 * @param formId
+	 * @param formTable
+	 *            the form's formdata_ table
+	 */
+	public static void clamp(SQLiteDatabase db, int formId, String formTable) {
+		db.execSQL("UPDATE " + RapidSmsDBConstants.ExportWatermark.TABLE + " SET "
+				+ RapidSmsDBConstants.ExportWatermark.LAST_ID + " = min(" + RapidSmsDBConstants.ExportWatermark.LAST_ID
+				+ ", (SELECT ifnull(max(_id), 0) FROM " + formTable + ")) WHERE "
+				+ RapidSmsDBConstants.ExportWatermark.FORM + " = ?", new Object[] { Integer.valueOf(formId) });
+	}
+
+	/**
+	 * Forget a form's watermarks, for when its form data table is recreated.
+	 * 
+	 * @param db
+	 * @param formId
+	 */
+	public static void reset(SQLiteDatabase db, int formId) {
+		db.delete(RapidSmsDBConstants.ExportWatermark.TABLE, RapidSmsDBConstants.ExportWatermark.FORM + " = ?",
+				new String[] { Integer.toString(formId) });
+	}
+}
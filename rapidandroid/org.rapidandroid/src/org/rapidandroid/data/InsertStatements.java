@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compiled INSERT statements for one table, for inserting many rows in a row.
+ * 
+ * SQLiteDatabase.insert() builds and compiles a new statement for every row.
+ * This keeps one SQLiteStatement per distinct set of columns and just rebinds
+ * it, which for a batch of rows from the same code path means compiling once.
+ * 
+ * Only good for the database (and transaction) it was made with. close() it
+ * when the batch is done.
+ */
+public class InsertStatements {
+
+	private final SQLiteDatabase mDb;
+	private final String mTable;
+	private final HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+	private final StringBuilder mKey = new StringBuilder();
+
+	public InsertStatements(SQLiteDatabase db, String table) {
+		mDb = db;
+		mTable = table;
+	}
+
+	/**
+	 * Insert a row.
+	 * 
+	 * @param values
+	 *            bound the same way SQLiteDatabase.insert() binds them
+	 * @return the new row id
+	 * @throws SQLException
+	 *             if the row couldn't be inserted
+	 */
+	public long insert(ContentValues values) {
+		// ContentValues is a HashMap underneath, so the same columns can come
+		// back in a different order. That only costs another statement.
+		mKey.setLength(0);
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			mKey.append(entry.getKey()).append(',');
+		}
+		String key = mKey.toString();
+		SQLiteStatement statement = mStatements.get(key);
+		if (statement == null) {
+			statement = compile(values);
+			mStatements.put(key, statement);
+		}
+
+		int index = 1;
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			bind(statement, index++, entry.getValue());
+		}
+		long rowId = statement.executeInsert();
+		if (rowId == -1) {
+			throw new SQLException("Failed to insert row into " + mTable);
+		}
+		return rowId;
+	}
+
+	private SQLiteStatement compile(ContentValues values) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ").append(mTable).append(" (");
+		StringBuilder params = new StringBuilder();
+		boolean first = true;
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			if (!first) {
+				sql.append(',');
+				params.append(',');
+			}
+			sql.append(entry.getKey());
+			params.append('?');
+			first = false;
+		}
+		sql.append(") VALUES (").append(params).append(')');
+		return mDb.compileStatement(sql.toString());
+	}
+
+	private static void bind(SQLiteStatement statement, int index, Object value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else if (value instanceof Double || value instanceof Float) {
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			statement.bindLong(index, ((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			statement.bindLong(index, ((Boolean) value).booleanValue() ? 1 : 0);
+		} else if (value instanceof byte[]) {
+			statement.bindBlob(index, (byte[]) value);
+		} else {
+			statement.bindString(index, value.toString());
+		}
+	}
+
+	/**
+	 * Release the compiled statements.
+	 */
+	public void close() {
+		for (SQLiteStatement statement : mStatements.values()) {
+			statement.close();
+		}
+		mStatements.clear();
+	}
+}
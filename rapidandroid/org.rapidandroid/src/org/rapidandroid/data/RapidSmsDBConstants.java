@@ -68,6 +68,15 @@ public final class RapidSmsDBConstants {
 		public static final String IS_OUTGOING = "is_outgoing";
 		public static final String IS_VIRTUAL = "is_virtual";
 		public static final String RECEIVE_TIME = "receive_time";
+		/**
+		 * TIME as epoch millis. Filter, sort and bucket on this one, TIME is
+		 * kept for display.
+		 */
+		public static final String TIME_MILLIS = "time_millis";
+		/**
+		 * RECEIVE_TIME as epoch millis.
+		 */
+		public static final String RECEIVE_TIME_MILLIS = "receive_time_millis";
 	}
 
 	/**
@@ -153,6 +162,63 @@ public final class RapidSmsDBConstants {
 
 	}
 
+	/**
+	 * The hourly and daily rollup tables the charts read. Each row is one
+	 * series in one local time bucket, see RollupAccumulator. They're updated
+	 * in the same transaction as the messages and form data they count.
+	 */
+	public static final class Rollup {
+		public static final String HOURLY_TABLE = "rapidandroid_rollup_hourly";
+		public static final String DAILY_TABLE = "rapidandroid_rollup_daily";
+
+		// Section Table columns ##########################################
+		/**
+		 * The form, or RollupAccumulator.ALL_MESSAGES
+		 */
+		public static final String FORM = "form_id";
+		/**
+		 * The field name, or RollupAccumulator.COUNT_SERIES
+		 */
+		public static final String FIELD = "field";
+		public static final String BUCKET = "bucket";
+		public static final String COUNT = "count";
+		public static final String SUM = "sum";
+		public static final String MIN = "min_value";
+		public static final String MAX = "max_value";
+	}
+
+	/**
+	 * How far each form's data has been exported to each destination, so a
+	 * delta export only picks up the rows that came in since. See
+	 * ExportWatermarks.
+	 */
+	public static final class ExportWatermark {
+		public static final String TABLE = "rapidandroid_export_watermark";
+
+		// Section Table columns ##########################################
+		public static final String FORM = "form_id";
+		/**
+		 * DESTINATION_CSV, DESTINATION_UPLOAD
+		 */
+		public static final String DESTINATION = "destination";
+		/**
+		 * The highest form data _id exported
+		 */
+		public static final String LAST_ID = "last_id";
+		/**
+		 * The latest message time_millis among the rows exported
+		 */
+		public static final String LAST_TIME_MILLIS = "last_time_millis";
+		/**
+		 * When the watermark was last advanced
+		 */
+		public static final String EXPORTED_MILLIS = "exported_millis";
+
+		// Section destinations ###########################################
+		public static final String DESTINATION_CSV = "csv";
+		public static final String DESTINATION_UPLOAD = "upload";
+	}
+
 	/**
 	 * Helper constants for accessing the FormData tables. You must have access
 	 * to the Form object for these to be userul
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TimeZone;
+
+import org.rapidsms.java.core.rollup.RollupAccumulator;
+import org.rapidsms.java.core.rollup.RollupBucket;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Creates, updates and rebuilds the hourly and daily rollup tables.
+ * 
+ * The content provider collects the rollups for the rows it inserts in a
+ * RollupAccumulator and adds them here before the transaction commits. SQLite
+ * on the phone has no upsert, so each bucket is an INSERT OR IGNORE of an empty
+ * row followed by an UPDATE adding to it.
+ * 
+ * Rollups can't be taken back out (min and max don't subtract), so deleting
+ * messages or form data rebuilds them from the tables.
+ */
+public final class RollupTables {
+
+	/**
+	 * Rows per batch when rebuilding.
+	 */
+	private static final int REBUILD_BATCH_SIZE = 500;
+
+	private RollupTables() {
+	}
+
+	static void createTables(SQLiteDatabase db) {
+		createTable(db, RapidSmsDBConstants.Rollup.HOURLY_TABLE);
+		createTable(db, RapidSmsDBConstants.Rollup.DAILY_TABLE);
+	}
+
+	private static void createTable(SQLiteDatabase db, String table) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS \"" + table + "\" (" + "\"" + RapidSmsDBConstants.Rollup.FORM
+				+ "\" integer NOT NULL," + "\"" + RapidSmsDBConstants.Rollup.FIELD + "\" varchar(32) NOT NULL," + "\""
+				+ RapidSmsDBConstants.Rollup.BUCKET + "\" integer NOT NULL," + "\"" + RapidSmsDBConstants.Rollup.COUNT
+				+ "\" integer NOT NULL," + "\"" + RapidSmsDBConstants.Rollup.SUM + "\" float NOT NULL," + "\""
+				+ RapidSmsDBConstants.Rollup.MIN + "\" float NOT NULL," + "\"" + RapidSmsDBConstants.Rollup.MAX
+				+ "\" float NOT NULL," + "PRIMARY KEY (\"" + RapidSmsDBConstants.Rollup.FORM + "\", \""
+				+ RapidSmsDBConstants.Rollup.FIELD + "\", \"" + RapidSmsDBConstants.Rollup.BUCKET + "\"));");
+	}
+
+	/**
+	 * Add the accumulated rollups to the tables. Call it inside the
+	 * transaction that inserted the rows they count.
+	 * 
+	 * @param db
+	 * @param rollups
+	 */
+	public static void write(SQLiteDatabase db, RollupAccumulator rollups) {
+		if (rollups.isEmpty()) {
+			return;
+		}
+		write(db, RapidSmsDBConstants.Rollup.HOURLY_TABLE, rollups.getHourly());
+		write(db, RapidSmsDBConstants.Rollup.DAILY_TABLE, rollups.getDaily());
+	}
+
+	private static void write(SQLiteDatabase db, String table, Collection<RollupBucket> buckets) {
+		SQLiteStatement create = db.compileStatement("insert or ignore into " + table + " ("
+				+ RapidSmsDBConstants.Rollup.FORM + ", " + RapidSmsDBConstants.Rollup.FIELD + ", "
+				+ RapidSmsDBConstants.Rollup.BUCKET + ", " + RapidSmsDBConstants.Rollup.COUNT + ", "
+				+ RapidSmsDBConstants.Rollup.SUM + ", " + RapidSmsDBConstants.Rollup.MIN + ", "
+				+ RapidSmsDBConstants.Rollup.MAX + ") values (?, ?, ?, 0, 0, ?, ?)");
+		SQLiteStatement add = db.compileStatement("update " + table + " set " + RapidSmsDBConstants.Rollup.COUNT
+				+ " = " + RapidSmsDBConstants.Rollup.COUNT + " + ?, " + RapidSmsDBConstants.Rollup.SUM + " = "
+				+ RapidSmsDBConstants.Rollup.SUM + " + ?, " + RapidSmsDBConstants.Rollup.MIN + " = min("
+				+ RapidSmsDBConstants.Rollup.MIN + ", ?), " + RapidSmsDBConstants.Rollup.MAX + " = max("
+				+ RapidSmsDBConstants.Rollup.MAX + ", ?) where " + RapidSmsDBConstants.Rollup.FORM + " = ? and "
+				+ RapidSmsDBConstants.Rollup.FIELD + " = ? and " + RapidSmsDBConstants.Rollup.BUCKET + " = ?");
+		try {
+			for (RollupBucket b : buckets) {
+				create.bindLong(1, b.getFormId());
+				create.bindString(2, b.getField());
+				create.bindLong(3, b.getBucket());
+				create.bindDouble(4, b.getMin());
+				create.bindDouble(5, b.getMax());
+				create.execute();
+
+				add.bindLong(1, b.getCount());
+				add.bindDouble(2, b.getSum());
+				add.bindDouble(3, b.getMin());
+				add.bindDouble(4, b.getMax());
+				add.bindLong(5, b.getFormId());
+				add.bindString(6, b.getField());
+				add.bindLong(7, b.getBucket());
+				add.execute();
+			}
+		} finally {
+			create.close();
+			add.close();
+		}
+	}
+
+	/**
+	 * Rebuild every rollup from the message and form data tables.
+	 * 
+	 * @param db
+	 */
+	public static void rebuildAll(SQLiteDatabase db) {
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.HOURLY_TABLE);
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.DAILY_TABLE);
+		RollupAccumulator rollups = new RollupAccumulator(TimeZone.getDefault());
+		rebuildMessages(db, rollups);
+		rebuildForms(db, null, rollups);
+	}
+
+	/**
+	 * Drop every form's rollups, keeping the message counts. For when the form
+	 * data tables themselves are dropped.
+	 * 
+	 * @param db
+	 */
+	public static void clearForms(SQLiteDatabase db) {
+		String[] args = new String[] { String.valueOf(RollupAccumulator.ALL_MESSAGES) };
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.HOURLY_TABLE + " where "
+				+ RapidSmsDBConstants.Rollup.FORM + " != ?", args);
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.DAILY_TABLE + " where "
+				+ RapidSmsDBConstants.Rollup.FORM + " != ?", args);
+	}
+
+	/**
+	 * Rebuild the rollups of one form from its form data table.
+	 * 
+	 * @param db
+	 * @param formId
+	 */
+	public static void rebuildForm(SQLiteDatabase db, int formId) {
+		String[] args = new String[] { String.valueOf(formId) };
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.HOURLY_TABLE + " where "
+				+ RapidSmsDBConstants.Rollup.FORM + " = ?", args);
+		db.execSQL("delete from " + RapidSmsDBConstants.Rollup.DAILY_TABLE + " where "
+				+ RapidSmsDBConstants.Rollup.FORM + " = ?", args);
+		rebuildForms(db, Integer.valueOf(formId), new RollupAccumulator(TimeZone.getDefault()));
+	}
+
+	/**
+	 * Walk the message table in _id order a batch at a time, adding each
+	 * batch's rollups as it goes.
+	 */
+	private static void rebuildMessages(SQLiteDatabase db, RollupAccumulator rollups) {
+		long lastId = Long.MIN_VALUE;
+		boolean more = true;
+		while (more) {
+			Cursor batch = db.rawQuery("select _id, " + RapidSmsDBConstants.Message.TIME_MILLIS + " from "
+					+ RapidSmsDBConstants.Message.TABLE + " where _id > " + lastId + " order by _id limit "
+					+ REBUILD_BATCH_SIZE, null);
+			try {
+				more = batch.getCount() == REBUILD_BATCH_SIZE;
+				while (batch.moveToNext()) {
+					lastId = batch.getLong(0);
+					if (!batch.isNull(1)) {
+						rollups.addMessage(batch.getLong(1));
+					}
+				}
+			} finally {
+				batch.close();
+			}
+			write(db, rollups);
+			rollups.clear();
+		}
+	}
+
+	/**
+	 * Rebuild the forms' rollups. The form definitions are read straight from
+	 * the tables, since this runs on upgrade before ModelTranslator can load
+	 * them.
+	 * 
+	 * @param formId
+	 *            the one form to rebuild, or null for all of them
+	 */
+	private static void rebuildForms(SQLiteDatabase db, Integer formId, RollupAccumulator rollups) {
+		StringBuilder query = new StringBuilder();
+		query.append("select form._id, form.prefix, field.name, fieldtype.datatype from ");
+		query.append(RapidSmsDBConstants.Form.TABLE).append(" form left join ");
+		query.append(RapidSmsDBConstants.Field.TABLE).append(" field on field.form_id = form._id left join ");
+		query.append(RapidSmsDBConstants.FieldType.TABLE).append(" fieldtype on field.fieldtype_id = fieldtype._id");
+		if (formId != null) {
+			query.append(" where form._id = ").append(formId.intValue());
+		}
+		query.append(" order by form._id, field.sequence");
+
+		Cursor definitions = db.rawQuery(query.toString(), null);
+		try {
+			boolean more = definitions.moveToFirst();
+			while (more) {
+				int id = definitions.getInt(0);
+				String prefix = definitions.getString(1);
+				ArrayList<String> names = new ArrayList<String>();
+				ArrayList<String> types = new ArrayList<String>();
+				do {
+					if (!definitions.isNull(2)) {
+						names.add(definitions.getString(2));
+						types.add(definitions.getString(3));
+					}
+					more = definitions.moveToNext();
+				} while (more && definitions.getInt(0) == id);
+				rebuildForm(db, id, prefix, names, types, rollups);
+			}
+		} finally {
+			definitions.close();
+		}
+	}
+
+	private static void rebuildForm(SQLiteDatabase db, int formId, String prefix, ArrayList<String> names,
+			ArrayList<String> types, RollupAccumulator rollups) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + prefix;
+		Cursor exists = db.rawQuery("select name from sqlite_master where type = 'table' and name = ?",
+									new String[] { table });
+		try {
+			if (exists.getCount() == 0) {
+				// the form's table hasn't been generated
+				return;
+			}
+		} finally {
+			exists.close();
+		}
+
+		StringBuilder columns = new StringBuilder();
+		for (int i = 0; i < names.size(); i++) {
+			columns.append(", ").append(table).append(".");
+			columns.append(RapidSmsDBConstants.FormData.COLUMN_PREFIX).append(names.get(i));
+		}
+		int fieldCount = names.size();
+
+		long lastId = Long.MIN_VALUE;
+		boolean more = true;
+		while (more) {
+			Cursor batch = db.rawQuery("select " + table + "._id, rapidandroid_message.time_millis" + columns
+					+ " from " + table + " join rapidandroid_message on (" + table
+					+ ".message_id = rapidandroid_message._id) where " + table + "._id > " + lastId + " order by "
+					+ table + "._id limit " + REBUILD_BATCH_SIZE, null);
+			try {
+				more = batch.getCount() == REBUILD_BATCH_SIZE;
+				while (batch.moveToNext()) {
+					lastId = batch.getLong(0);
+					if (batch.isNull(1)) {
+						continue;
+					}
+					long millis = batch.getLong(1);
+					rollups.addCount(formId, millis);
+					for (int i = 0; i < fieldCount; i++) {
+						rollups.addField(formId, names.get(i), types.get(i), millis, batch.getString(i + 2));
+					}
+				}
+			} finally {
+				batch.close();
+			}
+			write(db, rollups);
+			rollups.clear();
+		}
+	}
+}
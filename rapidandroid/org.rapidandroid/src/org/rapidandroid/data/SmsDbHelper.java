@@ -18,13 +18,18 @@
 package org.rapidandroid.data;
 
 import java.io.File;
+import java.text.ParseException;
+import java.util.ArrayList;
 
 import org.rapidandroid.content.translation.*;
+import org.rapidsms.java.core.TimestampCodec;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.util.Log;
 
@@ -55,8 +60,36 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 	// private static final String DATABASE_NAME = "rapidandroid.db";
 	// private static final int DATABASE_VERSION = 1; //version 1: initial
 	// version 1/22/2009
-	private static final int DATABASE_VERSION = 2; // 2/6/2007, add receive_time
-													// column to message table
+	// private static final int DATABASE_VERSION = 2; // 2/6/2007, add
+	// receive_time column to message table
+	// private static final int DATABASE_VERSION = 3; // 10/17/2026, indexes
+	// on message time/monitor and formdata message_id
+	// private static final int DATABASE_VERSION = 4; // 10/17/2026, integer
+	// time_millis and receive_time_millis columns on message
+	// private static final int DATABASE_VERSION = 5; // 10/17/2026, hourly
+	// and daily rollup tables for the charts
+	private static final int DATABASE_VERSION = 6; // 10/17/2026, export
+													// watermarks
+
+	/**
+	 * Serves every "ORDER BY time_millis" and time_millis range on the message
+	 * table. The rowid rides along in every sqlite index, so joins from here
+	 * to formdata by _id don't touch the table either.
+	 */
+	public static final String INDEX_MESSAGE_TIME = "rapidandroid_message_time_millis";
+	/**
+	 * A monitor's messages in time order.
+	 */
+	public static final String INDEX_MESSAGE_MONITOR_TIME = "rapidandroid_message_monitor_time_millis";
+
+	/**
+	 * Rows per batch when filling in the integer time columns on upgrade.
+	 */
+	private static final int BACKFILL_BATCH_SIZE = 500;
+	/**
+	 * Suffix of the per form index on formdata_&lt;prefix&gt;.
+	 */
+	public static final String INDEX_FORMDATA_MESSAGE_SUFFIX = "_message_id";
 
 	// Sections lifted from the originating class SqliteOpenHelper.java
 	private SQLiteDatabase mDatabase = null;
@@ -102,7 +135,8 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 				+ "\"monitor_id\" integer NULL REFERENCES \"rapidandroid_monitor\" (\"id\"),"
 				+ "\"time\" datetime NOT NULL," + "\"message\" varchar(160) NOT NULL,"
 				+ "\"is_outgoing\" bool NOT NULL," + "\"is_virtual\" bool NOT NULL,"
-				+ "\"receive_time\" datetime NULL);";
+				+ "\"receive_time\" datetime NULL," + "\"time_millis\" integer NULL,"
+				+ "\"receive_time_millis\" integer NULL);";
 
 		String mCreateTable_Monitor = "CREATE TABLE \"rapidandroid_monitor\" ("
 				+ "\"_id\" integer NOT NULL PRIMARY KEY," + "\"first_name\" varchar(50) NOT NULL,"
@@ -138,6 +172,130 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 		db.execSQL(mCreateTable_Form);
 		db.execSQL(mCreateTable_FieldType);
 		db.execSQL(mCreateTable_Field);
+		createMessageIndexes(db);
+		RollupTables.createTables(db);
+		ExportWatermarks.createTable(db);
+	}
+
+	/**
+	 * Create the indexes on the message table if they aren't there already.
+	 * 
+	 * @param db
+	 */
+	static void createMessageIndexes(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS \"" + INDEX_MESSAGE_TIME
+				+ "\" ON \"rapidandroid_message\" (\"time_millis\");");
+		db.execSQL("CREATE INDEX IF NOT EXISTS \"" + INDEX_MESSAGE_MONITOR_TIME
+				+ "\" ON \"rapidandroid_message\" (\"monitor_id\", \"time_millis\");");
+	}
+
+	/**
+	 * Convert a value from one of the message table's datetime string columns
+	 * to epoch millis.
+	 * 
+	 * @param value
+	 *            a TimestampCodec.SQL formatted time. The content provider
+	 *            used to default a missing time to a bare millis value, so
+	 *            plain numbers are taken as millis.
+	 * @return the millis, or null if the value is empty or unparseable
+	 */
+	public static Long parseMessageTime(String value) {
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		try {
+			return Long.valueOf(TimestampCodec.SQL.parseMillis(value));
+		} catch (ParseException e) {
+			try {
+				return Long.valueOf(value);
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Fill in time_millis and receive_time_millis from the datetime strings
+	 * for every message that doesn't have them yet. The table is walked in _id
+	 * order a batch at a time, so the cursor never holds more than one batch.
+	 * A receive_time that's missing takes the message time, the same as
+	 * MessageTranslator does when it reads an old message.
+	 * 
+	 * @param db
+	 */
+	static void backfillMessageMillis(SQLiteDatabase db) {
+		SQLiteStatement update = db.compileStatement("update rapidandroid_message set time_millis = ?, "
+				+ "receive_time_millis = ? where _id = ?");
+		try {
+			long lastId = Long.MIN_VALUE;
+			boolean more = true;
+			while (more) {
+				Cursor batch = db.rawQuery("select _id, time, receive_time from rapidandroid_message "
+						+ "where time_millis is null and _id > " + lastId + " order by _id limit "
+						+ BACKFILL_BATCH_SIZE, null);
+				try {
+					more = batch.getCount() == BACKFILL_BATCH_SIZE;
+					while (batch.moveToNext()) {
+						lastId = batch.getLong(0);
+						Long time = parseMessageTime(batch.getString(1));
+						if (time == null) {
+							Log.w(TAG, "Unparseable time on message " + lastId + ": " + batch.getString(1));
+							continue;
+						}
+						Long receiveTime = parseMessageTime(batch.getString(2));
+						update.bindLong(1, time.longValue());
+						update.bindLong(2, receiveTime == null ? time.longValue() : receiveTime.longValue());
+						update.bindLong(3, lastId);
+						update.execute();
+					}
+				} finally {
+					batch.close();
+				}
+			}
+		} finally {
+			update.close();
+		}
+	}
+
+	/**
+	 * Create the index for a form's data table on message_id, the key it's
+	 * joined to rapidandroid_message by. Only the key, so inserting a row
+	 * costs one small index entry rather than a second copy of the row. The
+	 * chart queries range over INDEX_MESSAGE_TIME, which covers the message
+	 * side, and come here for one field of the rows in range, or read the
+	 * rollup tables, which their primary key covers.
+	 * 
+	 * @param db
+	 * @param prefix
+	 *            the form prefix
+	 */
+	public static void createFormDataIndex(SQLiteDatabase db, String prefix) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + prefix;
+		StringBuilder sb = new StringBuilder();
+		sb.append("CREATE INDEX IF NOT EXISTS \"").append(table).append(INDEX_FORMDATA_MESSAGE_SUFFIX);
+		sb.append("\" ON \"").append(table).append("\" (\"").append(RapidSmsDBConstants.FormData.MESSAGE).append("\");");
+		db.execSQL(sb.toString());
+	}
+
+	/**
+	 * @return the prefixes of every form data table that's been generated
+	 */
+	private static ArrayList<String> getFormDataPrefixes(SQLiteDatabase db) {
+		ArrayList<String> prefixes = new ArrayList<String>();
+		Cursor tables = db.rawQuery("select name from sqlite_master where type = 'table' and name like '"
+				+ RapidSmsDBConstants.FormData.TABLE_PREFIX + "%'", null);
+		try {
+			int prefixStart = RapidSmsDBConstants.FormData.TABLE_PREFIX.length();
+			while (tables.moveToNext()) {
+				String table = tables.getString(0);
+				if (table.startsWith(RapidSmsDBConstants.FormData.TABLE_PREFIX)) {
+					prefixes.add(table.substring(prefixStart));
+				}
+			}
+		} finally {
+			tables.close();
+		}
+		return prefixes;
 	}
 
 	/*
@@ -263,12 +421,48 @@ public class SmsDbHelper extends SQLiteOpenHelper {
 		// db.execSQL("DROP TABLE IF EXISTS notes");
 		// onCreate(db);
 
-		if (oldVersion == 1 && newVersion == 2) {
+		// each step takes the schema up one version, so a database any number
+		// of versions behind runs the steps it's missing in order
+		if (oldVersion < 2) {
 			// version 1 to 2 introduced the receive_time for the message
 			String messageAlterSql = "alter table rapidandroid_message add column receive_time datetime NULL";
 			db.execSQL(messageAlterSql);
 		}
 
+		if (oldVersion < 3) {
+			// version 2 to 3 indexes every form data table that's been
+			// generated so far. It also indexed the message time strings, but
+			// the version 4 step indexes the integer times instead.
+			ArrayList<String> prefixes = getFormDataPrefixes(db);
+			for (int i = 0; i < prefixes.size(); i++) {
+				createFormDataIndex(db, prefixes.get(i));
+			}
+		}
+
+		if (oldVersion < 4) {
+			// version 3 to 4 keeps message times as epoch millis alongside the
+			// datetime strings, for range scans and bucketing without parsing
+			db.execSQL("alter table rapidandroid_message add column time_millis integer NULL");
+			db.execSQL("alter table rapidandroid_message add column receive_time_millis integer NULL");
+			backfillMessageMillis(db);
+			db.execSQL("DROP INDEX IF EXISTS \"rapidandroid_message_time\"");
+			db.execSQL("DROP INDEX IF EXISTS \"rapidandroid_message_monitor_time\"");
+			createMessageIndexes(db);
+		}
+
+		if (oldVersion < 5) {
+			// version 4 to 5 adds the chart rollups, filled in from the
+			// history that's already there
+			RollupTables.createTables(db);
+			RollupTables.rebuildAll(db);
+		}
+
+		if (oldVersion < 6) {
+			// version 5 to 6 adds the export watermarks. Nothing has been
+			// delta exported yet, so the first delta export sends everything.
+			ExportWatermarks.createTable(db);
+		}
+
 	}
 
 }
\ No newline at end of file
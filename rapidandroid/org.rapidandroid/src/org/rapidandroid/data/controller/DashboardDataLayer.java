@@ -17,9 +17,13 @@
 
 package org.rapidandroid.data.controller;
 
+import java.util.HashMap;
+
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
 import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.model.Message;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -27,64 +31,257 @@ import android.database.sqlite.SQLiteDatabase;
 /**
  * @author Daniel Myung dmyung@dimagi.com
  * @created Feb 4, 2009 Summary:
+ * 
+ *          The dashboard's lists are read a page at a time, newest first, by
+ *          keyset on (time_millis, _id) of the message: each page starts right
+ *          after the last row of the one before. Rows stored later are read
+ *          by the _ids the store publishes, since a message's time is when it
+ *          was sent and a late one can belong anywhere in the list. The
+ *          time_millis index carries the rowid, so every page is a seek into
+ *          the index and costs the same however many messages there are,
+ *          unlike a LIMIT re-read from the top.
+ * 
+ *          Every query runs on one database handle, opened the first time
+ *          it's needed and kept.
  */
 public class DashboardDataLayer {
 
+	/**
+	 * Where a row sits in the dashboard's order.
+	 */
+	public static final class Key implements Comparable<Key> {
+		private final long mTime;
+		private final long mId;
+
+		public Key(long time, long id) {
+			mTime = time;
+			mId = id;
+		}
+
+		/**
+		 * @return the message's time_millis
+		 */
+		public long getTime() {
+			return mTime;
+		}
+
+		/**
+		 * @return the message's _id, the tie break between messages with the
+		 *         same time
+		 */
+		public long getId() {
+			return mId;
+		}
+
+		/**
+		 * By time then _id, so the dashboard lists the greatest first.
+		 */
+		public int compareTo(Key other) {
+			if (mTime != other.mTime) {
+				return mTime < other.mTime ? -1 : 1;
+			}
+			return mId < other.mId ? -1 : (mId == other.mId ? 0 : 1);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && compareTo((Key) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (mTime ^ (mTime >>> 32)) * 31 + (int) (mId ^ (mId >>> 32));
+		}
+	}
+
+	private static final String MESSAGE_TIME = "rapidandroid_message.time_millis";
+	private static final String MESSAGE_ID = "rapidandroid_message._id";
+
 	private static SmsDbHelper mDbHelper;
-	private static SQLiteDatabase mDb;
 
-	public synchronized static Cursor getCursorForFormData(Context context, Form f, int count) {
-		if (mDb != null) {
-			if (mDb.isOpen()) {
-				mDb.close();
+	private synchronized static SQLiteDatabase getDatabase(Context context) {
+		if (mDbHelper == null) {
+			// the application's context, this one outlives any activity
+			mDbHelper = new SmsDbHelper(context.getApplicationContext());
+		}
+		// the helper hands back the database it already has open
+		return mDbHelper.getReadableDatabase();
+	}
+
+	/**
+	 * A page of a form's data joined to its messages and their monitors,
+	 * newest first.
+	 * 
+	 * @param after
+	 *            the last row of the page before, null for the first page
+	 * @param count
+	 *            the most rows in the page
+	 */
+	public static Cursor getCursorForFormData(Context context, Form f, Key after, int count) {
+		StringBuilder query = getFormDataQuery(f);
+		if (after != null) {
+			appendBefore(query, after);
+		}
+		appendOrder(query);
+		query.append(" LIMIT ").append(count);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
+
+	/**
+	 * A form's rows from the newest down to last, newest first.
+	 */
+	public static Cursor getCursorForFormDataThrough(Context context, Form f, Key last) {
+		StringBuilder query = getFormDataQuery(f);
+		appendThrough(query, last);
+		appendOrder(query);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
+
+	/**
+	 * A form's rows with the given _ids, in the same columns and order as its
+	 * pages.
+	 */
+	public static Cursor getCursorForFormDataRows(Context context, Form f, long[] ids) {
+		StringBuilder query = getFormDataQuery(f);
+		query.append(" WHERE ").append(RapidSmsDBConstants.FormData.TABLE_PREFIX).append(f.getPrefix());
+		appendIn(query.append("._id"), ids);
+		appendOrder(query);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
+
+	/**
+	 * @return the key of every row of a form data cursor, in its order. A row
+	 *         whose message is gone has none.
+	 */
+	public static Key[] getFormDataKeys(Context context, Cursor c) {
+		Key[] keys = new Key[c.getCount()];
+		if (keys.length == 0) {
+			return keys;
+		}
+		long[] ids = new long[keys.length];
+		for (int i = 0; i < ids.length; i++) {
+			c.moveToPosition(i);
+			ids[i] = c.getLong(Message.COL_PARSED_MESSAGE_ID);
+		}
+		// the time isn't one of the joined columns, the views count those. One
+		// lookup for the whole cursor, by primary key.
+		StringBuilder query = new StringBuilder("select _id, time_millis from rapidandroid_message WHERE _id");
+		appendIn(query, ids);
+		Cursor times = getDatabase(context).rawQuery(query.toString(), null);
+		HashMap<Long, Long> byId = new HashMap<Long, Long>();
+		try {
+			while (times.moveToNext()) {
+				byId.put(Long.valueOf(times.getLong(0)), Long.valueOf(times.getLong(1)));
+			}
+		} finally {
+			times.close();
+		}
+		for (int i = 0; i < ids.length; i++) {
+			Long time = byId.get(Long.valueOf(ids[i]));
+			if (time != null) {
+				keys[i] = new Key(time.longValue(), ids[i]);
 			}
-			mDb = null;
 		}
+		return keys;
+	}
 
-		if (mDbHelper != null) {
-			mDbHelper.close();
-			mDbHelper = null;
+	/**
+	 * A page of the messages, newest first.
+	 * 
+	 * @param after
+	 *            the last row of the page before, null for the first page
+	 * @param count
+	 *            the most rows in the page
+	 */
+	public static Cursor getCursorForRawMessages(Context context, Key after, int count) {
+		StringBuilder query = new StringBuilder("select * from rapidandroid_message");
+		if (after != null) {
+			appendBefore(query, after);
 		}
+		appendOrder(query);
+		query.append(" LIMIT ").append(count);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
 
-		mDbHelper = new SmsDbHelper(context);
-		mDb = mDbHelper.getReadableDatabase();
+	/**
+	 * The messages from the newest down to last, newest first.
+	 */
+	public static Cursor getCursorForRawMessagesThrough(Context context, Key last) {
+		StringBuilder query = new StringBuilder("select * from rapidandroid_message");
+		appendThrough(query, last);
+		appendOrder(query);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
+
+	/**
+	 * The messages with the given _ids, in the same columns and order as the
+	 * pages.
+	 */
+	public static Cursor getCursorForMessageRows(Context context, long[] ids) {
+		StringBuilder query = new StringBuilder("select * from rapidandroid_message WHERE ").append(MESSAGE_ID);
+		appendIn(query, ids);
+		appendOrder(query);
+		return getDatabase(context).rawQuery(query.toString(), null);
+	}
+
+	/**
+	 * @return the key of the message row c is on
+	 */
+	public static Key getMessageKey(Cursor c) {
+		return new Key(c.getLong(Message.COL_TIME_MILLIS), c.getLong(Message.COL_ID));
+	}
+
+	private static StringBuilder getFormDataQuery(Form f) {
+		String table = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix();
 		StringBuilder query = new StringBuilder();
-		query.append("select " + RapidSmsDBConstants.FormData.TABLE_PREFIX);
-		query.append(f.getPrefix()
-				+ ".*, rapidandroid_message.message, rapidandroid_message.time, rapidandroid_monitor.phone ");
-		query.append(" from " + RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
-		query.append(" join rapidandroid_message on (");
-		query.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
-		query.append(".message_id = rapidandroid_message._id");
+		query.append("select ").append(table);
+		query.append(".*, rapidandroid_message.message, rapidandroid_message.time, rapidandroid_monitor.phone ");
+		// a cross join keeps the message table outside, so the rows are read
+		// in order off its time index and the first page stops at count
+		// instead of sorting the whole form
+		query.append(" from rapidandroid_message cross join ").append(table).append(" on (");
+		query.append(table).append(".message_id = rapidandroid_message._id");
 		query.append(") ");
 		query.append(" join rapidandroid_monitor on (rapidandroid_message.monitor_id = rapidandroid_monitor._id) ");
-		query.append(" ORDER BY rapidandroid_message.time DESC LIMIT ").append(count);
+		return query;
+	}
 
-		Cursor cr = mDb.rawQuery(query.toString(), null);
+	/**
+	 * Restrict to the rows after key in the descending order. The bare range
+	 * on the time is what seeks the index, the rest only sorts out the rows
+	 * at key's time.
+	 */
+	private static void appendBefore(StringBuilder query, Key key) {
+		query.append(" WHERE ").append(MESSAGE_TIME).append(" <= ").append(key.getTime());
+		query.append(" AND (").append(MESSAGE_TIME).append(" < ").append(key.getTime());
+		query.append(" OR ").append(MESSAGE_ID).append(" < ").append(key.getId()).append(")");
+	}
 
-		//
-		return cr;
+	/**
+	 * Restrict to key and the rows before it in the descending order.
+	 */
+	private static void appendThrough(StringBuilder query, Key key) {
+		query.append(" WHERE ").append(MESSAGE_TIME).append(" >= ").append(key.getTime());
+		query.append(" AND (").append(MESSAGE_TIME).append(" > ").append(key.getTime());
+		query.append(" OR ").append(MESSAGE_ID).append(" >= ").append(key.getId()).append(")");
 	}
 
-	public synchronized static Cursor getCursorForRawMessages(Context context, int count) {
-		if (mDb != null) {
-			if (mDb.isOpen()) {
-				mDb.close();
+	/**
+	 * Append " IN (ids)" to the column already in query.
+	 */
+	private static void appendIn(StringBuilder query, long[] ids) {
+		query.append(" IN (");
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) {
+				query.append(',');
 			}
-			mDb = null;
+			query.append(ids[i]);
 		}
+		query.append(")");
+	}
 
-		if (mDbHelper != null) {
-			mDbHelper.close();
-			mDbHelper = null;
-		}
-		mDbHelper = new SmsDbHelper(context);
-		mDb = mDbHelper.getReadableDatabase();
-		StringBuilder sb = new StringBuilder();
-		sb.append("select * from rapidandroid_message ORDER BY time DESC LIMIT ").append(count);
-		Cursor cr = mDb.rawQuery(sb.toString(), null);
-
-		return cr;
+	private static void appendOrder(StringBuilder query) {
+		query.append(" ORDER BY ").append(MESSAGE_TIME).append(" DESC, ").append(MESSAGE_ID).append(" DESC");
 	}
 
 }
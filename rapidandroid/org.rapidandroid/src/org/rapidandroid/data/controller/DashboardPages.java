@@ -0,0 +1,645 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidandroid.data.controller;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.rapidandroid.data.controller.DashboardDataLayer.Key;
+import org.rapidsms.java.core.model.Form;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+
+/**
+ * The rows of one dashboard list, read a page at a time from DashboardDataLayer
+ * and kept as the cursors they came in. The list shows them through
+ * newCursor(), a merge of the pages that's rebuilt whenever rows are added,
+ * without requerying the ones already there. Each page is decoded into
+ * DashboardRows as it's read, and the adapters bind those instead of the
+ * cursor's columns.
+ * 
+ * Rows stored after the list was read are added by _id with loadRows(), each
+ * where it sorts. The list is kept as slices of the cursors read, and a row
+ * that lands between two rows of a page splits that page's slice in two. Once
+ * merges have left more than MAX_SLICES slices the whole list is read again as
+ * one cursor, so a steady stream of rows doesn't pile up open cursors, and rows
+ * past the limit are dropped off the end.
+ * 
+ * loadNextPage() and loadRows() query, run them off the UI thread.
+ */
+public class DashboardPages {
+
+	/**
+	 * no rows were added
+	 */
+	public static final int[] NO_POSITIONS = new int[0];
+
+	/**
+	 * A merge of the slices that leaves the cursors open when it's closed,
+	 * the adapters close the cursor they're given whenever it's swapped for
+	 * the next one. Carries the decoded rows, in the same order.
+	 */
+	private static class PagesCursor extends MergeCursor {
+		final DashboardRow[] rows;
+
+		PagesCursor(Cursor[] slices, DashboardRow[] rows) {
+			super(slices);
+			this.rows = rows;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void deactivate() {
+		}
+
+		@Override
+		public boolean requery() {
+			return true;
+		}
+	}
+
+	/**
+	 * count rows of a cursor starting at from, seen as a cursor of their own.
+	 * The cursor belongs to the pages, this never closes it.
+	 */
+	private static class SliceCursor extends CursorWrapper {
+		private final Cursor mCursor;
+		private final int mFrom;
+		private final int mCount;
+		private int mPosition = -1;
+
+		SliceCursor(Cursor cursor, int from, int count) {
+			super(cursor);
+			mCursor = cursor;
+			mFrom = from;
+			mCount = count;
+		}
+
+		@Override
+		public int getCount() {
+			return mCount;
+		}
+
+		@Override
+		public int getPosition() {
+			return mPosition;
+		}
+
+		@Override
+		public boolean moveToPosition(int position) {
+			if (position < 0) {
+				mPosition = -1;
+				return false;
+			}
+			if (position >= mCount) {
+				mPosition = mCount;
+				return false;
+			}
+			// always moved, other slices share the cursor
+			mPosition = position;
+			return mCursor.moveToPosition(mFrom + position);
+		}
+
+		@Override
+		public boolean move(int offset) {
+			return moveToPosition(mPosition + offset);
+		}
+
+		@Override
+		public boolean moveToFirst() {
+			return moveToPosition(0);
+		}
+
+		@Override
+		public boolean moveToLast() {
+			return moveToPosition(mCount - 1);
+		}
+
+		@Override
+		public boolean moveToNext() {
+			return moveToPosition(mPosition + 1);
+		}
+
+		@Override
+		public boolean moveToPrevious() {
+			return moveToPosition(mPosition - 1);
+		}
+
+		@Override
+		public boolean isFirst() {
+			return mCount > 0 && mPosition == 0;
+		}
+
+		@Override
+		public boolean isLast() {
+			return mCount > 0 && mPosition == mCount - 1;
+		}
+
+		@Override
+		public boolean isBeforeFirst() {
+			return mCount == 0 || mPosition == -1;
+		}
+
+		@Override
+		public boolean isAfterLast() {
+			return mCount == 0 || mPosition == mCount;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void deactivate() {
+		}
+
+		@Override
+		public boolean requery() {
+			return true;
+		}
+	}
+
+	/**
+	 * count consecutive rows of one cursor, from from. The keys and rows are
+	 * the whole cursor's.
+	 */
+	private static final class Slice {
+		final Cursor cursor;
+		final Key[] keys;
+		final DashboardRow[] rows;
+		final int from;
+		final int count;
+
+		Slice(Cursor cursor, Key[] keys, DashboardRow[] rows, int from, int count) {
+			this.cursor = cursor;
+			this.keys = keys;
+			this.rows = rows;
+			this.from = from;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * past this many slices, loadRows() reads the list again as one cursor
+	 */
+	private static final int MAX_SLICES = 16;
+
+	private final Context mContext;
+	/**
+	 * the form, null for the raw messages
+	 */
+	private final Form mForm;
+	private final int mPageSize;
+	private final int mLimit;
+
+	/**
+	 * the cursors the slices are over
+	 */
+	private final ArrayList<Cursor> mCursors = new ArrayList<Cursor>();
+	/**
+	 * cursors the slices no longer use, but the cursor the list is showing
+	 * may. Those retired before the last newCursor() aren't in the one it
+	 * returned, and are closed by the next.
+	 */
+	private ArrayList<Cursor> mRetired = new ArrayList<Cursor>();
+	private ArrayList<Cursor> mRetiredShown = new ArrayList<Cursor>();
+	/**
+	 * the list, newest first
+	 */
+	private final ArrayList<Slice> mSlices = new ArrayList<Slice>();
+	/**
+	 * read by the UI thread without waiting on a load
+	 */
+	private volatile int mCount;
+	private volatile boolean mExhausted;
+	/**
+	 * set once a page came back short, there's nothing older left
+	 */
+	private boolean mReadAll;
+	/**
+	 * the last row read by loadNextPage(), where the next page starts
+	 */
+	private Key mTail;
+	private boolean mClosed;
+
+	/**
+	 * @param form
+	 *            the form whose data is listed, null to list the messages
+	 * @param pageSize
+	 *            the rows read at a time
+	 * @param limit
+	 *            the most rows listed, the oldest are dropped past it
+	 */
+	public DashboardPages(Context context, Form form, int pageSize, int limit) {
+		mContext = context;
+		mForm = form;
+		mPageSize = pageSize;
+		mLimit = limit;
+	}
+
+	/**
+	 * Read the next page after the last row read.
+	 * 
+	 * @return false if there was nothing more to read
+	 */
+	public synchronized boolean loadNextPage() {
+		if (mClosed || mExhausted) {
+			return false;
+		}
+		int count = Math.min(mPageSize, mLimit - mCount);
+		Cursor page = mForm != null ? DashboardDataLayer.getCursorForFormData(mContext, mForm, mTail, count)
+				: DashboardDataLayer.getCursorForRawMessages(mContext, mTail, count);
+		// the query runs here, not on the UI thread when the list first asks
+		int rows = page.getCount();
+		if (rows < count) {
+			mReadAll = true;
+		}
+		if (rows < count || mCount + rows >= mLimit) {
+			mExhausted = true;
+		}
+		if (rows == 0 && !mSlices.isEmpty()) {
+			page.close();
+			return false;
+		}
+		// an empty first page stays, the list may still be showing it
+		Key[] keys = readKeys(page);
+		fillKeys(keys, mTail);
+		mCursors.add(page);
+		mSlices.add(new Slice(page, keys, decode(page), 0, rows));
+		mCount += rows;
+		if (rows > 0) {
+			mTail = keys[rows - 1];
+		}
+		return rows > 0;
+	}
+
+	/**
+	 * A row whose message went after its cursor was read has no key. It sorts
+	 * with the row before it, or with before if it's the first.
+	 */
+	private static void fillKeys(Key[] keys, Key before) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == null) {
+				keys[i] = i > 0 ? keys[i - 1] : (before != null ? before : new Key(Long.MAX_VALUE, Long.MAX_VALUE));
+			}
+		}
+	}
+
+	/**
+	 * Read the rows with the given _ids, form data rows of the form or
+	 * messages, and put each where it sorts. Rows already listed aren't
+	 * added again, nor are rows older than the last one read while more pages
+	 * are left, loadNextPage() reads those.
+	 * 
+	 * The list may be read again as one cursor after, and the oldest rows
+	 * dropped to keep it to the limit.
+	 * 
+	 * @return the positions of the rows added in the new list, in order
+	 */
+	public synchronized int[] loadRows(long[] ids) {
+		if (mClosed || ids.length == 0) {
+			return NO_POSITIONS;
+		}
+		Cursor cursor = mForm != null ? DashboardDataLayer.getCursorForFormDataRows(mContext, mForm, ids)
+				: DashboardDataLayer.getCursorForMessageRows(mContext, ids);
+		int rows = cursor.getCount();
+		Key[] keys = readKeys(cursor);
+		DashboardRow[] decoded = decode(cursor);
+		int[] positions = new int[rows];
+		int added = 0;
+		for (int i = 0; i < rows; i++) {
+			Key key = keys[i];
+			if (key == null) {
+				// its message is gone
+				continue;
+			}
+			if (!mReadAll && (mTail == null || key.compareTo(mTail) < 0)) {
+				continue;
+			}
+			int position = findPosition(key);
+			if (position < 0) {
+				continue;
+			}
+			insert(new Slice(cursor, keys, decoded, i, 1), position);
+			// the rows come newest first, so a later one never lands ahead of
+			// an earlier one and the positions stay as they are
+			positions[added++] = position;
+		}
+		if (added == 0) {
+			cursor.close();
+			return NO_POSITIONS;
+		}
+		mCursors.add(cursor);
+		if (mSlices.size() > MAX_SLICES) {
+			HashSet<Key> listed = getListedKeys();
+			for (int i = 0; i < added; i++) {
+				listed.remove(getKey(positions[i]));
+			}
+			positions = compact(listed);
+			added = positions.length;
+		}
+		if (mCount > mLimit) {
+			trim();
+			while (added > 0 && positions[added - 1] >= mCount) {
+				added--;
+			}
+		}
+		int[] inserted = new int[added];
+		System.arraycopy(positions, 0, inserted, 0, added);
+		return inserted;
+	}
+
+	/**
+	 * Read every row listed again, newest down to the last one, as one cursor.
+	 * Rows stored since that haven't been merged come along.
+	 * 
+	 * @param listed
+	 *            the keys of the rows listed before the merge
+	 * @return the positions of the rows that weren't listed, in order
+	 */
+	private int[] compact(HashSet<Key> listed) {
+		Key last = getKey(mCount - 1);
+		Cursor cursor = mForm != null ? DashboardDataLayer.getCursorForFormDataThrough(mContext, mForm, last)
+				: DashboardDataLayer.getCursorForRawMessagesThrough(mContext, last);
+		int rows = cursor.getCount();
+		Key[] keys = readKeys(cursor);
+		fillKeys(keys, null);
+		DashboardRow[] decoded = decode(cursor);
+		mRetired.addAll(mCursors);
+		mCursors.clear();
+		mSlices.clear();
+		mCursors.add(cursor);
+		mSlices.add(new Slice(cursor, keys, decoded, 0, rows));
+		mCount = rows;
+		int[] positions = new int[rows];
+		int added = 0;
+		for (int i = 0; i < rows; i++) {
+			if (!listed.contains(keys[i])) {
+				positions[added++] = i;
+			}
+		}
+		int[] unlisted = new int[added];
+		System.arraycopy(positions, 0, unlisted, 0, added);
+		return unlisted;
+	}
+
+	/**
+	 * Drop the oldest rows past the limit. Nothing older is read after.
+	 */
+	private void trim() {
+		int excess = mCount - mLimit;
+		while (excess > 0) {
+			int index = mSlices.size() - 1;
+			Slice slice = mSlices.get(index);
+			if (slice.count <= excess) {
+				mSlices.remove(index);
+				excess -= slice.count;
+			} else {
+				mSlices.set(index, new Slice(slice.cursor, slice.keys, slice.rows, slice.from, slice.count - excess));
+				excess = 0;
+			}
+		}
+		mCount = mLimit;
+		mTail = getKey(mCount - 1);
+		mReadAll = false;
+		mExhausted = true;
+		// retire the cursors no slice is over any more
+		for (int i = mCursors.size() - 1; i >= 0; i--) {
+			Cursor cursor = mCursors.get(i);
+			boolean used = false;
+			for (int s = 0; s < mSlices.size() && !used; s++) {
+				used = mSlices.get(s).cursor == cursor;
+			}
+			if (!used) {
+				mRetired.add(mCursors.remove(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the key of the row listed at position
+	 */
+	private Key getKey(int position) {
+		for (int s = 0; s < mSlices.size(); s++) {
+			Slice slice = mSlices.get(s);
+			if (position < slice.count) {
+				return slice.keys[slice.from + position];
+			}
+			position -= slice.count;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	private HashSet<Key> getListedKeys() {
+		HashSet<Key> keys = new HashSet<Key>(mCount * 2);
+		for (int s = 0; s < mSlices.size(); s++) {
+			Slice slice = mSlices.get(s);
+			for (int i = slice.from; i < slice.from + slice.count; i++) {
+				keys.add(slice.keys[i]);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the number of rows that sort ahead of key, -1 if key is listed
+	 */
+	private int findPosition(Key key) {
+		int position = 0;
+		for (int s = 0; s < mSlices.size(); s++) {
+			Slice slice = mSlices.get(s);
+			if (slice.count == 0) {
+				continue;
+			}
+			int low = slice.from;
+			int high = slice.from + slice.count;
+			if (key.compareTo(slice.keys[high - 1]) < 0) {
+				position += slice.count;
+				continue;
+			}
+			// the first row not greater than key, the keys are descending
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (slice.keys[mid].compareTo(key) > 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			if (slice.keys[low].equals(key)) {
+				return -1;
+			}
+			return position + low - slice.from;
+		}
+		return position;
+	}
+
+	/**
+	 * Put a one row slice at position, splitting the slice there if it falls
+	 * inside one, and joining it to the slice before if it's that slice's
+	 * next row.
+	 */
+	private void insert(Slice row, int position) {
+		int index = 0;
+		int start = 0;
+		while (index < mSlices.size()) {
+			Slice slice = mSlices.get(index);
+			if (position < start + slice.count) {
+				if (position > start) {
+					int head = position - start;
+					mSlices.set(index, new Slice(slice.cursor, slice.keys, slice.rows, slice.from, head));
+					mSlices.add(index + 1, new Slice(slice.cursor, slice.keys, slice.rows, slice.from + head,
+														slice.count - head));
+					index++;
+				}
+				break;
+			}
+			start += slice.count;
+			index++;
+		}
+		Slice before = index > 0 ? mSlices.get(index - 1) : null;
+		if (before != null && before.cursor == row.cursor && before.from + before.count == row.from) {
+			mSlices.set(index - 1, new Slice(before.cursor, before.keys, before.rows, before.from,
+												before.count + 1));
+		} else {
+			mSlices.add(index, row);
+		}
+		mCount++;
+	}
+
+	/**
+	 * Decode every row of a cursor, while it's still only seen by the thread
+	 * reading it.
+	 */
+	private DashboardRow[] decode(Cursor page) {
+		DashboardRow[] rows = new DashboardRow[page.getCount()];
+		for (int i = 0; i < rows.length; i++) {
+			page.moveToPosition(i);
+			rows[i] = mForm != null ? DashboardRow.readFormData(page) : DashboardRow.readMessage(mContext, page);
+		}
+		return rows;
+	}
+
+	private Key[] readKeys(Cursor page) {
+		if (mForm != null) {
+			return DashboardDataLayer.getFormDataKeys(mContext, page);
+		}
+		Key[] keys = new Key[page.getCount()];
+		for (int i = 0; i < keys.length; i++) {
+			page.moveToPosition(i);
+			keys[i] = DashboardDataLayer.getMessageKey(page);
+		}
+		return keys;
+	}
+
+	/**
+	 * @return a cursor over every row read, newest first. Closing it doesn't
+	 *         close the pages, close() does. null if nothing has been read.
+	 *         Once it's returned, the cursor returned the time before last
+	 *         mustn't be used any more.
+	 */
+	public synchronized Cursor newCursor() {
+		// the list moved off the cursor those were last in when the one
+		// before this was returned
+		closeAll(mRetiredShown);
+		mRetiredShown = mRetired;
+		mRetired = new ArrayList<Cursor>();
+		if (mSlices.isEmpty()) {
+			return null;
+		}
+		Cursor[] slices = new Cursor[mSlices.size()];
+		DashboardRow[] rows = new DashboardRow[mCount];
+		int position = 0;
+		for (int i = 0; i < slices.length; i++) {
+			Slice slice = mSlices.get(i);
+			if (slice.from == 0 && slice.count == slice.cursor.getCount()) {
+				slices[i] = slice.cursor;
+			} else {
+				slices[i] = new SliceCursor(slice.cursor, slice.from, slice.count);
+			}
+			System.arraycopy(slice.rows, slice.from, rows, position, slice.count);
+			position += slice.count;
+		}
+		return new PagesCursor(slices, rows);
+	}
+
+	/**
+	 * @param cursor
+	 *            moved to the row
+	 * @return the decoded row the cursor is on, null if the cursor didn't come
+	 *         from newCursor()
+	 */
+	public static DashboardRow getRow(Cursor cursor) {
+		if (!(cursor instanceof PagesCursor)) {
+			return null;
+		}
+		return ((PagesCursor) cursor).rows[cursor.getPosition()];
+	}
+
+	/**
+	 * Where a row of the old list is in the new one.
+	 * 
+	 * @param inserted
+	 *            the positions loadRows() put rows at
+	 */
+	public static int shiftPosition(int position, int[] inserted) {
+		for (int i = 0; i < inserted.length && inserted[i] <= position; i++) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * @return the rows listed
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return true if the last page has been read
+	 */
+	public boolean isExhausted() {
+		return mExhausted;
+	}
+
+	/**
+	 * Close the cursors. Nothing more is read after.
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		closeAll(mCursors);
+		closeAll(mRetired);
+		closeAll(mRetiredShown);
+		mSlices.clear();
+	}
+
+	private static void closeAll(ArrayList<Cursor> cursors) {
+		for (int i = 0; i < cursors.size(); i++) {
+			cursors.get(i).close();
+		}
+		cursors.clear();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.data.controller;
+
+import java.text.ParseException;
+import java.util.Date;
+
+import org.rapidandroid.content.translation.MessageTranslator;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.TimestampCodec;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * One row of a dashboard list, decoded into what its view shows: the date
+ * already formatted for display, the sender's phone, the message, and the
+ * form's field values. DashboardPages decodes each page into these as it reads
+ * it, off the UI thread, so binding a row is only setting text.
+ */
+public class DashboardRow {
+
+	private static final String TAG = "DashboardRow";
+
+	private static final String[] NO_VALUES = new String[0];
+
+	private final String mDate;
+	private final String mPhone;
+	private final String mMessage;
+	private final String[] mValues;
+
+	private DashboardRow(String date, String phone, String message, String[] values) {
+		mDate = date;
+		mPhone = phone;
+		mMessage = message;
+		mValues = values;
+	}
+
+	/**
+	 * Decode the current row of a DashboardDataLayer form data cursor: the
+	 * form data columns, then the message, its time and the phone.
+	 */
+	public static DashboardRow readFormData(Cursor c) {
+		int columns = c.getColumnCount();
+		// _id and message_id ahead of the fields
+		String[] values = new String[columns - 5];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = c.getString(i + 2);
+		}
+		Date time;
+		try {
+			time = TimestampCodec.SQL.parse(c.getString(columns - 2));
+		} catch (ParseException e) {
+			Log.w(TAG, "Unreadable message time, showing it as now", e);
+			time = new Date();
+		}
+		String message = c.getString(columns - 3);
+		String phone = c.getString(columns - 1);
+		return new DashboardRow(TimestampCodec.DISPLAY_DATETIME.format(time), phone, message, values);
+	}
+
+	/**
+	 * Decode the current row of a DashboardDataLayer message cursor, a full
+	 * message row. The phone is looked up from the monitor.
+	 */
+	public static DashboardRow readMessage(Context context, Cursor c) {
+		int millisColumn = c.getColumnIndexOrThrow(RapidSmsDBConstants.Message.TIME_MILLIS);
+		Date time;
+		if (!c.isNull(millisColumn)) {
+			time = new Date(c.getLong(millisColumn));
+		} else {
+			try {
+				int timeColumn = c.getColumnIndexOrThrow(RapidSmsDBConstants.Message.TIME);
+				time = TimestampCodec.SQL.parse(c.getString(timeColumn));
+			} catch (ParseException e) {
+				Log.w(TAG, "Unreadable message time, showing it as now", e);
+				time = new Date();
+			}
+		}
+		int monitorId = c.getInt(c.getColumnIndexOrThrow(RapidSmsDBConstants.Message.MONITOR));
+		String phone = MessageTranslator.GetMonitor(context, monitorId).getPhone();
+		String message = c.getString(c.getColumnIndexOrThrow(RapidSmsDBConstants.Message.MESSAGE));
+		return new DashboardRow(TimestampCodec.DISPLAY_DATETIME.format(time), phone, message, NO_VALUES);
+	}
+
+	/**
+	 * @return the message time, formatted for display
+	 */
+	public String getDate() {
+		return mDate;
+	}
+
+	public String getPhone() {
+		return mPhone;
+	}
+
+	public String getMessage() {
+		return mMessage;
+	}
+
+	/**
+	 * @return the form's field values in field order, none for a message
+	 */
+	public String[] getValues() {
+		return mValues;
+	}
+}
@@ -17,11 +17,9 @@
 
 package org.rapidandroid.data.controller;
 
-import java.text.ParseException;
 import java.util.Date;
 
 import org.rapidandroid.data.SmsDbHelper;
-import org.rapidsms.java.core.model.Message;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -31,19 +29,15 @@ public class MessageDataReporter {
 
 	public static Date getOldestMessageDate(Context context) {
 		StringBuilder query = new StringBuilder();
-		query.append("select min(time) ");
+		query.append("select min(time_millis) ");
 		query.append(" from rapidandroid_message");
 		SmsDbHelper mHelper = new SmsDbHelper(context);
 		SQLiteDatabase db = mHelper.getReadableDatabase();
 		Cursor cr = db.rawQuery(query.toString(), null);
 		cr.moveToFirst();
-		String dateString = cr.getString(0);
 		Date ret = new Date();
-		try {
-			ret = Message.SQLDateFormatter.parse(dateString);
-		} catch (ParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (!cr.isNull(0)) {
+			ret = new Date(cr.getLong(0));
 		}
 		cr.close();
 		db.close();
@@ -18,24 +18,27 @@
 package org.rapidandroid.data.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.zip.GZIPOutputStream;
 
+import org.rapidandroid.data.ExportWatermarks;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
 import org.rapidsms.java.core.Constants;
+import org.rapidsms.java.core.export.CsvWriter;
+import org.rapidsms.java.core.export.ExportCancelledException;
+import org.rapidsms.java.core.export.IExportProgress;
 import org.rapidsms.java.core.model.Form;
-import org.rapidsms.java.core.model.Message;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Environment;
+import android.provider.BaseColumns;
+import android.util.Log;
 
 /**
  * 
@@ -45,6 +48,13 @@ import android.os.Environment;
  */
 public class ParsedDataReporter {
 
+	private static final String TAG = "ParsedDataReporter";
+
+	/**
+	 * form data rows read per query by the CSV export
+	 */
+	public static final int EXPORT_WINDOW = 500;
+
 	private String[] messageColumns = new String[] { "message_time", "monitor_id", "monitor_phone", "message_text" };
 
 	public synchronized static Date getOldestMessageDate(Context context, Form f) {
@@ -58,7 +68,7 @@ public class ParsedDataReporter {
 	public synchronized static Date getOldestMessageDate(SmsDbHelper mHelper, Form f) {
 		// TODO Auto-generated method stub
 		StringBuilder query = new StringBuilder();
-		query.append("select min(rapidandroid_message.time) ");
+		query.append("select min(rapidandroid_message.time_millis) ");
 		query.append(" from " + RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
 		query.append(" join rapidandroid_message on (");
 		query.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
@@ -67,163 +77,266 @@ public class ParsedDataReporter {
 
 		SQLiteDatabase db = mHelper.getReadableDatabase();
 		Cursor cr = db.rawQuery(query.toString(), null);
-		if (cr.getCount() == 0) {
-			cr.close();
-			db.close();
-			// this is the caller's responsibility
-			// mHelper.close();
-			return Constants.NULLDATE;
-
+		Date ret = Constants.NULLDATE;
+		if (cr.moveToFirst() && !cr.isNull(0)) {
+			ret = new Date(cr.getLong(0));
 		}
-		cr.moveToFirst();
-		String dateString = cr.getString(0);
-
-		if (dateString == null) {
-			cr.close();
-			db.close();
-			// this is the caller's responsibility
-			// mHelper.close();
-			return Constants.NULLDATE;
+		cr.close();
+		db.close();
+		// this is the caller's responsibility
+		// mHelper.close();
+		return ret;
+	}
+
+	/**
+	 * Export a form's data, as plain CSV, to a new file under
+	 * rapidandroid/exports on the sdcard.
+	 * 
+	 * @return the file, or null if the export failed
+	 */
+	public static File exportFormDataToCSV(Context context, Form f, Calendar startDate, Calendar endDate) {
+		try {
+			return exportFormDataToCSV(context, f, startDate, endDate, false, null);
+		} catch (IOException e) {
+			Log.e(TAG, "CSV export of " + f.getPrefix() + " failed", e);
+			return null;
 		}
+	}
 
-		Date ret = new Date();
+	/**
+	 * Export the form data received from the start of startDate up to the
+	 * start of endDate to a new file under rapidandroid/exports on the sdcard.
+	 * 
+	 * @param gzip
+	 *            gzip the file as it's written, it's named .csv.gz
+	 * @param progress
+	 *            told the number of rows written as the export goes, and
+	 *            polled to cancel it. May be null.
+	 * @return the file written
+	 * @throws ExportCancelledException
+	 *             if progress cancelled the export, the partial file is
+	 *             deleted
+	 * @throws IOException
+	 */
+	public synchronized static File exportFormDataToCSV(Context context, Form f, Calendar startDate,
+			Calendar endDate, boolean gzip, IExportProgress progress) throws IOException {
+		// from the start of the start day up to the start of the end day, which
+		// is what the old datetime string comparison against 'yyyy-M-d' meant
+		String timeRange = "rapidandroid_message.time_millis >= " + startOfDay(startDate) + " AND "
+				+ " rapidandroid_message.time_millis < " + startOfDay(endDate);
+		File destinationfile = getExportFile(f, gzip);
+		SmsDbHelper mHelper = new SmsDbHelper(context);
 		try {
-			ret = Message.SQLDateFormatter.parse(dateString);
-		} catch (ParseException e) {
-			// TODO Auto-generated catch block
+			writeFormData(mHelper.getReadableDatabase(), f, timeRange, 0, destinationfile, gzip, progress);
+		} finally {
+			mHelper.close();
+		}
+		return destinationfile;
+	}
 
-			e.printStackTrace();
-			try {
-				if (cr != null) {
-					cr.close();
-				}
-				if (db != null) {
-					db.close();
-				}
-				if (mHelper != null) {
-					// this is the caller's responsibility
-					// mHelper.close();
-				}
-			} catch (Exception ex2) {
+	/**
+	 * A delta export that's been written but not yet committed. Once the file
+	 * has been delivered, pass it to commitExport() to advance the watermark.
+	 */
+	public static class DeltaExport {
+		private final File mFile;
+		private final long mRows;
+		private final ExportWatermarks.Watermark mWatermark;
+
+		DeltaExport(File file, long rows, ExportWatermarks.Watermark watermark) {
+			mFile = file;
+			mRows = rows;
+			mWatermark = watermark;
+		}
+
+		public File getFile() {
+			return mFile;
+		}
+
+		/**
+		 * @return the number of rows in the file
+		 */
+		public long getRows() {
+			return mRows;
+		}
 
+		/**
+		 * @return where the watermark moves to when this export is committed
+		 */
+		public ExportWatermarks.Watermark getWatermark() {
+			return mWatermark;
+		}
+	}
+
+	/**
+	 * Export only the form data that's come in since the form's watermark for
+	 * the destination, so the cost of a sync follows what's new rather than
+	 * the whole history. The watermark isn't moved, commit the export once the
+	 * file has been saved or sent.
+	 * 
+	 * @param destination
+	 *            RapidSmsDBConstants.ExportWatermark.DESTINATION_CSV or
+	 *            DESTINATION_UPLOAD, each keeps its own watermark
+	 * @param gzip
+	 * @param progress
+	 *            may be null
+	 * @return the export, or null if there's nothing new since the watermark
+	 * @throws ExportCancelledException
+	 *             if progress cancelled the export, the partial file is
+	 *             deleted
+	 * @throws IOException
+	 */
+	public synchronized static DeltaExport exportNewFormData(Context context, Form f, String destination,
+			boolean gzip, IExportProgress progress) throws IOException {
+		SmsDbHelper mHelper = new SmsDbHelper(context);
+		try {
+			SQLiteDatabase db = mHelper.getReadableDatabase();
+			ExportWatermarks.Watermark from = ExportWatermarks.get(db, f.getFormId(), destination);
+			File destinationfile = getExportFile(f, gzip);
+			long[] last = writeFormData(db, f, null, from.getLastId(), destinationfile, gzip, progress);
+			if (last[0] == 0) {
+				destinationfile.delete();
+				return null;
 			}
+			return new DeltaExport(destinationfile, last[0], new ExportWatermarks.Watermark(f.getFormId(),
+					destination, last[1], Math.max(last[2], from.getLastTimeMillis())));
+		} finally {
+			mHelper.close();
 		}
-		cr.close();
-		db.close();
-		// this is the caller's responsibility
-		// mHelper.close();
-		return ret;
 	}
 
-	public synchronized static void exportFormDataToCSV(Context context, Form f, Calendar startDate, Calendar endDate) {
+	/**
+	 * Advance the watermark past a delta export that's been delivered.
+	 * 
+	 * @param context
+	 * @param export
+	 */
+	public static void commitExport(Context context, DeltaExport export) {
 		SmsDbHelper mHelper = new SmsDbHelper(context);
+		try {
+			ExportWatermarks.advance(mHelper.getWritableDatabase(), export.getWatermark());
+		} finally {
+			mHelper.close();
+		}
+	}
+
+	private static File getExportFile(Form f, boolean gzip) {
+		File sdcard = Environment.getExternalStorageDirectory();
+		File destinationdir = new File(sdcard, "rapidandroid/exports");
+		destinationdir.mkdirs();
+		Date now = new Date();
+		return new File(destinationdir, "formdata_" + f.getPrefix() + now.getYear() + now.getMonth()
+				+ now.getDate() + "-" + now.getHours() + now.getMinutes() + (gzip ? ".csv.gz" : ".csv"));
+	}
+
+	/**
+	 * Write a form's data to a CSV file.
+	 * 
+	 * The rows are pulled EXPORT_WINDOW at a time, keyed on the form data _id,
+	 * so no query holds more than a window of rows no matter how large the
+	 * form is, and each cell is copied into a reused CharArrayBuffer and
+	 * encoded straight into the CsvWriter's buffer.
+	 * 
+	 * @param where
+	 *            extra condition on the rows, null for none
+	 * @param afterId
+	 *            only rows with a form data _id above this are written
+	 * @return the number of rows written, the highest form data _id and the
+	 *         latest message time_millis among them
+	 */
+	private static long[] writeFormData(SQLiteDatabase db, Form f, String where, long afterId,
+			File destinationfile, boolean gzip, IExportProgress progress) throws IOException {
+		String formTable = RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix();
 		// build the query
 		StringBuilder query = new StringBuilder();
-		query.append("select " + RapidSmsDBConstants.FormData.TABLE_PREFIX);
-		query.append(f.getPrefix() + ".*");
+		query.append("select " + formTable + ".*");
 		query
 				.append(", rapidandroid_message.message,rapidandroid_message.time, rapidandroid_monitor._id as monitor_id, rapidandroid_monitor.phone as monitor_phone ");
-		query.append(" from " + RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
+		// for the watermark, not written out
+		query.append(", rapidandroid_message.time_millis");
+		query.append(" from " + formTable);
 		query.append(" join rapidandroid_message on (");
-		query.append(RapidSmsDBConstants.FormData.TABLE_PREFIX + f.getPrefix());
-		query.append(".message_id = rapidandroid_message._id");
+		query.append(formTable + ".message_id = rapidandroid_message._id");
 		query.append(") ");
 
 		query.append(" join rapidandroid_monitor on (");
 		query.append("rapidandroid_monitor._id = rapidandroid_message.monitor_id");
 		query.append(") ");
 
-		query.append("WHERE rapidandroid_message.time > '" + startDate.get(Calendar.YEAR) + "-"
-				+ (startDate.get(Calendar.MONTH) + 1) + "-" + startDate.get(Calendar.DATE) + "' AND ");
-		query.append(" rapidandroid_message.time < '" + endDate.get(Calendar.YEAR) + "-"
-				+ (1 + endDate.get(Calendar.MONTH)) + "-" + endDate.get(Calendar.DATE) + "';");
+		query.append("WHERE " + formTable + "._id > ?");
+		if (where != null) {
+			query.append(" AND " + where);
+		}
+		query.append(" ORDER BY " + formTable + "._id LIMIT " + EXPORT_WINDOW + ";");
+		String windowQuery = query.toString();
 
-		Cursor cr = mHelper.getReadableDatabase().rawQuery(query.toString(), null);
+		long[] last = new long[] { 0, afterId, 0 };
 		FileOutputStream fOut = null;
-		
+		boolean completed = false;
 		try {
-
-			File sdcard = Environment.getExternalStorageDirectory();
-			File destinationdir = new File(sdcard, "rapidandroid/exports");
-			destinationdir.mkdir();
-			Date now = new Date();
-			File destinationfile = new File(destinationdir, "formdata_" + f.getPrefix() + now.getYear()
-					+ now.getMonth() + now.getDate() + "-" + now.getHours() + now.getMinutes() + ".csv");
-			
-		
-			destinationfile.createNewFile();
 			fOut = new FileOutputStream(destinationfile);
-			String[] cols = cr.getColumnNames();
-			int colcount = cols.length;
-			StringBuilder sbrow = new StringBuilder();
-			for (int i = 0; i < colcount; i++) {
-				// sbrow.append(cols[i] + ",");
-				sbrow.append(cols[i]);
-				if (i < colcount - 1) {
-					sbrow.append(",");
-				} else {
-					sbrow.append("\n");
-				}
-			}
-			fOut.write(sbrow.toString().getBytes());
-			cr.moveToFirst();
+			CsvWriter writer = new CsvWriter(fOut, gzip);
+			writer.setProgress(progress);
+
+			CharArrayBuffer cell = new CharArrayBuffer(128);
+			String[] args = new String[] { Long.toString(afterId) };
+			boolean header = true;
+			int rows;
 			do {
-				sbrow = new StringBuilder();
-				for (int i = 0; i < colcount; i++) {
-					// sbrow.append(cr.getString(i) + ",");
-					sbrow.append(cr.getString(i));
-					if (i < colcount - 1) {
-						sbrow.append(",");
-					} else {
-						sbrow.append("\n");
+				Cursor cr = db.rawQuery(windowQuery, args);
+				try {
+					int timeColumn = cr.getColumnCount() - 1;
+					if (header) {
+						String[] cols = new String[timeColumn];
+						System.arraycopy(cr.getColumnNames(), 0, cols, 0, timeColumn);
+						writer.writeHeader(cols);
+						header = false;
 					}
+					int idColumn = cr.getColumnIndexOrThrow(BaseColumns._ID);
+					rows = 0;
+					while (cr.moveToNext()) {
+						for (int i = 0; i < timeColumn; i++) {
+							if (cr.isNull(i)) {
+								writer.writeField((CharSequence) null);
+							} else {
+								cr.copyStringToBuffer(i, cell);
+								writer.writeField(cell.data, 0, cell.sizeCopied);
+							}
+						}
+						writer.endRow();
+						last[1] = cr.getLong(idColumn);
+						last[2] = Math.max(last[2], cr.getLong(timeColumn));
+						rows++;
+					}
+					args[0] = Long.toString(last[1]);
+				} finally {
+					cr.close();
 				}
-				fOut.write(sbrow.toString().getBytes());
-			} while (cr.moveToNext());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			} while (rows == EXPORT_WINDOW);
+			writer.close();
+			last[0] = writer.getRowCount();
+			completed = true;
 		} finally {
-			cr.close();
-			mHelper.close();
-			if (fOut != null) {
-				try {
-					fOut.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			if (!completed) {
+				if (fOut != null) {
+					try {
+						fOut.close();
+					} catch (IOException e) {
+						Log.w(TAG, "Could not close " + destinationfile, e);
+					}
 				}
+				destinationfile.delete();
 			}
-			// compressFile(destinationfile);
 		}
-
+		return last;
 	}
 
-	void compressFile(File rawFile) {
-		FileInputStream fin = null;
-		GZIPOutputStream gz = null;
-		try {
-			fin = new FileInputStream(rawFile);
-			FileOutputStream fout = new FileOutputStream(rawFile.getAbsoluteFile() + ".gz");
-			gz = new GZIPOutputStream(fout);
-			byte[] buf = new byte[4096];
-			int readCount;
-			while ((readCount = fin.read(buf)) != -1) {
-				gz.write(buf, 0, readCount);
-			}
-
-		} catch (Exception ex) {
-		} finally {
-			// Close the BufferedInputStream
-			try {
-				if (fin != null)
-					fin.close();
-				if (gz != null)
-					gz.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
-
-		}
+	private static long startOfDay(Calendar date) {
+		Calendar day = (Calendar) date.clone();
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+		return day.getTimeInMillis();
 	}
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.receiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.rapidandroid.ApplicationGlobals;
+import org.rapidandroid.content.translation.MessageTranslator;
+import org.rapidandroid.content.translation.ModelTranslator;
+import org.rapidandroid.content.translation.ParsedDataTranslator;
+import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.ingest.IIngestStore;
+import org.rapidsms.java.core.ingest.IReplySender;
+import org.rapidsms.java.core.ingest.InboundMessage;
+import org.rapidsms.java.core.ingest.IngestPipeline;
+import org.rapidsms.java.core.model.Monitor;
+import org.rapidsms.java.core.parser.service.FormRouter;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.telephony.gsm.SmsManager;
+import android.util.Log;
+
+/**
+ * Runs incoming messages through the core IngestPipeline, off the receiver
+ * thread. SmsReceiver decodes the PDUs and submits each message here; a single
+ * writer thread then routes and parses it, saves the message row and its form
+ * data row in one applyBatch() transaction per batch, and sends the reply.
+ * 
+ * A batch is written once it has MAX_BATCH messages or its first message has
+ * waited MAX_DELAY_MILLIS, so a burst of messages costs a transaction per batch
+ * and a lone message is saved within a fraction of a second.
+ * 
+ * Until a queued message is written, IngestService holds a wake lock and keeps
+ * the process running, so it isn't lost once the receiver returns.
+ */
+public class IngestQueue {
+
+	private static final String TAG = "IngestQueue";
+
+	private static final int CAPACITY = 1000;
+	private static final int MAX_BATCH = 50;
+	private static final long MAX_DELAY_MILLIS = 200;
+	/**
+	 * how long a receiver waits for room before processing its message itself
+	 */
+	private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+	private static final String DEBUG_EMAIL_PREFIX = "notifications@dimagi.com /  / ";
+
+	/**
+	 * Saves a batch through the content provider.
+	 */
+	static class ProviderStore implements IIngestStore {
+		private final Context mContext;
+		private final IReplySender mReplies;
+
+		ProviderStore(Context context, IReplySender replies) {
+			mContext = context;
+			mReplies = replies;
+		}
+
+		public void store(List<InboundMessage> batch) throws Exception {
+			ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(batch.size() * 2);
+			int[] messageOps = new int[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				InboundMessage message = batch.get(i);
+				messageOps[i] = ops.size();
+				ops.add(ContentProviderOperation.newInsert(RapidSmsDBConstants.Message.CONTENT_URI)
+												.withValues(getMessageValues(message)).build());
+				if (message.isParsed()) {
+					ContentValues formData = ParsedDataTranslator.getFormDataValues(message.getForm(),
+																					message.getRecord());
+					ops.add(ContentProviderOperation.newInsert(
+																Uri.parse(RapidSmsDBConstants.FormData.CONTENT_URI_PREFIX
+																		+ message.getForm().getFormId()))
+													.withValues(formData)
+													.withValueBackReference(RapidSmsDBConstants.FormData.MESSAGE,
+																			messageOps[i]).build());
+				}
+			}
+			ContentProviderResult[] results = mContext.getContentResolver().applyBatch(RapidSmsDBConstants.AUTHORITY,
+																						ops);
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).setMessageId(ContentUris.parseId(results[messageOps[i]].uri));
+			}
+		}
+
+		private ContentValues getMessageValues(InboundMessage message) {
+			Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(mContext, message.getPhone());
+
+			ContentValues messageValues = new ContentValues();
+			messageValues.put(RapidSmsDBConstants.Message.MESSAGE, message.getBody());
+			messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
+			// the datetime strings are for display, the millis columns are
+			// what everything filters and sorts on
+			messageValues.put(RapidSmsDBConstants.Message.TIME, TimestampCodec.SQL.format(message.getSentMillis()));
+			messageValues.put(RapidSmsDBConstants.Message.TIME_MILLIS, message.getSentMillis());
+			messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
+			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME,
+								TimestampCodec.SQL.format(message.getReceivedMillis()));
+			messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME_MILLIS, message.getReceivedMillis());
+			return messageValues;
+		}
+
+		/**
+		 * One bad row rolls back the whole batch. Retry the messages one at a
+		 * time so only that one is lost.
+		 */
+		public void storeFailed(List<InboundMessage> batch, Throwable cause) {
+			Log.e(TAG, "Failed to store a batch of " + batch.size() + " messages, retrying them singly", cause);
+			if (batch.size() == 1) {
+				return;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				List<InboundMessage> single = Collections.singletonList(batch.get(i));
+				try {
+					store(single);
+				} catch (Exception e) {
+					Log.e(TAG, "Failed to store a message", e);
+					continue;
+				}
+				mReplies.sendReply(batch.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Answers according to the reply settings in ApplicationGlobals.
+	 */
+	static class SmsReplySender implements IReplySender {
+		private final Context mContext;
+
+		SmsReplySender(Context context) {
+			mContext = context;
+		}
+
+		public void sendReply(InboundMessage message) {
+			ApplicationGlobals.initGlobals(mContext);
+			String reply = null;
+			if (message.getForm() == null) {
+				if (ApplicationGlobals.doReplyOnFail()) {
+					reply = ApplicationGlobals.getParseFailText();
+				}
+			} else if (ApplicationGlobals.doReplyOnParse()) {
+				// for debug purposes, we'll just ack every time.
+				reply = ApplicationGlobals.getParseSuccessText();
+			}
+			if (reply != null) {
+				SmsManager.getDefault().sendTextMessage(message.getPhone(), null, reply, null, null);
+			}
+		}
+	}
+
+	private static IngestPipeline sPipeline = null;
+
+	private static synchronized IngestPipeline getPipeline(Context context) {
+		List<InboundMessage> stranded = null;
+		if (sPipeline != null && !sPipeline.isWriterAlive()) {
+			// a failed batch took the writer down with it. What it left queued
+			// goes to the next one.
+			Log.e(TAG, "Ingest writer died, replacing it");
+			stranded = sPipeline.abandon();
+			sPipeline = null;
+		}
+		if (sPipeline == null || sPipeline.isShutdown()) {
+			Context app = context.getApplicationContext();
+			IReplySender replies = new SmsReplySender(app);
+			sPipeline = new IngestPipeline(new ProviderStore(app, replies), replies, CAPACITY, MAX_BATCH,
+											MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			sPipeline.setRouter(new FormRouter(ModelTranslator.getAllForms()));
+		}
+		if (stranded != null) {
+			// the new queue is empty and as big as the old one, there's room
+			// without waiting
+			for (int i = 0; i < stranded.size(); i++) {
+				try {
+					if (!sPipeline.submit(stranded.get(i), 0, TimeUnit.MILLISECONDS)) {
+						Log.e(TAG, "No room for a message the dead writer left");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return sPipeline;
+	}
+
+	/**
+	 * Route against the current forms. Called whenever the forms change.
+	 */
+	public static synchronized void initFormCache() {
+		if (sPipeline != null) {
+			sPipeline.setRouter(new FormRouter(ModelTranslator.getAllForms()));
+		}
+	}
+
+	/**
+	 * Submit a received message. It's written before the IngestService lets
+	 * the process go.
+	 */
+	public static void queueMessage(Context context, String phone, String body, long sent, long received) {
+		IngestService.acquire(context);
+		try {
+			submit(context, phone, body, sent, received);
+		} finally {
+			IngestService.queued(context);
+		}
+	}
+
+	private static void submit(Context context, String phone, String body, long sent, long received) {
+		InboundMessage message = new InboundMessage(phone, body, sent, received);
+		if (body.startsWith(DEBUG_EMAIL_PREFIX)) {
+			message.setParseBody(body.replace(DEBUG_EMAIL_PREFIX, ""));
+			Log.d(TAG, "Debug, snipping out the email address");
+		}
+
+		IngestPipeline pipeline = getPipeline(context);
+		try {
+			if (pipeline.submit(message, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IllegalStateException e) {
+			// shut down under us
+		}
+		// the writer is backed up. Process this one here rather than drop it.
+		Log.w(TAG, "Ingest queue full, processing directly");
+		try {
+			pipeline.process(Collections.singletonList(message));
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to store a message", e);
+		}
+	}
+
+	/**
+	 * Wait for everything submitted so far to be processed. A writer that has
+	 * died is replaced, and what it left is waited on in the new one.
+	 * 
+	 * @return false if it wasn't within the timeout
+	 */
+	public static boolean flush(Context context, long timeoutMillis) {
+		IngestPipeline pipeline;
+		synchronized (IngestQueue.class) {
+			if (sPipeline == null) {
+				return true;
+			}
+			pipeline = getPipeline(context);
+		}
+		try {
+			return pipeline.flush(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
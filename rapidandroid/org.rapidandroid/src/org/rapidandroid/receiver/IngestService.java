@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidandroid.receiver;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Keeps the process, and the CPU, up while the IngestQueue holds received
+ * messages that haven't been written yet.
+ * 
+ * Once SmsReceiver.onReceive() returns, Android sees nothing running in the
+ * process. It may kill the process, or the phone may go to sleep, with
+ * messages still waiting for the writer thread. So every queued message takes
+ * a count on a partial wake lock and starts this service. The service waits
+ * for the queue to flush, releases the counts of the messages the flush
+ * covered, and stops itself unless a newer message has started it again.
+ */
+public class IngestService extends Service {
+
+	private static final String TAG = "IngestService";
+
+	/**
+	 * how long one wait for the queue to flush lasts before it's logged and
+	 * waited on again
+	 */
+	private static final long FLUSH_WAIT_MILLIS = 10000;
+	/**
+	 * how many waits go by before the queue is given up on, and the phone
+	 * allowed to sleep
+	 */
+	private static final int MAX_FLUSH_WAITS = 6;
+
+	private static PowerManager.WakeLock sWakeLock = null;
+	/**
+	 * messages handed to the queue, and how many of their wake lock counts
+	 * have been released, guarded by IngestService.class
+	 */
+	private static long sQueued = 0;
+	private static long sReleased = 0;
+
+	/**
+	 * the latest start, and the thread waiting on the queue, guarded by this
+	 */
+	private int mLastStartId;
+	private Thread mDrain = null;
+
+	/**
+	 * Take a wake lock count for a message about to be queued. It's taken
+	 * before the message is submitted, so the CPU stays up from the receiver
+	 * on.
+	 */
+	static synchronized void acquire(Context context) {
+		if (sWakeLock == null) {
+			PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+			sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+			sWakeLock.setReferenceCounted(true);
+		}
+		sWakeLock.acquire();
+	}
+
+	/**
+	 * The message that acquire() was called for is on the queue, or already
+	 * written. Start the service to see it through.
+	 */
+	static void queued(Context context) {
+		synchronized (IngestService.class) {
+			sQueued++;
+		}
+		context.startService(new Intent(context, IngestService.class));
+	}
+
+	private static synchronized long getQueued() {
+		return sQueued;
+	}
+
+	/**
+	 * Release the wake lock counts of the first queued messages.
+	 */
+	private static synchronized void release(long queued) {
+		while (sReleased < queued) {
+			sWakeLock.release();
+			sReleased++;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.app.Service#onStartCommand(android.content.Intent, int,
+	 * int)
+	 */
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		synchronized (this) {
+			mLastStartId = startId;
+			if (mDrain == null) {
+				mDrain = new Thread(new Runnable() {
+					public void run() {
+						drain();
+					}
+				}, TAG);
+				mDrain.start();
+			}
+		}
+		// a restarted process has nothing queued to see through
+		return START_NOT_STICKY;
+	}
+
+	/**
+	 * Wait for the queue to flush until no message has been queued since the
+	 * last flush began, then stop. A queue that doesn't flush in
+	 * MAX_FLUSH_WAITS waits is given up on, rather than holding the wake lock
+	 * until the battery runs out.
+	 */
+	private void drain() {
+		int waits = 0;
+		while (true) {
+			int startId;
+			synchronized (this) {
+				startId = mLastStartId;
+			}
+			// every message counted here was submitted before the flush
+			// starts, so the flush covers it
+			long queued = getQueued();
+			if (!IngestQueue.flush(this, FLUSH_WAIT_MILLIS)) {
+				if (++waits < MAX_FLUSH_WAITS) {
+					Log.w(TAG, "Ingest queue still writing after " + waits * FLUSH_WAIT_MILLIS + "ms");
+					continue;
+				}
+				Log.e(TAG, "Ingest queue still writing after " + waits * FLUSH_WAIT_MILLIS
+						+ "ms, releasing the wake lock");
+			}
+			waits = 0;
+			release(queued);
+			synchronized (this) {
+				if (startId == mLastStartId) {
+					mDrain = null;
+					// ignored if a start arrives before it's handled, that
+					// start's thread takes over
+					stopSelf(startId);
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.app.Service#onBind(android.content.Intent)
+	 */
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+}
@@ -20,16 +20,7 @@
  */
 package org.rapidandroid.receiver;
 
-import java.sql.Timestamp;
-import java.util.Date;
-
-import org.rapidandroid.content.translation.MessageTranslator;
-import org.rapidandroid.data.RapidSmsDBConstants;
-import org.rapidsms.java.core.model.Message;
-import org.rapidsms.java.core.model.Monitor;
-
 import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -43,12 +34,11 @@ import android.util.Log;
  * Initial broadcast receiver for RapidAndroid.
  * 
  * Gets triggered on Android SMS receive event, gets a handle to the message and
- * does the following: - verify that it's what the app wants to process - save
- * message to rapidandroid's db via the content provider - save a new
- * mMonitorString if necessary (that's handled by the content provider save) -
- * delete message from inbox because we don't want it to be in duplicate - upon
- * successful save, trigger a separate event to tell the next process that a
- * save was done.
+ * does the following: - verify that it's what the app wants to process - submit
+ * the message to the IngestQueue, whose writer thread routes and parses it,
+ * saves it and its form data to rapidandroid's db in one transaction (along
+ * with a new mMonitorString if necessary) and replies - delete message from
+ * inbox because we don't want it to be in duplicate.
  * 
  * 
  * 
@@ -70,54 +60,15 @@ public class SmsReceiver extends BroadcastReceiver {
 
 	Uri uriSms = Uri.parse("content://sms/inbox");
 
-	private void insertMessageToContentProvider(Context context, SmsMessage mesg) {
-
-		Uri writeMessageUri = RapidSmsDBConstants.Message.CONTENT_URI;
-
-		ContentValues messageValues = new ContentValues();
-		messageValues.put(RapidSmsDBConstants.Message.MESSAGE, mesg.getMessageBody());
-
-		Timestamp ts = new Timestamp(mesg.getTimestampMillis());
-
-		Monitor monitor = MessageTranslator.GetMonitorAndInsertIfNew(context, mesg.getOriginatingAddress());
-
-		messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
-		messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(ts)); // expensive
-																									// string
-																									// formatting
-																									// operation.
-		// messageValues.put(RapidSmsDBConstants.Message.TIME,
-		// mesg.getTimestampMillis()); //longs don't store as datetimes
-		messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
-		Date now = new Date();
-		messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, Message.SQLDateFormatter.format(now)); // profile
-																											// has
-																											// shown
-																											// this
-																											// is
-																											// an
-																											// expensive
-																											// operation
-		// messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME,
-		// now.getTime()); //but this doesn't fracking work to convert to a
-		// datetime value.
-		boolean successfulSave = false;
-		Uri msgUri = null;
-		try {
-			msgUri = context.getContentResolver().insert(writeMessageUri, messageValues);
-			successfulSave = true;
-		} catch (Exception ex) {
-
-		}
-
-		if (successfulSave) {
-			Intent broadcast = new Intent("org.rapidandroid.intents.SMS_SAVED");
-			broadcast.putExtra("from", mesg.getOriginatingAddress());
-			broadcast.putExtra("body", mesg.getMessageBody());
-			broadcast.putExtra("msgid", Integer.valueOf(msgUri.getPathSegments().get(1)));
-			//DeleteSMSFromInbox(context, mesg);
-			context.sendBroadcast(broadcast);
-		}
+	/**
+	 * Hand the decoded message to the IngestQueue, which routes, parses, saves
+	 * and replies to it, so the receiver returns without touching the
+	 * database.
+	 */
+	private void queueMessage(Context context, SmsMessage mesg) {
+		IngestQueue.queueMessage(context, mesg.getOriginatingAddress(), mesg.getMessageBody(),
+									mesg.getTimestampMillis(), System.currentTimeMillis());
+		//DeleteSMSFromInbox(context, mesg);
 	}
 
 	private void DeleteSMSFromInbox(Context context, SmsMessage mesg) {
@@ -166,7 +117,7 @@ public class SmsReceiver extends BroadcastReceiver {
 				// //DO SOMETHING
 				// }
 
-				insertMessageToContentProvider(context, msgs[i]);
+				queueMessage(context, msgs[i]);
 			}
 		}
 
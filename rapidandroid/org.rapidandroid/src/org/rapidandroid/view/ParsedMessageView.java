@@ -17,6 +17,7 @@
 
 package org.rapidandroid.view;
 
+import org.rapidsms.java.core.TimestampCodec;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.parser.IParseResult;
@@ -118,7 +119,7 @@ public class ParsedMessageView extends TableLayout {
 
 	private void setMessageTop(Message mesg) {
 		mMessageSummary.setText("ID: " + mesg.getID() + " :: "
-				+ Message.DisplayDateTimeFormat.format(mesg.getTimestamp()));
+				+ TimestampCodec.DISPLAY_DATETIME.format(mesg.getTimestamp()));
 		mMonitorString.setText(mesg.getMonitor().getPhone());
 		mRawMessageRow.setText(mesg.getMessageText());
 	}
@@ -17,10 +17,9 @@
 
 package org.rapidandroid.view;
 
-import java.util.Vector;
+import org.rapidandroid.data.controller.DashboardRow;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.text.TextUtils.TruncateAt;
 import android.widget.TableLayout;
 import android.widget.TableRow;
@@ -37,28 +36,22 @@ public class SingleGridRowView extends TableLayout {
 	TableRow mRow;
 	// TextView mMessageIDCol;
 	// TextView mMonitorCol;
-	Vector<TextView> mDataCols;
-	boolean isOdd = false;
+	TextView[] mDataCols;
 	private int mColWidth;
-	private static final int DATA_COLUMN_OFFSET = 2;
 
 	/**
+	 * Build the columns, empty. The adapter reuses the view for row after row
+	 * through setData().
+	 * 
 	 * @param context
 	 */
-	public SingleGridRowView(Context context, Cursor c, int colwidth) {
+	public SingleGridRowView(Context context, int colCount, int colwidth) {
 		super(context);
 		mColWidth = colwidth;
 
-		mColCount = c.getColumnCount() - 5;
+		mColCount = colCount;
 
 		mRow = new TableRow(context);
-
-		isOdd = (c.getPosition() % 2) == 1;
-		if (isOdd) {
-			// mRow.setBackgroundColor(org.rapidandroid.R.color.background_gray);
-		} else {
-			// mRow.setBackgroundColor(android.R.color.background_dark);
-		}
 		// mMessageIDCol = new TextView(context);
 		// mMessageIDCol.setGravity(Gravity.LEFT);
 		// mMessageIDCol.setWidth(getWidth()/mColCount);
@@ -72,7 +65,7 @@ public class SingleGridRowView extends TableLayout {
 		// mMonitorCol.setWidth(getWidth()/mColCount);
 		// mRow.addView(mMonitorCol, itemCounter++);
 
-		mDataCols = new Vector<TextView>();
+		mDataCols = new TextView[mColCount];
 
 		for (int i = 0; i < mColCount; i++) {
 			TextView coldata = new TextView(getContext());
@@ -84,23 +77,22 @@ public class SingleGridRowView extends TableLayout {
 
 			coldata.setPadding(0, 4, 0, 4);
 
-			mDataCols.add(coldata);
+			mDataCols[i] = coldata;
 			mRow.addView(coldata, i);
 		}
 
 		// mRow.setWeightSum(mColCount);
 		addView(mRow);
-		setData(c);
 	}
 
-	public void setData(Cursor c) {
-
+	public void setData(DashboardRow row) {
+		String[] values = row.getValues();
 		for (int i = 0; i < mColCount; i++) {
-			TextView coldata = mDataCols.get(i);
-			if (c.getString(i + DATA_COLUMN_OFFSET).equals("")) {
+			TextView coldata = mDataCols[i];
+			if (values[i] == null || values[i].length() == 0) {
 				coldata.setText("(null)");
 			} else {
-				coldata.setText(c.getString(i + DATA_COLUMN_OFFSET));
+				coldata.setText(values[i]);
 			}
 		}
 	}
@@ -17,12 +17,9 @@
 
 package org.rapidandroid.view;
 
-import java.text.ParseException;
-import java.util.Date;
+import org.rapidandroid.data.controller.DashboardRow;
 
-import org.rapidsms.java.core.model.Message;
 import android.content.Context;
-import android.database.Cursor;
 import android.view.Gravity;
 import android.widget.TableLayout;
 import android.widget.TableRow;
@@ -36,10 +33,6 @@ public class SummaryCursorView extends TableLayout {
 
 	String[] mFields;
 
-	private int mColTime = -1;
-	private int mColMessage = -2;
-	private int mColPhone = -2;
-
 	// TableRow mMessageSummaryRow;
 	TextView mMessageSummary;
 	TextView mMonitorString;
@@ -53,15 +46,13 @@ public class SummaryCursorView extends TableLayout {
 	TextView[] mFieldValues;
 
 	/**
+	 * Build the rows, empty. The adapter reuses the view for row after row
+	 * through setData().
+	 * 
 	 * @param context
 	 */
-	public SummaryCursorView(Context context, Cursor formDataCursor, String[] fields, boolean expanded) {
+	public SummaryCursorView(Context context, String[] fields) {
 		super(context);
-		// 
-
-		mColMessage = formDataCursor.getColumnCount() - 3;
-		mColTime = formDataCursor.getColumnCount() - 2;
-		mColPhone = formDataCursor.getColumnCount() - 1;
 
 		mFields = fields;
 		// *************
@@ -116,6 +107,7 @@ public class SummaryCursorView extends TableLayout {
 			// txvFieldName.setDrawingCacheBackgroundColor(R.color.background_red);
 			txvFieldName.setGravity(Gravity.LEFT);
 			txvFieldName.setPadding(10, 2, 2, 2);
+			txvFieldName.setText(fields[i]);
 			mFieldLabels[i] = txvFieldName;
 
 			TextView txvFieldData = new TextView(getContext());
@@ -139,47 +131,20 @@ public class SummaryCursorView extends TableLayout {
 		// this.setLayoutParams(new
 		// TableLayout.LayoutParams(LayoutParams.FILL_PARENT,
 		// LayoutParams.WRAP_CONTENT));
-		setMessageTop(formDataCursor);
-		setParsedBottom(formDataCursor);
-		setExpanded(expanded);
+		setExpanded(false);
 	}
 
-	private void setMessageTop(Cursor cr) {
-		Date msgDate;
-		try {
-			msgDate = Message.SQLDateFormatter.parse(cr.getString(mColTime));
-		} catch (ParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			msgDate = new Date();
-		}
-		mMessageSummary.setText(Message.DisplayDateTimeFormat.format(msgDate));
-		mRawMessageRow.setText(cr.getString(mColMessage));
-		mMonitorString.setText(cr.getString(mColPhone));
-		// mMsg = MessageTranslator.GetMessage(getContext(), cr.getInt(1));
-		// mMessageSummary.setText(Message.DisplayDateTimeFormat.format(mMsg.getTimestamp()));
-		// if(mMsg.getMonitor() == null) {
-		// mMonitorString.setText("null");
-		// } else {
-		// mMonitorString.setText("  " + mMsg.getMonitor().getPhone());
-		// }
-		// mRawMessageRow.setText(mMsg.getMessageText());
-	}
-
-	private void setParsedBottom(Cursor cr) {
-		// mParsedSummaryRow.setText("Parsed Data");
+	public void setData(DashboardRow row) {
+		mMessageSummary.setText(row.getDate());
+		mRawMessageRow.setText(row.getMessage());
+		mMonitorString.setText(row.getPhone());
+		String[] values = row.getValues();
 		int lenresults = mFields.length;
 		for (int i = 0; i < lenresults; i++) {
-			mFieldLabels[i].setText(mFields[i]);
-			mFieldValues[i].setText(cr.getString(i + 2));
+			mFieldValues[i].setText(values[i]);
 		}
 	}
 
-	public void setData(Cursor cr) {
-		setMessageTop(cr);
-		setParsedBottom(cr);
-	}
-
 	public void setExpanded(boolean expanded) {
 		mRawMessageRow.setVisibility(expanded ? VISIBLE : GONE);
 		// mParsedSummaryRow.setVisibility(expanded ? VISIBLE : GONE);
@@ -17,6 +17,8 @@
 
 package org.rapidandroid.view.adapter;
 
+import org.rapidandroid.data.controller.DashboardPages;
+import org.rapidandroid.data.controller.DashboardRow;
 import org.rapidandroid.view.SingleGridRowView;
 import org.rapidsms.java.core.model.Form;
 
@@ -36,6 +38,7 @@ public class FormDataGridCursorAdapter extends CursorAdapter {
 	Form mForm;
 	Context mContext;
 	int mWidth;
+	int mColCount;
 	int mColWidth;
 
 	/**
@@ -47,7 +50,8 @@ public class FormDataGridCursorAdapter extends CursorAdapter {
 		mForm = form;
 		mContext = context;
 		mWidth = screenWidth;
-		mColWidth = screenWidth / (c.getColumnCount() - 5);
+		mColCount = c.getColumnCount() - 5;
+		mColWidth = screenWidth / mColCount;
 
 	}
 
@@ -60,8 +64,11 @@ public class FormDataGridCursorAdapter extends CursorAdapter {
 	@Override
 	public void bindView(View view, Context context, Cursor cursor) {
 		if (view != null) {
-			SingleGridRowView srv = (SingleGridRowView) view;
-			srv.setData(cursor);
+			DashboardRow row = DashboardPages.getRow(cursor);
+			if (row == null) {
+				row = DashboardRow.readFormData(cursor);
+			}
+			((SingleGridRowView) view).setData(row);
 		}
 
 	}
@@ -74,8 +81,9 @@ public class FormDataGridCursorAdapter extends CursorAdapter {
 	 */
 	@Override
 	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		SingleGridRowView srv = new SingleGridRowView(context, cursor, mColWidth);
-		return srv;
+		// only until the list has a row's worth of views to recycle, bindView()
+		// fills it in
+		return new SingleGridRowView(context, mColCount, mColWidth);
 	}
 
 }
@@ -17,11 +17,8 @@
 
 package org.rapidandroid.view.adapter;
 
-import java.util.Date;
-
-import org.rapidandroid.content.translation.MessageTranslator;
-import org.rapidsms.java.core.model.Message;
-import org.rapidsms.java.core.model.Monitor;
+import org.rapidandroid.data.controller.DashboardPages;
+import org.rapidandroid.data.controller.DashboardRow;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -48,21 +45,11 @@ public class MessageCursorAdapter extends CursorAdapter {
 	@Override
 	public void bindView(View view, Context context, Cursor cursor) {
 		if (view != null) {
-			int MonitorID = cursor.getInt(2);
-			String timestamp = cursor.getString(3);
-			String message = cursor.getString(4);
-			boolean isoutgoing = Boolean.parseBoolean(cursor.getString(4));
-			Date hackDate = new Date();
-			boolean success = false;
-			try {
-				hackDate = Message.SQLDateFormatter.parse(timestamp);
-				success = true;
-			} catch (Exception ex) {
-				success = false;
+			DashboardRow row = DashboardPages.getRow(cursor);
+			if (row == null) {
+				row = DashboardRow.readMessage(context, cursor);
 			}
-
-			SimpleMessageView srv = (SimpleMessageView) view;
-			srv.setData(message, hackDate, MonitorID, isoutgoing);
+			((SimpleMessageView) view).setData(row);
 		}
 
 	}
@@ -75,14 +62,9 @@ public class MessageCursorAdapter extends CursorAdapter {
 	 */
 	@Override
 	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		int MonitorID = cursor.getInt(2);
-		String timestamp = cursor.getString(3);
-		String message = cursor.getString(4);
-		boolean isoutgoing = Boolean.parseBoolean(cursor.getString(4));
-		Date hackDate = new Date();
-
-		SimpleMessageView srv = new SimpleMessageView(context, message, hackDate, MonitorID, isoutgoing);
-		return srv;
+		// only until the list has a row's worth of views to recycle, bindView()
+		// fills it in
+		return new SimpleMessageView(context);
 	}
 
 	private class SimpleMessageView extends TableLayout {
@@ -92,7 +74,7 @@ public class MessageCursorAdapter extends CursorAdapter {
 		private TextView txvFrom;
 		private TextView txvMessage;
 
-		public SimpleMessageView(Context context, String message, Date timestamp, int monitorID, boolean isOutgoing) {
+		public SimpleMessageView(Context context) {
 			super(context);
 			mHeaderRow = new TableRow(context);
 
@@ -122,18 +104,12 @@ public class MessageCursorAdapter extends CursorAdapter {
 
 			this.setColumnStretchable(0, true);
 			this.setColumnStretchable(1, true);
-
-			setData(message, timestamp, monitorID, isOutgoing);
-			// TODO Auto-generated constructor stub
 		}
 
-		public void setData(String message, Date timestamp, int monitorID, boolean isOutgoing) {
-			txvDate.setText(Message.DisplayDateTimeFormat.format(timestamp));
-
-			Monitor m = MessageTranslator.GetMonitor(getContext(), monitorID);
-			txvFrom.setText(m.getPhone());
-
-			txvMessage.setText(message);
+		public void setData(DashboardRow row) {
+			txvDate.setText(row.getDate());
+			txvFrom.setText(row.getPhone());
+			txvMessage.setText(row.getMessage());
 		}
 
 	}
@@ -17,13 +17,14 @@
 
 package org.rapidandroid.view.adapter;
 
-import java.util.HashMap;
-
+import org.rapidandroid.data.controller.DashboardPages;
+import org.rapidandroid.data.controller.DashboardRow;
 import org.rapidandroid.view.SummaryCursorView;
 import org.rapidsms.java.core.model.Form;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.util.SparseBooleanArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
@@ -62,10 +63,10 @@ public class SummaryCursorAdapter extends CursorAdapter {
 	private Form mForm;
 	String[] mFields;
 
-	private static Boolean bFalse = Boolean.valueOf(false);
-	private static Boolean bTrue = Boolean.valueOf(true);
-
-	private HashMap<Integer, Boolean> mExpanded;
+	/**
+	 * the positions of the expanded rows, the rest are collapsed
+	 */
+	private SparseBooleanArray mExpanded;
 
 	/**
 	 * @param context
@@ -78,7 +79,7 @@ public class SummaryCursorAdapter extends CursorAdapter {
 		for (int i = 0; i < mFields.length; i++) {
 			mFields[i] = mForm.getFields()[i].getName();
 		}
-		mExpanded = new HashMap<Integer, Boolean>();
+		mExpanded = new SparseBooleanArray();
 
 	}
 
@@ -91,12 +92,12 @@ public class SummaryCursorAdapter extends CursorAdapter {
 	@Override
 	public void bindView(View view, Context context, Cursor cursor) {
 		SummaryCursorView pmcv = (SummaryCursorView) view;
-		pmcv.setData(cursor);
-		Integer intpos = Integer.valueOf(cursor.getPosition());
-		if (!mExpanded.containsKey(intpos)) {
-			mExpanded.put(intpos, bFalse);
+		DashboardRow row = DashboardPages.getRow(cursor);
+		if (row == null) {
+			row = DashboardRow.readFormData(cursor);
 		}
-		pmcv.setExpanded(mExpanded.get(intpos).booleanValue());
+		pmcv.setData(row);
+		pmcv.setExpanded(mExpanded.get(cursor.getPosition()));
 
 		// bindCount++;
 		mLoadViewCount++;
@@ -110,21 +111,35 @@ public class SummaryCursorAdapter extends CursorAdapter {
 	 */
 	@Override
 	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		// TODO Auto-generated method stub
-		Integer intpos = Integer.valueOf(cursor.getPosition());
-		mExpanded.put(intpos, bFalse);
 		// newCount++;
-		return new SummaryCursorView(context, cursor, mFields, false);
+		// only until the list has a row's worth of views to recycle, bindView()
+		// fills it in
+		return new SummaryCursorView(context, mFields);
 
 	}
 
 	public void toggle(int position) {
-		Integer intpos = Integer.valueOf(position);
-		if (!mExpanded.containsKey(intpos)) {
-			mExpanded.put(intpos, bTrue);
-		}
-		mExpanded.put(intpos, Boolean.valueOf(!mExpanded.get(intpos).booleanValue()));
+		mExpanded.put(position, !mExpanded.get(position));
 		notifyDataSetChanged();
 	}
 
+	/**
+	 * Move the rows' expanded states down, for rows put ahead of them.
+	 * 
+	 * @param inserted
+	 *            the positions DashboardPages.loadRows() put rows at
+	 */
+	public void shiftExpanded(int[] inserted) {
+		if (inserted.length == 0) {
+			return;
+		}
+		SparseBooleanArray shifted = new SparseBooleanArray();
+		for (int i = 0; i < mExpanded.size(); i++) {
+			if (mExpanded.valueAt(i)) {
+				shifted.put(DashboardPages.shiftPosition(mExpanded.keyAt(i), inserted), true);
+			}
+		}
+		mExpanded = shifted;
+	}
+
 }
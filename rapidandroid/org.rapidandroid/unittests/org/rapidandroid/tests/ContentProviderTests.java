@@ -20,12 +20,22 @@
  */
 package org.rapidandroid.tests;
 
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.rapidandroid.data.ExportWatermarks;
 import org.rapidandroid.data.RapidSmsDBConstants;
+import org.rapidandroid.data.SmsDbHelper;
+import org.rapidandroid.data.controller.DashboardPages;
+import org.rapidandroid.data.controller.DashboardRow;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import android.net.Uri;
 import android.test.AndroidTestCase;
@@ -162,6 +172,29 @@ public class ContentProviderTests extends AndroidTestCase {
 
 	}
 
+	public void test002MonitorBulkInsert() {
+		Cursor cr = getContext().getContentResolver().query(RapidSmsDBConstants.Monitor.CONTENT_URI, null, null,
+																null, null);
+		int baseline = cr.getCount();
+		cr.close();
+
+		// the repeated phone is only inserted once
+		String[] phones = { "7771", "7772", "7773", "7771" };
+		ContentValues[] values = new ContentValues[phones.length];
+		for (int i = 0; i < phones.length; i++) {
+			values[i] = new ContentValues();
+			values[i].put(RapidSmsDBConstants.Monitor.PHONE, phones[i]);
+		}
+		int inserted = getContext().getContentResolver().bulkInsert(RapidSmsDBConstants.Monitor.CONTENT_URI, values);
+		assertEquals(3, inserted);
+		assertEquals(0, getContext().getContentResolver().bulkInsert(RapidSmsDBConstants.Monitor.CONTENT_URI, values));
+
+		Cursor cr2 = getContext().getContentResolver().query(RapidSmsDBConstants.Monitor.CONTENT_URI, null, null,
+																null, null);
+		assertEquals(baseline + 3, cr2.getCount());
+		cr2.close();
+	}
+
 	String too_long = "Alert in golaoda werda no of otps only 1,other new 5 otps to start in plan.Problem in thise werda shortage of f100and75,traind manpowe,tranport do to thisez program for 1month stop but now already start it.";
 
 	// add a bunch and confirm that the number of messages are ok
@@ -319,6 +352,204 @@ public class ContentProviderTests extends AndroidTestCase {
 		// newcount);
 	}
 
+	public void test004MessageRollups() {
+		long millis = System.currentTimeMillis();
+		long hour = RollupAccumulator.localBucket(TimeZone.getDefault(), millis, RollupAccumulator.HOUR_MILLIS);
+		long day = RollupAccumulator.localBucket(TimeZone.getDefault(), millis, RollupAccumulator.DAY_MILLIS);
+		long hourly = getAllMessagesRollup(RapidSmsDBConstants.Rollup.HOURLY_TABLE, hour);
+		long daily = getAllMessagesRollup(RapidSmsDBConstants.Rollup.DAILY_TABLE, day);
+
+		ContentValues initialValues = new ContentValues();
+		initialValues.put(RapidSmsDBConstants.Message.MESSAGE, "rollup test");
+		initialValues.put(RapidSmsDBConstants.Message.MONITOR, 1);
+		initialValues.put(RapidSmsDBConstants.Message.TIME_MILLIS, millis);
+		initialValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
+		Uri inserted = getContext().getContentResolver().insert(RapidSmsDBConstants.Message.CONTENT_URI,
+																initialValues);
+		assertEquals(hourly + 1, getAllMessagesRollup(RapidSmsDBConstants.Rollup.HOURLY_TABLE, hour));
+		assertEquals(daily + 1, getAllMessagesRollup(RapidSmsDBConstants.Rollup.DAILY_TABLE, day));
+
+		// deleting rebuilds them
+		assertEquals(1, getContext().getContentResolver().delete(inserted, null, null));
+		assertEquals(hourly, getAllMessagesRollup(RapidSmsDBConstants.Rollup.HOURLY_TABLE, hour));
+		assertEquals(daily, getAllMessagesRollup(RapidSmsDBConstants.Rollup.DAILY_TABLE, day));
+	}
+
+	public void test005ExportWatermarks() {
+		// a form id no real form has
+		int formId = -5;
+		String csv = RapidSmsDBConstants.ExportWatermark.DESTINATION_CSV;
+		String upload = RapidSmsDBConstants.ExportWatermark.DESTINATION_UPLOAD;
+		SmsDbHelper helper = new SmsDbHelper(getContext());
+		SQLiteDatabase db = helper.getWritableDatabase();
+		try {
+			ExportWatermarks.reset(db, formId);
+			assertEquals(0, ExportWatermarks.get(db, formId, csv).getLastId());
+
+			ExportWatermarks.advance(db, new ExportWatermarks.Watermark(formId, csv, 40, 4000));
+			assertEquals(40, ExportWatermarks.get(db, formId, csv).getLastId());
+			assertEquals(4000, ExportWatermarks.get(db, formId, csv).getLastTimeMillis());
+			// each destination keeps its own
+			assertEquals(0, ExportWatermarks.get(db, formId, upload).getLastId());
+
+			// a slower export finishing late doesn't pull it back
+			ExportWatermarks.advance(db, new ExportWatermarks.Watermark(formId, csv, 25, 2500));
+			assertEquals(40, ExportWatermarks.get(db, formId, csv).getLastId());
+			assertEquals(4000, ExportWatermarks.get(db, formId, csv).getLastTimeMillis());
+
+			// deleting down to _id 10 clamps it so new rows aren't skipped
+			db.execSQL("create temp table export_watermark_test (_id integer not null primary key)");
+			db.execSQL("insert into export_watermark_test (_id) values (10)");
+			ExportWatermarks.clamp(db, formId, "export_watermark_test");
+			assertEquals(10, ExportWatermarks.get(db, formId, csv).getLastId());
+		} finally {
+			db.execSQL("drop table if exists export_watermark_test");
+			ExportWatermarks.reset(db, formId);
+			helper.close();
+		}
+	}
+
+	public void test006DashboardPages() {
+		// later than anything else, so they're the head of the list. Three at
+		// the same time, the pages have to split them by _id.
+		long future = System.currentTimeMillis() + 365L * RollupAccumulator.DAY_MILLIS;
+		long[] times = { future, future, future, future - 1000, future - 2000 };
+		long[] ids = new long[times.length + 23];
+		for (int i = 0; i < times.length; i++) {
+			ids[i] = ContentUris.parseId(insertDashboardMessage(times[i]));
+		}
+		try {
+			DashboardPages pages = new DashboardPages(getContext(), null, 2, Integer.MAX_VALUE);
+			assertTrue(pages.loadNextPage());
+			assertTrue(pages.loadNextPage());
+			assertTrue(pages.loadNextPage());
+			Cursor cr = pages.newCursor();
+			// the same time newest _id first, then the older times
+			long[] expected = { ids[2], ids[1], ids[0], ids[3], ids[4] };
+			for (int i = 0; i < expected.length; i++) {
+				assertTrue(cr.moveToPosition(i));
+				assertEquals(expected[i], cr.getLong(0));
+			}
+			cr.close();
+
+			// a newer message goes on the head, the pages read stay
+			int read = pages.getCount();
+			ids[times.length] = ContentUris.parseId(insertDashboardMessage(future + 1000));
+			int[] inserted = pages.loadRows(new long[] { ids[times.length] });
+			assertEquals(1, inserted.length);
+			assertEquals(0, inserted[0]);
+			// rows already listed aren't added again
+			assertEquals(0, pages.loadRows(new long[] { ids[times.length], ids[3] }).length);
+			// a message that came in late, sent before rows already listed,
+			// goes in among them
+			ids[times.length + 1] = ContentUris.parseId(insertDashboardMessage(future - 1500));
+			inserted = pages.loadRows(new long[] { ids[times.length + 1] });
+			assertEquals(1, inserted.length);
+			assertEquals(5, inserted[0]);
+			assertEquals(6, DashboardPages.shiftPosition(5, inserted));
+			assertEquals(4, DashboardPages.shiftPosition(4, inserted));
+			cr = pages.newCursor();
+			assertEquals(read + 2, cr.getCount());
+			long[] merged = { ids[times.length], ids[2], ids[1], ids[0], ids[3], ids[times.length + 1], ids[4] };
+			for (int i = 0; i < merged.length; i++) {
+				assertTrue(cr.moveToPosition(i));
+				assertEquals(merged[i], cr.getLong(0));
+			}
+			cr.moveToPosition(1);
+			// each row comes decoded, in the cursor's order
+			DashboardRow row = DashboardPages.getRow(cr);
+			assertEquals("dashboard test", row.getMessage());
+			assertEquals(TimestampCodec.DISPLAY_DATETIME.format(new Date(future)), row.getDate());
+			cr.close();
+			pages.close();
+
+			// a row older than the last one read is left to the next page
+			pages = new DashboardPages(getContext(), null, 2, Integer.MAX_VALUE);
+			assertTrue(pages.loadNextPage());
+			assertEquals(0, pages.loadRows(new long[] { ids[0] }).length);
+			assertTrue(pages.loadNextPage());
+			cr = pages.newCursor();
+			assertEquals(4, cr.getCount());
+			cr.moveToPosition(3);
+			assertEquals(ids[0], cr.getLong(0));
+			cr.close();
+			pages.close();
+
+			// a limit ends the reading
+			pages = new DashboardPages(getContext(), null, 2, 3);
+			assertTrue(pages.loadNextPage());
+			assertTrue(pages.loadNextPage());
+			assertTrue(pages.isExhausted());
+			assertFalse(pages.loadNextPage());
+			assertEquals(3, pages.getCount());
+			// and a newer row pushes the oldest off the end
+			ids[times.length + 2] = ContentUris.parseId(insertDashboardMessage(future + 3000));
+			inserted = pages.loadRows(new long[] { ids[times.length + 2], ids[3] });
+			assertEquals(1, inserted.length);
+			assertEquals(0, inserted[0]);
+			assertEquals(3, pages.getCount());
+			cr = pages.newCursor();
+			long[] limited = { ids[times.length + 2], ids[times.length], ids[2] };
+			for (int i = 0; i < limited.length; i++) {
+				assertTrue(cr.moveToPosition(i));
+				assertEquals(limited[i], cr.getLong(0));
+			}
+			pages.close();
+
+			// once merges have cut the pages into enough slices, the list is
+			// read again as one cursor
+			int first = times.length + 3;
+			for (int i = 0; i < 18; i++) {
+				ids[first + i] = ContentUris.parseId(insertDashboardMessage(future + 10000 + 10 * i));
+			}
+			pages = new DashboardPages(getContext(), null, 1, Integer.MAX_VALUE);
+			for (int i = 0; i < 18; i++) {
+				assertTrue(pages.loadNextPage());
+			}
+			ids[first + 18] = ContentUris.parseId(insertDashboardMessage(future + 10000 + 10 * 8 + 5));
+			inserted = pages.loadRows(new long[] { ids[first + 18] });
+			assertEquals(1, inserted.length);
+			assertEquals(9, inserted[0]);
+			assertEquals(19, pages.getCount());
+			cr = pages.newCursor();
+			assertEquals(19, cr.getCount());
+			for (int i = 0; i < 19; i++) {
+				assertTrue(cr.moveToPosition(i));
+				long expectedId = i < 9 ? ids[first + 17 - i] : (i == 9 ? ids[first + 18] : ids[first + 18 - i]);
+				assertEquals(expectedId, cr.getLong(0));
+			}
+			pages.close();
+		} finally {
+			for (int i = 0; i < ids.length; i++) {
+				getContext().getContentResolver().delete(
+															ContentUris.withAppendedId(
+																						RapidSmsDBConstants.Message.CONTENT_URI,
+																						ids[i]), null, null);
+			}
+		}
+	}
+
+	private Uri insertDashboardMessage(long millis) {
+		ContentValues initialValues = new ContentValues();
+		initialValues.put(RapidSmsDBConstants.Message.MESSAGE, "dashboard test");
+		initialValues.put(RapidSmsDBConstants.Message.MONITOR, 1);
+		initialValues.put(RapidSmsDBConstants.Message.TIME_MILLIS, millis);
+		initialValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
+		return getContext().getContentResolver().insert(RapidSmsDBConstants.Message.CONTENT_URI, initialValues);
+	}
+
+	private long getAllMessagesRollup(String table, long bucket) {
+		SmsDbHelper helper = new SmsDbHelper(getContext());
+		Cursor cr = helper.getReadableDatabase().rawQuery("select " + RapidSmsDBConstants.Rollup.COUNT + " from "
+				+ table + " where " + RapidSmsDBConstants.Rollup.FORM + " = " + RollupAccumulator.ALL_MESSAGES
+				+ " and " + RapidSmsDBConstants.Rollup.FIELD + " = '' and " + RapidSmsDBConstants.Rollup.BUCKET
+				+ " = " + bucket, null);
+		long count = cr.moveToFirst() ? cr.getLong(0) : 0;
+		cr.close();
+		helper.close();
+		return count;
+	}
+
 	public void testGetFieldTypes() {
 		Uri query = RapidSmsDBConstants.FieldType.CONTENT_URI;
 		Cursor cr = getContext().getContentResolver().query(query, null, null, null, null);
@@ -32,6 +32,7 @@ import org.rapidandroid.content.translation.ModelTranslator;
 import org.rapidandroid.content.translation.ParsedDataTranslator;
 import org.rapidandroid.data.RapidSmsDBConstants;
 import org.rapidandroid.data.SmsDbHelper;
+import org.rapidsms.java.core.TimestampCodec;
 import org.rapidsms.java.core.model.Form;
 import org.rapidsms.java.core.model.Message;
 import org.rapidsms.java.core.model.Monitor;
@@ -176,8 +177,8 @@ public class MessageCorpusTests extends AndroidTestCase {
 		messageValues.put(RapidSmsDBConstants.Message.MESSAGE, text);
 		messageValues.put(RapidSmsDBConstants.Message.MONITOR, monitor.getID());
 
-		messageValues.put(RapidSmsDBConstants.Message.TIME, Message.SQLDateFormatter.format(date));
-		messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, Message.SQLDateFormatter.format(date));
+		messageValues.put(RapidSmsDBConstants.Message.TIME, TimestampCodec.SQL.format(date));
+		messageValues.put(RapidSmsDBConstants.Message.RECEIVE_TIME, TimestampCodec.SQL.format(date));
 		messageValues.put(RapidSmsDBConstants.Message.IS_OUTGOING, false);
 
 		Uri msgUri = null;
@@ -228,7 +229,7 @@ public class MessageCorpusTests extends AndroidTestCase {
 
 			Date dateval = new Date();
 			try {
-				dateval = Message.SQLDateFormatter.parse(datestr);
+				dateval = TimestampCodec.SQL.parse(datestr);
 			} catch (ParseException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.service.IParseRecordHandler;
+import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Reparsing a whole backlog of messages, one backlog per operation, one message
+ * at a time against parseBatch() and parseAll() on the given number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchParserBenchmark {
+
+	@Param({ "100000" })
+	public int backlogSize;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private List<String> messages;
+	private Form form;
+
+	@Setup
+	public void setup() {
+		messages = Corpus.syntheticNutrition(backlogSize, 42);
+		form = Models.nutrition(ParserType.COMPILEDREGEX);
+		ParsingService.SetParsingThreads(threads);
+	}
+
+	@Benchmark
+	public int oneAtATime() {
+		ParseRecord record = new ParseRecord();
+		int parsed = 0;
+		for (int i = 0; i < messages.size(); i++) {
+			if (ParsingService.ParseMessage(form, messages.get(i), record)) {
+				parsed++;
+			}
+		}
+		return parsed;
+	}
+
+	@Benchmark
+	public List<ParseRecord> parseBatch() {
+		return ParsingService.parseBatch(form, messages);
+	}
+
+	@Benchmark
+	public long parseAllOrdered() {
+		return parseAll(true);
+	}
+
+	@Benchmark
+	public long parseAllUnordered() {
+		return parseAll(false);
+	}
+
+	private long parseAll(boolean ordered) {
+		final long[] sum = new long[1];
+		Iterator<String> it = messages.iterator();
+		ParsingService.parseAll(form, it, new IParseRecordHandler() {
+			public void handleRecord(long index, String message, ParseRecord record, boolean parsed) {
+				if (parsed && record.hasResult(2)) {
+					sum[0] += record.getLong(2);
+				}
+			}
+		}, ordered);
+		return sum[0];
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.IParseResult.ValueType;
+import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Loading the bednets corpus, the given number of times over, into a fresh
+ * sqlite database: each message row and its formdata row.
+ * 
+ * perRow - what inserting through ContentResolver.insert() did, every row its
+ * own implicit transaction and its own compiled statement
+ * (SQLiteDatabase.insert compiles the insert on every call)
+ * 
+ * oneTransaction - the same inserts inside one transaction
+ * 
+ * bulkInsert - what RapidSmsContentProvider.bulkInsert/applyBatch do now: one
+ * transaction, and one compiled statement per table (InsertStatements) rebound
+ * for every row
+ * 
+ * The schema and insert text are in SqliteSchema. Messages are parsed once up
+ * front, so only the inserts are timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BulkInsertBenchmark {
+
+	/**
+	 * times over the corpus. perRow commits twice per message, so it's only
+	 * practical at the small size.
+	 */
+	@Param({ "10", "1000" })
+	public int rounds;
+
+	private List<String> mMessages;
+	/**
+	 * the parsed fields of each message, as the ContentValues from
+	 * ParsedDataTranslator.getFormDataValues would hold them
+	 */
+	private Object[][] mFormData;
+	private File mFile;
+	private Connection mConnection;
+
+	@Setup(Level.Trial)
+	public void parse() {
+		mMessages = Corpus.bednets();
+		Form form = Models.bednets(ParserType.COMPILEDREGEX);
+		ParseRecord record = new ParseRecord();
+		mFormData = new Object[mMessages.size()][];
+		for (int i = 0; i < mMessages.size(); i++) {
+			Object[] values = new Object[form.getFields().length];
+			if (ParsingService.ParseMessage(form, mMessages.get(i), record)) {
+				for (int f = 0; f < values.length; f++) {
+					ValueType type = record.getValueType(f);
+					if (type == ValueType.INTEGER) {
+						values[f] = Long.valueOf(record.getLong(f));
+					} else if (type == ValueType.FLOAT) {
+						values[f] = Double.valueOf(record.getDouble(f));
+					} else if (type == ValueType.WORD) {
+						values[f] = record.getToken(f);
+					} else {
+						values[f] = "";
+					}
+				}
+			}
+			mFormData[i] = values;
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void createDatabase() throws Exception {
+		mFile = File.createTempFile("rapidandroid-bench", ".db");
+		mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getAbsolutePath());
+		SqliteSchema.create(mConnection);
+	}
+
+	@TearDown(Level.Invocation)
+	public void dropDatabase() throws SQLException {
+		mConnection.close();
+		mFile.delete();
+	}
+
+	private long insertMessage(PreparedStatement message, int i, long time) throws SQLException {
+		String timestamp = TimestampCodec.SQL.format(time);
+		message.setString(1, "+1617555" + (1000 + i % 50));
+		message.setInt(2, 1 + i % 50);
+		message.setString(3, timestamp);
+		message.setString(4, mMessages.get(i));
+		message.setInt(5, 0);
+		message.setInt(6, 0);
+		message.setString(7, timestamp);
+		message.setLong(8, time);
+		message.setLong(9, time);
+		message.executeUpdate();
+		return SqliteSchema.lastInsertRowId(mConnection);
+	}
+
+	private void insertFormData(PreparedStatement formdata, int i, long messageId) throws SQLException {
+		Object[] values = mFormData[i];
+		formdata.setLong(1, messageId);
+		for (int f = 0; f < values.length; f++) {
+			formdata.setObject(f + 2, values[f]);
+		}
+		formdata.executeUpdate();
+	}
+
+	/**
+	 * @param prepareOnce
+	 *            compile each insert once, rather than once per row
+	 */
+	private int load(boolean prepareOnce) throws SQLException {
+		PreparedStatement message = prepareOnce ? mConnection.prepareStatement(SqliteSchema.MESSAGE_INSERT) : null;
+		PreparedStatement formdata = prepareOnce ? mConnection.prepareStatement(SqliteSchema.FORMDATA_INSERT) : null;
+		long time = 1230768000000L;
+		int rows = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < mMessages.size(); i++) {
+				time += 60000L;
+				if (!prepareOnce) {
+					message = mConnection.prepareStatement(SqliteSchema.MESSAGE_INSERT);
+				}
+				long messageId = insertMessage(message, i, time);
+				if (!prepareOnce) {
+					message.close();
+					formdata = mConnection.prepareStatement(SqliteSchema.FORMDATA_INSERT);
+				}
+				insertFormData(formdata, i, messageId);
+				if (!prepareOnce) {
+					formdata.close();
+				}
+				rows++;
+			}
+		}
+		if (prepareOnce) {
+			message.close();
+			formdata.close();
+		}
+		return rows;
+	}
+
+	@Benchmark
+	public int perRow() throws SQLException {
+		return load(false);
+	}
+
+	@Benchmark
+	public int oneTransaction() throws SQLException {
+		mConnection.setAutoCommit(false);
+		int rows = load(false);
+		mConnection.commit();
+		return rows;
+	}
+
+	@Benchmark
+	public int bulkInsert() throws SQLException {
+		mConnection.setAutoCommit(false);
+		int rows = load(true);
+		mConnection.commit();
+		return rows;
+	}
+}
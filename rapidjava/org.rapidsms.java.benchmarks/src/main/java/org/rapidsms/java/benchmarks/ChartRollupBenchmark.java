@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
+import org.rapidsms.java.core.rollup.RollupBucket;
+
+/**
+ * The chart queries against the given years of bednets reports, read from the
+ * messages the way the brokers used to, and from the rollup tables:
+ * 
+ * trends - MessageDataBroker's daily message count for the last 90 days
+ * 
+ * history - the same count over the whole history
+ * 
+ * numericLine - FormDataBroker.loadNumericLine for the last 90 days, every
+ * report's value before, the daily average, min and max now
+ * 
+ * Both the tables and the rollups are filled in setup. The rollup SQL is copied
+ * from RollupTables and ChartBroker.getRollupQuery, keep them in step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChartRollupBenchmark {
+
+	@Param({ "1", "4" })
+	public int years;
+
+	@Param({ "12" })
+	public int reportsPerHour;
+
+	private static final int FORM_ID = 1;
+	private static final long HOUR_MILLIS = RollupAccumulator.HOUR_MILLIS;
+	private static final long DAY_MILLIS = RollupAccumulator.DAY_MILLIS;
+
+	private File mFile;
+	private Connection mConnection;
+	private long mLastTime;
+
+	private String mTrendsRaw;
+	private String mTrendsRollup;
+	private String mHistoryRaw;
+	private String mHistoryRollup;
+	private String mNumericLineRaw;
+	private String mNumericLineRollup;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		mFile = File.createTempFile("rapidandroid-bench", ".db");
+		mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getAbsolutePath());
+		SqliteSchema.create(mConnection);
+		Statement st = mConnection.createStatement();
+		// RollupTables.createTables
+		for (String table : new String[] { "rapidandroid_rollup_hourly", "rapidandroid_rollup_daily" }) {
+			st.execute("CREATE TABLE \"" + table + "\" (\"form_id\" integer NOT NULL,"
+					+ "\"field\" varchar(32) NOT NULL,\"bucket\" integer NOT NULL,\"count\" integer NOT NULL,"
+					+ "\"sum\" float NOT NULL,\"min_value\" float NOT NULL,\"max_value\" float NOT NULL,"
+					+ "PRIMARY KEY (\"form_id\", \"field\", \"bucket\"));");
+		}
+		populate();
+		st.execute("ANALYZE");
+		st.close();
+
+		TimeZone zone = TimeZone.getDefault();
+		long end = mLastTime;
+		long start = end - 90 * DAY_MILLIS;
+		// the local day bucketing ChartBroker did before the rollups, the
+		// sandbox zone has no offset changes so it's a plain shift
+		String day = "((rapidandroid_message.time_millis + " + zone.getOffset(end) + ") / " + DAY_MILLIS + ")";
+		String range = " WHERE rapidandroid_message.time_millis > " + start
+				+ " AND rapidandroid_message.time_millis < " + end + " ";
+
+		mTrendsRaw = "select min(rapidandroid_message.time_millis), count(*) from rapidandroid_message " + range
+				+ " group by " + day + " order by " + day + " ASC";
+		mHistoryRaw = "select min(rapidandroid_message.time_millis), count(*) from rapidandroid_message "
+				+ " WHERE rapidandroid_message.time_millis IS NOT NULL group by " + day + " order by " + day
+				+ " ASC";
+		mNumericLineRaw = "select rapidandroid_message.time_millis, formdata_bednets.col_received from "
+				+ "formdata_bednets join rapidandroid_message on (formdata_bednets.message_id = "
+				+ "rapidandroid_message._id) " + range + " order by rapidandroid_message.time_millis ASC";
+
+		String rollupRange = " and bucket >= " + RollupAccumulator.localBucket(zone, start, DAY_MILLIS)
+				+ " and bucket <= " + RollupAccumulator.localBucket(zone, end, DAY_MILLIS);
+		mTrendsRollup = "select min(bucket), sum(count) from rapidandroid_rollup_daily where form_id = "
+				+ RollupAccumulator.ALL_MESSAGES + " and field = ''" + rollupRange
+				+ " group by bucket order by bucket ASC";
+		mHistoryRollup = "select min(bucket), sum(count) from rapidandroid_rollup_daily where form_id = "
+				+ RollupAccumulator.ALL_MESSAGES + " and field = '' group by bucket order by bucket ASC";
+		mNumericLineRollup = "select min(bucket), sum(count), sum(sum), min(min_value), max(max_value) from "
+				+ "rapidandroid_rollup_daily where form_id = " + FORM_ID + " and field = 'received'" + rollupRange
+				+ " group by bucket order by bucket ASC";
+	}
+
+	private void populate() throws SQLException {
+		mConnection.setAutoCommit(false);
+		PreparedStatement message = mConnection.prepareStatement(SqliteSchema.MESSAGE_INSERT);
+		PreparedStatement formdata = mConnection.prepareStatement(SqliteSchema.FORMDATA_INSERT);
+		RollupAccumulator rollups = new RollupAccumulator(TimeZone.getDefault());
+		Random random = new Random(42);
+		long start = 1230768000000L;
+		int rows = years * 365 * 24 * reportsPerHour;
+		long spacing = HOUR_MILLIS / reportsPerHour;
+		for (int i = 1; i <= rows; i++) {
+			long time = start + i * spacing + random.nextInt((int) spacing);
+			String timestamp = TimestampCodec.SQL.format(time);
+			int received = random.nextInt(1000);
+			int given = random.nextInt(1000);
+			message.setString(1, "+16175551000");
+			message.setInt(2, 1);
+			message.setString(3, timestamp);
+			message.setString(4, "bednets loc" + (i % 97) + " " + received + " " + given + " " + (received - given));
+			message.setBoolean(5, false);
+			message.setBoolean(6, false);
+			message.setString(7, timestamp);
+			message.setLong(8, time);
+			message.setLong(9, time);
+			message.executeUpdate();
+			long messageId = SqliteSchema.lastInsertRowId(mConnection);
+
+			formdata.setLong(1, messageId);
+			formdata.setString(2, "loc" + (i % 97));
+			formdata.setDouble(3, received);
+			formdata.setDouble(4, given);
+			formdata.setDouble(5, received - given);
+			formdata.executeUpdate();
+
+			rollups.addMessage(time);
+			rollups.addCount(FORM_ID, time);
+			rollups.addField(FORM_ID, "received", "integer", time, Integer.valueOf(received));
+			rollups.addField(FORM_ID, "given", "integer", time, Integer.valueOf(given));
+			rollups.addField(FORM_ID, "balance", "integer", time, Integer.valueOf(received - given));
+			mLastTime = Math.max(mLastTime, time);
+			if (i % 10000 == 0) {
+				writeRollups(rollups);
+			}
+		}
+		writeRollups(rollups);
+		message.close();
+		formdata.close();
+		mConnection.commit();
+		mConnection.setAutoCommit(true);
+	}
+
+	/**
+	 * RollupTables.write
+	 */
+	private void writeRollups(RollupAccumulator rollups) throws SQLException {
+		writeRollups("rapidandroid_rollup_hourly", rollups.getHourly());
+		writeRollups("rapidandroid_rollup_daily", rollups.getDaily());
+		rollups.clear();
+	}
+
+	private void writeRollups(String table, Collection<RollupBucket> buckets) throws SQLException {
+		PreparedStatement create = mConnection.prepareStatement("insert or ignore into " + table
+				+ " (form_id, field, bucket, count, sum, min_value, max_value) values (?, ?, ?, 0, 0, ?, ?)");
+		PreparedStatement add = mConnection.prepareStatement("update " + table
+				+ " set count = count + ?, sum = sum + ?, min_value = min(min_value, ?), "
+				+ "max_value = max(max_value, ?) where form_id = ? and field = ? and bucket = ?");
+		for (RollupBucket b : buckets) {
+			create.setInt(1, b.getFormId());
+			create.setString(2, b.getField());
+			create.setLong(3, b.getBucket());
+			create.setDouble(4, b.getMin());
+			create.setDouble(5, b.getMax());
+			create.executeUpdate();
+
+			add.setLong(1, b.getCount());
+			add.setDouble(2, b.getSum());
+			add.setDouble(3, b.getMin());
+			add.setDouble(4, b.getMax());
+			add.setInt(5, b.getFormId());
+			add.setString(6, b.getField());
+			add.setLong(7, b.getBucket());
+			add.executeUpdate();
+		}
+		create.close();
+		add.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		mConnection.close();
+		mFile.delete();
+	}
+
+	private int readAll(String sql, Blackhole bh) throws SQLException {
+		Statement st = mConnection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(sql);
+			int columns = rs.getMetaData().getColumnCount();
+			int n = 0;
+			while (rs.next()) {
+				for (int c = 1; c <= columns; c++) {
+					bh.consume(rs.getDouble(c));
+				}
+				n++;
+			}
+			rs.close();
+			return n;
+		} finally {
+			st.close();
+		}
+	}
+
+	@Benchmark
+	public int trendsRaw(Blackhole bh) throws SQLException {
+		return readAll(mTrendsRaw, bh);
+	}
+
+	@Benchmark
+	public int trendsRollup(Blackhole bh) throws SQLException {
+		return readAll(mTrendsRollup, bh);
+	}
+
+	@Benchmark
+	public int historyRaw(Blackhole bh) throws SQLException {
+		return readAll(mHistoryRaw, bh);
+	}
+
+	@Benchmark
+	public int historyRollup(Blackhole bh) throws SQLException {
+		return readAll(mHistoryRollup, bh);
+	}
+
+	@Benchmark
+	public int numericLineRaw(Blackhole bh) throws SQLException {
+		return readAll(mNumericLineRaw, bh);
+	}
+
+	@Benchmark
+	public int numericLineRollup(Blackhole bh) throws SQLException {
+		return readAll(mNumericLineRollup, bh);
+	}
+}
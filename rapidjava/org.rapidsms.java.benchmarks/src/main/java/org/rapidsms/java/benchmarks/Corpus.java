@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Message corpora for the benchmarks: the bednets corpus shipped with the
+ * android test assets, and a synthetic generator along the lines of
+ * scripts/bednets_datagen.py that scales to any size and also produces
+ * nutrition messages.
+ */
+public class Corpus {
+
+	public static final String BEDNETS_RESOURCE = "/testdata/rawdata.csv";
+
+	private static final String[] LOCATIONS = { "Kano", "Bichi", "Karaye", "Rano", "Gaya", "Ringim", "Wudil" };
+	private static final String[] WEIGHT_UNITS = { "kg", " kg", "kilos", " kilo" };
+	private static final String[] HEIGHT_UNITS = { "cm", " cm", "m", " meters" };
+	private static final String[] BOOLS = { "y", "n", "yes", "no", "t", "f", "true", "false" };
+
+	/**
+	 * @return the message bodies of the bednets corpus (date,phone,body)
+	 */
+	public static List<String> bednets() {
+		InputStream is = Corpus.class.getResourceAsStream(BEDNETS_RESOURCE);
+		if (is == null) {
+			throw new IllegalStateException(BEDNETS_RESOURCE + " is not on the classpath");
+		}
+		List<String> messages = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int split = line.indexOf(',', line.indexOf(',') + 1);
+				if (split > 0) {
+					messages.add(line.substring(split + 1));
+				}
+			}
+			reader.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return messages;
+	}
+
+	/**
+	 * Generate size bednets messages with a fixed seed, so runs compare.
+	 */
+	public static List<String> syntheticBednets(int size, long seed) {
+		Random r = new Random(seed);
+		List<String> messages = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			StringBuilder sb = new StringBuilder("bednets ");
+			sb.append(LOCATIONS[r.nextInt(LOCATIONS.length)]).append(' ');
+			sb.append(r.nextInt(500)).append(' ');
+			sb.append(r.nextInt(500)).append(' ');
+			sb.append(r.nextInt(2500));
+			messages.add(sb.toString());
+		}
+		return messages;
+	}
+
+	/**
+	 * Generate size nutrition messages exercising every field type and the
+	 * unit/ratio spellings the field type regexes allow.
+	 */
+	public static List<String> syntheticNutrition(int size, long seed) {
+		Random r = new Random(seed);
+		List<String> messages = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			StringBuilder sb = new StringBuilder("nutrition ");
+			sb.append("child").append((char) ('a' + r.nextInt(26))).append(' ');
+			if (r.nextBoolean()) {
+				sb.append(r.nextInt(40));
+			} else {
+				sb.append(r.nextInt(40)).append('.').append(r.nextInt(10));
+			}
+			sb.append(WEIGHT_UNITS[r.nextInt(WEIGHT_UNITS.length)]).append(' ');
+			sb.append(40 + r.nextInt(100)).append(HEIGHT_UNITS[r.nextInt(HEIGHT_UNITS.length)]).append(' ');
+			switch (r.nextInt(4)) {
+				case 0:
+					sb.append(r.nextInt(10)).append('/').append(1 + r.nextInt(10));
+					break;
+				case 1:
+					sb.append(r.nextInt(100)).append('%');
+					break;
+				case 2:
+					sb.append(r.nextInt(10)).append(':').append(1 + r.nextInt(10));
+					break;
+				default:
+					sb.append("0.").append(r.nextInt(100));
+			}
+			sb.append(' ');
+			sb.append(5 + r.nextInt(20)).append(r.nextBoolean() ? "cm" : " cm").append(' ');
+			sb.append(BOOLS[r.nextInt(BOOLS.length)]).append(' ');
+			sb.append(BOOLS[r.nextInt(BOOLS.length)]);
+			messages.add(sb.toString());
+		}
+		return messages;
+	}
+}
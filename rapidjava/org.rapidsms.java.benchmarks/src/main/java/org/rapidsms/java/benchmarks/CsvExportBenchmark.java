@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.export.CsvWriter;
+
+/**
+ * Writing the given number of bednets form data rows to a CSV file, one export
+ * per operation. The rows are held as the Strings a cursor would hand back,
+ * with the same columns ParsedDataReporter selects.
+ * 
+ * rowBuilder / rowBuilderGzip - the old exportFormDataToCSV, a new
+ * StringBuilder and getBytes() per row to an unbuffered FileOutputStream, and
+ * for gzip its compressFile pass afterwards
+ * 
+ * csvWriter / csvWriterGzip - the CsvWriter, gzipping in the same pass
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvExportBenchmark {
+
+	@Param({ "100000" })
+	public int rows;
+
+	private static final String[] COLUMNS = { "_id", "message_id", "col_location", "col_distributed",
+			"col_received", "col_given", "message", "time", "monitor_id", "monitor_phone" };
+
+	private String[][] mRows;
+	private File mFile;
+	private File mGzFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		List<String> messages = Corpus.syntheticBednets(rows, 42);
+		mRows = new String[rows][];
+		long time = 1230768000000L;
+		for (int i = 0; i < rows; i++) {
+			String message = messages.get(i);
+			String[] tokens = message.split(" ");
+			int monitor = i % 500;
+			mRows[i] = new String[] { Integer.toString(i + 1), Integer.toString(i + 1), tokens[1], tokens[2],
+					tokens[3], tokens[4], message, new java.sql.Timestamp(time + i * 60000L).toString(),
+					Integer.toString(monitor), "+234803" + (1000000 + monitor) };
+		}
+		mFile = File.createTempFile("rapidandroid-export", ".csv");
+		mGzFile = new File(mFile.getAbsolutePath() + ".gz");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mFile.delete();
+		mGzFile.delete();
+	}
+
+	@Benchmark
+	public long rowBuilder() throws IOException {
+		writeRowBuilder();
+		return mFile.length();
+	}
+
+	@Benchmark
+	public long rowBuilderGzip() throws IOException {
+		writeRowBuilder();
+		compressFile(mFile);
+		return mGzFile.length();
+	}
+
+	@Benchmark
+	public long csvWriter() throws IOException {
+		writeCsv(mFile, false);
+		return mFile.length();
+	}
+
+	@Benchmark
+	public long csvWriterGzip() throws IOException {
+		writeCsv(mGzFile, true);
+		return mGzFile.length();
+	}
+
+	private void writeRowBuilder() throws IOException {
+		FileOutputStream fOut = new FileOutputStream(mFile);
+		int colcount = COLUMNS.length;
+		StringBuilder sbrow = new StringBuilder();
+		for (int i = 0; i < colcount; i++) {
+			sbrow.append(COLUMNS[i]);
+			if (i < colcount - 1) {
+				sbrow.append(",");
+			} else {
+				sbrow.append("\n");
+			}
+		}
+		fOut.write(sbrow.toString().getBytes());
+		for (int r = 0; r < rows; r++) {
+			String[] row = mRows[r];
+			sbrow = new StringBuilder();
+			for (int i = 0; i < colcount; i++) {
+				sbrow.append(row[i]);
+				if (i < colcount - 1) {
+					sbrow.append(",");
+				} else {
+					sbrow.append("\n");
+				}
+			}
+			fOut.write(sbrow.toString().getBytes());
+		}
+		fOut.close();
+	}
+
+	private void compressFile(File rawFile) throws IOException {
+		FileInputStream fin = new FileInputStream(rawFile);
+		GZIPOutputStream gz = new GZIPOutputStream(new FileOutputStream(rawFile.getAbsolutePath() + ".gz"));
+		byte[] buf = new byte[4096];
+		int readCount;
+		while ((readCount = fin.read(buf)) != -1) {
+			gz.write(buf, 0, readCount);
+		}
+		fin.close();
+		gz.close();
+	}
+
+	private void writeCsv(File file, boolean gzip) throws IOException {
+		CsvWriter writer = new CsvWriter(new FileOutputStream(file), gzip);
+		writer.writeHeader(COLUMNS);
+		int colcount = COLUMNS.length;
+		for (int r = 0; r < rows; r++) {
+			String[] row = mRows[r];
+			for (int i = 0; i < colcount; i++) {
+				writer.writeField(row[i]);
+			}
+			writer.endRow();
+		}
+		writer.close();
+	}
+}
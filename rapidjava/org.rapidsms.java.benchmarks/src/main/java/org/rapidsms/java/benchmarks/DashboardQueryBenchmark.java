@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rapidsms.java.core.TimestampCodec;
+
+/**
+ * The dashboard's form data query (DashboardDataLayer.getCursorForFormData),
+ * raw message query and the daily message chart query
+ * (MessageDataBroker.loadMessageTrends) against a sqlite database of the given
+ * number of bednets reports, on each schema version:
+ * 
+ * 2 - no indexes, datetime strings
+ * 
+ * 3 - SmsDbHelper's message time indexes and the formdata message_id index,
+ * still on the datetime strings
+ * 
+ * 4 - the integer time_millis column, indexed, with the range filter and day
+ * buckets done in integer arithmetic
+ * 
+ * The android classes can't run on a desktop JVM, so the schema and query text
+ * below are copied from SmsDbHelper, ModelTranslator, DashboardDataLayer and
+ * the chart brokers. Keep them in step. Each operation reads every column of
+ * every row the dashboard would show, which is what filling the android cursor
+ * window does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DashboardQueryBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "2", "3", "4" })
+	public int schemaVersion;
+
+	/**
+	 * Dashboard's default list size
+	 */
+	@Param({ "100" })
+	public int count;
+
+	private static final int MONITORS = 50;
+
+	private File mFile;
+	private Connection mConnection;
+	private String mFormDataQuery;
+	private String mRawMessageQuery;
+	private String mTrendsQuery;
+	private long mLastTime;
+
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		mFile = File.createTempFile("rapidandroid-bench", ".db");
+		mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getAbsolutePath());
+		Statement st = mConnection.createStatement();
+
+		// SmsDbHelper.onCreate, version 2
+		st.execute("CREATE TABLE \"rapidandroid_message\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"phone\" varchar(30) NULL,"
+				+ "\"monitor_id\" integer NULL REFERENCES \"rapidandroid_monitor\" (\"id\"),"
+				+ "\"time\" datetime NOT NULL," + "\"message\" varchar(160) NOT NULL,"
+				+ "\"is_outgoing\" bool NOT NULL," + "\"is_virtual\" bool NOT NULL,"
+				+ "\"receive_time\" datetime NULL," + "\"time_millis\" integer NULL,"
+				+ "\"receive_time_millis\" integer NULL);");
+		st.execute("CREATE TABLE \"rapidandroid_monitor\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"first_name\" varchar(50) NOT NULL," + "\"last_name\" varchar(50) NOT NULL,"
+				+ "\"alias\" varchar(16) NOT NULL UNIQUE," + "\"phone\" varchar(30) NOT NULL,"
+				+ "\"email\" varchar(75) NOT NULL," + "\"incoming_messages\" integer unsigned NOT NULL,"
+				+ "\"receive_reply\" bool DEFAULT '0' NOT NULL);");
+		// ModelTranslator.generateFormTable for the bednets form
+		st.execute("create table formdata_bednets ( \"_id\" integer not null PRIMARY KEY, "
+				+ " \"message_id\" integer not null references \"message\", "
+				+ " \"col_location\" varchar(36) NULL,  \"col_received\" float NULL, "
+				+ " \"col_given\" float NULL,  \"col_balance\" float NULL );");
+
+		populate();
+
+		if (schemaVersion == 3) {
+			st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_time\" ON \"rapidandroid_message\" (\"time\");");
+			st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_monitor_time\" ON \"rapidandroid_message\" (\"monitor_id\", \"time\");");
+		} else if (schemaVersion >= 4) {
+			// SmsDbHelper.createMessageIndexes
+			st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_time_millis\" ON \"rapidandroid_message\" (\"time_millis\");");
+			st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_monitor_time_millis\" ON \"rapidandroid_message\" (\"monitor_id\", \"time_millis\");");
+		}
+		if (schemaVersion >= 3) {
+			// SmsDbHelper.createFormDataIndex
+			st.execute("CREATE INDEX IF NOT EXISTS \"formdata_bednets_message_id\" ON \"formdata_bednets\" (\"message_id\");");
+		}
+		st.execute("ANALYZE");
+		st.close();
+
+		String timeColumn = schemaVersion >= 4 ? "time_millis" : "time";
+
+		// DashboardDataLayer
+		StringBuilder query = new StringBuilder();
+		query.append("select formdata_bednets.*, rapidandroid_message.message, rapidandroid_message.time, rapidandroid_monitor.phone ");
+		query.append(" from formdata_bednets");
+		query.append(" join rapidandroid_message on (formdata_bednets.message_id = rapidandroid_message._id) ");
+		query.append(" join rapidandroid_monitor on (rapidandroid_message.monitor_id = rapidandroid_monitor._id) ");
+		query.append(" ORDER BY rapidandroid_message." + timeColumn + " DESC LIMIT ").append(count);
+		mFormDataQuery = query.toString();
+		mRawMessageQuery = "select * from rapidandroid_message ORDER BY " + timeColumn + " DESC LIMIT " + count;
+
+		// MessageDataBroker.loadMessageTrends over the last 90 days of data,
+		// which ChartBroker buckets daily
+		long end = mLastTime;
+		long start = end - 90 * DAY_MILLIS;
+		StringBuilder trends = new StringBuilder();
+		if (schemaVersion >= 4) {
+			// the local day bucketing ChartBroker did before the rollups, the
+			// sandbox zone has no offset changes in the range so it's a plain
+			// shift
+			String day = "((rapidandroid_message.time_millis + " + TimeZone.getDefault().getOffset(end) + ") / "
+					+ DAY_MILLIS + ")";
+			trends.append("select min(rapidandroid_message.time_millis), count(*) from rapidandroid_message ");
+			trends.append(" WHERE rapidandroid_message.time_millis > " + start
+					+ " AND rapidandroid_message.time_millis < " + end + " ");
+			trends.append(" group by ").append(day).append(" order by ").append(day).append(" ASC");
+		} else {
+			String day = " strftime('%Y-%m-%d', time) ";
+			trends.append("select time, count(*) from rapidandroid_message ");
+			trends.append(" WHERE rapidandroid_message.time > '" + TimestampCodec.SQL.format(start)
+					+ "' AND rapidandroid_message.time < '" + TimestampCodec.SQL.format(end) + "' ");
+			trends.append(" group by ").append(day).append(" order by ").append(day).append(" ASC");
+		}
+		mTrendsQuery = trends.toString();
+	}
+
+	private void populate() throws SQLException {
+		mConnection.setAutoCommit(false);
+		PreparedStatement monitor = mConnection.prepareStatement("insert into rapidandroid_monitor "
+				+ "(_id, first_name, last_name, alias, phone, email, incoming_messages, receive_reply) "
+				+ "values (?, 'first', 'last', ?, ?, '', 0, 0)");
+		for (int m = 1; m <= MONITORS; m++) {
+			monitor.setInt(1, m);
+			monitor.setString(2, "monitor" + m);
+			monitor.setString(3, "+1617555" + (1000 + m));
+			monitor.executeUpdate();
+		}
+		monitor.close();
+
+		PreparedStatement message = mConnection.prepareStatement("insert into rapidandroid_message "
+				+ "(_id, phone, monitor_id, time, message, is_outgoing, is_virtual, receive_time, time_millis, "
+				+ "receive_time_millis) values (?, ?, ?, ?, ?, 0, 0, ?, ?, ?)");
+		PreparedStatement formdata = mConnection.prepareStatement("insert into formdata_bednets "
+				+ "(_id, message_id, col_location, col_received, col_given, col_balance) values (?, ?, ?, ?, ?, ?)");
+		Random random = new Random(42);
+		long start = 1230768000000L;
+		for (int i = 1; i <= rows; i++) {
+			// roughly a report a minute, with some messages arriving out of
+			// order so the rowid isn't a stand in for time
+			long time = start + i * 60000L + random.nextInt(600000);
+			String timestamp = TimestampCodec.SQL.format(time);
+			int monitorId = 1 + random.nextInt(MONITORS);
+			int received = random.nextInt(1000);
+			int given = random.nextInt(1000);
+			message.setInt(1, i);
+			message.setString(2, "+1617555" + (1000 + monitorId));
+			message.setInt(3, monitorId);
+			message.setString(4, timestamp);
+			message.setString(5, "bednets loc" + (i % 97) + " " + received + " " + given + " " + (received - given));
+			message.setString(6, timestamp);
+			if (schemaVersion >= 4) {
+				message.setLong(7, time);
+				message.setLong(8, time);
+			} else {
+				message.setNull(7, Types.INTEGER);
+				message.setNull(8, Types.INTEGER);
+			}
+			mLastTime = Math.max(mLastTime, time);
+			message.executeUpdate();
+
+			formdata.setInt(1, i);
+			formdata.setInt(2, i);
+			formdata.setString(3, "loc" + (i % 97));
+			formdata.setDouble(4, received);
+			formdata.setDouble(5, given);
+			formdata.setDouble(6, received - given);
+			formdata.executeUpdate();
+		}
+		message.close();
+		formdata.close();
+		mConnection.commit();
+		mConnection.setAutoCommit(true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		mConnection.close();
+		mFile.delete();
+	}
+
+	private int readAll(String sql, Blackhole bh) throws SQLException {
+		Statement st = mConnection.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(sql);
+			int columns = rs.getMetaData().getColumnCount();
+			int n = 0;
+			while (rs.next()) {
+				for (int c = 1; c <= columns; c++) {
+					bh.consume(rs.getString(c));
+				}
+				n++;
+			}
+			rs.close();
+			return n;
+		} finally {
+			st.close();
+		}
+	}
+
+	@Benchmark
+	public int formData(Blackhole bh) throws SQLException {
+		return readAll(mFormDataQuery, bh);
+	}
+
+	@Benchmark
+	public int rawMessages(Blackhole bh) throws SQLException {
+		return readAll(mRawMessageQuery, bh);
+	}
+
+	@Benchmark
+	public int messageTrends(Blackhole bh) throws SQLException {
+		return readAll(mTrendsQuery, bh);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.parser.IParseResult;
+
+/**
+ * SimpleFieldType.Parse for each of the bootstrap field types on the remaining
+ * message fragment it would see mid parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldTypeBenchmark {
+
+	@Benchmark
+	public IParseResult word() {
+		return Models.WORD.Parse("kano 352 378 1974");
+	}
+
+	@Benchmark
+	public IParseResult number() {
+		return Models.NUMBER.Parse("352 378 1974");
+	}
+
+	@Benchmark
+	public IParseResult weight() {
+		return Models.WEIGHT.Parse("21 kg 100cm 60% 5cm yes no");
+	}
+
+	@Benchmark
+	public IParseResult height() {
+		return Models.HEIGHT.Parse("100cm 60% 5cm yes no");
+	}
+
+	@Benchmark
+	public IParseResult ratio() {
+		return Models.RATIO.Parse("60% 5cm yes no");
+	}
+
+	@Benchmark
+	public IParseResult length() {
+		return Models.LENGTH.Parse("5cm yes no");
+	}
+
+	@Benchmark
+	public IParseResult bool() {
+		return Models.BOOL.Parse("yes no");
+	}
+
+	@Benchmark
+	public IParseResult noMatch() {
+		return Models.NUMBER.Parse("kano 352 378 1974");
+	}
+}
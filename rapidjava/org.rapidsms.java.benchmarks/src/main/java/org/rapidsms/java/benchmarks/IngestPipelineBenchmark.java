@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.TimestampCodec;
+import org.rapidsms.java.core.ingest.IIngestStore;
+import org.rapidsms.java.core.ingest.InboundMessage;
+import org.rapidsms.java.core.ingest.IngestPipeline;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.IParseResult.ValueType;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.service.FormRouter;
+import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Receiving the bednets corpus, the given number of times over, end to end into
+ * a fresh sqlite database:
+ * 
+ * twoHops - the old SmsReceiver/SmsParseReceiver path, run inline without the
+ * broadcast between them: save the message in its own transaction, route and
+ * parse it, save the form data in another
+ * 
+ * pipeline - every message submitted to an IngestPipeline whose store saves a
+ * batch's messages and form data in one transaction, as IngestQueue does
+ * through applyBatch, timed until it's flushed
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IngestPipelineBenchmark {
+
+	@Param({ "10" })
+	public int rounds;
+
+	/**
+	 * IngestQueue.MAX_BATCH
+	 */
+	@Param({ "50" })
+	public int maxBatch;
+
+	private List<String> mMessages;
+	private Form mForm;
+	private File mFile;
+	private Connection mConnection;
+
+	/**
+	 * Writes to the benchmark's database the way the provider does, one
+	 * transaction per batch.
+	 */
+	class JdbcStore implements IIngestStore {
+		public void store(List<InboundMessage> batch) throws Exception {
+			mConnection.setAutoCommit(false);
+			PreparedStatement message = mConnection.prepareStatement(SqliteSchema.MESSAGE_INSERT);
+			PreparedStatement formdata = mConnection.prepareStatement(SqliteSchema.FORMDATA_INSERT);
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					InboundMessage m = batch.get(i);
+					m.setMessageId(insertMessage(message, m));
+					if (m.isParsed()) {
+						insertFormData(formdata, m.getMessageId(), m.getRecord());
+					}
+				}
+				mConnection.commit();
+			} catch (Exception e) {
+				mConnection.rollback();
+				throw e;
+			} finally {
+				message.close();
+				formdata.close();
+				mConnection.setAutoCommit(true);
+			}
+		}
+
+		public void storeFailed(List<InboundMessage> batch, Throwable cause) {
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mMessages = Corpus.bednets();
+		mForm = Models.bednets(ParserType.COMPILEDREGEX);
+	}
+
+	@Setup(Level.Invocation)
+	public void createDatabase() throws Exception {
+		mFile = File.createTempFile("rapidandroid-bench", ".db");
+		mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getAbsolutePath());
+		SqliteSchema.create(mConnection);
+	}
+
+	@TearDown(Level.Invocation)
+	public void dropDatabase() throws SQLException {
+		mConnection.close();
+		mFile.delete();
+	}
+
+	private long insertMessage(PreparedStatement message, InboundMessage m) throws SQLException {
+		message.setString(1, m.getPhone());
+		message.setInt(2, 1);
+		message.setString(3, TimestampCodec.SQL.format(m.getSentMillis()));
+		message.setString(4, m.getBody());
+		message.setInt(5, 0);
+		message.setInt(6, 0);
+		message.setString(7, TimestampCodec.SQL.format(m.getReceivedMillis()));
+		message.setLong(8, m.getSentMillis());
+		message.setLong(9, m.getReceivedMillis());
+		message.executeUpdate();
+		return SqliteSchema.lastInsertRowId(mConnection);
+	}
+
+	/**
+	 * Binds what ParsedDataTranslator.getFormDataValues puts in the row.
+	 */
+	private void insertFormData(PreparedStatement formdata, long messageId, ParseRecord record) throws SQLException {
+		formdata.setLong(1, messageId);
+		for (int f = 0; f < record.size(); f++) {
+			ValueType type = record.getValueType(f);
+			if (type == ValueType.INTEGER) {
+				formdata.setLong(f + 2, record.getLong(f));
+			} else if (type == ValueType.FLOAT) {
+				formdata.setDouble(f + 2, record.getDouble(f));
+			} else if (type == ValueType.BOOLEAN) {
+				formdata.setString(f + 2, record.getBoolean(f) ? "true" : "false");
+			} else if (type == ValueType.WORD) {
+				formdata.setString(f + 2, record.getToken(f));
+			} else {
+				formdata.setString(f + 2, "");
+			}
+		}
+		formdata.executeUpdate();
+	}
+
+	private InboundMessage receive(int i, long time) {
+		return new InboundMessage("+1617555" + (1000 + i % 50), mMessages.get(i), time, time + 5000);
+	}
+
+	@Benchmark
+	public int twoHops() throws SQLException {
+		FormRouter router = new FormRouter(new Form[] { mForm });
+		long time = 1230768000000L;
+		int count = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < mMessages.size(); i++) {
+				InboundMessage m = receive(i, time += 60000L);
+				PreparedStatement message = mConnection.prepareStatement(SqliteSchema.MESSAGE_INSERT);
+				long messageId = insertMessage(message, m);
+				message.close();
+
+				Form form = router.determineForm(m.getBody());
+				if (form != null) {
+					ParseRecord record = new ParseRecord();
+					ParsingService.ParseMessage(form, m.getBody(), record);
+					PreparedStatement formdata = mConnection.prepareStatement(SqliteSchema.FORMDATA_INSERT);
+					insertFormData(formdata, messageId, record);
+					formdata.close();
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int pipeline() throws Exception {
+		IngestPipeline pipeline = new IngestPipeline(new JdbcStore(), null, 1000, maxBatch, 200,
+														TimeUnit.MILLISECONDS);
+		pipeline.setRouter(new FormRouter(new Form[] { mForm }));
+		long time = 1230768000000L;
+		int count = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < mMessages.size(); i++) {
+				if (!pipeline.submit(receive(i, time += 60000L), 1, TimeUnit.MINUTES)) {
+					throw new IllegalStateException("pipeline stalled");
+				}
+				count++;
+			}
+		}
+		pipeline.shutdown(1, TimeUnit.MINUTES);
+		return count;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.parser.interpreter.BooleanInterpreter;
+import org.rapidsms.java.core.parser.interpreter.FloatInterpreter;
+import org.rapidsms.java.core.parser.interpreter.IParseInterpreter;
+import org.rapidsms.java.core.parser.interpreter.IntegerInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningBooleanInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningFloatInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningIntegerInterpreter;
+import org.rapidsms.java.core.parser.interpreter.StringInterpreter;
+import org.rapidsms.java.core.parser.service.InterpreterFactory;
+import org.rapidsms.java.core.parser.service.InterpreterFactory.InterpreterType;
+
+/**
+ * Each IParseInterpreter on the tokens the field type regexes hand it, one
+ * token per operation, plus the InterpreterFactory lookups. The regex
+ * interpreters are run next to the scanning ones that replaced them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+	private static final String[] INTEGER_TOKENS = { "352", "100cm", "100 m", "5cm", "1974", "12 meters" };
+	private static final String[] FLOAT_TOKENS = { "20kg", "21 kg", "2.5 kilos", "60%", "3/4", "0.6", "3:4" };
+	private static final String[] BOOLEAN_TOKENS = { "y", "n", "yes", "no", "true", "false", "t", "f" };
+	private static final String[] WORD_TOKENS = { "kano", "bichi", "karaye", "rano" };
+	private static final String[] TYPENAMES = { "boolean", "number", "word", "float", "integer" };
+	private static final InterpreterType[] TYPES = InterpreterType.values();
+
+	private IParseInterpreter integerInterpreter = new IntegerInterpreter();
+	private IParseInterpreter floatInterpreter = new FloatInterpreter();
+	private IParseInterpreter booleanInterpreter = new BooleanInterpreter();
+	private IParseInterpreter stringInterpreter = new StringInterpreter();
+	private IParseInterpreter scanningIntegerInterpreter = new ScanningIntegerInterpreter();
+	private IParseInterpreter scanningFloatInterpreter = new ScanningFloatInterpreter();
+	private IParseInterpreter scanningBooleanInterpreter = new ScanningBooleanInterpreter();
+
+	private int next;
+
+	private String token(String[] tokens) {
+		next++;
+		return tokens[(next & 0x7fffffff) % tokens.length];
+	}
+
+	@Benchmark
+	public Object integerInterpreter() {
+		return integerInterpreter.interpretValue(token(INTEGER_TOKENS));
+	}
+
+	@Benchmark
+	public Object floatInterpreter() {
+		return floatInterpreter.interpretValue(token(FLOAT_TOKENS));
+	}
+
+	@Benchmark
+	public Object booleanInterpreter() {
+		return booleanInterpreter.interpretValue(token(BOOLEAN_TOKENS));
+	}
+
+	@Benchmark
+	public Object scanningIntegerInterpreter() {
+		return scanningIntegerInterpreter.interpretValue(token(INTEGER_TOKENS));
+	}
+
+	@Benchmark
+	public Object scanningFloatInterpreter() {
+		return scanningFloatInterpreter.interpretValue(token(FLOAT_TOKENS));
+	}
+
+	@Benchmark
+	public Object scanningBooleanInterpreter() {
+		return scanningBooleanInterpreter.interpretValue(token(BOOLEAN_TOKENS));
+	}
+
+	@Benchmark
+	public int scanInt() {
+		return ScanningIntegerInterpreter.scanInt(token(INTEGER_TOKENS));
+	}
+
+	@Benchmark
+	public float scanFloat() {
+		return ScanningFloatInterpreter.scanFloat(token(FLOAT_TOKENS));
+	}
+
+	@Benchmark
+	public Object stringInterpreter() {
+		return stringInterpreter.interpretValue(token(WORD_TOKENS));
+	}
+
+	@Benchmark
+	public IParseInterpreter factoryByName() {
+		return InterpreterFactory.GetParseInterpreter(token(TYPENAMES));
+	}
+
+	@Benchmark
+	public IParseInterpreter factoryByType() {
+		next++;
+		return InterpreterFactory.GetParseInterpreter(TYPES[(next & 0x7fffffff) % TYPES.length]);
+	}
+}
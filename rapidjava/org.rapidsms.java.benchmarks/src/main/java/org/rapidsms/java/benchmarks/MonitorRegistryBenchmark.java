@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.model.Monitor;
+import org.rapidsms.java.core.model.MonitorRegistry;
+
+/**
+ * Monitor lookups by phone with the given number of reporters, and the cost of
+ * a new sender: MessageTranslator's old pair of HashMaps behind one lock,
+ * rebuilt from every monitor row when one is added, against the
+ * MonitorRegistry, which adds just the new one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorRegistryBenchmark {
+
+	@Param({ "50000" })
+	public int monitors;
+
+	private List<Monitor> mRows;
+	private String[] mSenders;
+	private int mNext = 0;
+
+	private HashMap<Integer, Monitor> mHashById;
+	private HashMap<String, Monitor> mHashByPhone;
+	private MonitorRegistry mRegistry;
+	private int mNewId;
+
+	@Setup
+	public void setup() {
+		mRows = new ArrayList<Monitor>(monitors);
+		mSenders = new String[monitors];
+		for (int i = 0; i < monitors; i++) {
+			String phone = "+234803" + (1000000 + i);
+			mRows.add(new Monitor(i + 1, "", "", phone, phone, "", 0, false));
+			mSenders[i] = phone;
+		}
+		rebuildHashes();
+		mRegistry = new MonitorRegistry(null);
+		mRegistry.replaceAll(mRows);
+		mNewId = monitors + 1;
+	}
+
+	/**
+	 * what updateMonitorHash did after every new monitor, minus the query
+	 */
+	private void rebuildHashes() {
+		HashMap<Integer, Monitor> byId = new HashMap<Integer, Monitor>();
+		HashMap<String, Monitor> byPhone = new HashMap<String, Monitor>();
+		for (int i = 0; i < mRows.size(); i++) {
+			Monitor m = mRows.get(i);
+			byId.put(Integer.valueOf(m.getID()), m);
+			byPhone.put(m.getPhone(), m);
+		}
+		mHashById = byId;
+		mHashByPhone = byPhone;
+	}
+
+	private String nextSender() {
+		String sender = mSenders[mNext];
+		mNext = (mNext + 1) % mSenders.length;
+		return sender;
+	}
+
+	@Benchmark
+	public Monitor lookupSynchronizedHashMap() {
+		String phone = nextSender();
+		synchronized (this) {
+			return mHashByPhone.get(phone);
+		}
+	}
+
+	@Benchmark
+	public Monitor lookupRegistry() {
+		return mRegistry.getByPhone(nextSender());
+	}
+
+	@Benchmark
+	public int newSenderRebuild() {
+		int id = mNewId++;
+		String phone = "+1617" + id;
+		synchronized (this) {
+			mRows.add(new Monitor(id, "", "", phone, phone, "", 0, false));
+			rebuildHashes();
+			// keep the table from growing without bound over the run
+			mRows.remove(mRows.size() - 1);
+			return mHashById.size();
+		}
+	}
+
+	@Benchmark
+	public int newSenderRegistry() {
+		int id = mNewId++;
+		String phone = "+1617" + id;
+		mRegistry.put(new Monitor(id, "", "", phone, phone, "", 0, false));
+		return mRegistry.size();
+	}
+}
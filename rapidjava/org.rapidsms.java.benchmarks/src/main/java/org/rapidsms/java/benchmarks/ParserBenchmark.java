@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.CompiledFormParser;
+import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.SimpleRegexParser;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Whole message parse, one message per operation, so ops/s is messages/s and
+ * the gc profiler's alloc.rate.norm is bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	/**
+	 * bednets: the shipped corpus. synthetic-*: generated corpora.
+	 */
+	@Param({ "bednets", "synthetic-bednets", "synthetic-nutrition" })
+	public String corpus;
+
+	@Param({ "10000" })
+	public int syntheticSize;
+
+	private String[] messages;
+	private Form form;
+	private int next;
+
+	private SimpleRegexParser simpleRegexParser = new SimpleRegexParser();
+	private CompiledFormParser compiledFormParser = new CompiledFormParser();
+	private ParseRecord record = new ParseRecord();
+
+	@Setup
+	public void setup() {
+		List<String> list;
+		if (corpus.equals("bednets")) {
+			list = Corpus.bednets();
+			form = Models.bednets(ParserType.SIMPLEREGEX);
+		} else if (corpus.equals("synthetic-bednets")) {
+			list = Corpus.syntheticBednets(syntheticSize, 42);
+			form = Models.bednets(ParserType.SIMPLEREGEX);
+		} else if (corpus.equals("synthetic-nutrition")) {
+			list = Corpus.syntheticNutrition(syntheticSize, 42);
+			form = Models.nutrition(ParserType.SIMPLEREGEX);
+		} else {
+			throw new IllegalArgumentException("unknown corpus " + corpus);
+		}
+		messages = list.toArray(new String[list.size()]);
+	}
+
+	private String nextMessage() {
+		String message = messages[next];
+		if (++next == messages.length) {
+			next = 0;
+		}
+		return message;
+	}
+
+	@Benchmark
+	public Vector<IParseResult> simpleRegexParser() {
+		return simpleRegexParser.ParseMessage(form, nextMessage());
+	}
+
+	@Benchmark
+	public Vector<IParseResult> compiledFormParser() {
+		return compiledFormParser.ParseMessage(form, nextMessage());
+	}
+
+	/**
+	 * the compiled parser writing primitives into one reused record
+	 */
+	@Benchmark
+	public ParseRecord compiledFormParserRecord() {
+		compiledFormParser.ParseMessage(form, nextMessage(), record);
+		return record;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The current rapidandroid schema for the sqlite benchmarks, copied from
+ * SmsDbHelper.onCreate, ModelTranslator.generateFormTable and
+ * SmsDbHelper.createFormDataIndex for the bednets form.
+ */
+public class SqliteSchema {
+
+	public static final String MESSAGE_INSERT = "INSERT INTO rapidandroid_message "
+			+ "(phone, monitor_id, time, message, is_outgoing, is_virtual, receive_time, time_millis, "
+			+ "receive_time_millis) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String FORMDATA_INSERT = "INSERT INTO formdata_bednets "
+			+ "(message_id, col_location, col_received, col_given, col_balance) VALUES (?, ?, ?, ?, ?)";
+
+	public static void create(Connection connection) throws SQLException {
+		Statement st = connection.createStatement();
+		st.execute("CREATE TABLE \"rapidandroid_message\" (" + "\"_id\" integer NOT NULL PRIMARY KEY,"
+				+ "\"phone\" varchar(30) NULL,"
+				+ "\"monitor_id\" integer NULL REFERENCES \"rapidandroid_monitor\" (\"id\"),"
+				+ "\"time\" datetime NOT NULL," + "\"message\" varchar(160) NOT NULL,"
+				+ "\"is_outgoing\" bool NOT NULL," + "\"is_virtual\" bool NOT NULL,"
+				+ "\"receive_time\" datetime NULL," + "\"time_millis\" integer NULL,"
+				+ "\"receive_time_millis\" integer NULL);");
+		st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_time_millis\" ON \"rapidandroid_message\" (\"time_millis\");");
+		st.execute("CREATE INDEX IF NOT EXISTS \"rapidandroid_message_monitor_time_millis\" ON \"rapidandroid_message\" (\"monitor_id\", \"time_millis\");");
+		st.execute("create table formdata_bednets ( \"_id\" integer not null PRIMARY KEY, "
+				+ " \"message_id\" integer not null references \"message\", "
+				+ " \"col_location\" varchar(36) NULL,  \"col_received\" float NULL, "
+				+ " \"col_given\" float NULL,  \"col_balance\" float NULL );");
+		st.execute("CREATE INDEX IF NOT EXISTS \"formdata_bednets_message_id\" ON \"formdata_bednets\" (\"message_id\");");
+		st.close();
+	}
+
+	/**
+	 * @return the rowid of the last insert on the connection
+	 */
+	public static long lastInsertRowId(Connection connection) throws SQLException {
+		Statement st = connection.createStatement();
+		try {
+			return st.executeQuery("select last_insert_rowid()").getLong(1);
+		} finally {
+			st.close();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.benchmarks;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rapidsms.java.core.chart.TimeBuckets;
+
+/**
+ * TimeBuckets against the Calendar helpers ChartBroker had, copied below, for
+ * each displayType (the TimeBuckets type, 0 hourly to 4 yearly):
+ * 
+ * floor - the bucket of one point, getDate
+ * 
+ * displayType - the bucketing of one range, getDisplayType
+ * 
+ * gapFill - filling the zeros into a series with a point in every third bucket
+ * of a typical range for the bucketing, the getNextValue/isBefore walk of
+ * getJSONArrayForValues. One operation is the whole series.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeBucketsBenchmark {
+
+	@Param({ "0", "1", "2", "3", "4" })
+	public int displayType;
+
+	private static final int COUNT = 4096;
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	private static final int[] CALENDAR_FIELDS = { Calendar.HOUR, Calendar.DATE, Calendar.WEEK_OF_YEAR,
+			Calendar.MONTH, Calendar.YEAR };
+	/**
+	 * the length of a typical range for each bucketing, in days
+	 */
+	private static final long[] RANGE_DAYS = { 3, 90, 730, 1461, 3652 };
+
+	private TimeZone zone = TimeZone.getDefault();
+	private long[] millis = new long[COUNT];
+	private long[] rangeEnds = new long[COUNT];
+	private int next;
+
+	private Date[] seriesDates;
+	private int[] seriesValues;
+
+	@Setup
+	public void setup() {
+		long start = 1233261870000L;
+		for (int i = 0; i < COUNT; i++) {
+			millis[i] = start + i * 3701377L;
+			rangeEnds[i] = millis[i] + (i % 5 + 1) * RANGE_DAYS[i % 5] * DAY_MILLIS / 3;
+		}
+		TimeBuckets range = new TimeBuckets(zone, displayType, start, start + RANGE_DAYS[displayType] * DAY_MILLIS);
+		int points = (range.size() + 2) / 3;
+		seriesDates = new Date[points];
+		seriesValues = new int[points];
+		for (int i = 0; i < points; i++) {
+			seriesDates[i] = new Date(range.getStart(i * 3));
+			seriesValues[i] = i + 1;
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (COUNT - 1);
+		return next;
+	}
+
+	@Benchmark
+	public Date calendarFloor() {
+		return getDate(displayType, millis[nextIndex()]);
+	}
+
+	@Benchmark
+	public long bucketsFloor() {
+		return TimeBuckets.floor(zone, displayType, millis[nextIndex()]);
+	}
+
+	@Benchmark
+	public int calendarDisplayType() {
+		int i = nextIndex();
+		return getDisplayType(new Date(millis[i]), new Date(rangeEnds[i]));
+	}
+
+	@Benchmark
+	public int bucketsDisplayType() {
+		int i = nextIndex();
+		return TimeBuckets.getDisplayType(zone, millis[i], rangeEnds[i]);
+	}
+
+	@Benchmark
+	public void calendarGapFill(Blackhole bh) {
+		Date prevVal = null;
+		for (int i = 0; i < seriesDates.length; i++) {
+			Date thisVal = seriesDates[i];
+			if (prevVal != null) {
+				Date nextInSeries = getNextValue(displayType, prevVal);
+				while (isBefore(displayType, nextInSeries, thisVal)) {
+					bh.consume(nextInSeries.getTime());
+					bh.consume(0);
+					nextInSeries = getNextValue(displayType, nextInSeries);
+				}
+			}
+			bh.consume(thisVal.getTime());
+			bh.consume(seriesValues[i]);
+			prevVal = thisVal;
+		}
+	}
+
+	@Benchmark
+	public void bucketsGapFill(Blackhole bh) {
+		int datalen = seriesDates.length;
+		TimeBuckets buckets = new TimeBuckets(zone, displayType, seriesDates[0].getTime(),
+												seriesDates[datalen - 1].getTime());
+		int[] counts = new int[buckets.size()];
+		for (int i = 0; i < datalen; i++) {
+			counts[buckets.indexOf(seriesDates[i].getTime())] += seriesValues[i];
+		}
+		for (int b = 0; b < counts.length; b++) {
+			bh.consume(buckets.getStart(b));
+			bh.consume(counts[b]);
+		}
+	}
+
+	// ChartBroker before TimeBuckets
+
+	private static int getDisplayType(Date startDate, Date endDate) {
+		Calendar startCal = Calendar.getInstance();
+		startCal.setTime(startDate);
+		Calendar endCal = Calendar.getInstance();
+		endCal.setTime(endDate);
+
+		Calendar tempCal = Calendar.getInstance();
+		tempCal.setTime(startDate);
+		tempCal.add(Calendar.DATE, 3);
+		if (endCal.before(tempCal)) {
+			return TimeBuckets.HOURLY;
+		}
+		tempCal.setTime(startDate);
+		tempCal.add(Calendar.MONTH, 3);
+		if (endCal.before(tempCal)) {
+			return TimeBuckets.DAILY;
+		}
+		tempCal.setTime(startDate);
+		tempCal.add(Calendar.YEAR, 2);
+		if (endCal.before(tempCal)) {
+			return TimeBuckets.WEEKLY;
+		}
+		tempCal.setTime(startDate);
+		tempCal.add(Calendar.YEAR, 4);
+		if (endCal.before(tempCal)) {
+			return TimeBuckets.MONTHLY;
+		}
+		return TimeBuckets.YEARLY;
+	}
+
+	private static Date getNextValue(int displayType, Date date) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		cal.add(CALENDAR_FIELDS[displayType], 1);
+		return cal.getTime();
+	}
+
+	private static boolean isBefore(int displayType, Date date1, Date date2) {
+		Calendar cal1 = Calendar.getInstance();
+		cal1.setTime(date1);
+		Calendar cal2 = Calendar.getInstance();
+		cal2.setTime(date2);
+		if (cal2.before(cal1)) {
+			return false;
+		}
+		if (cal1.get(Calendar.YEAR) < cal2.get(Calendar.YEAR)) {
+			return true;
+		} else if (cal1.get(Calendar.YEAR) > cal2.get(Calendar.YEAR) || displayType == TimeBuckets.YEARLY) {
+			return false;
+		}
+		if (cal1.get(Calendar.MONTH) < cal2.get(Calendar.MONTH)) {
+			return true;
+		} else if (cal1.get(Calendar.MONTH) > cal2.get(Calendar.MONTH) || displayType == TimeBuckets.MONTHLY) {
+			return false;
+		}
+		if (cal1.get(Calendar.WEEK_OF_YEAR) < cal2.get(Calendar.WEEK_OF_YEAR)) {
+			return true;
+		} else if (cal1.get(Calendar.WEEK_OF_YEAR) > cal2.get(Calendar.WEEK_OF_YEAR)
+				|| displayType == TimeBuckets.WEEKLY) {
+			return false;
+		}
+		if (cal1.get(Calendar.DATE) < cal2.get(Calendar.DATE)) {
+			return true;
+		} else if (cal1.get(Calendar.DATE) > cal2.get(Calendar.DATE) || displayType == TimeBuckets.DAILY) {
+			return false;
+		}
+		return cal1.get(Calendar.HOUR) < cal2.get(Calendar.HOUR);
+	}
+
+	private static Date getDate(int displayType, long millis) {
+		Calendar rawCal = Calendar.getInstance();
+		rawCal.setTimeInMillis(millis);
+		Calendar calToReturn = Calendar.getInstance();
+		rawCal.set(Calendar.MINUTE, 0);
+		rawCal.set(Calendar.SECOND, 0);
+		switch (displayType) {
+			case TimeBuckets.DAILY:
+				rawCal.set(Calendar.HOUR, 0);
+				break;
+			case TimeBuckets.WEEKLY:
+				rawCal.set(Calendar.HOUR, 0);
+				rawCal.set(Calendar.DAY_OF_WEEK, 1);
+				break;
+			case TimeBuckets.MONTHLY:
+				rawCal.set(Calendar.HOUR, 0);
+				rawCal.set(Calendar.DAY_OF_MONTH, 1);
+				break;
+			case TimeBuckets.YEARLY:
+				rawCal.set(Calendar.HOUR, 0);
+				rawCal.set(Calendar.DAY_OF_MONTH, 1);
+				rawCal.set(Calendar.MONTH, 1);
+				break;
+		}
+		calToReturn.getTime();
+		return rawCal.getTime();
+	}
+}
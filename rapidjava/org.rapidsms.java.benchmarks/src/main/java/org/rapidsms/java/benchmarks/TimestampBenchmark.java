@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.benchmarks;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rapidsms.java.core.TimestampCodec;
+
+/**
+ * TimestampCodec against the SimpleDateFormat it replaced, on the yyyy-MM-dd
+ * HH:mm:ss layout message times are stored in. stepMillis is how far apart
+ * consecutive timestamps are: 0 is a burst of messages in the same second, 1000
+ * a message a second, and 3600000 an hour apart, where the codec caches never
+ * hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+
+	@Param({ "0", "1000", "3600000" })
+	public long stepMillis;
+
+	private static final int COUNT = 4096;
+
+	private DateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private TimestampCodec codec = new TimestampCodec("yyyy-MM-dd HH:mm:ss", TimeZone.getDefault());
+
+	private long[] millis = new long[COUNT];
+	private Date[] dates = new Date[COUNT];
+	private String[] texts = new String[COUNT];
+	private int next;
+
+	@Setup
+	public void setup() {
+		long start = 1233261870000L;
+		for (int i = 0; i < COUNT; i++) {
+			millis[i] = start + i * stepMillis;
+			dates[i] = new Date(millis[i]);
+			texts[i] = simpleDateFormat.format(dates[i]);
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (COUNT - 1);
+		return next;
+	}
+
+	@Benchmark
+	public String simpleDateFormatFormat() {
+		return simpleDateFormat.format(dates[nextIndex()]);
+	}
+
+	@Benchmark
+	public String codecFormat() {
+		return codec.format(millis[nextIndex()]);
+	}
+
+	@Benchmark
+	public Date simpleDateFormatParse() throws ParseException {
+		return simpleDateFormat.parse(texts[nextIndex()]);
+	}
+
+	@Benchmark
+	public long codecParse() throws ParseException {
+		return codec.parseMillis(texts[nextIndex()]);
+	}
+}
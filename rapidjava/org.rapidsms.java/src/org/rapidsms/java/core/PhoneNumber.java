@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core;
+
+/**
+ * Normalizes sender phone numbers and packs them into a long, so they can be
+ * looked up without hashing and comparing strings.
+ * 
+ * Spaces, dashes, dots, slashes and parentheses are dropped. A number with a
+ * leading + or 00 is international (E.164). A number without one is dialed
+ * nationally. With a default country calling code, it's made international by
+ * dropping a single trunk 0 and prepending the code. Without one, it's kept as
+ * dialed and is a different key from the same number written internationally.
+ * E.164 numbers are at most 15 digits.
+ * 
+ * The packed key is the digits as a number in the low 50 bits, the digit count
+ * in the 4 bits above that (so leading zeros survive), and a flag for
+ * international numbers. It's never 0. Senders that aren't phone numbers
+ * (alphanumeric sender ids, email gateways) have no key and pack() returns
+ * NOT_A_NUMBER.
+ */
+public class PhoneNumber {
+
+	public static final long NOT_A_NUMBER = 0;
+
+	public static final int MAX_DIGITS = 15;
+
+	private static final int LENGTH_SHIFT = 50;
+	private static final long VALUE_MASK = (1L << LENGTH_SHIFT) - 1;
+	private static final long INTERNATIONAL = 1L << 54;
+
+	/**
+	 * Pack a phone number into its key.
+	 * 
+	 * @param phone
+	 * @param defaultCountryCode
+	 *            calling code for national numbers, e.g. "234", or null to
+	 *            leave them national
+	 * @return the key, or NOT_A_NUMBER
+	 */
+	public static long pack(String phone, String defaultCountryCode) {
+		if (phone == null) {
+			return NOT_A_NUMBER;
+		}
+		int len = phone.length();
+		int pos = 0;
+		while (pos < len && phone.charAt(pos) <= ' ') {
+			pos++;
+		}
+		boolean international = false;
+		if (pos < len && phone.charAt(pos) == '+') {
+			international = true;
+			pos++;
+		} else if (pos + 1 < len && phone.charAt(pos) == '0' && phone.charAt(pos + 1) == '0') {
+			international = true;
+			pos += 2;
+		}
+
+		long value = 0;
+		int digits = 0;
+		if (!international && defaultCountryCode != null) {
+			int ccLen = defaultCountryCode.length();
+			for (int i = 0; i < ccLen; i++) {
+				char c = defaultCountryCode.charAt(i);
+				if (c < '0' || c > '9') {
+					throw new IllegalArgumentException("bad country calling code " + defaultCountryCode);
+				}
+				value = value * 10 + (c - '0');
+				digits++;
+			}
+			international = true;
+			// a national number's trunk prefix isn't part of the E.164 form
+			int first = skipSeparators(phone, pos, len);
+			if (first < len && phone.charAt(first) == '0') {
+				pos = first + 1;
+			}
+		}
+
+		int start = digits;
+		for (; pos < len; pos++) {
+			char c = phone.charAt(pos);
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_DIGITS) {
+					return NOT_A_NUMBER;
+				}
+				value = value * 10 + (c - '0');
+			} else if (!isSeparator(c)) {
+				// trailing whitespace is fine, anything else isn't a number
+				if (c > ' ' || phone.substring(pos).trim().length() > 0) {
+					return NOT_A_NUMBER;
+				}
+				break;
+			}
+		}
+		if (digits == start) {
+			return NOT_A_NUMBER;
+		}
+		if (international && firstDigitIsZero(value, digits)) {
+			// no country code starts with 0
+			return NOT_A_NUMBER;
+		}
+		long key = ((long) digits << LENGTH_SHIFT) | value;
+		return international ? key | INTERNATIONAL : key;
+	}
+
+	/**
+	 * @return the normalized number, +digits for an international number and
+	 *         the plain digits otherwise
+	 */
+	public static String unpack(long key) {
+		if (key == NOT_A_NUMBER) {
+			return null;
+		}
+		int digits = (int) ((key >>> LENGTH_SHIFT) & 0xF);
+		long value = key & VALUE_MASK;
+		char[] out = new char[digits + 1];
+		for (int i = digits; i > 0; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		if ((key & INTERNATIONAL) != 0) {
+			out[0] = '+';
+			return new String(out);
+		}
+		return new String(out, 1, digits);
+	}
+
+	/**
+	 * @return the number in its normalized form, or null if it isn't one
+	 */
+	public static String normalize(String phone, String defaultCountryCode) {
+		return unpack(pack(phone, defaultCountryCode));
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == ' ' || c == '-' || c == '.' || c == '(' || c == ')' || c == '/';
+	}
+
+	private static int skipSeparators(String phone, int pos, int len) {
+		while (pos < len && isSeparator(phone.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean firstDigitIsZero(long value, int digits) {
+		long first = value;
+		for (int i = 1; i < digits; i++) {
+			first /= 10;
+		}
+		return first == 0;
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread safe replacement for the shared static SimpleDateFormats used for
+ * message timestamps.
+ * 
+ * SimpleDateFormat isn't safe to share between threads and goes through a
+ * Calendar on every call. These fixed layouts are formatted and parsed with
+ * plain arithmetic on the epoch millis (days to y/m/d on the proleptic
+ * Gregorian calendar), in the time zone the codec was made with, same as the
+ * SimpleDateFormats picked up the default zone when they were made.
+ * 
+ * The last formatted value is cached per second (per minute or day for the
+ * display layouts) so formatting the same time twice, the common case when a
+ * burst of messages comes in, returns the same String without allocating. Each
+ * cache is an immutable entry swapped in through a volatile field, so readers
+ * never lock.
+ * 
+ * Anything outside 1583-9999, where SimpleDateFormat switches to the Julian
+ * calendar or the year no longer has 4 digits, and any string that isn't
+ * exactly in the layout, is handed to a per-thread SimpleDateFormat so the
+ * results stay the same as before.
+ */
+public class TimestampCodec {
+
+	/**
+	 * yyyy-MM-dd HH:mm:ss, what SQLite likes, for storing and querying
+	 * message times
+	 */
+	public static final TimestampCodec SQL = new TimestampCodec("yyyy-MM-dd HH:mm:ss", TimeZone.getDefault());
+	/**
+	 * MM/dd/yyyy HH:mm, for showing a message time in the UI
+	 */
+	public static final TimestampCodec DISPLAY_DATETIME = new TimestampCodec("MM/dd/yyyy HH:mm", TimeZone.getDefault());
+	/**
+	 * MM/dd/yyyy
+	 */
+	public static final TimestampCodec DISPLAY_DATE = new TimestampCodec("MM/dd/yyyy", TimeZone.getDefault());
+
+	private static final long MILLIS_PER_SECOND = 1000L;
+	private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+	private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+	/**
+	 * 1583-01-01T00:00:00Z and 10000-01-01T00:00:00Z, padded by a day either
+	 * side for the zone offset
+	 */
+	private static final long MIN_FAST_MILLIS = -12212553600000L + MILLIS_PER_DAY;
+	private static final long MAX_FAST_MILLIS = 253402300800000L - MILLIS_PER_DAY;
+
+	/**
+	 * A formatted value and the local time unit it's good for.
+	 */
+	private static final class Entry {
+		final long unit;
+		final long minute;
+		final String text;
+
+		Entry(long unit, long minute, String text) {
+			this.unit = unit;
+			this.minute = minute;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * A parsed string, only its prefix (everything down to the minute) is
+	 * looked at, and the utc millis of the start of that minute.
+	 */
+	private static final class ParsedPrefix {
+		final String text;
+		final long millis;
+
+		ParsedPrefix(String text, long millis) {
+			this.text = text;
+			this.millis = millis;
+		}
+	}
+
+	private final String mPattern;
+	private final TimeZone mZone;
+	private final char[] mTemplate;
+	private final int mYear;
+	private final int mMonth;
+	private final int mDay;
+	private final int mHour;
+	private final int mMinute;
+	private final int mSecond;
+	/**
+	 * the local time unit the text changes with: a second, minute or day
+	 */
+	private final long mUnit;
+	/**
+	 * length of the part of the layout that comes before the seconds
+	 */
+	private final int mPrefixLength;
+
+	private volatile Entry mLastFormatted = new Entry(Long.MIN_VALUE, Long.MIN_VALUE, null);
+	private volatile ParsedPrefix mLastParsed = new ParsedPrefix(null, 0);
+
+	private final ThreadLocal<DateFormat> mFallback = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			DateFormat format = new SimpleDateFormat(mPattern);
+			format.setTimeZone(mZone);
+			return format;
+		}
+	};
+
+	/**
+	 * @param pattern
+	 *            a SimpleDateFormat pattern made of yyyy, MM, dd, HH, mm and
+	 *            ss, each at most once, and separator characters
+	 * @param zone
+	 */
+	public TimestampCodec(String pattern, TimeZone zone) {
+		mPattern = pattern;
+		mZone = zone;
+		mTemplate = pattern.toCharArray();
+		mYear = field(pattern, "yyyy");
+		mMonth = field(pattern, "MM");
+		mDay = field(pattern, "dd");
+		mHour = field(pattern, "HH");
+		mMinute = field(pattern, "mm");
+		mSecond = field(pattern, "ss");
+		if (mYear < 0 || mMonth < 0 || mDay < 0) {
+			throw new IllegalArgumentException("a timestamp layout needs yyyy, MM and dd: " + pattern);
+		}
+		for (int i = 0; i < mTemplate.length; i++) {
+			char c = mTemplate[i];
+			boolean inField = isIn(i, mYear, 4) || isIn(i, mMonth, 2) || isIn(i, mDay, 2) || isIn(i, mHour, 2)
+					|| isIn(i, mMinute, 2) || isIn(i, mSecond, 2);
+			if (!inField && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+				throw new IllegalArgumentException("unsupported pattern letter " + c + " in " + pattern);
+			}
+		}
+		if (mSecond >= 0 && mSecond != mTemplate.length - 2) {
+			// the per minute caches rely on the seconds coming last
+			throw new IllegalArgumentException("ss has to come last in " + pattern);
+		}
+		if (mSecond >= 0) {
+			mUnit = MILLIS_PER_SECOND;
+		} else if (mMinute >= 0) {
+			mUnit = MILLIS_PER_MINUTE;
+		} else {
+			mUnit = MILLIS_PER_DAY;
+		}
+		mPrefixLength = mSecond >= 0 ? mSecond : mTemplate.length;
+	}
+
+	private static int field(String pattern, String field) {
+		int index = pattern.indexOf(field);
+		if (index >= 0 && pattern.indexOf(field.charAt(0), index + field.length()) >= 0) {
+			throw new IllegalArgumentException("unsupported pattern " + pattern);
+		}
+		return index;
+	}
+
+	private static boolean isIn(int i, int start, int length) {
+		return start >= 0 && i >= start && i < start + length;
+	}
+
+	public String getPattern() {
+		return mPattern;
+	}
+
+	public TimeZone getTimeZone() {
+		return mZone;
+	}
+
+	/**
+	 * @param date
+	 * @return the date in this layout
+	 */
+	public String format(Date date) {
+		return format(date.getTime());
+	}
+
+	/**
+	 * @param millis
+	 *            utc epoch millis
+	 * @return the time in this layout
+	 */
+	public String format(long millis) {
+		if (millis < MIN_FAST_MILLIS || millis > MAX_FAST_MILLIS) {
+			return mFallback.get().format(new Date(millis));
+		}
+		long local = millis + mZone.getOffset(millis);
+		long unit = floorDiv(local, mUnit);
+		Entry last = mLastFormatted;
+		if (last.unit == unit) {
+			return last.text;
+		}
+
+		long minute = floorDiv(local, MILLIS_PER_MINUTE);
+		char[] chars = new char[mTemplate.length];
+		if (last.minute == minute) {
+			// same minute, only the seconds change
+			last.text.getChars(0, mPrefixLength, chars, 0);
+			System.arraycopy(mTemplate, mPrefixLength, chars, mPrefixLength, mTemplate.length - mPrefixLength);
+			put2(chars, mSecond, (int) floorMod(floorDiv(local, MILLIS_PER_SECOND), 60));
+		} else {
+			write(local, chars);
+		}
+		String text = new String(chars);
+		mLastFormatted = new Entry(unit, minute, text);
+		return text;
+	}
+
+	/**
+	 * Append the formatted time, without allocating when it's in the same
+	 * second as the last one formatted.
+	 * 
+	 * @param millis
+	 * @param sb
+	 * @return sb
+	 */
+	public StringBuilder appendTo(long millis, StringBuilder sb) {
+		return sb.append(format(millis));
+	}
+
+	private void write(long local, char[] chars) {
+		System.arraycopy(mTemplate, 0, chars, 0, mTemplate.length);
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int seconds = (int) ((local - days * MILLIS_PER_DAY) / MILLIS_PER_SECOND);
+
+		// civil from days, after Howard Hinnant's date algorithms. Shifted so
+		// the year starts in March and the leap day is the last day.
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+		put4(chars, mYear, year);
+		put2(chars, mMonth, month);
+		put2(chars, mDay, day);
+		if (mHour >= 0) {
+			put2(chars, mHour, seconds / 3600);
+		}
+		if (mMinute >= 0) {
+			put2(chars, mMinute, (seconds / 60) % 60);
+		}
+		if (mSecond >= 0) {
+			put2(chars, mSecond, seconds % 60);
+		}
+	}
+
+	/**
+	 * @param text
+	 * @return the time the text stands for
+	 * @throws ParseException
+	 *             as SimpleDateFormat.parse() would
+	 */
+	public Date parse(String text) throws ParseException {
+		return new Date(parseMillis(text));
+	}
+
+	/**
+	 * @param text
+	 * @return the utc epoch millis of the time the text stands for
+	 * @throws ParseException
+	 *             as SimpleDateFormat.parse() would
+	 */
+	public long parseMillis(String text) throws ParseException {
+		int length = mTemplate.length;
+		if (text.length() != length) {
+			return fallbackParse(text);
+		}
+		for (int i = 0; i < length; i++) {
+			char c = mTemplate[i];
+			if (!isLetter(c) && text.charAt(i) != c) {
+				return fallbackParse(text);
+			}
+		}
+
+		int second = 0;
+		if (mSecond >= 0) {
+			second = get2(text, mSecond);
+			if (second < 0 || second > 59) {
+				return fallbackParse(text);
+			}
+		}
+		ParsedPrefix last = mLastParsed;
+		if (last.text != null && text.regionMatches(0, last.text, 0, mPrefixLength)) {
+			return last.millis + second * MILLIS_PER_SECOND;
+		}
+
+		int year = get4(text, mYear);
+		int month = get2(text, mMonth);
+		int day = get2(text, mDay);
+		int hour = mHour >= 0 ? get2(text, mHour) : 0;
+		int minute = mMinute >= 0 ? get2(text, mMinute) : 0;
+		if (year < 1583 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0
+				|| hour > 23 || minute < 0 || minute > 59) {
+			// out of range fields roll over in a lenient SimpleDateFormat,
+			// leave that to it
+			return fallbackParse(text);
+		}
+
+		long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY + (hour * 60 + minute) * MILLIS_PER_MINUTE;
+		long minuteMillis = toUtc(local);
+		mLastParsed = new ParsedPrefix(text, minuteMillis);
+		return minuteMillis + second * MILLIS_PER_SECOND;
+	}
+
+	/**
+	 * Local wall time to utc the way a lenient Calendar does it: a time that
+	 * happens twice when the clocks go back is taken as standard time, and a
+	 * time skipped when they go forward as if they hadn't yet.
+	 */
+	private long toUtc(long local) {
+		int raw = mZone.getRawOffset();
+		int offset = mZone.getOffset(local - raw);
+		long utc = local - offset;
+		if (mZone.getOffset(utc) != offset) {
+			utc = local - raw;
+		}
+		return utc;
+	}
+
+	private long fallbackParse(String text) throws ParseException {
+		return mFallback.get().parse(text).getTime();
+	}
+
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+			case 2:
+				return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static void put2(char[] chars, int at, int value) {
+		chars[at] = (char) ('0' + value / 10);
+		chars[at + 1] = (char) ('0' + value % 10);
+	}
+
+	private static void put4(char[] chars, int at, int value) {
+		put2(chars, at, value / 100);
+		put2(chars, at + 2, value % 100);
+	}
+
+	/**
+	 * @return the 2 digit number at the position, -1 if it isn't one
+	 */
+	private static int get2(String text, int at) {
+		int hi = text.charAt(at) - '0';
+		int lo = text.charAt(at + 1) - '0';
+		if (hi < 0 || hi > 9 || lo < 0 || lo > 9) {
+			return -1;
+		}
+		return hi * 10 + lo;
+	}
+
+	private static int get4(String text, int at) {
+		int hi = get2(text, at);
+		int lo = get2(text, at + 2);
+		if (hi < 0 || lo < 0) {
+			return -1;
+		}
+		return hi * 100 + lo;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0))) {
+			q--;
+		}
+		return q;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * The flag a chart load polls to find out it's been superseded. A load is never
+ * interrupted, it checks isCancelled() or throwIfCancelled() between rows and
+ * gives up on its own.
+ * 
+ * Thread safe.
+ */
+public class CancellationToken {
+
+	private volatile boolean mCancelled;
+
+	/**
+	 * Ask the load holding this token to stop. It can't be undone.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             if the load has been cancelled
+	 */
+	public void throwIfCancelled() {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+	}
+}
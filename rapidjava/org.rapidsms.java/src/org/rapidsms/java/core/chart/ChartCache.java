@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Least recently used cache of computed chart data, bounded by an estimate of
+ * the memory it holds rather than by entry count, since one chart can be a
+ * handful of bars and the next a few thousand points.
+ * 
+ * Entries are keyed by everything the chart was computed from, and are dropped
+ * by form when that form's data changes. Each form has a generation that
+ * invalidateForm() moves on. A chart is computed against the generation read
+ * before it started, and put() throws it away if the form changed while it was
+ * being computed, so a chart that missed an insert is never cached.
+ * 
+ * The store changing the data doesn't need to know which caches hold charts of
+ * it: invalidateFormInAll() and invalidateAllCaches() reach every cache there
+ * is.
+ * 
+ * Thread safe.
+ */
+public class ChartCache<V> {
+
+	/**
+	 * What a chart was computed from.
+	 */
+	public static final class Key {
+		private final String mChart;
+		private final int mFormId;
+		private final String mField;
+		private final int mPlot;
+		private final long mStart;
+		private final long mEnd;
+		private final int mDisplayType;
+		private final int mHash;
+
+		/**
+		 * @param chart
+		 *            the kind of chart, so different charts of the same form
+		 *            don't collide
+		 * @param formId
+		 *            the form whose data it's computed from, the one that
+		 *            invalidates it
+		 * @param field
+		 *            the field plotted, null if none
+		 * @param plot
+		 *            how it's plotted
+		 * @param start
+		 *            the start of the range in millis
+		 * @param end
+		 *            the end of the range in millis
+		 * @param displayType
+		 *            the bucketing of the range
+		 */
+		public Key(String chart, int formId, String field, int plot, long start, long end, int displayType) {
+			mChart = chart;
+			mFormId = formId;
+			mField = field;
+			mPlot = plot;
+			mStart = start;
+			mEnd = end;
+			mDisplayType = displayType;
+			int h = chart.hashCode();
+			h = 31 * h + formId;
+			h = 31 * h + (field == null ? 0 : field.hashCode());
+			h = 31 * h + plot;
+			h = 31 * h + (int) (start ^ (start >>> 32));
+			h = 31 * h + (int) (end ^ (end >>> 32));
+			h = 31 * h + displayType;
+			mHash = h;
+		}
+
+		public int getFormId() {
+			return mFormId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return mHash == k.mHash && mFormId == k.mFormId && mPlot == k.mPlot && mStart == k.mStart
+					&& mEnd == k.mEnd && mDisplayType == k.mDisplayType && mChart.equals(k.mChart)
+					&& (mField == null ? k.mField == null : mField.equals(k.mField));
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+
+		@Override
+		public String toString() {
+			return mChart + ":" + mFormId + ":" + mField + ":" + mPlot + ":" + mStart + "-" + mEnd + ":"
+					+ mDisplayType;
+		}
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long bytes;
+
+		Entry(V value, long bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	private final long mMaxBytes;
+	private long mBytes = 0;
+
+	/**
+	 * every cache made, held weakly so a cache nobody uses any more goes away
+	 */
+	private static final CopyOnWriteArrayList<WeakReference<ChartCache<?>>> sCaches = new CopyOnWriteArrayList<WeakReference<ChartCache<?>>>();
+	/**
+	 * in access order, so the eldest is the least recently used
+	 */
+	private final LinkedHashMap<Key, Entry<V>> mEntries = new LinkedHashMap<Key, Entry<V>>(16, 0.75f, true);
+	/**
+	 * the generation each form was last invalidated at, if it was since the
+	 * last invalidateAll()
+	 */
+	private final HashMap<Integer, Long> mGenerations = new HashMap<Integer, Long>();
+	private long mAllGeneration = 0;
+	private long mLastGeneration = 0;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	/**
+	 * @param maxBytes
+	 *            the most the entries' estimated sizes may add up to
+	 */
+	public ChartCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		mMaxBytes = maxBytes;
+		sCaches.add(new WeakReference<ChartCache<?>>(this));
+	}
+
+	/**
+	 * Drop every chart of a form, and any being computed now, from every
+	 * cache.
+	 */
+	public static void invalidateFormInAll(int formId) {
+		for (WeakReference<ChartCache<?>> ref : sCaches) {
+			ChartCache<?> cache = ref.get();
+			if (cache == null) {
+				sCaches.remove(ref);
+			} else {
+				cache.invalidateForm(formId);
+			}
+		}
+	}
+
+	/**
+	 * Drop every chart, and any being computed now, from every cache.
+	 */
+	public static void invalidateAllCaches() {
+		for (WeakReference<ChartCache<?>> ref : sCaches) {
+			ChartCache<?> cache = ref.get();
+			if (cache == null) {
+				sCaches.remove(ref);
+			} else {
+				cache.invalidateAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the cached chart, or null if there isn't one
+	 */
+	public synchronized V get(Key key) {
+		Entry<V> e = mEntries.get(key);
+		if (e == null) {
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		return e.value;
+	}
+
+	/**
+	 * @return the generation of a form's data, read before computing a
+	 *         chart of it and handed to put()
+	 */
+	public synchronized long getGeneration(int formId) {
+		Long gen = mGenerations.get(Integer.valueOf(formId));
+		return gen == null ? mAllGeneration : gen.longValue();
+	}
+
+	/**
+	 * Cache a computed chart, evicting the least recently used ones until
+	 * the cache is back under its bound.
+	 * 
+	 * @param bytes
+	 *            an estimate of the memory the chart holds
+	 * @param generation
+	 *            getGeneration() of the key's form from before the chart was
+	 *            computed
+	 * @return false if the chart wasn't cached, because the form has changed
+	 *         since or it's bigger than the whole cache
+	 */
+	public synchronized boolean put(Key key, V value, long bytes, long generation) {
+		if (generation != getGeneration(key.getFormId()) || bytes > mMaxBytes) {
+			return false;
+		}
+		Entry<V> old = mEntries.put(key, new Entry<V>(value, bytes));
+		if (old != null) {
+			mBytes -= old.bytes;
+		}
+		mBytes += bytes;
+		Iterator<Entry<V>> it = mEntries.values().iterator();
+		while (mBytes > mMaxBytes && it.hasNext()) {
+			mBytes -= it.next().bytes;
+			it.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Drop every chart of a form, and any being computed now.
+	 */
+	public synchronized void invalidateForm(int formId) {
+		mGenerations.put(Integer.valueOf(formId), Long.valueOf(++mLastGeneration));
+		Iterator<Map.Entry<Key, Entry<V>>> it = mEntries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry<V>> e = it.next();
+			if (e.getKey().getFormId() == formId) {
+				mBytes -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop every chart, and any being computed now.
+	 */
+	public synchronized void invalidateAll() {
+		mAllGeneration = ++mLastGeneration;
+		mGenerations.clear();
+		mEntries.clear();
+		mBytes = 0;
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return the estimated size of what's cached
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+}
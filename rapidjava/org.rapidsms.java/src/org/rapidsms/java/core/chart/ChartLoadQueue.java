@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one chart's loads in the background, newest first. Submitting a load
+ * cancels the one before it: if it hadn't started it's taken off the queue, and
+ * if it's running its token is cancelled and it stops at the next row it reads.
+ * Only the latest load of a chart ever finishes.
+ * 
+ * Any number of queues can share an executor from newExecutor(). It has a
+ * single thread, so the loads of every chart run one at a time and whatever a
+ * chart reuses between loads is only ever touched by that thread.
+ * 
+ * Thread safe.
+ */
+public class ChartLoadQueue {
+
+	/**
+	 * A chart load, run on the executor's thread.
+	 */
+	public interface IChartLoad {
+		/**
+		 * Compute the chart. Give up when the token is cancelled, either by
+		 * returning or with throwIfCancelled().
+		 */
+		void load(CancellationToken token);
+
+		/**
+		 * Called instead of load() when the load was pushed out of a full
+		 * executor by other charts' loads. It will never run.
+		 */
+		void dropped();
+	}
+
+	/**
+	 * A load on the executor's queue, along with the token that cancels it.
+	 */
+	static final class LoadTask implements Runnable {
+		final CancellationToken token = new CancellationToken();
+		final IChartLoad load;
+
+		LoadTask(IChartLoad load) {
+			this.load = load;
+		}
+
+		public void run() {
+			if (token.isCancelled()) {
+				return;
+			}
+			try {
+				load.load(token);
+			} catch (CancellationException e) {
+				// superseded, the load that did it will report
+			}
+		}
+	}
+
+	/**
+	 * When the queue is full, the oldest load waiting is the one dropped, it's
+	 * the one most likely to have been superseded by what the user did since.
+	 */
+	private static final RejectedExecutionHandler DROP_OLDEST = new RejectedExecutionHandler() {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				return;
+			}
+			Runnable oldest = executor.getQueue().poll();
+			if (oldest instanceof LoadTask) {
+				LoadTask dropped = (LoadTask) oldest;
+				dropped.token.cancel();
+				dropped.load.dropped();
+			}
+			executor.execute(r);
+		}
+	};
+
+	/**
+	 * An executor for chart loads: one daemon thread, and at most capacity
+	 * loads waiting for it.
+	 * 
+	 * @param name
+	 *            the thread's name
+	 * @param capacity
+	 *            how many loads can wait, past that the oldest is dropped
+	 */
+	public static ThreadPoolExecutor newExecutor(final String name, int capacity) {
+		return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+																new ArrayBlockingQueue<Runnable>(capacity),
+																new ThreadFactory() {
+																	private final AtomicInteger count = new AtomicInteger();
+
+																	public Thread newThread(Runnable r) {
+																		Thread thread = new Thread(r, name + "-"
+																				+ count.incrementAndGet());
+																		// never keep the process alive for a chart
+																		thread.setDaemon(true);
+																		return thread;
+																	}
+																}, DROP_OLDEST);
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private LoadTask mCurrent;
+
+	/**
+	 * @param executor
+	 *            from newExecutor()
+	 */
+	public ChartLoadQueue(ThreadPoolExecutor executor) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Cancel the current load and queue this one in its place.
+	 * 
+	 * @return the new load's token
+	 */
+	public synchronized CancellationToken submit(IChartLoad load) {
+		cancel();
+		LoadTask task = new LoadTask(load);
+		mCurrent = task;
+		mExecutor.execute(task);
+		return task.token;
+	}
+
+	/**
+	 * Cancel the current load, if there is one.
+	 */
+	public synchronized void cancel() {
+		if (mCurrent != null) {
+			mCurrent.token.cancel();
+			mExecutor.remove(mCurrent);
+			mCurrent = null;
+		}
+	}
+
+	/**
+	 * @return true if token is the latest load's, and it hasn't been cancelled
+	 */
+	public synchronized boolean isCurrent(CancellationToken token) {
+		return mCurrent != null && mCurrent.token == token && !token.isCancelled();
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+/**
+ * Writes chart JSON for flot straight into one reusable buffer.
+ * 
+ * Building the series as JSONArray and JSONObject trees boxes every number and
+ * allocates a list per point, and then the tree is serialized on top of that.
+ * Here the points go from primitive arrays to text as they're written, so the
+ * text is the only copy.
+ * 
+ * Commas are put in as needed: after a value, or the end of an array or object,
+ * the next value or name gets one. Nothing checks that the calls nest properly.
+ * 
+ * Not thread safe.
+ */
+public class GraphJsonWriter {
+
+	/**
+	 * release() keeps a buffer up to this many chars for the next chart
+	 */
+	public static final int RETAINED_CAPACITY = 16 * 1024;
+
+	private StringBuilder mOut = new StringBuilder(RETAINED_CAPACITY);
+	private boolean mComma = false;
+
+	/**
+	 * Empty the buffer for the next document, keeping its capacity.
+	 */
+	public GraphJsonWriter reset() {
+		mOut.setLength(0);
+		mComma = false;
+		return this;
+	}
+
+	/**
+	 * reset(), and let go of the buffer if a large chart grew it past
+	 * RETAINED_CAPACITY.
+	 */
+	public GraphJsonWriter release() {
+		if (mOut.capacity() > RETAINED_CAPACITY) {
+			mOut = new StringBuilder(RETAINED_CAPACITY);
+		}
+		return reset();
+	}
+
+	/**
+	 * @return the buffer, to append to directly, eg to wrap the JSON in a
+	 *         script
+	 */
+	public StringBuilder getBuffer() {
+		return mOut;
+	}
+
+	public int length() {
+		return mOut.length();
+	}
+
+	/**
+	 * @return what's been written
+	 */
+	@Override
+	public String toString() {
+		return mOut.toString();
+	}
+
+	private void separate() {
+		if (mComma) {
+			mOut.append(',');
+		}
+	}
+
+	public GraphJsonWriter beginArray() {
+		separate();
+		mOut.append('[');
+		mComma = false;
+		return this;
+	}
+
+	public GraphJsonWriter endArray() {
+		mOut.append(']');
+		mComma = true;
+		return this;
+	}
+
+	public GraphJsonWriter beginObject() {
+		separate();
+		mOut.append('{');
+		mComma = false;
+		return this;
+	}
+
+	public GraphJsonWriter endObject() {
+		mOut.append('}');
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * The name of the next value in an object.
+	 */
+	public GraphJsonWriter name(String name) {
+		separate();
+		string(name);
+		mOut.append(':');
+		mComma = false;
+		return this;
+	}
+
+	public GraphJsonWriter value(long value) {
+		separate();
+		mOut.append(value);
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * A number, written without the .0 when it's whole. JSON has no NaN or
+	 * infinity, those are written as null, which flot skips.
+	 */
+	public GraphJsonWriter value(double value) {
+		separate();
+		number(value);
+		mComma = true;
+		return this;
+	}
+
+	public GraphJsonWriter value(boolean value) {
+		separate();
+		mOut.append(value);
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * A string, or null.
+	 */
+	public GraphJsonWriter value(String value) {
+		separate();
+		if (value == null) {
+			mOut.append("null");
+		} else {
+			string(value);
+		}
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * A value that's JSON already, eg options built elsewhere.
+	 */
+	public GraphJsonWriter rawValue(String json) {
+		separate();
+		mOut.append(json);
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * Start a flot series object, {"label":label,"data":[ with the points to
+	 * follow.
+	 * 
+	 * @param show
+	 *            "lines", "bars" or "points" to turn on for just this series,
+	 *            or null
+	 */
+	public GraphJsonWriter beginSeries(String label, String show) {
+		beginObject();
+		name("label").value(label);
+		if (show != null) {
+			name(show).beginObject().name("show").value(true).endObject();
+		}
+		name("data").beginArray();
+		return this;
+	}
+
+	/**
+	 * End a series begun with beginSeries().
+	 */
+	public GraphJsonWriter endSeries() {
+		return endArray().endObject();
+	}
+
+	/**
+	 * One [x, y] point of a series.
+	 */
+	public GraphJsonWriter point(long x, long y) {
+		separate();
+		mOut.append('[').append(x).append(',').append(y).append(']');
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * One [x, y] point of a series.
+	 */
+	public GraphJsonWriter point(long x, double y) {
+		separate();
+		mOut.append('[').append(x).append(',');
+		number(y);
+		mOut.append(']');
+		mComma = true;
+		return this;
+	}
+
+	/**
+	 * A whole series of count points.
+	 */
+	public GraphJsonWriter series(String label, String show, long[] x, double[] y, int count) {
+		beginSeries(label, show);
+		for (int i = 0; i < count; i++) {
+			point(x[i], y[i]);
+		}
+		return endSeries();
+	}
+
+	/**
+	 * A whole series of count points.
+	 */
+	public GraphJsonWriter series(String label, String show, long[] x, int[] y, int count) {
+		beginSeries(label, show);
+		for (int i = 0; i < count; i++) {
+			point(x[i], y[i]);
+		}
+		return endSeries();
+	}
+
+	private void number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			mOut.append("null");
+		} else if (value == (long) value && Math.abs(value) < 1e15) {
+			mOut.append((long) value);
+		} else {
+			mOut.append(value);
+		}
+	}
+
+	private void string(String s) {
+		StringBuilder out = mOut;
+		out.append('"');
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				case '/':
+					// keeps "</script>" out of the page
+					out.append("\\/");
+					break;
+				default:
+					// control characters aren't allowed in JSON strings, and
+					// the line and paragraph separators end a javascript line
+					if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+						out.append("\\u");
+						String hex = Integer.toHexString(c);
+						for (int p = hex.length(); p < 4; p++) {
+							out.append('0');
+						}
+						out.append(hex);
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+}
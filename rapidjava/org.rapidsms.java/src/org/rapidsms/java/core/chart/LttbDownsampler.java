@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+/**
+ * Largest triangle three buckets downsampling of a time series, fed one point
+ * at a time in time order so it can sit straight on a cursor.
+ * 
+ * The range is cut into equal time buckets, typically one per pixel of chart
+ * width, and one point is kept from each: the one making the largest triangle
+ * with the point kept from the bucket before and the average of the bucket
+ * after. That keeps the peaks and dips a line chart shows, which plain
+ * averaging or taking every nth point flattens. The first and last points are
+ * always kept.
+ * 
+ * Standard LTTB cuts the points into buckets by count, which needs the count up
+ * front. Cutting by time needs only the range, so the points are read once and
+ * only two buckets of them are held at a time, in primitive arrays that are
+ * reused. Empty buckets are skipped, the bucket after is the next one with
+ * points in it.
+ * 
+ * Not thread safe.
+ */
+public class LttbDownsampler {
+
+	private final long mStart;
+	private final double mBucketWidth;
+	private final int mBuckets;
+
+	private final long[] mOutX;
+	private final double[] mOutY;
+	private int mOutCount = 0;
+
+	/**
+	 * the bucket whose point is picked once the next bucket is complete
+	 */
+	private long[] mPendingX = new long[16];
+	private double[] mPendingY = new double[16];
+	private int mPendingCount = 0;
+
+	/**
+	 * the bucket being filled
+	 */
+	private long[] mFillX = new long[16];
+	private double[] mFillY = new double[16];
+	private int mFillCount = 0;
+	private int mFillBucket = -1;
+	private double mFillSumX = 0;
+	private double mFillSumY = 0;
+
+	private long mAdded = 0;
+	private boolean mFinished = false;
+
+	/**
+	 * @param start
+	 *            the start of the range, points before it go in the first
+	 *            bucket
+	 * @param end
+	 *            the end of the range, points after it go in the last bucket
+	 * @param buckets
+	 *            the most points kept between the first and last
+	 */
+	public LttbDownsampler(long start, long end, int buckets) {
+		mStart = start;
+		mBuckets = Math.max(1, buckets);
+		mBucketWidth = Math.max(1.0, (double) (end - start) / mBuckets);
+		mOutX = new long[mBuckets + 2];
+		mOutY = new double[mBuckets + 2];
+	}
+
+	/**
+	 * @param x
+	 *            no earlier than the point added before it
+	 * @param y
+	 */
+	public void add(long x, double y) {
+		if (mFinished) {
+			throw new IllegalStateException("LttbDownsampler is finished");
+		}
+		mAdded++;
+		if (mAdded == 1) {
+			emit(x, y);
+			return;
+		}
+		int bucket = bucketOf(x);
+		if (mFillCount > 0 && bucket != mFillBucket) {
+			if (mPendingCount > 0) {
+				pick(mPendingX, mPendingY, mPendingCount, mFillSumX / mFillCount, mFillSumY / mFillCount);
+			}
+			// the filled bucket is the next one picked from, its arrays swap
+			// with the pending ones for reuse
+			long[] x2 = mPendingX;
+			double[] y2 = mPendingY;
+			mPendingX = mFillX;
+			mPendingY = mFillY;
+			mPendingCount = mFillCount;
+			mFillX = x2;
+			mFillY = y2;
+			mFillCount = 0;
+			mFillSumX = 0;
+			mFillSumY = 0;
+		}
+		if (mFillCount == mFillX.length) {
+			long[] grownX = new long[mFillCount * 2];
+			double[] grownY = new double[mFillCount * 2];
+			System.arraycopy(mFillX, 0, grownX, 0, mFillCount);
+			System.arraycopy(mFillY, 0, grownY, 0, mFillCount);
+			mFillX = grownX;
+			mFillY = grownY;
+		}
+		mFillBucket = bucket;
+		mFillX[mFillCount] = x;
+		mFillY[mFillCount] = y;
+		mFillCount++;
+		mFillSumX += x - mStart;
+		mFillSumY += y;
+	}
+
+	/**
+	 * Pick the points from the last buckets and keep the last point. Call it
+	 * once every point has been added.
+	 * 
+	 * @return the number of points kept
+	 */
+	public int finish() {
+		if (mFinished) {
+			return mOutCount;
+		}
+		mFinished = true;
+		if (mFillCount == 0) {
+			return mOutCount;
+		}
+		long lastX = mFillX[mFillCount - 1];
+		double lastY = mFillY[mFillCount - 1];
+		if (mPendingCount > 0) {
+			pick(mPendingX, mPendingY, mPendingCount, mFillSumX / mFillCount, mFillSumY / mFillCount);
+		}
+		// the last bucket's next point is the last point itself
+		if (mFillCount > 1) {
+			pick(mFillX, mFillY, mFillCount - 1, lastX - mStart, lastY);
+		}
+		emit(lastX, lastY);
+		return mOutCount;
+	}
+
+	/**
+	 * @return the number of points kept so far
+	 */
+	public int size() {
+		return mOutCount;
+	}
+
+	public long getX(int i) {
+		return mOutX[i];
+	}
+
+	public double getY(int i) {
+		return mOutY[i];
+	}
+
+	/**
+	 * @return the number of points added
+	 */
+	public long getAdded() {
+		return mAdded;
+	}
+
+	private int bucketOf(long x) {
+		double offset = (x - mStart) / mBucketWidth;
+		if (offset <= 0) {
+			return 0;
+		}
+		return offset >= mBuckets ? mBuckets - 1 : (int) offset;
+	}
+
+	/**
+	 * Keep the point of the bucket with the largest triangle between the last
+	 * point kept and the next bucket's average.
+	 * 
+	 * @param nextX
+	 *            relative to mStart, as the bucket sums are
+	 */
+	private void pick(long[] xs, double[] ys, int count, double nextX, double nextY) {
+		double ax = mOutX[mOutCount - 1] - mStart;
+		double ay = mOutY[mOutCount - 1];
+		int best = 0;
+		double bestArea = -1;
+		for (int i = 0; i < count; i++) {
+			// twice the triangle's area, which orders the same
+			double area = Math.abs((ax - nextX) * (ys[i] - ay) - (ax - (xs[i] - mStart)) * (nextY - ay));
+			if (area > bestArea) {
+				bestArea = area;
+				best = i;
+			}
+		}
+		emit(xs[best], ys[best]);
+	}
+
+	private void emit(long x, double y) {
+		mOutX[mOutCount] = x;
+		mOutY[mOutCount] = y;
+		mOutCount++;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.chart;
+
+import java.util.TimeZone;
+
+import org.rapidsms.java.core.rollup.RollupAccumulator;
+
+/**
+ * Local time buckets of a chart's range: hours, days, weeks starting on sunday,
+ * months and years.
+ * 
+ * Every bucket is numbered by plain arithmetic on the local epoch millis, the
+ * same way RollupAccumulator numbers its hours and days: the local hour or day
+ * since the epoch, the week of the local day, or the month or year of it worked
+ * out from the day number with the proleptic gregorian calendar. Nothing is
+ * allocated per point and no Calendar is involved. The only zone lookups are
+ * the offsets.
+ * 
+ * An instance holds the start of every bucket in a range, computed once, so
+ * filling the gaps in a series is a walk over the buckets.
+ * 
+ * The types are the ordinals of ChartBroker.DateDisplayTypes.
+ */
+public class TimeBuckets {
+
+	public static final int HOURLY = 0;
+	public static final int DAILY = 1;
+	public static final int WEEKLY = 2;
+	public static final int MONTHLY = 3;
+	public static final int YEARLY = 4;
+
+	/**
+	 * the most buckets a range can be cut into, a century of days
+	 */
+	public static final int MAX_BUCKETS = 36525;
+
+	private static final long HOUR_MILLIS = RollupAccumulator.HOUR_MILLIS;
+	private static final long DAY_MILLIS = RollupAccumulator.DAY_MILLIS;
+
+	private final TimeZone mZone;
+	private final int mType;
+	private final long mFirst;
+	private final long[] mStarts;
+
+	/**
+	 * The buckets from the one holding first through the one holding last.
+	 * 
+	 * @param zone
+	 * @param type
+	 *            HOURLY to YEARLY
+	 * @param first
+	 *            millis
+	 * @param last
+	 *            millis, not before first
+	 */
+	public TimeBuckets(TimeZone zone, int type, long first, long last) {
+		mZone = zone;
+		mType = type;
+		mFirst = bucketOf(zone, type, first);
+		long count = bucketOf(zone, type, last) - mFirst + 1;
+		if (count < 1 || count > MAX_BUCKETS) {
+			throw new IllegalArgumentException("Bad range for " + count + " buckets: " + first + " - " + last);
+		}
+		mStarts = new long[(int) count];
+		for (int i = 0; i < mStarts.length; i++) {
+			mStarts[i] = bucketStart(zone, type, mFirst + i);
+		}
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	public int size() {
+		return mStarts.length;
+	}
+
+	/**
+	 * @return the millis bucket i starts at
+	 */
+	public long getStart(int i) {
+		return mStarts[i];
+	}
+
+	/**
+	 * @return the bucket holding millis, -1 if it's outside the range
+	 */
+	public int indexOf(long millis) {
+		long i = bucketOf(mZone, mType, millis) - mFirst;
+		return i < 0 || i >= mStarts.length ? -1 : (int) i;
+	}
+
+	/**
+	 * Total a series of counts into the buckets, leaving 0 in the buckets it
+	 * has no points in.
+	 * 
+	 * @param millis
+	 *            the times of the points, points outside the range are
+	 *            dropped
+	 * @param values
+	 * @param count
+	 *            the number of points
+	 * @return the total of each bucket
+	 */
+	public int[] fill(long[] millis, int[] values, int count) {
+		int[] totals = new int[mStarts.length];
+		for (int i = 0; i < count; i++) {
+			int b = indexOf(millis[i]);
+			if (b != -1) {
+				totals[b] += values[i];
+			}
+		}
+		return totals;
+	}
+
+	/**
+	 * The bucketing for a chart of the range, by how far apart its ends are:
+	 * hours within 3 days, days within 3 months, weeks within 2 years, months
+	 * within 4 years, and years past that.
+	 */
+	public static int getDisplayType(TimeZone zone, long start, long end) {
+		long localStart = start + zone.getOffset(start);
+		long localEnd = end + zone.getOffset(end);
+		if (localEnd < localStart + 3 * DAY_MILLIS) {
+			return HOURLY;
+		} else if (localEnd < addMonths(localStart, 3)) {
+			return DAILY;
+		} else if (localEnd < addMonths(localStart, 24)) {
+			return WEEKLY;
+		} else if (localEnd < addMonths(localStart, 48)) {
+			return MONTHLY;
+		}
+		return YEARLY;
+	}
+
+	/**
+	 * @return the millis the bucket holding millis starts at
+	 */
+	public static long floor(TimeZone zone, int type, long millis) {
+		return bucketStart(zone, type, bucketOf(zone, type, millis));
+	}
+
+	/**
+	 * @return the number of the bucket holding millis, counted from the one
+	 *         holding the local epoch
+	 */
+	public static long bucketOf(TimeZone zone, int type, long millis) {
+		if (type == HOURLY) {
+			return RollupAccumulator.localBucket(zone, millis, HOUR_MILLIS);
+		}
+		long day = RollupAccumulator.localBucket(zone, millis, DAY_MILLIS);
+		switch (type) {
+			case DAILY:
+				return day;
+			case WEEKLY:
+				// day 0 was a thursday, +4 days starts the weeks on sunday
+				return floorDiv(day + 4, 7);
+			case MONTHLY:
+				return monthOf(day);
+			case YEARLY:
+				return floorDiv(monthOf(day), 12);
+			default:
+				throw new IllegalArgumentException("Bad display type: " + type);
+		}
+	}
+
+	/**
+	 * @return the millis a bucket numbered by bucketOf() starts at
+	 */
+	public static long bucketStart(TimeZone zone, int type, long bucket) {
+		long day;
+		switch (type) {
+			case HOURLY:
+				return RollupAccumulator.bucketStart(zone, bucket, HOUR_MILLIS);
+			case DAILY:
+				day = bucket;
+				break;
+			case WEEKLY:
+				day = bucket * 7 - 4;
+				break;
+			case MONTHLY:
+				day = firstDayOfMonth(bucket);
+				break;
+			case YEARLY:
+				day = firstDayOfMonth(bucket * 12);
+				break;
+			default:
+				throw new IllegalArgumentException("Bad display type: " + type);
+		}
+		return RollupAccumulator.bucketStart(zone, day, DAY_MILLIS);
+	}
+
+	/**
+	 * Local millis plus n months, at the same time of day, and on the same
+	 * day of the month or the month's last day if it's shorter.
+	 */
+	static long addMonths(long local, int n) {
+		long day = floorDiv(local, DAY_MILLIS);
+		long timeOfDay = local - day * DAY_MILLIS;
+		long month = monthOf(day) + n;
+		long dayOfMonth = Math.min(day - firstDayOfMonth(monthOf(day)) + 1, daysInMonth(month));
+		return (firstDayOfMonth(month) + dayOfMonth - 1) * DAY_MILLIS + timeOfDay;
+	}
+
+	/**
+	 * @return the month of an epoch day, as year * 12 + month (0 based)
+	 */
+	static long monthOf(long day) {
+		// civil from days, after Howard Hinnant's date algorithms. The year is
+		// taken to start in march so the leap day comes last.
+		long z = day + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long year = yoe + era * 400;
+		if (mp >= 10) {
+			// january and february belong to the next civil year
+			return (year + 1) * 12 + mp - 10;
+		}
+		return year * 12 + mp + 2;
+	}
+
+	/**
+	 * @return the epoch day the month from monthOf() starts on
+	 */
+	static long firstDayOfMonth(long month) {
+		long y = floorDiv(month, 12);
+		long m = month - y * 12 + 1;
+		if (m <= 2) {
+			y--;
+		}
+		long era = floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static long daysInMonth(long month) {
+		return firstDayOfMonth(month + 1) - firstDayOfMonth(month);
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if (x % y != 0 && (x < 0) != (y < 0)) {
+			q--;
+		}
+		return q;
+	}
+}
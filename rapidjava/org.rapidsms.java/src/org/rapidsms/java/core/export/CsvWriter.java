@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes RFC 4180 CSV straight to a stream, optionally gzipped on the way out.
+ * 
+ * Fields are UTF-8 encoded directly into one reusable byte buffer, which goes
+ * to the stream (or the deflater) whenever it fills, so writing a row allocates
+ * nothing: no per row StringBuilder, no toString().getBytes(), and no second
+ * pass over the file to compress it. A field is quoted only when it contains a
+ * comma, a double quote or a line break, and quotes inside it are doubled. Rows
+ * end with CRLF.
+ * 
+ * Not thread safe, one writer per export.
+ */
+public class CsvWriter {
+
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * how many rows go by between calls to the IExportProgress
+	 */
+	public static final int PROGRESS_INTERVAL = 1000;
+
+	/**
+	 * the most bytes a single char can take up in the buffer: a quote doubled,
+	 * or a surrogate pair's 4 byte UTF-8 sequence
+	 */
+	private static final int MAX_CHAR_BYTES = 4;
+
+	private final OutputStream mOut;
+	private final GZIPOutputStream mGzip;
+	private final byte[] mBuffer;
+	private int mPos = 0;
+
+	/**
+	 * fields are copied in here before they're encoded, so Strings and the
+	 * char arrays a cursor fills take the same path
+	 */
+	private char[] mChars = new char[256];
+
+	private int mField = 0;
+	private long mRows = 0;
+	private IExportProgress mProgress;
+	private boolean mFinished = false;
+
+	public CsvWriter(OutputStream out, boolean gzip) throws IOException {
+		this(out, gzip, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param out
+	 *            the stream to write to, it's closed by close()
+	 * @param gzip
+	 *            true to gzip the CSV as it's written
+	 * @param bufferSize
+	 * @throws IOException
+	 *             if the gzip header can't be written
+	 */
+	public CsvWriter(OutputStream out, boolean gzip, int bufferSize) throws IOException {
+		mBuffer = new byte[Math.max(bufferSize, 64)];
+		if (gzip) {
+			mGzip = new GZIPOutputStream(out, mBuffer.length);
+			mOut = mGzip;
+		} else {
+			mGzip = null;
+			mOut = out;
+		}
+	}
+
+	/**
+	 * @param progress
+	 *            called every PROGRESS_INTERVAL rows and when the writer is
+	 *            finished, null for none
+	 */
+	public void setProgress(IExportProgress progress) {
+		mProgress = progress;
+	}
+
+	/**
+	 * @return the number of data rows ended so far
+	 */
+	public long getRowCount() {
+		return mRows;
+	}
+
+	/**
+	 * Write the header row. It isn't counted in getRowCount().
+	 * 
+	 * @param names
+	 * @throws IOException
+	 */
+	public void writeHeader(String[] names) throws IOException {
+		for (int i = 0; i < names.length; i++) {
+			writeField(names[i]);
+		}
+		endLine();
+	}
+
+	/**
+	 * @param value
+	 *            null is written as an empty field
+	 * @throws IOException
+	 */
+	public void writeField(CharSequence value) throws IOException {
+		if (value == null) {
+			writeField(mChars, 0, 0);
+			return;
+		}
+		int length = value.length();
+		ensureChars(length);
+		if (value instanceof String) {
+			((String) value).getChars(0, length, mChars, 0);
+		} else {
+			for (int i = 0; i < length; i++) {
+				mChars[i] = value.charAt(i);
+			}
+		}
+		writeField(mChars, 0, length);
+	}
+
+	/**
+	 * Write a field from a char array, such as the one an Android
+	 * CharArrayBuffer is filled with, without making a String of it.
+	 * 
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeField(char[] chars, int offset, int length) throws IOException {
+		startField();
+		int end = offset + length;
+		boolean quote = false;
+		for (int i = offset; i < end; i++) {
+			char c = chars[i];
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				quote = true;
+				break;
+			}
+		}
+		if (quote) {
+			putByte('"');
+		}
+		byte[] buf = mBuffer;
+		int limit = buf.length - MAX_CHAR_BYTES;
+		for (int i = offset; i < end; i++) {
+			if (mPos > limit) {
+				flushBuffer();
+			}
+			char c = chars[i];
+			if (c < 0x80) {
+				if (c == '"') {
+					buf[mPos++] = '"';
+				}
+				buf[mPos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[mPos++] = (byte) (0xc0 | (c >> 6));
+				buf[mPos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+				int cp = Character.toCodePoint(c, chars[++i]);
+				buf[mPos++] = (byte) (0xf0 | (cp >> 18));
+				buf[mPos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[mPos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[mPos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// an unpaired surrogate, replaced the way String.getBytes()
+				// replaces it
+				buf[mPos++] = '?';
+			} else {
+				buf[mPos++] = (byte) (0xe0 | (c >> 12));
+				buf[mPos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[mPos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		if (quote) {
+			putByte('"');
+		}
+	}
+
+	/**
+	 * Write a number field without going through a String.
+	 * 
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeField(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			writeField(Long.toString(value));
+			return;
+		}
+		startField();
+		// 19 digits and a sign
+		if (mPos > mBuffer.length - 20) {
+			flushBuffer();
+		}
+		if (value < 0) {
+			mBuffer[mPos++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		int pos = mPos + digits;
+		mPos = pos;
+		do {
+			mBuffer[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+	}
+
+	/**
+	 * End the current data row.
+	 * 
+	 * @throws ExportCancelledException
+	 *             if the IExportProgress asked to stop
+	 * @throws IOException
+	 */
+	public void endRow() throws IOException {
+		endLine();
+		mRows++;
+		if (mProgress != null && mRows % PROGRESS_INTERVAL == 0) {
+			mProgress.onProgress(mRows);
+			if (mProgress.isCancelled()) {
+				throw new ExportCancelledException(mRows);
+			}
+		}
+	}
+
+	/**
+	 * Push everything written so far to the stream. For a gzipped export this
+	 * only hands it to the deflater.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		mOut.flush();
+	}
+
+	/**
+	 * Flush, and write the gzip trailer if the output is gzipped, without
+	 * closing the stream. Nothing can be written afterwards.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (mFinished) {
+			return;
+		}
+		mFinished = true;
+		flushBuffer();
+		if (mGzip != null) {
+			mGzip.finish();
+		}
+		mOut.flush();
+		if (mProgress != null) {
+			mProgress.onProgress(mRows);
+		}
+	}
+
+	/**
+	 * Finish the output and close the stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			mOut.close();
+		}
+	}
+
+	private void startField() throws IOException {
+		if (mFinished) {
+			throw new IOException("CsvWriter is finished");
+		}
+		if (mField++ > 0) {
+			putByte(',');
+		}
+	}
+
+	private void endLine() throws IOException {
+		putByte('\r');
+		putByte('\n');
+		mField = 0;
+	}
+
+	private void putByte(char b) throws IOException {
+		if (mPos == mBuffer.length) {
+			flushBuffer();
+		}
+		mBuffer[mPos++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (mPos > 0) {
+			mOut.write(mBuffer, 0, mPos);
+			mPos = 0;
+		}
+	}
+
+	private void ensureChars(int length) {
+		if (mChars.length < length) {
+			mChars = new char[Math.max(length, mChars.length * 2)];
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.export;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a CsvWriter when its IExportProgress asks for the export to stop.
+ * It's an IOException so it unwinds through the same finally blocks that close
+ * the output, the caller decides whether to keep the partial file.
+ */
+public class ExportCancelledException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long mRows;
+
+	public ExportCancelledException(long rows) {
+		super("export cancelled after " + rows + " rows");
+		mRows = rows;
+	}
+
+	/**
+	 * @return the number of complete rows written before the export stopped
+	 */
+	public long getRows() {
+		return mRows;
+	}
+}
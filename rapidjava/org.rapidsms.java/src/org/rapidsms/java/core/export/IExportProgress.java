@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.export;
+
+/**
+ * Watches an export as it runs. A CsvWriter calls it from the exporting thread
+ * every few thousand rows.
+ */
+public interface IExportProgress {
+
+	/**
+	 * @param rows
+	 *            data rows written so far, not counting the header
+	 */
+	void onProgress(long rows);
+
+	/**
+	 * Polled along with onProgress(). Once it returns true the writer throws
+	 * an ExportCancelledException out of the row that was being ended.
+	 * 
+	 * @return true to stop the export
+	 */
+	boolean isCancelled();
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import java.util.List;
+
+/**
+ * The storage a WriteBehindQueue writes to. Only ever called from the queue's
+ * writer thread, one batch at a time.
+ */
+public interface IBatchStore<T> {
+
+	/**
+	 * Store a batch, as one transaction if the storage has them.
+	 * 
+	 * @param batch
+	 *            in the order the items were queued. The list is reused once
+	 *            this returns.
+	 * @throws Exception
+	 *             if the batch couldn't be stored. It's passed to
+	 *             storeFailed() and the queue carries on with the next one,
+	 *             as is an Error.
+	 */
+	void store(List<T> batch) throws Exception;
+
+	/**
+	 * Called instead of losing a batch silently when store() throws.
+	 * 
+	 * @param batch
+	 * @param cause
+	 */
+	void storeFailed(List<T> batch, Throwable cause);
+}
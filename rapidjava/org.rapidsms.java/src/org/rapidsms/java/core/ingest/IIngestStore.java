@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import java.util.List;
+
+/**
+ * The persist and store stages of the IngestPipeline. A batch reaches store()
+ * routed and parsed. For each message, store() saves the message row and, if
+ * isParsed(), its form data row, and sets the message id. The whole batch is
+ * one transaction, so a message is never saved without its form data.
+ */
+public interface IIngestStore extends IBatchStore<InboundMessage> {
+
+	/**
+	 * @see IBatchStore#store(List)
+	 */
+	void store(List<InboundMessage> batch) throws Exception;
+}
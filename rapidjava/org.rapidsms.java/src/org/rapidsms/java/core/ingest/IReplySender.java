@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+/**
+ * The reply stage of the IngestPipeline, called for each message once its batch
+ * has been stored.
+ */
+public interface IReplySender {
+
+	/**
+	 * Reply to the sender if the application wants to. getForm() is null if
+	 * the message didn't route to any form.
+	 * 
+	 * @param message
+	 */
+	void sendReply(InboundMessage message);
+}
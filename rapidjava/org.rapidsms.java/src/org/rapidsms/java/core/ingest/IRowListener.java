@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+/**
+ * Told about rows as soon as the transaction that inserted them has committed.
+ * Called on the committing thread, which is usually the one storing incoming
+ * messages, so anything slower than noting the ids belongs on another thread.
+ */
+public interface IRowListener {
+
+	/**
+	 * @param formId
+	 *            the form the rows are data for, or
+	 *            RollupAccumulator.ALL_MESSAGES for message rows
+	 * @param ids
+	 *            the _ids of the new rows, in the order they were inserted.
+	 *            The array is shared with the other listeners and mustn't be
+	 *            changed.
+	 */
+	void rowsCommitted(int formId, long[] ids);
+}
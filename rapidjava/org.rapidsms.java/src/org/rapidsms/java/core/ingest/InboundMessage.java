@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * An incoming SMS on its way through the IngestPipeline. The decode stage fills
+ * in what came off the wire. Each later stage adds its result to the same
+ * object: the form it routed to, the parsed values, and the id of the saved
+ * message row.
+ */
+public class InboundMessage {
+
+	private final String mPhone;
+	private final String mBody;
+	private final long mSentMillis;
+	private final long mReceivedMillis;
+
+	private String mParseBody;
+	private Form mForm = null;
+	private ParseRecord mRecord = null;
+	private boolean mParsed = false;
+	private long mMessageId = -1;
+
+	/**
+	 * @param phone
+	 *            the sender
+	 * @param body
+	 *            the text as received, which is what gets saved
+	 * @param sentMillis
+	 * @param receivedMillis
+	 */
+	public InboundMessage(String phone, String body, long sentMillis, long receivedMillis) {
+		mPhone = phone;
+		mBody = body;
+		mParseBody = body;
+		mSentMillis = sentMillis;
+		mReceivedMillis = receivedMillis;
+	}
+
+	public String getPhone() {
+		return mPhone;
+	}
+
+	public String getBody() {
+		return mBody;
+	}
+
+	public long getSentMillis() {
+		return mSentMillis;
+	}
+
+	public long getReceivedMillis() {
+		return mReceivedMillis;
+	}
+
+	/**
+	 * @return the text routed and parsed, the body unless the decode stage
+	 *         cleaned it up
+	 */
+	public String getParseBody() {
+		return mParseBody;
+	}
+
+	public void setParseBody(String parseBody) {
+		mParseBody = parseBody;
+	}
+
+	/**
+	 * @return the form the message was routed to, null if none matched
+	 */
+	public Form getForm() {
+		return mForm;
+	}
+
+	/**
+	 * @return the parsed values, only meaningful if isParsed()
+	 */
+	public ParseRecord getRecord() {
+		return mRecord;
+	}
+
+	/**
+	 * @return true if the message routed to a form and parsed for it, so
+	 *         there's a form data row to store
+	 */
+	public boolean isParsed() {
+		return mParsed;
+	}
+
+	/**
+	 * @return the saved message row's id, -1 until it's stored
+	 */
+	public long getMessageId() {
+		return mMessageId;
+	}
+
+	public void setMessageId(long messageId) {
+		mMessageId = messageId;
+	}
+
+	void setParseResult(Form form, ParseRecord record, boolean parsed) {
+		mForm = form;
+		mRecord = record;
+		mParsed = parsed;
+	}
+}
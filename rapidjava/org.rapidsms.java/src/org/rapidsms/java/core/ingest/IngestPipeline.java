@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.service.FormRouter;
+import org.rapidsms.java.core.parser.service.ParsingService;
+
+/**
+ * Takes an incoming SMS from receipt to reply in one process, as a series of
+ * stages that pass the same InboundMessage along:
+ * 
+ * decode - the caller builds the InboundMessage and submit()s it
+ * 
+ * route - the FormRouter picks the form from the message prefix
+ * 
+ * parse - the message is parsed for that form into a ParseRecord
+ * 
+ * persist and store - the IIngestStore saves the message row and its form data
+ * row, a batch at a time, in one transaction
+ * 
+ * reply - the IReplySender answers the sender, after the commit
+ * 
+ * Everything after decode runs on a WriteBehindQueue's writer thread, so
+ * whoever submits never waits on the database. A message is either saved with
+ * its form data or not at all. Nothing is half processed between two hops.
+ */
+public class IngestPipeline {
+
+	private final IIngestStore mStore;
+	private final IReplySender mReplies;
+	private final WriteBehindQueue<InboundMessage> mQueue;
+
+	/**
+	 * Swapped wholesale by setRouter() so a message being routed always sees a
+	 * consistent set of forms.
+	 */
+	private volatile FormRouter mRouter = new FormRouter(new Form[0]);
+
+	/**
+	 * @param store
+	 * @param replies
+	 *            null to never reply
+	 * @param capacity
+	 *            see WriteBehindQueue
+	 * @param maxBatch
+	 * @param maxDelay
+	 * @param unit
+	 */
+	public IngestPipeline(IIngestStore store, IReplySender replies, int capacity, int maxBatch, long maxDelay,
+			TimeUnit unit) {
+		mStore = store;
+		mReplies = replies;
+		mQueue = new WriteBehindQueue<InboundMessage>(new IBatchStore<InboundMessage>() {
+			public void store(List<InboundMessage> batch) throws Exception {
+				process(batch);
+			}
+
+			public void storeFailed(List<InboundMessage> batch, Throwable cause) {
+				mStore.storeFailed(batch, cause);
+			}
+		}, "IngestPipeline", capacity, maxBatch, maxDelay, unit);
+	}
+
+	/**
+	 * Route against a new set of forms from now on.
+	 */
+	public void setRouter(FormRouter router) {
+		mRouter = router;
+	}
+
+	public FormRouter getRouter() {
+		return mRouter;
+	}
+
+	/**
+	 * Hand a decoded message to the pipeline, waiting up to the timeout for
+	 * room in the queue.
+	 * 
+	 * @return false if the queue stayed full
+	 * @throws IllegalStateException
+	 *             after shutdown()
+	 */
+	public boolean submit(InboundMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		return mQueue.offer(message, timeout, unit);
+	}
+
+	/**
+	 * Run a batch through every stage after decode on the calling thread.
+	 * The writer thread does this for submitted messages. Call it directly
+	 * to bypass the queue.
+	 * 
+	 * @throws Exception
+	 *             from the store, in which case nothing was saved and
+	 *             nobody was replied to
+	 */
+	public void process(List<InboundMessage> batch) throws Exception {
+		FormRouter router = mRouter;
+		int size = batch.size();
+		for (int i = 0; i < size; i++) {
+			InboundMessage message = batch.get(i);
+			String body = message.getParseBody();
+			Form form = router.determineForm(body);
+			if (form == null) {
+				message.setParseResult(null, null, false);
+				continue;
+			}
+			ParseRecord record = new ParseRecord();
+			message.setParseResult(form, record, ParsingService.ParseMessage(form, body, record));
+		}
+
+		mStore.store(batch);
+
+		if (mReplies != null) {
+			for (int i = 0; i < size; i++) {
+				mReplies.sendReply(batch.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @see WriteBehindQueue#flush(long, TimeUnit)
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		return mQueue.flush(timeout, unit);
+	}
+
+	/**
+	 * @see WriteBehindQueue#shutdown(long, TimeUnit)
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		return mQueue.shutdown(timeout, unit);
+	}
+
+	public boolean isShutdown() {
+		return mQueue.isShutdown();
+	}
+
+	/**
+	 * @see WriteBehindQueue#isWriterAlive()
+	 */
+	public boolean isWriterAlive() {
+		return mQueue.isWriterAlive();
+	}
+
+	/**
+	 * @see WriteBehindQueue#abandon()
+	 */
+	public List<InboundMessage> abandon() {
+		return mQueue.abandon();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in process feed of the message and form data rows committed by the store,
+ * so whatever is showing them can pick up just the new rows instead of
+ * requerying everything on every change.
+ * 
+ * The store collects the ids it inserts into a Rows and publishes it once the
+ * transaction has committed. Rolled back rows are never published. Listeners
+ * can come and go from any thread while rows are being published.
+ */
+public class RowFeed {
+
+	private static final RowFeed sDefault = new RowFeed();
+
+	private final CopyOnWriteArrayList<IRowListener> mListeners = new CopyOnWriteArrayList<IRowListener>();
+
+	/**
+	 * @return the feed the content provider publishes to
+	 */
+	public static RowFeed getDefault() {
+		return sDefault;
+	}
+
+	public void addListener(IRowListener listener) {
+		mListeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(IRowListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Tell every listener about the rows, one call per form. Nothing is called
+	 * if the rows are empty.
+	 * 
+	 * @param rows
+	 */
+	public void publish(Rows rows) {
+		if (rows.mIds.isEmpty() || mListeners.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<Integer, Rows.Ids> entry : rows.mIds.entrySet()) {
+			long[] ids = entry.getValue().toArray();
+			for (IRowListener listener : mListeners) {
+				listener.rowsCommitted(entry.getKey().intValue(), ids);
+			}
+		}
+	}
+
+	/**
+	 * The ids of the rows inserted by one transaction, by form. Not thread
+	 * safe, it belongs to the thread running the transaction.
+	 */
+	public static final class Rows {
+
+		private static final class Ids {
+			long[] ids = new long[8];
+			int count = 0;
+
+			void add(long id) {
+				if (count == ids.length) {
+					long[] grown = new long[count * 2];
+					System.arraycopy(ids, 0, grown, 0, count);
+					ids = grown;
+				}
+				ids[count++] = id;
+			}
+
+			long[] toArray() {
+				long[] copy = new long[count];
+				System.arraycopy(ids, 0, copy, 0, count);
+				return copy;
+			}
+		}
+
+		private final HashMap<Integer, Ids> mIds = new HashMap<Integer, Ids>();
+
+		/**
+		 * @param formId
+		 *            or RollupAccumulator.ALL_MESSAGES for a message row
+		 * @param id
+		 *            the row's _id
+		 */
+		public void add(int formId, long id) {
+			Integer key = Integer.valueOf(formId);
+			Ids ids = mIds.get(key);
+			if (ids == null) {
+				ids = new Ids();
+				mIds.put(key, ids);
+			}
+			ids.add(id);
+		}
+
+		public boolean isEmpty() {
+			return mIds.isEmpty();
+		}
+	}
+
+	/**
+	 * The ids published for one form that haven't been taken yet. They're
+	 * added on the thread storing the rows and taken on the one showing them.
+	 * Past a limit the ids aren't kept, and the taker is told to read
+	 * everything again instead.
+	 */
+	public static final class Pending {
+
+		private static final int NO_FORM = Integer.MIN_VALUE;
+
+		private final int mLimit;
+		private int mFormId = NO_FORM;
+		private Rows.Ids mIds = new Rows.Ids();
+		private boolean mOverflowed;
+
+		/**
+		 * @param limit
+		 *            the most ids kept
+		 */
+		public Pending(int limit) {
+			mLimit = limit;
+		}
+
+		/**
+		 * Drop what's pending, and keep only formId's rows from now on.
+		 * 
+		 * @param formId
+		 *            or RollupAccumulator.ALL_MESSAGES for the messages
+		 */
+		public synchronized void reset(int formId) {
+			mFormId = formId;
+			mIds = new Rows.Ids();
+			mOverflowed = false;
+		}
+
+		/**
+		 * @return true if the ids were kept and nothing was pending before
+		 *         them, so whatever takes them should be scheduled
+		 */
+		public synchronized boolean add(int formId, long[] ids) {
+			if (formId != mFormId || ids.length == 0) {
+				return false;
+			}
+			boolean first = isEmpty();
+			if (mOverflowed) {
+				return first;
+			}
+			if (mIds.count + ids.length > mLimit) {
+				mOverflowed = true;
+				mIds = new Rows.Ids();
+				return first;
+			}
+			for (int i = 0; i < ids.length; i++) {
+				mIds.add(ids[i]);
+			}
+			return first;
+		}
+
+		public synchronized boolean isEmpty() {
+			return mIds.count == 0 && !mOverflowed;
+		}
+
+		/**
+		 * @return the pending ids in the order they were added, empty if
+		 *         there are none. null if more than the limit came in, then
+		 *         everything has to be read again.
+		 */
+		public synchronized long[] take() {
+			long[] ids = mOverflowed ? null : mIds.toArray();
+			mIds = new Rows.Ids();
+			mOverflowed = false;
+			return ids;
+		}
+	}
+}
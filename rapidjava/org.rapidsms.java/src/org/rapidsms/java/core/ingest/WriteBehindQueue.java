@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue in front of an IBatchStore, with a single writer thread that
+ * stores what's queued in batches.
+ * 
+ * Producers hand items over and return straight away. The writer waits for an
+ * item, then keeps collecting until the batch holds maxBatch items or maxDelay
+ * has passed since its first item, and stores the whole batch in one call. A
+ * burst of messages costs one transaction per batch instead of one per message,
+ * and a lone message waits at most maxDelay.
+ * 
+ * When the queue is full offer() times out (and put() blocks), which slows the
+ * producers down to the speed of the store instead of queueing without bound.
+ * shutdown() stops taking new items and stores everything already queued before
+ * the writer exits.
+ */
+public class WriteBehindQueue<T> {
+
+	/**
+	 * queued by shutdown() to wake a writer waiting on an empty queue
+	 */
+	private static final Object SHUTDOWN = new Object();
+
+	private final IBatchStore<T> mStore;
+	private final BlockingQueue<Object> mQueue;
+	private final int mMaxBatch;
+	private final long mMaxDelayNanos;
+	private final Thread mWriter;
+
+	private volatile boolean mShutdown = false;
+
+	/**
+	 * items handed to the queue, and items the store has been called with,
+	 * guarded by mProgress. flush() waits for the second to catch up with the
+	 * first.
+	 */
+	private final Object mProgress = new Object();
+	private long mQueued = 0;
+	private long mProcessed = 0;
+
+	/**
+	 * @param store
+	 * @param name
+	 *            of the writer thread
+	 * @param capacity
+	 *            how many items can wait before producers are held up
+	 * @param maxBatch
+	 *            the most items stored in one call
+	 * @param maxDelay
+	 *            the longest an item waits for its batch to fill up
+	 * @param unit
+	 *            of maxDelay
+	 */
+	public WriteBehindQueue(IBatchStore<T> store, String name, int capacity, int maxBatch, long maxDelay, TimeUnit unit) {
+		if (capacity < 1 || maxBatch < 1 || maxDelay < 0) {
+			throw new IllegalArgumentException("capacity and maxBatch must be positive, maxDelay can't be negative");
+		}
+		mStore = store;
+		mQueue = new ArrayBlockingQueue<Object>(capacity);
+		mMaxBatch = maxBatch;
+		mMaxDelayNanos = unit.toNanos(maxDelay);
+		mWriter = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, name);
+		// the queue is drained by shutdown(), not by keeping the process
+		// alive
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/**
+	 * Queue an item, waiting up to the timeout for room.
+	 * 
+	 * @return false if the queue stayed full, the item isn't queued
+	 * @throws IllegalStateException
+	 *             after shutdown()
+	 */
+	public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+		checkRunning();
+		countQueued(1);
+		boolean queued = false;
+		try {
+			queued = mQueue.offer(item, timeout, unit);
+		} finally {
+			if (!queued) {
+				countQueued(-1);
+			}
+		}
+		if (queued) {
+			checkAccepted(item);
+		}
+		return queued;
+	}
+
+	/**
+	 * Queue an item, waiting as long as it takes for room.
+	 * 
+	 * @throws IllegalStateException
+	 *             after shutdown()
+	 */
+	public void put(T item) throws InterruptedException {
+		checkRunning();
+		countQueued(1);
+		boolean queued = false;
+		try {
+			mQueue.put(item);
+			queued = true;
+		} finally {
+			if (!queued) {
+				countQueued(-1);
+			}
+		}
+		checkAccepted(item);
+	}
+
+	/**
+	 * @return the number of items waiting for the writer
+	 */
+	public int size() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Wait until everything queued before this call has been through the
+	 * store.
+	 * 
+	 * @return false if that didn't happen within the timeout
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (mProgress) {
+			long target = mQueued;
+			while (mProcessed < target) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || !mWriter.isAlive()) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(mProgress, remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Stop taking items, and wait for the writer to store the ones already
+	 * queued.
+	 * 
+	 * @return false if the writer was still draining when the timeout ran out
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		mShutdown = true;
+		// if the queue is full the writer is busy and will see the flag
+		// without being woken
+		mQueue.offer(SHUTDOWN);
+		unit.timedJoin(mWriter, timeout);
+		return !mWriter.isAlive();
+	}
+
+	public boolean isShutdown() {
+		return mShutdown;
+	}
+
+	/**
+	 * @return false once the writer has exited, after shutdown() or because
+	 *         storeFailed() threw. Nothing queued is stored after that.
+	 */
+	public boolean isWriterAlive() {
+		return mWriter.isAlive();
+	}
+
+	/**
+	 * Stop taking items and hand back the ones still queued, unstored, for
+	 * whoever replaces a queue whose writer has died.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> abandon() {
+		mShutdown = true;
+		List<Object> queued = new ArrayList<Object>();
+		mQueue.drainTo(queued);
+		while (queued.remove(SHUTDOWN)) {
+		}
+		countQueued(-queued.size());
+		return (List<T>) (List<?>) queued;
+	}
+
+	private void checkRunning() {
+		if (mShutdown) {
+			throw new IllegalStateException("the queue has been shut down");
+		}
+	}
+
+	/**
+	 * An item queued while shutdown() ran may have missed the writer's last
+	 * pass. If it's still in the queue take it back out and refuse it, so
+	 * it's never silently dropped.
+	 */
+	private void checkAccepted(T item) {
+		if (mShutdown && mQueue.remove(item)) {
+			countQueued(-1);
+			throw new IllegalStateException("the queue has been shut down");
+		}
+	}
+
+	private void countQueued(int delta) {
+		synchronized (mProgress) {
+			mQueued += delta;
+			mProgress.notifyAll();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeLoop() {
+		List<Object> batch = new ArrayList<Object>(mMaxBatch);
+		while (!(mShutdown && mQueue.isEmpty())) {
+			try {
+				Object first = mQueue.take();
+				if (first != SHUTDOWN) {
+					batch.add(first);
+					fillBatch(batch);
+				}
+			} catch (InterruptedException e) {
+				// nobody but shutdown() stops the writer
+			}
+			if (!batch.isEmpty()) {
+				storeBatch((List<T>) (List<?>) batch);
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Keep adding to the batch until it's full or the first item has waited
+	 * maxDelay. On shutdown only what's already queued is taken.
+	 */
+	private void fillBatch(List<Object> batch) throws InterruptedException {
+		long deadline = System.nanoTime() + mMaxDelayNanos;
+		while (batch.size() < mMaxBatch) {
+			// whatever is already there, without waiting
+			if (mQueue.drainTo(batch, mMaxBatch - batch.size()) > 0) {
+				batch.remove(SHUTDOWN);
+				continue;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || mShutdown) {
+				return;
+			}
+			Object next = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				return;
+			}
+			if (next != SHUTDOWN) {
+				batch.add(next);
+			}
+		}
+	}
+
+	private void storeBatch(List<T> batch) {
+		try {
+			mStore.store(batch);
+		} catch (Throwable t) {
+			// an Error from the store mustn't take the writer down with it
+			mStore.storeFailed(batch, t);
+		} finally {
+			synchronized (mProgress) {
+				mProcessed += batch.size();
+				mProgress.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.model;
+
+/**
+ * Saves a new monitor for the MonitorRegistry.
+ */
+public interface IMonitorStore {
+
+	/**
+	 * Save a monitor for a phone number that isn't registered yet.
+	 * 
+	 * @param phone
+	 *            as the sender gave it
+	 * @return the saved monitor
+	 */
+	Monitor insertMonitor(String phone);
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An open addressing hash map from non zero long keys to objects, with reads
+ * that never lock.
+ * 
+ * Keys and values sit in two parallel atomic arrays and are probed linearly. A
+ * writer stores the value before the key, so a reader that finds the key also
+ * sees its value. Entries are never removed, only replaced, so a slot once
+ * taken keeps its key. When the table gets more than half full, the writer
+ * builds a table twice the size and publishes it through a volatile field.
+ * Readers on the old table still get correct answers, at worst missing what's
+ * added after the swap.
+ * 
+ * Writers must be serialized by the caller.
+ */
+class LongKeyMap<V> {
+
+	private static final long EMPTY = 0;
+
+	private static class Table<V> {
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<V> values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<V>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table<V> mTable;
+	private volatile int mSize = 0;
+
+	LongKeyMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		mTable = new Table<V>(capacity);
+	}
+
+	/**
+	 * spread the key's bits so the sequential ids and the packed numbers,
+	 * which differ in the low bits, don't cluster
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	V get(long key) {
+		Table<V> table = mTable;
+		int i = hash(key) & table.mask;
+		while (true) {
+			long k = table.keys.get(i);
+			if (k == key) {
+				return table.values.get(i);
+			}
+			if (k == EMPTY) {
+				return null;
+			}
+			i = (i + 1) & table.mask;
+		}
+	}
+
+	/**
+	 * Add or replace an entry. Callers must not write concurrently.
+	 */
+	void put(long key, V value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("0 can't be a key");
+		}
+		Table<V> table = mTable;
+		if (insert(table, key, value)) {
+			mSize++;
+			if (mSize * 2 > table.mask + 1) {
+				mTable = grow(table);
+			}
+		}
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return true if the key wasn't in the table yet
+	 */
+	private static <V> boolean insert(Table<V> table, long key, V value) {
+		int i = hash(key) & table.mask;
+		while (true) {
+			long k = table.keys.get(i);
+			if (k == key) {
+				table.values.set(i, value);
+				return false;
+			}
+			if (k == EMPTY) {
+				// value first, the key's volatile write publishes it
+				table.values.set(i, value);
+				table.keys.set(i, key);
+				return true;
+			}
+			i = (i + 1) & table.mask;
+		}
+	}
+
+	private static <V> Table<V> grow(Table<V> table) {
+		Table<V> bigger = new Table<V>((table.mask + 1) * 2);
+		for (int i = 0; i <= table.mask; i++) {
+			long k = table.keys.get(i);
+			if (k != EMPTY) {
+				insert(bigger, k, table.values.get(i));
+			}
+		}
+		return bigger;
+	}
+}
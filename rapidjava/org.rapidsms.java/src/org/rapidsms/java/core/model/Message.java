@@ -17,8 +17,6 @@
 
 package org.rapidsms.java.core.model;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
@@ -36,6 +34,8 @@ public class Message {
 	public static final int COL_IS_OUTGOING = 5;
 	public static final int COL_IS_VIRTUAL = 6;
 	public static final int COL_RECEIVE_TIME = 7;
+	public static final int COL_TIME_MILLIS = 8;
+	public static final int COL_RECEIVE_TIME_MILLIS = 9;
 
 	public static final int COL_PARSED_ID = 0;
 	public static final int COL_PARSED_MESSAGE_ID = 1;
@@ -46,16 +46,8 @@ public class Message {
 	public static final int COL_JOINED_MESSAGE = -3;
 
 	// 2009-01-29 20:44:30
-	/**
-	 * Formats the message to a string that SQLite likes: (yyyy-MM-dd HH:mm:ss)
-	 * in the current machine's timezone.
-	 */
-	public static DateFormat SQLDateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	/**
-	 * Format the timestamp to a displayable format in the UI HH:mm MM/dd/yy
-	 */
-	public static DateFormat DisplayDateTimeFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm");
-	public static DateFormat DisplayShortDateFormat = new SimpleDateFormat("MM/dd/yyyy");
+	// message times are stored and shown with TimestampCodec.SQL and
+	// TimestampCodec.DISPLAY_DATETIME
 
 	public Message(int id, String message, Date timestamp, Monitor monitor, Date recvtime) {
 		this.mId = id;
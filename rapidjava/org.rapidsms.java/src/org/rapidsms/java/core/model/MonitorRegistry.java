@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.model;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.rapidsms.java.core.PhoneNumber;
+
+/**
+ * All the monitors, by id and by phone number, kept up to date one monitor at a
+ * time instead of being reloaded from the table whenever one is added.
+ * 
+ * Phone numbers are keyed by their PhoneNumber.pack() key, so "+1 617-555-1000"
+ * and "+16175551000" are the same monitor. Senders that aren't phone numbers
+ * are keyed by the string as given.
+ * 
+ * Lookups never lock. Adding a monitor takes the registry's lock, and
+ * getOrInsert() only takes it on a miss.
+ */
+public class MonitorRegistry {
+
+	private final String mDefaultCountryCode;
+
+	private volatile LongKeyMap<Monitor> mById;
+	private volatile LongKeyMap<Monitor> mByPhone;
+	private volatile ConcurrentHashMap<String, Monitor> mByOtherSender;
+
+	/**
+	 * @param defaultCountryCode
+	 *            see PhoneNumber.pack(), null to leave national numbers as
+	 *            dialed
+	 */
+	public MonitorRegistry(String defaultCountryCode) {
+		mDefaultCountryCode = defaultCountryCode;
+		mById = new LongKeyMap<Monitor>(0);
+		mByPhone = new LongKeyMap<Monitor>(0);
+		mByOtherSender = new ConcurrentHashMap<String, Monitor>();
+	}
+
+	/**
+	 * @return the monitor, or null if there's none with that id
+	 */
+	public Monitor get(int id) {
+		return mById.get(id);
+	}
+
+	/**
+	 * @return the monitor for the phone number in any of its spellings, or
+	 *         null if there's none
+	 */
+	public Monitor getByPhone(String phone) {
+		long key = PhoneNumber.pack(phone, mDefaultCountryCode);
+		if (key != PhoneNumber.NOT_A_NUMBER) {
+			return mByPhone.get(key);
+		}
+		return phone == null ? null : mByOtherSender.get(phone);
+	}
+
+	/**
+	 * The monitor for a phone number, saving a new one through the store if
+	 * there isn't one yet. Only the new monitor is added, nothing is reloaded.
+	 */
+	public Monitor getOrInsert(String phone, IMonitorStore store) {
+		Monitor monitor = getByPhone(phone);
+		if (monitor != null) {
+			return monitor;
+		}
+		synchronized (this) {
+			// someone else may have added it while we waited
+			monitor = getByPhone(phone);
+			if (monitor == null) {
+				monitor = store.insertMonitor(phone);
+				put(monitor);
+			}
+			return monitor;
+		}
+	}
+
+	/**
+	 * Add a monitor, or replace the one with the same id.
+	 */
+	public synchronized void put(Monitor monitor) {
+		mById.put(monitor.getID(), monitor);
+		long key = PhoneNumber.pack(monitor.getPhone(), mDefaultCountryCode);
+		if (key != PhoneNumber.NOT_A_NUMBER) {
+			mByPhone.put(key, monitor);
+		} else if (monitor.getPhone() != null) {
+			mByOtherSender.put(monitor.getPhone(), monitor);
+		}
+	}
+
+	/**
+	 * Replace everything with the given monitors, for the initial load.
+	 * Readers see the old set until the new one is complete.
+	 */
+	public synchronized void replaceAll(Collection<Monitor> monitors) {
+		LongKeyMap<Monitor> byId = new LongKeyMap<Monitor>(monitors.size());
+		LongKeyMap<Monitor> byPhone = new LongKeyMap<Monitor>(monitors.size());
+		ConcurrentHashMap<String, Monitor> byOtherSender = new ConcurrentHashMap<String, Monitor>();
+		for (Iterator<Monitor> it = monitors.iterator(); it.hasNext();) {
+			Monitor monitor = it.next();
+			byId.put(monitor.getID(), monitor);
+			long key = PhoneNumber.pack(monitor.getPhone(), mDefaultCountryCode);
+			if (key != PhoneNumber.NOT_A_NUMBER) {
+				byPhone.put(key, monitor);
+			} else if (monitor.getPhone() != null) {
+				byOtherSender.put(monitor.getPhone(), monitor);
+			}
+		}
+		mById = byId;
+		mByPhone = byPhone;
+		mByOtherSender = byOtherSender;
+	}
+
+	/**
+	 * @return the number of monitors
+	 */
+	public int size() {
+		return mById.size();
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser;
+
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.model.SimpleFieldType;
+import org.rapidsms.java.core.parser.interpreter.IParseInterpreter;
+import org.rapidsms.java.core.parser.interpreter.IPrimitiveInterpreter;
+import org.rapidsms.java.core.parser.token.ITokenParser;
+
+/**
+ * Single pass replacement for the SimpleRegexParser.
+ * 
+ * The SimpleRegexParser slices every matched token out of the message and
+ * rescans the rebuilt string for the next field. Since the field type regexes
+ * are anchored (^...), each of them can only ever match at the head of what's
+ * left, so the same greedy, order dependent parse can be had by compiling the
+ * form once and walking a single cursor left to right over the original
+ * message: match field a at the cursor, advance past the token and the
+ * whitespace after it, match field b there, and so on. No intermediate strings
+ * are built, only the tokens themselves.
+ * 
+ * Forms with field types that aren't anchored SimpleFieldTypes can't be scanned
+ * this way and are handed to the SimpleRegexParser.
+ * 
+ * One parser can be shared by any number of threads. Each thread keeps its own
+ * Matchers for a compiled form and resets them per message.
+ */
+public class CompiledFormParser implements IMessageParser {
+
+	/**
+	 * by form id. The Form objects are rebuilt whenever the forms are
+	 * reloaded, keying by them would keep every old copy compiled.
+	 */
+	private ConcurrentHashMap<Integer, CompiledForm> mCompiledForms = new ConcurrentHashMap<Integer, CompiledForm>();
+	private SimpleRegexParser mFallbackParser = new SimpleRegexParser();
+
+	public CompiledFormParser() {
+
+	}
+
+	/**
+	 * The compiled patterns for a form, along with the field definitions it
+	 * was compiled from so a changed form can be detected and recompiled.
+	 */
+	static class CompiledForm {
+		final Field[] fields;
+		final String prefix;
+		/**
+		 * one anchored pattern per field, null if the form can't be compiled
+		 * and must use the fallback
+		 */
+		final Pattern[] patterns;
+		/**
+		 * a Matcher per pattern for each thread parsing this form, reset onto
+		 * every message instead of allocating new ones
+		 */
+		final ThreadLocal<Matcher[]> matchers;
+
+		CompiledForm(Field[] fields, String prefix, final Pattern[] patterns) {
+			this.fields = fields;
+			this.prefix = prefix;
+			this.patterns = patterns;
+			this.matchers = new ThreadLocal<Matcher[]>() {
+				@Override
+				protected Matcher[] initialValue() {
+					Matcher[] matchers = new Matcher[patterns.length];
+					for (int i = 0; i < patterns.length; i++) {
+						matchers[i] = patterns[i].matcher("");
+					}
+					return matchers;
+				}
+			};
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.rapidsms.java.core.parser.IMessageParser#CanParse(java.lang.String)
+	 */
+	public boolean CanParse(String input) {
+		return false;
+	}
+
+	/**
+	 * Build (or fetch) the compiled field patterns for the given form.
+	 *
+	 * @param f
+	 * @return
+	 */
+	CompiledForm getCompiledForm(Form f) {
+		Integer formId = Integer.valueOf(f.getFormId());
+		CompiledForm compiled = mCompiledForms.get(formId);
+		if (compiled != null && compiled.fields == f.getFields() && compiled.prefix.equals(f.getPrefix())) {
+			return compiled;
+		}
+		compiled = compile(f);
+		mCompiledForms.put(formId, compiled);
+		return compiled;
+	}
+
+	static CompiledForm compile(Form f) {
+		Field[] fields = f.getFields();
+		int length = fields.length;
+		Pattern[] patterns = new Pattern[length];
+
+		for (int i = 0; i < length; i++) {
+			ITokenParser fieldType = fields[i].getFieldType();
+			if (!(fieldType instanceof SimpleFieldType)) {
+				return new CompiledForm(fields, f.getPrefix(), null);
+			}
+			String regex = ((SimpleFieldType) fieldType).getRegex();
+			if (regex == null || !regex.startsWith("^")) {
+				// unanchored regexes are free to match anywhere in the
+				// remaining input, that isn't a left to right scan.
+				return new CompiledForm(fields, f.getPrefix(), null);
+			}
+			// case folding is done by the pattern instead of lowercasing a
+			// copy of the whole message. The field type regexes are plain
+			// ascii, so ascii folding matches what toLowerCase() did.
+			patterns[i] = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+		}
+		return new CompiledForm(fields, f.getPrefix(), patterns);
+	}
+
+	public Vector<IParseResult> ParseMessage(Form f, String input) {
+		CompiledForm compiled = getCompiledForm(f);
+		if (compiled.patterns == null) {
+			return mFallbackParser.ParseMessage(f, input);
+		}
+		ParseRecord record = new ParseRecord();
+		record.reset(f);
+		if (!parse(compiled, input, record)) {
+			return null;
+		}
+		return record.toResults();
+	}
+
+	/**
+	 * Parse the message into a reusable record instead of a Vector of boxed
+	 * results. The scanning interpreters write their values straight into it
+	 * as primitives.
+	 * 
+	 * @param f
+	 * @param input
+	 * @param record
+	 *            reset to the form and filled in
+	 * @return false if the message isn't for this form, same as the Vector
+	 *         version returning null
+	 */
+	public boolean ParseMessage(Form f, String input, ParseRecord record) {
+		record.reset(f);
+		CompiledForm compiled = getCompiledForm(f);
+		if (compiled.patterns == null) {
+			Vector<IParseResult> results = mFallbackParser.ParseMessage(f, input);
+			if (results == null) {
+				return false;
+			}
+			for (int i = 0; i < results.size(); i++) {
+				record.setResult(i, results.get(i));
+			}
+			return true;
+		}
+		return parse(compiled, input, record);
+	}
+
+	private boolean parse(CompiledForm compiled, String input, ParseRecord record) {
+		// equivalent of input.toLowerCase().trim().startsWith(prefix + " ")
+		// without the copies
+		int end = input.length();
+		int pos = 0;
+		while (pos < end && input.charAt(pos) <= ' ') {
+			pos++;
+		}
+		while (end > pos && input.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		String prefix = compiled.prefix;
+		int prefixLen = prefix.length();
+		if (end - pos <= prefixLen) {
+			return false;
+		}
+		for (int i = 0; i < prefixLen; i++) {
+			if (Character.toLowerCase(input.charAt(pos + i)) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		pos += prefixLen;
+		if (input.charAt(pos) != ' ') {
+			return false;
+		}
+		while (pos < end && input.charAt(pos) <= ' ') {
+			pos++;
+		}
+
+		Field[] fields = compiled.fields;
+		int length = fields.length;
+		Matcher[] matchers = compiled.matchers.get();
+		for (int i = 0; i < length; i++) {
+			// the region's anchoring bounds make ^ match at the cursor and $ at
+			// the end of the trimmed message
+			Matcher matcher = matchers[i].reset(input);
+			matcher.region(pos, end);
+			if (!matcher.lookingAt()) {
+				continue;
+			}
+			int tokEnd = matcher.end();
+			while (tokEnd > pos && input.charAt(tokEnd - 1) <= ' ') {
+				tokEnd--;
+			}
+			if (tokEnd == pos) {
+				continue;
+			}
+			String token = input.substring(pos, tokEnd).toLowerCase();
+			IParseInterpreter interpreter = fields[i].getFieldType().getInterpreter();
+			if (interpreter instanceof IPrimitiveInterpreter) {
+				((IPrimitiveInterpreter) interpreter).interpretInto(token, record, i);
+			} else {
+				record.setValue(i, token, interpreter.interpretValue(token));
+			}
+
+			pos = tokEnd;
+			while (pos < end && input.charAt(pos) <= ' ') {
+				pos++;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.rapidsms.java.core.parser.IMessageParser#getName()
+	 */
+	public String getName() {
+		return "compiledregex";
+	}
+
+}
@@ -27,9 +27,44 @@ package org.rapidsms.java.core.parser;
  * @created Jan 21, 2009
  */
 public interface IParseResult {
+	/**
+	 * What kind of value a result holds, so it can be read back with the
+	 * matching primitive getter instead of unboxing getValue().
+	 */
+	public enum ValueType {
+		/**
+		 * the token matched but the interpreter found no value in it
+		 */
+		NONE, WORD, INTEGER, FLOAT, BOOLEAN
+	}
+
 	String getSource();
 
 	String getParsedToken();
 
 	Object getValue();
+
+	ValueType getValueType();
+
+	/**
+	 * @return the value of an INTEGER result, a FLOAT truncated, or 1/0 for a
+	 *         BOOLEAN
+	 * @throws IllegalStateException
+	 *             for WORD and NONE results
+	 */
+	long getLong();
+
+	/**
+	 * @return the value of a FLOAT or INTEGER result, or 1/0 for a BOOLEAN
+	 * @throws IllegalStateException
+	 *             for WORD and NONE results
+	 */
+	double getDouble();
+
+	/**
+	 * @return the value of a BOOLEAN result, or whether a number is non zero
+	 * @throws IllegalStateException
+	 *             for WORD and NONE results
+	 */
+	boolean getBoolean();
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser;
+
+import java.util.Vector;
+
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.IParseResult.ValueType;
+
+/**
+ * The parsed values of one message for a form, kept in primitive arrays indexed
+ * by field instead of a Vector of boxed results.
+ * 
+ * A record is meant to be reused: reset() it for the next message and the
+ * arrays are kept, so parsing a stream of messages into one record only
+ * allocates the token strings. Not thread safe, use one record per thread.
+ */
+public class ParseRecord {
+
+	private Form mForm;
+	private int mSize;
+
+	/**
+	 * null for a field that didn't match at all
+	 */
+	private ValueType[] mTypes = new ValueType[0];
+	private long[] mLongs = new long[0];
+	private double[] mDoubles = new double[0];
+	private String[] mTokens = new String[0];
+
+	public ParseRecord() {
+
+	}
+
+	/**
+	 * Clear the record to hold a result for each of the form's fields.
+	 * 
+	 * @param form
+	 */
+	public void reset(Form form) {
+		mForm = form;
+		int size = form.getFields().length;
+		if (mTypes.length < size) {
+			mTypes = new ValueType[size];
+			mLongs = new long[size];
+			mDoubles = new double[size];
+			mTokens = new String[size];
+		} else {
+			for (int i = 0; i < mSize; i++) {
+				mTypes[i] = null;
+				mTokens[i] = null;
+			}
+		}
+		mSize = size;
+	}
+
+	public Form getForm() {
+		return mForm;
+	}
+
+	/**
+	 * @return the number of fields
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index
+	 * @return false if the field didn't match anything in the message, the
+	 *         equivalent of a null IParseResult
+	 */
+	public boolean hasResult(int index) {
+		return mTypes[index] != null;
+	}
+
+	/**
+	 * @param index
+	 * @return the type of the value, null if the field has no result
+	 */
+	public ValueType getValueType(int index) {
+		return mTypes[index];
+	}
+
+	public String getToken(int index) {
+		return mTokens[index];
+	}
+
+	/**
+	 * @see IParseResult#getLong()
+	 */
+	public long getLong(int index) {
+		checkNumeric(index);
+		return mLongs[index];
+	}
+
+	/**
+	 * @see IParseResult#getDouble()
+	 */
+	public double getDouble(int index) {
+		checkNumeric(index);
+		return mDoubles[index];
+	}
+
+	/**
+	 * @see IParseResult#getBoolean()
+	 */
+	public boolean getBoolean(int index) {
+		checkNumeric(index);
+		return mTypes[index] == ValueType.FLOAT ? mDoubles[index] != 0 : mLongs[index] != 0;
+	}
+
+	private void checkNumeric(int index) {
+		ValueType type = mTypes[index];
+		if (type == null || type == ValueType.WORD || type == ValueType.NONE) {
+			throw new IllegalStateException("no primitive value for field " + index + ": " + type);
+		}
+	}
+
+	public void setLong(int index, String token, long value) {
+		mTypes[index] = ValueType.INTEGER;
+		mTokens[index] = token;
+		mLongs[index] = value;
+		mDoubles[index] = value;
+	}
+
+	public void setDouble(int index, String token, double value) {
+		mTypes[index] = ValueType.FLOAT;
+		mTokens[index] = token;
+		mLongs[index] = (long) value;
+		mDoubles[index] = value;
+	}
+
+	public void setBoolean(int index, String token, boolean value) {
+		mTypes[index] = ValueType.BOOLEAN;
+		mTokens[index] = token;
+		mLongs[index] = value ? 1 : 0;
+		mDoubles[index] = mLongs[index];
+	}
+
+	/**
+	 * A word field, the token is the value.
+	 */
+	public void setWord(int index, String token) {
+		mTypes[index] = ValueType.WORD;
+		mTokens[index] = token;
+	}
+
+	/**
+	 * The field matched a token but it has no value.
+	 */
+	public void setNone(int index, String token) {
+		mTypes[index] = ValueType.NONE;
+		mTokens[index] = token;
+	}
+
+	/**
+	 * Store a boxed value from a plain IParseInterpreter.
+	 * 
+	 * @param index
+	 * @param token
+	 * @param value
+	 */
+	public void setValue(int index, String token, Object value) {
+		setResult(index, new SimpleParseResult(null, token, value));
+	}
+
+	/**
+	 * Copy an IParseResult into the record, null clears the slot.
+	 * 
+	 * @param index
+	 * @param result
+	 */
+	public void setResult(int index, IParseResult result) {
+		if (result == null) {
+			mTypes[index] = null;
+			mTokens[index] = null;
+			return;
+		}
+		ValueType type = result.getValueType();
+		mTypes[index] = type;
+		mTokens[index] = result.getParsedToken();
+		if (type != ValueType.WORD && type != ValueType.NONE) {
+			mLongs[index] = result.getLong();
+			mDoubles[index] = result.getDouble();
+		}
+	}
+
+	/**
+	 * @param index
+	 * @return the value as the IParseResult would have it, boxed
+	 */
+	public Object getValue(int index) {
+		ValueType type = mTypes[index];
+		if (type == null || type == ValueType.NONE) {
+			return null;
+		}
+		switch (type) {
+			case INTEGER:
+				return Integer.valueOf((int) mLongs[index]);
+			case FLOAT:
+				return Float.valueOf((float) mDoubles[index]);
+			case BOOLEAN:
+				return Boolean.valueOf(mLongs[index] != 0);
+			default:
+				return mTokens[index];
+		}
+	}
+
+	/**
+	 * @return the record as the Vector of results IMessageParser returns
+	 */
+	public Vector<IParseResult> toResults() {
+		Field[] fields = mForm.getFields();
+		Vector<IParseResult> results = new Vector<IParseResult>(mSize);
+		for (int i = 0; i < mSize; i++) {
+			ValueType type = mTypes[i];
+			if (type == null) {
+				results.add(null);
+			} else if (type == ValueType.WORD) {
+				results.add(new SimpleParseResult(fields[i].getFieldType(), mTokens[i], mTokens[i]));
+			} else if (type == ValueType.NONE) {
+				results.add(new SimpleParseResult(fields[i].getFieldType(), mTokens[i], null));
+			} else {
+				results.add(new SimpleParseResult(fields[i].getFieldType(), mTokens[i], type, mLongs[i], mDoubles[i]));
+			}
+		}
+		return results;
+	}
+}
@@ -40,11 +40,61 @@ public class SimpleParseResult implements IParseResult {
 	ITokenParser fieldType;
 	Object value;
 	String token;
+	ValueType type;
+	long longValue;
+	double doubleValue;
+	/**
+	 * the value is a Float whose doubleValue and longValue haven't been worked
+	 * out yet
+	 */
+	boolean unwidened;
 
 	public SimpleParseResult(ITokenParser fieldType, String token, Object val) {
 		this.fieldType = fieldType;
 		this.value = val;
 		this.token = token;
+
+		if (val == null) {
+			type = ValueType.NONE;
+		} else if (val instanceof Boolean) {
+			type = ValueType.BOOLEAN;
+			longValue = ((Boolean) val).booleanValue() ? 1 : 0;
+			doubleValue = longValue;
+		} else if (val instanceof Float) {
+			type = ValueType.FLOAT;
+			// most results are only ever asked for getValue(), so leave the
+			// decimal string until a primitive is wanted
+			unwidened = true;
+		} else if (val instanceof Double) {
+			type = ValueType.FLOAT;
+			doubleValue = ((Double) val).doubleValue();
+			longValue = (long) doubleValue;
+		} else if (val instanceof Number) {
+			type = ValueType.INTEGER;
+			longValue = ((Number) val).longValue();
+			doubleValue = longValue;
+		} else {
+			type = ValueType.WORD;
+		}
+	}
+
+	/**
+	 * A result for a value that was interpreted straight to a primitive. The
+	 * boxed value is only created if someone asks for getValue().
+	 * 
+	 * @param fieldType
+	 * @param token
+	 * @param type
+	 *            INTEGER, FLOAT or BOOLEAN (longValue 1 or 0)
+	 * @param longValue
+	 * @param doubleValue
+	 */
+	public SimpleParseResult(ITokenParser fieldType, String token, ValueType type, long longValue, double doubleValue) {
+		this.fieldType = fieldType;
+		this.token = token;
+		this.type = type;
+		this.longValue = longValue;
+		this.doubleValue = doubleValue;
 	}
 
 	/*
@@ -65,10 +115,56 @@ public class SimpleParseResult implements IParseResult {
 	 */
 
 	public Object getValue() {
-		// TODO Auto-generated method stub
+		if (value == null) {
+			switch (type) {
+				case INTEGER:
+					value = Integer.valueOf((int) longValue);
+					break;
+				case FLOAT:
+					value = Float.valueOf((float) doubleValue);
+					break;
+				case BOOLEAN:
+					value = Boolean.valueOf(longValue != 0);
+					break;
+				default:
+					break;
+			}
+		}
 		return value;
 	}
 
+	public ValueType getValueType() {
+		return type;
+	}
+
+	public long getLong() {
+		checkNumeric();
+		return longValue;
+	}
+
+	public double getDouble() {
+		checkNumeric();
+		return doubleValue;
+	}
+
+	public boolean getBoolean() {
+		checkNumeric();
+		return type == ValueType.FLOAT ? doubleValue != 0 : longValue != 0;
+	}
+
+	private void checkNumeric() {
+		if (type == ValueType.WORD || type == ValueType.NONE) {
+			throw new IllegalStateException("no primitive value in a " + type + " result");
+		}
+		if (unwidened) {
+			// widening the float would give 0.6000000238418579 for 0.6, go
+			// through the decimal the float prints as instead
+			doubleValue = Double.parseDouble(value.toString());
+			longValue = (long) doubleValue;
+			unwidened = false;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.interpreter;
+
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * An interpreter that can write its value straight into a ParseRecord slot as a
+ * primitive, skipping the boxed Object interpretValue() hands back.
+ */
+public interface IPrimitiveInterpreter extends IParseInterpreter {
+
+	/**
+	 * Interpret the token and store the result in slot index of the record.
+	 * Must store the value interpretValue(token) would return, with setNone()
+	 * standing in for null. The one exception is a Float, which may be stored
+	 * as the double nearest the token's digits: getDouble() can then be closer
+	 * to what was typed than the Float, and the boxed value from getValue() is
+	 * that double narrowed to a float.
+	 * 
+	 * @param token
+	 * @param record
+	 * @param index
+	 */
+	void interpretInto(String token, ParseRecord record, int index);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.interpreter;
+
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * Hand written equivalent of the BooleanInterpreter. The regex version looks
+ * for (t|true|y|yes|1) anywhere in the token, then for (f|false|n|no|0). The
+ * single letter alternatives cover the words, so that comes down to one pass
+ * over the characters.
+ */
+public class ScanningBooleanInterpreter implements IPrimitiveInterpreter {
+
+	public static final int FALSE = 0;
+	public static final int TRUE = 1;
+	public static final int UNKNOWN = -1;
+
+	public ScanningBooleanInterpreter() {
+	}
+
+	/**
+	 * @param token
+	 * @return TRUE, FALSE or UNKNOWN
+	 */
+	public static int scanBoolean(String token) {
+		int len = token.length();
+		boolean sawFalse = false;
+		for (int i = 0; i < len; i++) {
+			char c = token.charAt(i);
+			if (c == 't' || c == 'y' || c == '1') {
+				return TRUE;
+			}
+			if (c == 'f' || c == 'n' || c == '0') {
+				sawFalse = true;
+			}
+		}
+		return sawFalse ? FALSE : UNKNOWN;
+	}
+
+	public Object interpretValue(String token) {
+		switch (scanBoolean(token)) {
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			default:
+				return null;
+		}
+	}
+
+	public void interpretInto(String token, ParseRecord record, int index) {
+		int value = scanBoolean(token);
+		if (value == UNKNOWN) {
+			record.setNone(index, token);
+		} else {
+			record.setBoolean(index, token, value == TRUE);
+		}
+	}
+}
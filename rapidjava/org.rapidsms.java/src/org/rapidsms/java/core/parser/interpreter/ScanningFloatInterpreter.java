@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.interpreter;
+
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * Hand written equivalent of the FloatInterpreter. It reads the first \d+\.*\d*
+ * in the token, so a unit suffix is dropped ("2.5 kilos" is 2.5) and a ratio
+ * reads as its leading number ("3/4" is 3, "60%" is 60), exactly as the regex
+ * version does.
+ */
+public class ScanningFloatInterpreter implements IPrimitiveInterpreter {
+
+	/**
+	 * powers of ten that are exact in a float
+	 */
+	private static final float[] POWERS_OF_TEN = { 1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	/**
+	 * and the ones that are exact in a double, enough for 15 digits
+	 */
+	private static final double[] DOUBLE_POWERS_OF_TEN = { 1d, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16 };
+
+	public ScanningFloatInterpreter() {
+	}
+
+	/**
+	 * Scan the first number in the token.
+	 * 
+	 * @param token
+	 * @return the value, or NaN if the token has no number (or one
+	 *         Float.valueOf() would reject, like "1..5")
+	 */
+	public static float scanFloat(String token) {
+		int len = token.length();
+		int i = 0;
+		while (i < len && !ScanningIntegerInterpreter.isDigit(token.charAt(i))) {
+			i++;
+		}
+		if (i == len) {
+			return Float.NaN;
+		}
+		int start = i;
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		int dots = 0;
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i))) {
+			mantissa = mantissa * 10 + (token.charAt(i) - '0');
+			digits++;
+			i++;
+			if (digits > 18) {
+				break;
+			}
+		}
+		while (i < len && token.charAt(i) == '.') {
+			dots++;
+			i++;
+		}
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i)) && digits <= 18) {
+			mantissa = mantissa * 10 + (token.charAt(i) - '0');
+			digits++;
+			fractionDigits++;
+			i++;
+		}
+		if (dots > 1) {
+			return Float.NaN;
+		}
+		if (digits <= 18 && (i == len || !ScanningIntegerInterpreter.isDigit(token.charAt(i)))
+				&& mantissa < (1 << 24) && fractionDigits < POWERS_OF_TEN.length) {
+			// both operands are exact, so the one division is correctly
+			// rounded, same as parsing the decimal string
+			return mantissa / POWERS_OF_TEN[fractionDigits];
+		}
+
+		// too many digits to do exactly by hand, let the jdk do it. The scan
+		// above stops counting dots once it has enough digits, so a long
+		// number can still run into a "..".
+		int end = numberEnd(token, start);
+		if (hasDoubleDot(token, start, end)) {
+			return Float.NaN;
+		}
+		return Float.parseFloat(token.substring(start, end));
+	}
+
+	/**
+	 * Scan the first number in the token at double precision, for callers
+	 * storing the value without going through a Float. For the values people
+	 * actually text in this is the double nearest the digits they typed, the
+	 * same thing the database got from parsing Float.toString() of the old
+	 * boxed value.
+	 * 
+	 * @param token
+	 * @return the value, or NaN if the token has no number
+	 */
+	public static double scanDouble(String token) {
+		int len = token.length();
+		int i = 0;
+		while (i < len && !ScanningIntegerInterpreter.isDigit(token.charAt(i))) {
+			i++;
+		}
+		if (i == len) {
+			return Double.NaN;
+		}
+		int start = i;
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		int dots = 0;
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i)) && digits <= 15) {
+			mantissa = mantissa * 10 + (token.charAt(i) - '0');
+			digits++;
+			i++;
+		}
+		while (i < len && token.charAt(i) == '.' && digits <= 15) {
+			dots++;
+			i++;
+		}
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i)) && digits <= 15) {
+			mantissa = mantissa * 10 + (token.charAt(i) - '0');
+			digits++;
+			fractionDigits++;
+			i++;
+		}
+		if (dots > 1) {
+			return Double.NaN;
+		}
+		if (digits <= 15 && (i == len || !isNumberChar(token.charAt(i)))) {
+			// 15 digits fit in the 53 bit significand and 10^22 is the
+			// largest exact power, so again a single correctly rounded
+			// division
+			return mantissa / DOUBLE_POWERS_OF_TEN[fractionDigits];
+		}
+
+		int end = numberEnd(token, start);
+		if (hasDoubleDot(token, start, end)) {
+			return Double.NaN;
+		}
+		return Double.parseDouble(token.substring(start, end));
+	}
+
+	private static boolean isNumberChar(char c) {
+		return c == '.' || ScanningIntegerInterpreter.isDigit(c);
+	}
+
+	/**
+	 * @return true if the number between start and end has more than one dot,
+	 *         which the regex interpreter doesn't take as a number
+	 */
+	private static boolean hasDoubleDot(String token, int start, int end) {
+		int firstDot = token.indexOf('.', start);
+		return firstDot >= 0 && firstDot + 1 < end && token.charAt(firstDot + 1) == '.';
+	}
+
+	/**
+	 * @return the end of the \d+\.*\d* that starts at start
+	 */
+	private static int numberEnd(String token, int start) {
+		int len = token.length();
+		int i = start;
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i))) {
+			i++;
+		}
+		while (i < len && token.charAt(i) == '.') {
+			i++;
+		}
+		while (i < len && ScanningIntegerInterpreter.isDigit(token.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	public Object interpretValue(String token) {
+		float value = scanFloat(token);
+		if (Float.isNaN(value)) {
+			return null;
+		}
+		return Float.valueOf(value);
+	}
+
+	public void interpretInto(String token, ParseRecord record, int index) {
+		double value = scanDouble(token);
+		if (Double.isNaN(value)) {
+			record.setNone(index, token);
+		} else {
+			record.setDouble(index, token, value);
+		}
+	}
+}
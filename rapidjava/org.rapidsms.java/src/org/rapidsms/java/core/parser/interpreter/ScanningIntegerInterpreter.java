@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.interpreter;
+
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * Hand written equivalent of the IntegerInterpreter: the value of the first run
+ * of digits in the token, so "352", "100cm", "100 m" and "12 meters" all work,
+ * without running a second regex over a token the field type regex already
+ * isolated.
+ */
+public class ScanningIntegerInterpreter implements IPrimitiveInterpreter {
+
+	public ScanningIntegerInterpreter() {
+	}
+
+	/**
+	 * Scan the first run of digits in the token.
+	 * 
+	 * @param token
+	 * @return the value, or -1 if the token has no digits
+	 * @throws NumberFormatException
+	 *             if the digits don't fit in an int, like Integer.valueOf()
+	 */
+	public static int scanInt(String token) {
+		int len = token.length();
+		int i = 0;
+		while (i < len && !isDigit(token.charAt(i))) {
+			i++;
+		}
+		if (i == len) {
+			return -1;
+		}
+		int start = i;
+		long value = 0;
+		while (i < len && isDigit(token.charAt(i))) {
+			value = value * 10 + (token.charAt(i) - '0');
+			if (value > Integer.MAX_VALUE) {
+				while (i < len && isDigit(token.charAt(i))) {
+					i++;
+				}
+				throw new NumberFormatException("For input string: \"" + token.substring(start, i) + "\"");
+			}
+			i++;
+		}
+		return (int) value;
+	}
+
+	static boolean isDigit(char c) {
+		// \d without UNICODE_CHARACTER_CLASS is ascii only
+		return c >= '0' && c <= '9';
+	}
+
+	public Object interpretValue(String token) {
+		int value = scanInt(token);
+		if (value < 0) {
+			return null;
+		}
+		return Integer.valueOf(value);
+	}
+
+	public void interpretInto(String token, ParseRecord record, int index) {
+		int value = scanInt(token);
+		if (value < 0) {
+			record.setNone(index, token);
+		} else {
+			record.setLong(index, token, value);
+		}
+	}
+}
@@ -17,11 +17,13 @@
 
 package org.rapidsms.java.core.parser.interpreter;
 
+import org.rapidsms.java.core.parser.ParseRecord;
+
 /**
  * @author Daniel Myung dmyung@dimagi.com
  * @created Jan 23, 2009 Summary:
  */
-public class StringInterpreter implements IParseInterpreter {
+public class StringInterpreter implements IPrimitiveInterpreter {
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -36,4 +38,8 @@ public class StringInterpreter implements IParseInterpreter {
 	public Object interpretValue(String token) {
 		return token;
 	}
+
+	public void interpretInto(String token, ParseRecord record, int index) {
+		record.setWord(index, token);
+	}
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.service;
+
+import org.rapidsms.java.core.model.Form;
+
+/**
+ * Routes a raw message body to the form whose prefix it starts with.
+ * 
+ * The form prefixes are loaded into a trie, and a message is resolved by
+ * walking it one character at a time from its first non whitespace character,
+ * lowercasing as it goes. That's the same test as
+ * message.toLowerCase().trim().startsWith(prefix + " ") for every prefix, but
+ * it costs O(message length) no matter how many forms are registered, and it
+ * doesn't allocate.
+ * 
+ * A router is immutable once built. When the forms change, build a new one and
+ * swap the reference.
+ */
+public class FormRouter {
+
+	private static class Node {
+		char[] labels = new char[0];
+		Node[] children = new Node[0];
+		/**
+		 * index into mForms of the form whose prefix ends here, -1 if none
+		 */
+		int formIndex = -1;
+
+		Node child(char c) {
+			char[] l = labels;
+			for (int i = 0; i < l.length; i++) {
+				if (l[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node existing = child(c);
+			if (existing != null) {
+				return existing;
+			}
+			int len = labels.length;
+			char[] newLabels = new char[len + 1];
+			Node[] newChildren = new Node[len + 1];
+			System.arraycopy(labels, 0, newLabels, 0, len);
+			System.arraycopy(children, 0, newChildren, 0, len);
+			newLabels[len] = c;
+			newChildren[len] = new Node();
+			labels = newLabels;
+			children = newChildren;
+			return newChildren[len];
+		}
+	}
+
+	private final Form[] mForms;
+	private final Node mRoot = new Node();
+
+	public FormRouter(Form[] forms) {
+		mForms = forms;
+		for (int i = 0; i < forms.length; i++) {
+			String prefix = forms[i].getPrefix();
+			if (prefix == null || prefix.length() == 0) {
+				continue;
+			}
+			Node node = mRoot;
+			int len = prefix.length();
+			for (int c = 0; c < len; c++) {
+				node = node.addChild(prefix.charAt(c));
+			}
+			// on duplicate prefixes the first form wins, same as the linear
+			// scan did
+			if (node.formIndex == -1) {
+				node.formIndex = i;
+			}
+		}
+	}
+
+	/**
+	 * @return the forms this router was built from
+	 */
+	public Form[] getForms() {
+		return mForms;
+	}
+
+	/**
+	 * Determine the form for a given message body.
+	 *
+	 * @param message
+	 * @return the form, or null if no prefix matches
+	 */
+	public Form determineForm(String message) {
+		if (message == null) {
+			return null;
+		}
+		int end = message.length();
+		int pos = 0;
+		while (pos < end && message.charAt(pos) <= ' ') {
+			pos++;
+		}
+		while (end > pos && message.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		// a prefix can contain a space itself, so several prefixes may match
+		// the message. keep the one registered first.
+		int best = -1;
+		Node node = mRoot;
+		while (pos < end) {
+			node = node.child(Character.toLowerCase(message.charAt(pos)));
+			if (node == null) {
+				break;
+			}
+			pos++;
+			if (node.formIndex != -1 && pos < end && message.charAt(pos) == ' ') {
+				if (best == -1 || node.formIndex < best) {
+					best = node.formIndex;
+				}
+			}
+		}
+		return best == -1 ? null : mForms[best];
+	}
+}
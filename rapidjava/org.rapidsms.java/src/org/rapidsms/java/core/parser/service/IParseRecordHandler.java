@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.parser.service;
+
+import org.rapidsms.java.core.parser.ParseRecord;
+
+/**
+ * Receives the messages of a ParsingService.parseAll() run one at a time,
+ * always on the thread that called parseAll().
+ */
+public interface IParseRecordHandler {
+
+	/**
+	 * @param index
+	 *            position of the message in the input
+	 * @param message
+	 * @param record
+	 *            the parsed values. The record is reused once this returns,
+	 *            copy out anything that needs to be kept.
+	 * @param parsed
+	 *            false if the message didn't parse for the form
+	 */
+	void handleRecord(long index, String message, ParseRecord record, boolean parsed);
+}
@@ -26,6 +26,9 @@ import org.rapidsms.java.core.parser.interpreter.BooleanInterpreter;
 import org.rapidsms.java.core.parser.interpreter.FloatInterpreter;
 import org.rapidsms.java.core.parser.interpreter.IParseInterpreter;
 import org.rapidsms.java.core.parser.interpreter.IntegerInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningBooleanInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningFloatInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningIntegerInterpreter;
 import org.rapidsms.java.core.parser.interpreter.StringInterpreter;
 
 public class InterpreterFactory {
@@ -33,10 +36,38 @@ public class InterpreterFactory {
 		BOOLEAN, NUMBER, RATIO, HEIGHT, LENGTH, WEIGHT, WORD
 	}
 
-	private static IntegerInterpreter integerInterpreter = new IntegerInterpreter();
-	private static BooleanInterpreter booleanInterpreter = new BooleanInterpreter();
-	private static StringInterpreter stringInterpreter = new StringInterpreter();
-	private static FloatInterpreter floatInterpreter = new FloatInterpreter();
+	private static volatile IParseInterpreter integerInterpreter = new ScanningIntegerInterpreter();
+	private static volatile IParseInterpreter booleanInterpreter = new ScanningBooleanInterpreter();
+	private static IParseInterpreter stringInterpreter = new StringInterpreter();
+	private static volatile IParseInterpreter floatInterpreter = new ScanningFloatInterpreter();
+
+	/**
+	 * Switch between the hand written scanning interpreters (the default) and
+	 * the original regex based ones, e.g. to diff the two. Field types hold on
+	 * to the interpreter they were created with, so set this before the forms
+	 * are loaded.
+	 * 
+	 * Also settable with -Drapidsms.regexinterpreters=true
+	 * 
+	 * @param useRegex
+	 */
+	public static synchronized void SetUseRegexInterpreters(boolean useRegex) {
+		if (useRegex) {
+			integerInterpreter = new IntegerInterpreter();
+			booleanInterpreter = new BooleanInterpreter();
+			floatInterpreter = new FloatInterpreter();
+		} else {
+			integerInterpreter = new ScanningIntegerInterpreter();
+			booleanInterpreter = new ScanningBooleanInterpreter();
+			floatInterpreter = new ScanningFloatInterpreter();
+		}
+	}
+
+	static {
+		if (Boolean.getBoolean("rapidsms.regexinterpreters")) {
+			SetUseRegexInterpreters(true);
+		}
+	}
 
 	public static IParseInterpreter GetParseInterpreter(String typename) {
 		if (typename.equals("boolean"))
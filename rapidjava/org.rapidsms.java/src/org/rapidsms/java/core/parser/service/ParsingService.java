@@ -17,10 +17,25 @@
 
 package org.rapidsms.java.core.parser.service;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.CompiledFormParser;
 import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.ParseRecord;
 import org.rapidsms.java.core.parser.SimpleRegexParser;
 
 /**
@@ -34,10 +49,76 @@ import org.rapidsms.java.core.parser.SimpleRegexParser;
 public class ParsingService {
 
 	public enum ParserType {
-		SIMPLEREGEX
+		SIMPLEREGEX, COMPILEDREGEX
 	};
 
 	private static SimpleRegexParser simpleRegexParser = new SimpleRegexParser();
+	private static CompiledFormParser compiledFormParser = new CompiledFormParser();
+
+	/**
+	 * messages per task handed to the parsing threads, big enough that the
+	 * hand off is noise next to the parsing
+	 */
+	static final int CHUNK_SIZE = 256;
+
+	private static int parsingThreads = Runtime.getRuntime().availableProcessors();
+	private static ParsingPool parsingPool;
+
+	/**
+	 * The parsing threads, counted out to the batches using them so the pool
+	 * is only shut down once the last one is done with it.
+	 */
+	private static class ParsingPool {
+		final ExecutorService executor;
+		final int threads;
+		/**
+		 * batches running on the pool, guarded by ParsingService.class
+		 */
+		int users = 0;
+		/**
+		 * set once the pool has been replaced, it shuts down when its last
+		 * batch releases it
+		 */
+		boolean retired = false;
+
+		ParsingPool(int threads) {
+			this.threads = threads;
+			this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ParsingService-" + count.incrementAndGet());
+					// never keep the process alive just for idle parsers
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Set how many threads parseBatch() and parseAll() use, one per core by
+	 * default. 1 parses on the calling thread.
+	 * 
+	 * Safe to call while batches are parsing: they finish on the threads they
+	 * started with, which are shut down after, and the next batch gets the
+	 * new ones.
+	 * 
+	 * @param threads
+	 */
+	public static synchronized void SetParsingThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("need at least one parsing thread, not " + threads);
+		}
+		if (threads != parsingThreads && parsingPool != null) {
+			parsingPool.retired = true;
+			if (parsingPool.users == 0) {
+				parsingPool.executor.shutdown();
+			}
+			parsingPool = null;
+		}
+		parsingThreads = threads;
+	}
 
 	/**
 	 * For a given message, call the appropriate parsing class and return the
@@ -51,8 +132,276 @@ public class ParsingService {
 		switch (form.getParserType()) {
 			case SIMPLEREGEX:
 				return simpleRegexParser.ParseMessage(form, message);
+			case COMPILEDREGEX:
+				return compiledFormParser.ParseMessage(form, message);
+			default:
+				throw new IllegalArgumentException("that parser does not exist");
+		}
+	}
+
+	/**
+	 * Parse the message into a reusable ParseRecord, keeping numeric values
+	 * as primitives where the parser supports it.
+	 * 
+	 * @param form
+	 * @param message
+	 * @param record
+	 * @return false if the message didn't parse for the form
+	 */
+	public static boolean ParseMessage(Form form, String message, ParseRecord record) {
+		switch (form.getParserType()) {
+			case SIMPLEREGEX:
+				Vector<IParseResult> results = simpleRegexParser.ParseMessage(form, message);
+				record.reset(form);
+				if (results == null) {
+					return false;
+				}
+				for (int i = 0; i < results.size(); i++) {
+					record.setResult(i, results.get(i));
+				}
+				return true;
+			case COMPILEDREGEX:
+				return compiledFormParser.ParseMessage(form, message, record);
 			default:
 				throw new IllegalArgumentException("that parser does not exist");
 		}
 	}
+
+	/**
+	 * Parse a batch of messages across all cores.
+	 * 
+	 * @param form
+	 * @param messages
+	 * @return a record per message in input order, null where the message
+	 *         didn't parse for the form
+	 */
+	public static List<ParseRecord> parseBatch(final Form form, List<String> messages) {
+		final String[] input = messages.toArray(new String[messages.size()]);
+		final ParseRecord[] records = new ParseRecord[input.length];
+		if (input.length <= CHUNK_SIZE) {
+			parseRange(form, input, records, 0, input.length);
+			return Arrays.asList(records);
+		}
+		ParsingPool pool = acquirePool();
+		if (pool == null) {
+			parseRange(form, input, records, 0, input.length);
+			return Arrays.asList(records);
+		}
+		try {
+			parseChunks(pool.executor, form, input, records);
+		} finally {
+			releasePool(pool);
+		}
+		return Arrays.asList(records);
+	}
+
+	private static void parseChunks(ExecutorService executor, final Form form, final String[] input,
+			final ParseRecord[] records) {
+		Vector<Future<Object>> futures = new Vector<Future<Object>>(input.length / CHUNK_SIZE + 1);
+		for (int start = 0; start < input.length; start += CHUNK_SIZE) {
+			final int from = start;
+			final int to = Math.min(start + CHUNK_SIZE, input.length);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					parseRange(form, input, records, from, to);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				await(futures.get(i));
+			}
+		} finally {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).cancel(false);
+			}
+		}
+	}
+
+	private static void parseRange(Form form, String[] input, ParseRecord[] records, int from, int to) {
+		for (int i = from; i < to; i++) {
+			ParseRecord record = new ParseRecord();
+			if (ParseMessage(form, input[i], record)) {
+				records[i] = record;
+			}
+		}
+	}
+
+	/**
+	 * Stream messages through the parser, parsing chunks of them on all cores
+	 * while the handler consumes the results. Only a few chunks are in flight
+	 * at a time and their records are recycled, so an arbitrarily long
+	 * iterator (like a cursor over the whole message table) runs in constant
+	 * memory.
+	 * 
+	 * The iterator is only read from, and the handler only called on, the
+	 * calling thread, so neither needs to be thread safe.
+	 * 
+	 * @param form
+	 * @param messages
+	 * @param handler
+	 * @param ordered
+	 *            true to get the messages back in input order, false to get
+	 *            them as soon as their chunk is done
+	 * @return the number of messages handled
+	 */
+	public static long parseAll(Form form, Iterator<String> messages, IParseRecordHandler handler, boolean ordered) {
+		ParsingPool pool = acquirePool();
+		if (pool == null) {
+			ParseRecord record = new ParseRecord();
+			long index = 0;
+			while (messages.hasNext()) {
+				String message = messages.next();
+				handler.handleRecord(index++, message, record, ParseMessage(form, message, record));
+			}
+			return index;
+		}
+		try {
+			return parseChunks(pool, form, messages, handler, ordered);
+		} finally {
+			releasePool(pool);
+		}
+	}
+
+	private static long parseChunks(ParsingPool pool, Form form, Iterator<String> messages,
+			IParseRecordHandler handler, boolean ordered) {
+		ExecutorService executor = pool.executor;
+		CompletionService<ParseChunk> completion = new ExecutorCompletionService<ParseChunk>(executor);
+		// in order mode the chunks are waited on in submission order, in any
+		// order mode the completion service hands back whichever is done.
+		LinkedList<Future<ParseChunk>> pending = new LinkedList<Future<ParseChunk>>();
+		LinkedList<ParseChunk> free = new LinkedList<ParseChunk>();
+		int maxInFlight = pool.threads * 2;
+		int inFlight = 0;
+		long index = 0;
+		try {
+			while (true) {
+				while (inFlight < maxInFlight && messages.hasNext()) {
+					ParseChunk chunk = free.isEmpty() ? new ParseChunk(form) : free.removeFirst();
+					chunk.fill(messages, index);
+					index += chunk.size;
+					if (ordered) {
+						pending.add(executor.submit(chunk));
+					} else {
+						pending.add(completion.submit(chunk));
+					}
+					inFlight++;
+				}
+				if (inFlight == 0) {
+					return index;
+				}
+
+				ParseChunk done;
+				if (ordered) {
+					done = await(pending.removeFirst());
+				} else {
+					Future<ParseChunk> future = takeCompleted(completion);
+					pending.remove(future);
+					done = await(future);
+				}
+				inFlight--;
+				for (int i = 0; i < done.size; i++) {
+					handler.handleRecord(done.firstIndex + i, done.messages[i], done.records[i], done.parsed[i]);
+				}
+				free.add(done);
+			}
+		} finally {
+			for (Future<ParseChunk> future : pending) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * A run of messages parsed together on one of the parsing threads.
+	 */
+	private static class ParseChunk implements Callable<ParseChunk> {
+		final Form form;
+		final String[] messages = new String[CHUNK_SIZE];
+		final ParseRecord[] records = new ParseRecord[CHUNK_SIZE];
+		final boolean[] parsed = new boolean[CHUNK_SIZE];
+		long firstIndex;
+		int size;
+
+		ParseChunk(Form form) {
+			this.form = form;
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				records[i] = new ParseRecord();
+			}
+		}
+
+		void fill(Iterator<String> source, long firstIndex) {
+			this.firstIndex = firstIndex;
+			int n = 0;
+			while (n < CHUNK_SIZE && source.hasNext()) {
+				messages[n++] = source.next();
+			}
+			for (int i = n; i < size; i++) {
+				messages[i] = null;
+			}
+			size = n;
+		}
+
+		public ParseChunk call() {
+			for (int i = 0; i < size; i++) {
+				parsed[i] = ParseMessage(form, messages[i], records[i]);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Take the shared parsing threads for a batch, hand them back with
+	 * releasePool() once it's done.
+	 * 
+	 * @return the pool, null if parsing is single threaded
+	 */
+	private static synchronized ParsingPool acquirePool() {
+		if (parsingThreads == 1) {
+			return null;
+		}
+		if (parsingPool == null) {
+			parsingPool = new ParsingPool(parsingThreads);
+		}
+		parsingPool.users++;
+		return parsingPool;
+	}
+
+	private static synchronized void releasePool(ParsingPool pool) {
+		pool.users--;
+		if (pool.users == 0 && pool.retired) {
+			pool.executor.shutdown();
+		}
+	}
+
+	private static <T> Future<T> takeCompleted(CompletionService<T> completion) {
+		try {
+			return completion.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while parsing", e);
+		}
+	}
+
+	/**
+	 * Wait for a parsing task, rethrowing whatever it threw.
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while parsing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.rollup;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Collects the hourly and daily rollups for a batch of new rows, so they can be
+ * added to the rollup tables in the same transaction as the rows themselves.
+ * Charts then read a few rows per bucket instead of grouping every message in
+ * the range, so their cost doesn't grow with the history.
+ * 
+ * Buckets are numbered in local time, bucket = (millis + zone offset) / width,
+ * which is how the charts have always bucketed messages. Weeks, months and
+ * years are groups of whole days, so the charts build them from the daily
+ * buckets.
+ * 
+ * Not thread safe, use one per batch.
+ */
+public class RollupAccumulator {
+
+	public static final long HOUR_MILLIS = 60 * 60 * 1000L;
+	public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	/**
+	 * The form id of the series counting every message, parsed or not.
+	 */
+	public static final int ALL_MESSAGES = -1;
+	/**
+	 * The field name of a form's message count series.
+	 */
+	public static final String COUNT_SERIES = "";
+
+	private final TimeZone mZone;
+	private final HashMap<RollupBucket, RollupBucket> mHourly = new HashMap<RollupBucket, RollupBucket>();
+	private final HashMap<RollupBucket, RollupBucket> mDaily = new HashMap<RollupBucket, RollupBucket>();
+	private final RollupBucket mProbe = new RollupBucket(0, COUNT_SERIES, 0);
+
+	public RollupAccumulator(TimeZone zone) {
+		mZone = zone;
+	}
+
+	/**
+	 * @param zone
+	 * @param millis
+	 * @param width
+	 *            HOUR_MILLIS or DAY_MILLIS
+	 * @return the number of the local bucket the instant falls in
+	 */
+	public static long localBucket(TimeZone zone, long millis, long width) {
+		long local = millis + zone.getOffset(millis);
+		long bucket = local / width;
+		if (local % width < 0) {
+			bucket--;
+		}
+		return bucket;
+	}
+
+	/**
+	 * @param zone
+	 * @param bucket
+	 * @param width
+	 * @return the instant the local bucket starts
+	 */
+	public static long bucketStart(TimeZone zone, long bucket, long width) {
+		long local = bucket * width;
+		// the offset in effect at the start, found from a first guess made
+		// with the offset at the local time itself
+		long guess = local - zone.getOffset(local);
+		return local - zone.getOffset(guess);
+	}
+
+	/**
+	 * @param dataType
+	 *            the field's parsed data type
+	 * @return true if values of this type are rolled up
+	 */
+	public static boolean isRolledUp(String dataType) {
+		return "integer".equals(dataType) || "number".equals(dataType) || "ratio".equals(dataType)
+				|| isBoolean(dataType);
+	}
+
+	private static boolean isBoolean(String dataType) {
+		return "boolean".equals(dataType) || "yes/no".equals(dataType);
+	}
+
+	/**
+	 * The value a form data column contributes to its field's rollup.
+	 * 
+	 * @param dataType
+	 *            the field's parsed data type
+	 * @param value
+	 *            the column value, a Number, or the text it's stored as
+	 * @return the value, or NaN if there's nothing to roll up: the field isn't
+	 *         numeric or boolean, or the value is empty.
+	 */
+	public static double getRollupValue(String dataType, Object value) {
+		if (value == null || !isRolledUp(dataType)) {
+			return Double.NaN;
+		}
+		if (isBoolean(dataType)) {
+			if (value instanceof Number) {
+				return ((Number) value).intValue() != 0 ? 1 : 0;
+			}
+			String text = value.toString();
+			if ("true".equals(text)) {
+				return 1;
+			} else if ("false".equals(text)) {
+				return 0;
+			}
+			return Double.NaN;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		String text = value.toString();
+		if (text.length() == 0) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Count a message in the ALL_MESSAGES series.
+	 * 
+	 * @param millis
+	 *            the message time
+	 */
+	public void addMessage(long millis) {
+		addCount(ALL_MESSAGES, millis);
+	}
+
+	/**
+	 * Count a form data row in its form's COUNT_SERIES.
+	 * 
+	 * @param formId
+	 * @param millis
+	 *            the time of its message
+	 */
+	public void addCount(int formId, long millis) {
+		get(mHourly, formId, COUNT_SERIES, localBucket(mZone, millis, HOUR_MILLIS)).addCount();
+		get(mDaily, formId, COUNT_SERIES, localBucket(mZone, millis, DAY_MILLIS)).addCount();
+	}
+
+	/**
+	 * Add one field of a form data row.
+	 * 
+	 * @param formId
+	 * @param field
+	 *            the field name
+	 * @param dataType
+	 *            the field's parsed data type
+	 * @param millis
+	 *            the time of its message
+	 * @param value
+	 *            the column value
+	 * @return false if the value isn't rolled up
+	 */
+	public boolean addField(int formId, String field, String dataType, long millis, Object value) {
+		double v = getRollupValue(dataType, value);
+		if (Double.isNaN(v)) {
+			return false;
+		}
+		get(mHourly, formId, field, localBucket(mZone, millis, HOUR_MILLIS)).addValue(v);
+		get(mDaily, formId, field, localBucket(mZone, millis, DAY_MILLIS)).addValue(v);
+		return true;
+	}
+
+	private RollupBucket get(HashMap<RollupBucket, RollupBucket> buckets, int formId, String field, long bucket) {
+		mProbe.setKey(formId, field, bucket);
+		RollupBucket existing = buckets.get(mProbe);
+		if (existing == null) {
+			existing = new RollupBucket(formId, field, bucket);
+			buckets.put(existing, existing);
+		}
+		return existing;
+	}
+
+	public Collection<RollupBucket> getHourly() {
+		return mHourly.values();
+	}
+
+	public Collection<RollupBucket> getDaily() {
+		return mDaily.values();
+	}
+
+	public boolean isEmpty() {
+		return mHourly.isEmpty();
+	}
+
+	public void clear() {
+		mHourly.clear();
+		mDaily.clear();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.core.rollup;
+
+/**
+ * The running count, sum, min and max of one series in one time bucket. A
+ * series is a form's message count (field RollupAccumulator.COUNT_SERIES) or
+ * the values of one of its numeric or boolean fields. Booleans are summed as 1
+ * for true and 0 for false, so the sum of a boolean series is its count of
+ * trues.
+ */
+public class RollupBucket {
+
+	private int mFormId;
+	private String mField;
+	private long mBucket;
+
+	private long mCount = 0;
+	private double mSum = 0;
+	private double mMin = 0;
+	private double mMax = 0;
+
+	public RollupBucket(int formId, String field, long bucket) {
+		mFormId = formId;
+		mField = field;
+		mBucket = bucket;
+	}
+
+	/**
+	 * Point a lookup key at another bucket. Only for keys that aren't in a map.
+	 */
+	void setKey(int formId, String field, long bucket) {
+		mFormId = formId;
+		mField = field;
+		mBucket = bucket;
+	}
+
+	public int getFormId() {
+		return mFormId;
+	}
+
+	public String getField() {
+		return mField;
+	}
+
+	/**
+	 * @return the bucket number, local time divided by the bucket width
+	 */
+	public long getBucket() {
+		return mBucket;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public double getSum() {
+		return mSum;
+	}
+
+	/**
+	 * @return the smallest value added, 0 for a count series
+	 */
+	public double getMin() {
+		return mMin;
+	}
+
+	/**
+	 * @return the largest value added, 0 for a count series
+	 */
+	public double getMax() {
+		return mMax;
+	}
+
+	void addCount() {
+		mCount++;
+	}
+
+	void addValue(double value) {
+		if (mCount == 0) {
+			mMin = value;
+			mMax = value;
+		} else {
+			if (value < mMin) {
+				mMin = value;
+			}
+			if (value > mMax) {
+				mMax = value;
+			}
+		}
+		mCount++;
+		mSum += value;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RollupBucket)) {
+			return false;
+		}
+		RollupBucket other = (RollupBucket) o;
+		return mFormId == other.mFormId && mBucket == other.mBucket && mField.equals(other.mField);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * mFormId + mField.hashCode()) + (int) (mBucket ^ (mBucket >>> 32));
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a file in gzipped chunks that survive a dropped link.
+ * 
+ * The file is split into fixed size chunks. Each one is gzipped and PUT on its
+ * own, with the SHA-1 of its uncompressed bytes so the server can reject one
+ * that was mangled on the way. Several chunks are in flight at once, so the
+ * link isn't idle while one waits on its reply. A chunk that fails is retried
+ * with exponential backoff, and if the link stays down the upload gives up with
+ * what's been acknowledged left on the server. The upload is named by the SHA-1
+ * of the whole file, so uploading the same file again asks the server how far
+ * it got and carries on from there instead of starting over.
+ * 
+ * The protocol, relative to the base url:
+ * 
+ * GET status?upload=id - 200 with the number of chunks, counting from 0, the
+ * server holds without a gap
+ * 
+ * PUT chunk?upload=id&index=i, Content-Encoding: gzip, X-Chunk-SHA1 - 200 once
+ * stored, 422 if the hash doesn't match
+ * 
+ * POST complete?upload=id&chunks=n&sha1=id&name=file - 200 once the chunks are
+ * joined back into the file and its hash checks out
+ * 
+ * 400, 404 and 409 mean the request itself is wrong and aren't retried.
+ * Anything else that isn't a 2xx is.
+ * 
+ * One uploader can run any number of uploads, one after another or at once.
+ */
+public class ChunkedUploader {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 3;
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60 * 1000;
+
+	public static final String HEADER_CHUNK_SHA1 = "X-Chunk-SHA1";
+
+	private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+	private final String mBaseUrl;
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF_MILLIS;
+	private final Random mJitter = new Random();
+
+	/**
+	 * What an upload did.
+	 */
+	public static class Result {
+		private final String mUploadId;
+		private final int mChunks;
+		private final int mResumedFrom;
+		private final long mBytesSent;
+
+		Result(String uploadId, int chunks, int resumedFrom, long bytesSent) {
+			mUploadId = uploadId;
+			mChunks = chunks;
+			mResumedFrom = resumedFrom;
+			mBytesSent = bytesSent;
+		}
+
+		/**
+		 * @return the SHA-1 of the file, in hex
+		 */
+		public String getUploadId() {
+			return mUploadId;
+		}
+
+		public int getChunks() {
+			return mChunks;
+		}
+
+		/**
+		 * @return the chunks the server already had, which weren't sent again
+		 */
+		public int getResumedFrom() {
+			return mResumedFrom;
+		}
+
+		/**
+		 * @return gzipped bytes of the chunks this upload sent
+		 */
+		public long getBytesSent() {
+			return mBytesSent;
+		}
+	}
+
+	/**
+	 * @param baseUrl
+	 *            the url the status, chunk and complete requests are relative
+	 *            to, e.g. http://host:8160/upload
+	 */
+	public ChunkedUploader(String baseUrl) {
+		mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+	}
+
+	public void setChunkSize(int chunkSize) {
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            how many chunks are sent at once
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		mMaxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            tries per request before the upload gives up
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		mMaxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * The wait before a retry doubles from initialMillis up to maxMillis, and
+	 * a random part of it is taken off so uploads that failed together don't
+	 * retry together.
+	 * 
+	 * @param initialMillis
+	 * @param maxMillis
+	 */
+	public void setBackoff(long initialMillis, long maxMillis) {
+		mInitialBackoff = initialMillis;
+		mMaxBackoff = maxMillis;
+	}
+
+	/**
+	 * Upload a file, resuming if the server already holds some of it.
+	 * 
+	 * @param file
+	 * @param name
+	 *            the name the server saves it under
+	 * @param listener
+	 *            may be null
+	 * @return
+	 * @throws IOException
+	 *             if a request still fails after every attempt, or the upload
+	 *             was cancelled. Chunks already acknowledged stay on the
+	 *             server.
+	 */
+	public Result upload(File file, String name, IUploadListener listener) throws IOException {
+		String uploadId = hex(digestFile(file));
+		long length = file.length();
+		final int chunks = (int) ((length + mChunkSize - 1) / mChunkSize);
+		String encodedId = encode(uploadId);
+
+		int acked = parseCount(request("GET", mBaseUrl + "status?upload=" + encodedId, null, 0, null));
+		acked = Math.min(acked, chunks);
+		int resumedFrom = acked;
+		if (listener != null) {
+			listener.onProgress(acked, chunks);
+		}
+
+		long bytesSent = 0;
+		if (acked < chunks) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(mMaxInFlight, chunks - acked));
+			try {
+				ExecutorCompletionService<Long> completion = new ExecutorCompletionService<Long>(pool);
+				FileChannel channel = raf.getChannel();
+				int next = acked;
+				int inFlight = 0;
+				IOException failure = null;
+				while (next < chunks || inFlight > 0) {
+					while (failure == null && next < chunks && inFlight < mMaxInFlight) {
+						completion.submit(new ChunkTask(channel, encodedId, next, length));
+						next++;
+						inFlight++;
+					}
+					if (inFlight == 0) {
+						break;
+					}
+					Future<Long> done = completion.take();
+					inFlight--;
+					try {
+						bytesSent += done.get().longValue();
+						acked++;
+					} catch (ExecutionException e) {
+						if (failure == null) {
+							failure = asIOException(e.getCause());
+						}
+					}
+					if (failure == null && listener != null) {
+						listener.onProgress(acked, chunks);
+						if (listener.isCancelled()) {
+							failure = new InterruptedIOException("upload cancelled after " + acked + " of " + chunks
+									+ " chunks");
+						}
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("upload interrupted");
+			} finally {
+				pool.shutdownNow();
+				raf.close();
+			}
+		}
+
+		request("POST", mBaseUrl + "complete?upload=" + encodedId + "&chunks=" + chunks + "&sha1=" + encodedId
+				+ "&name=" + encode(name), null, 0, null);
+		return new Result(uploadId, chunks, resumedFrom, bytesSent);
+	}
+
+	/**
+	 * Reads, gzips and sends one chunk.
+	 */
+	private class ChunkTask implements Callable<Long> {
+		private final FileChannel mChannel;
+		private final String mEncodedId;
+		private final int mIndex;
+		private final long mLength;
+
+		ChunkTask(FileChannel channel, String encodedId, int index, long length) {
+			mChannel = channel;
+			mEncodedId = encodedId;
+			mIndex = index;
+			mLength = length;
+		}
+
+		public Long call() throws IOException {
+			long position = (long) mIndex * mChunkSize;
+			int size = (int) Math.min(mChunkSize, mLength - position);
+			byte[] raw = new byte[size];
+			ByteBuffer buffer = ByteBuffer.wrap(raw);
+			// positional reads don't move the channel, so the tasks can share
+			// it
+			while (buffer.hasRemaining()) {
+				if (mChannel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("file shrank while uploading");
+				}
+			}
+			MessageDigest sha1 = newSha1();
+			sha1.update(raw);
+			String hash = hex(sha1.digest());
+
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 2 + 64);
+			GZIPOutputStream gz = new GZIPOutputStream(compressed);
+			gz.write(raw);
+			gz.close();
+			byte[] body = compressed.toByteArray();
+
+			request("PUT", mBaseUrl + "chunk?upload=" + mEncodedId + "&index=" + mIndex, body, body.length, hash);
+			return Long.valueOf(body.length);
+		}
+	}
+
+	/**
+	 * Make a request, retrying with backoff.
+	 * 
+	 * @return the response body
+	 */
+	private String request(String method, String url, byte[] body, int length, String chunkHash) throws IOException {
+		IOException last = null;
+		for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+			if (attempt > 0) {
+				backoff(attempt);
+			}
+			HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+			int status;
+			String response;
+			try {
+				conn.setConnectTimeout(TIMEOUT_MILLIS);
+				conn.setReadTimeout(TIMEOUT_MILLIS);
+				conn.setRequestMethod(method);
+				conn.setUseCaches(false);
+				if (chunkHash != null) {
+					conn.setRequestProperty(HEADER_CHUNK_SHA1, chunkHash);
+					conn.setRequestProperty("Content-Encoding", "gzip");
+					conn.setRequestProperty("Content-Type", "application/octet-stream");
+				}
+				if (body != null) {
+					conn.setDoOutput(true);
+					conn.setFixedLengthStreamingMode(length);
+					OutputStream out = conn.getOutputStream();
+					out.write(body, 0, length);
+					out.close();
+				} else if ("POST".equals(method)) {
+					conn.setDoOutput(true);
+					conn.setFixedLengthStreamingMode(0);
+					conn.getOutputStream().close();
+				}
+				status = conn.getResponseCode();
+				response = readBody(status < 400 ? conn.getInputStream() : conn.getErrorStream());
+			} catch (IOException e) {
+				// drop the connection rather than hand a broken one back to
+				// the keep-alive pool
+				conn.disconnect();
+				last = e;
+				continue;
+			}
+			if (status >= 200 && status < 300) {
+				return response;
+			}
+			if (status == HttpURLConnection.HTTP_BAD_REQUEST || status == HttpURLConnection.HTTP_NOT_FOUND
+					|| status == HttpURLConnection.HTTP_CONFLICT) {
+				throw new IOException(method + " " + url + " rejected: " + status + " " + response);
+			}
+			last = new IOException(method + " " + url + " failed: " + status + " " + response);
+		}
+		throw last;
+	}
+
+	private void backoff(int attempt) throws InterruptedIOException {
+		long delay = mInitialBackoff << Math.min(attempt - 1, 30);
+		if (delay > mMaxBackoff || delay <= 0) {
+			delay = mMaxBackoff;
+		}
+		long wait = delay / 2;
+		synchronized (mJitter) {
+			wait += (long) (mJitter.nextDouble() * (delay - wait));
+		}
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("upload interrupted");
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+			return new String(out.toByteArray(), "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int parseCount(String body) throws IOException {
+		try {
+			return Integer.parseInt(body.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("unexpected status response: " + body);
+		}
+	}
+
+	private static IOException asIOException(Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		IOException e = new IOException(String.valueOf(cause));
+		e.initCause(cause);
+		return e;
+	}
+
+	private static byte[] digestFile(File file) throws IOException {
+		MessageDigest sha1 = newSha1();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				sha1.update(buf, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return sha1.digest();
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every java platform has to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.core.upload;
+
+/**
+ * Watches a ChunkedUploader. Called from the thread that started the upload,
+ * never from the threads sending the chunks.
+ */
+public interface IUploadListener {
+
+	/**
+	 * @param acknowledged
+	 *            chunks the server holds so far, including any it already had
+	 *            when the upload resumed
+	 * @param chunks
+	 *            chunks in the file
+	 */
+	void onProgress(int acknowledged, int chunks);
+
+	/**
+	 * Polled after every chunk. Once it returns true no more chunks are sent,
+	 * and the upload throws once the ones in flight are done. What the server
+	 * acknowledged is kept, so a later upload of the same file resumes.
+	 * 
+	 * @return true to stop the upload
+	 */
+	boolean isCancelled();
+}
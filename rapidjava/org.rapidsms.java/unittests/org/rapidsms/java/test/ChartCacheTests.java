@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.ChartCache;
+import org.rapidsms.java.core.chart.ChartCache.Key;
+
+public class ChartCacheTests extends TestCase {
+
+	private static Key key(int formId, String field) {
+		return new Key("graph_form", formId, field, 1, 1000, 2000, 1);
+	}
+
+	public void testGetAndEvict() {
+		ChartCache<String> cache = new ChartCache<String>(100);
+		assertNull(cache.get(key(1, "a")));
+		assertTrue(cache.put(key(1, "a"), "a", 40, cache.getGeneration(1)));
+		assertTrue(cache.put(key(1, "b"), "b", 40, cache.getGeneration(1)));
+		assertEquals("a", cache.get(new Key("graph_form", 1, "a", 1, 1000, 2000, 1)));
+		assertNull(cache.get(new Key("graph_form", 1, "a", 1, 1000, 2001, 1)));
+
+		// a was used last, so b goes
+		assertTrue(cache.put(key(2, "c"), "c", 40, cache.getGeneration(2)));
+		assertEquals(2, cache.size());
+		assertEquals(80, cache.getBytes());
+		assertEquals("a", cache.get(key(1, "a")));
+		assertNull(cache.get(key(1, "b")));
+		assertEquals("c", cache.get(key(2, "c")));
+
+		// bigger than the whole cache
+		assertFalse(cache.put(key(3, "d"), "d", 101, cache.getGeneration(3)));
+		assertEquals(2, cache.size());
+
+		// replacing an entry doesn't count it twice
+		assertTrue(cache.put(key(2, "c"), "c2", 50, cache.getGeneration(2)));
+		assertEquals(90, cache.getBytes());
+		assertEquals("c2", cache.get(key(2, "c")));
+	}
+
+	public void testInvalidateForm() {
+		ChartCache<String> cache = new ChartCache<String>(1000);
+		cache.put(key(1, "a"), "a", 10, cache.getGeneration(1));
+		cache.put(key(1, "b"), "b", 10, cache.getGeneration(1));
+		cache.put(key(2, "a"), "a", 10, cache.getGeneration(2));
+
+		cache.invalidateForm(1);
+		assertNull(cache.get(key(1, "a")));
+		assertNull(cache.get(key(1, "b")));
+		assertEquals("a", cache.get(key(2, "a")));
+		assertEquals(10, cache.getBytes());
+
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	public void testInvalidateInAll() {
+		ChartCache<String> first = new ChartCache<String>(1000);
+		ChartCache<Integer> second = new ChartCache<Integer>(1000);
+		first.put(key(1, "a"), "a", 10, first.getGeneration(1));
+		first.put(key(2, "a"), "a", 10, first.getGeneration(2));
+		second.put(key(1, "a"), Integer.valueOf(1), 10, second.getGeneration(1));
+
+		ChartCache.invalidateFormInAll(1);
+		assertNull(first.get(key(1, "a")));
+		assertNull(second.get(key(1, "a")));
+		assertEquals("a", first.get(key(2, "a")));
+
+		ChartCache.invalidateAllCaches();
+		assertEquals(0, first.size());
+	}
+
+	public void testStaleComputationNotCached() {
+		ChartCache<String> cache = new ChartCache<String>(1000);
+		long gen1 = cache.getGeneration(1);
+		long gen2 = cache.getGeneration(2);
+		// rows inserted into form 1 while its chart was being computed
+		cache.invalidateForm(1);
+		assertFalse(cache.put(key(1, "a"), "a", 10, gen1));
+		assertNull(cache.get(key(1, "a")));
+		assertTrue(cache.put(key(2, "a"), "a", 10, gen2));
+
+		long gen3 = cache.getGeneration(3);
+		cache.invalidateAll();
+		assertFalse(cache.put(key(3, "a"), "a", 10, gen3));
+		assertTrue(cache.put(key(3, "a"), "a", 10, cache.getGeneration(3)));
+		assertEquals("a", cache.get(key(3, "a")));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.CancellationToken;
+import org.rapidsms.java.core.chart.ChartLoadQueue;
+import org.rapidsms.java.core.chart.ChartLoadQueue.IChartLoad;
+
+public class ChartLoadQueueTests extends TestCase {
+
+	/**
+	 * Reads "rows" until it's cancelled or released.
+	 */
+	private static class Load implements IChartLoad {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean finished;
+		volatile boolean cancelled;
+		volatile boolean dropped;
+		volatile boolean ran;
+
+		public void load(CancellationToken token) {
+			ran = true;
+			started.countDown();
+			try {
+				while (release.getCount() > 0) {
+					token.throwIfCancelled();
+					Thread.sleep(1);
+				}
+				finished = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				cancelled = token.isCancelled();
+				done.countDown();
+			}
+		}
+
+		public void dropped() {
+			dropped = true;
+		}
+	}
+
+	private ThreadPoolExecutor executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = ChartLoadQueue.newExecutor("ChartLoadQueueTests", 1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testNewerLoadSupersedes() throws Exception {
+		ChartLoadQueue queue = new ChartLoadQueue(executor);
+		Load first = new Load();
+		Load second = new Load();
+		Load third = new Load();
+
+		CancellationToken firstToken = queue.submit(first);
+		assertTrue(first.started.await(5, TimeUnit.SECONDS));
+		assertTrue(queue.isCurrent(firstToken));
+
+		// the running load is cancelled, the waiting one never runs
+		queue.submit(second);
+		CancellationToken thirdToken = queue.submit(third);
+		assertTrue(first.done.await(5, TimeUnit.SECONDS));
+		assertTrue(first.cancelled);
+		assertFalse(first.finished);
+		assertTrue(firstToken.isCancelled());
+		assertFalse(queue.isCurrent(firstToken));
+
+		assertTrue(third.started.await(5, TimeUnit.SECONDS));
+		third.release.countDown();
+		assertTrue(third.done.await(5, TimeUnit.SECONDS));
+		assertTrue(third.finished);
+		assertTrue(queue.isCurrent(thirdToken));
+		assertFalse(second.ran);
+		assertFalse(second.dropped);
+
+		queue.cancel();
+		assertFalse(queue.isCurrent(thirdToken));
+	}
+
+	public void testFullExecutorDropsOldest() throws Exception {
+		ChartLoadQueue a = new ChartLoadQueue(executor);
+		ChartLoadQueue b = new ChartLoadQueue(executor);
+		ChartLoadQueue c = new ChartLoadQueue(executor);
+		Load running = new Load();
+		Load waiting = new Load();
+		Load newest = new Load();
+
+		a.submit(running);
+		assertTrue(running.started.await(5, TimeUnit.SECONDS));
+		CancellationToken waitingToken = b.submit(waiting);
+		// the queue holds one, so b's load is pushed out by c's
+		c.submit(newest);
+		assertTrue(waiting.dropped);
+		assertTrue(waitingToken.isCancelled());
+
+		running.release.countDown();
+		newest.release.countDown();
+		assertTrue(newest.done.await(5, TimeUnit.SECONDS));
+		assertTrue(running.finished);
+		assertTrue(newest.finished);
+		assertFalse(waiting.ran);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.upload.ChunkedUploader;
+import org.rapidsms.java.core.upload.IUploadListener;
+
+/**
+ * Runs the ChunkedUploader against the UploadTestServer.
+ */
+public class ChunkedUploaderTests extends TestCase {
+
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private UploadTestServer server;
+	private File file;
+	private byte[] contents;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new UploadTestServer(0, null);
+		// half csv text, half noise, so the chunks compress unevenly
+		Random r = new Random(7);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 200 * 1024) {
+			sb.append(r.nextInt(5000)).append(",bednets nyc ").append(r.nextInt(500)).append(" 30 80\r\n");
+		}
+		byte[] text = sb.toString().getBytes("UTF-8");
+		byte[] noise = new byte[150 * 1024 + 17];
+		r.nextBytes(noise);
+		contents = new byte[text.length + noise.length];
+		System.arraycopy(text, 0, contents, 0, text.length);
+		System.arraycopy(noise, 0, contents, text.length, noise.length);
+
+		file = File.createTempFile("rapidandroid-upload", ".csv");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(contents);
+		out.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		file.delete();
+		super.tearDown();
+	}
+
+	private ChunkedUploader newUploader(int maxAttempts) {
+		ChunkedUploader uploader = new ChunkedUploader(server.getBaseUrl());
+		uploader.setChunkSize(CHUNK_SIZE);
+		uploader.setMaxInFlight(4);
+		uploader.setMaxAttempts(maxAttempts);
+		uploader.setBackoff(1, 5);
+		return uploader;
+	}
+
+	private int chunkCount() {
+		return (contents.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	public void testUpload() throws Exception {
+		final int[] progress = new int[2];
+		ChunkedUploader.Result result = newUploader(3).upload(file, "bednets.csv", new IUploadListener() {
+			public void onProgress(int acknowledged, int chunks) {
+				assertTrue(acknowledged >= progress[0]);
+				progress[0] = acknowledged;
+				progress[1] = chunks;
+			}
+
+			public boolean isCancelled() {
+				return false;
+			}
+		});
+		assertTrue(Arrays.equals(contents, server.getCompleted("bednets.csv")));
+		assertEquals(chunkCount(), result.getChunks());
+		assertEquals(0, result.getResumedFrom());
+		assertEquals(chunkCount(), progress[0]);
+		assertEquals(chunkCount(), progress[1]);
+		assertEquals(chunkCount(), server.getChunkRequests());
+		assertTrue(server.getMaxInFlight() <= 4);
+		// the text chunks went over gzipped
+		assertTrue(result.getBytesSent() < contents.length);
+	}
+
+	public void testRetriesFailedChunks() throws Exception {
+		server.failNext(3);
+		server.corruptNext(1);
+		newUploader(5).upload(file, "bednets.csv", null);
+		assertTrue(Arrays.equals(contents, server.getCompleted("bednets.csv")));
+		assertEquals(chunkCount(), server.getChunksStored());
+		assertEquals(chunkCount() + 4, server.getChunkRequests());
+	}
+
+	public void testResumesAfterDroppedLink() throws Exception {
+		server.outageAfter(10);
+		try {
+			newUploader(2).upload(file, "bednets.csv", null);
+			fail("upload should have given up");
+		} catch (IOException e) {
+			// expected, the link is down
+		}
+		assertNull(server.getCompleted("bednets.csv"));
+		int storedBefore = server.getChunksStored();
+		assertTrue(storedBefore >= 10);
+
+		server.setOutage(false);
+		ChunkedUploader.Result result = newUploader(2).upload(file, "bednets.csv", null);
+		assertTrue(Arrays.equals(contents, server.getCompleted("bednets.csv")));
+		// chunks finish out of order, so the gapless run the server reports
+		// can be short of the 10 stored by what else was in flight
+		assertTrue(result.getResumedFrom() > 10 - 4);
+		// and nothing before it is sent again
+		assertEquals(chunkCount() - result.getResumedFrom(), server.getChunksStored() - storedBefore);
+	}
+
+	public void testCancel() throws Exception {
+		try {
+			newUploader(3).upload(file, "bednets.csv", new IUploadListener() {
+				public void onProgress(int acknowledged, int chunks) {
+				}
+
+				public boolean isCancelled() {
+					return true;
+				}
+			});
+			fail("upload should have been cancelled");
+		} catch (IOException e) {
+			// expected
+		}
+		assertNull(server.getCompleted("bednets.csv"));
+		assertTrue(server.getChunksStored() < chunkCount());
+
+		// and picks up from there
+		ChunkedUploader.Result result = newUploader(3).upload(file, "bednets.csv", null);
+		assertTrue(result.getResumedFrom() > 0);
+		assertTrue(Arrays.equals(contents, server.getCompleted("bednets.csv")));
+	}
+
+	public void testEmptyFile() throws Exception {
+		File empty = File.createTempFile("rapidandroid-upload", ".csv");
+		try {
+			ChunkedUploader.Result result = newUploader(3).upload(empty, "empty.csv", null);
+			assertEquals(0, result.getChunks());
+			assertEquals(0, server.getCompleted("empty.csv").length);
+		} finally {
+			empty.delete();
+		}
+	}
+}
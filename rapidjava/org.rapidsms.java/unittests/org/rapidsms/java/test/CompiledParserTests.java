@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.CompiledFormParser;
+import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.SimpleRegexParser;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Differential tests of the CompiledFormParser against the SimpleRegexParser,
+ * plus a rough throughput comparison of the two on the bednets corpus.
+ */
+public class CompiledParserTests extends TestCase {
+
+	String[] messages = { "bednets nyc 100 30 80", "bednets lax 1,500, 750 1000", "bednets lun 1214, 444 677",
+			"  BEDNETS Kano 352 378 1974  ", "bednets nyc 100 30", "bednets lax 1,500", "bednets",
+			"bednets 100 200 300", "bednets BOS 100 200 300 12321", "bednets 100 BOS 100 200 120",
+			"bednetsBOS 100 200 120 51231", "bednets\tnyc 1 2 3", "nutrition 12345 20 100 0.6 5 y n",
+			"nutrition afsdf 20 100 0.6 5 y n", "nutrition asdfwer 20kg 100cm 60% 5cm yes no",
+			"nutrition asdfwqer 21 kg 100cm 60% 5cm yes no", "nutrition rqwetqwgasdfasdfweqr 2 kg 100 m 3/4 5cm yes no",
+			"nutrition 55446 20kg 60% 5cm yes no", "Nutrition KH 2.5 Kilos 100 METERS 3:4 5 M True F",
+			"nutrition kh 55446 20kg 60% 5cm yes no", "nutritions c 55446 2 kg 100 m 5cm yes no",
+			"bednwafasd asd2 12983 klasd12 ajds", "aklsjdfl234", "nutritionaslkdfklwer", "" };
+
+	SimpleRegexParser mSimpleParser = new SimpleRegexParser();
+	CompiledFormParser mCompiledParser = new CompiledFormParser();
+
+	private void assertSameResults(Form form, String message) {
+		Vector<IParseResult> expected = mSimpleParser.ParseMessage(form, message);
+		Vector<IParseResult> actual = mCompiledParser.ParseMessage(form, message);
+		if (expected == null) {
+			assertNull(message, actual);
+			return;
+		}
+		assertNotNull(message, actual);
+		assertEquals(message, expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			IParseResult e = expected.get(i);
+			IParseResult a = actual.get(i);
+			if (e == null) {
+				assertNull(message + " field " + i, a);
+				continue;
+			}
+			assertNotNull(message + " field " + i, a);
+			assertEquals(message + " field " + i, e.getParsedToken(), a.getParsedToken());
+			assertEquals(message + " field " + i, e.getValue(), a.getValue());
+			assertEquals(message + " field " + i, e.getSource(), a.getSource());
+		}
+	}
+
+	public void testMessages() {
+		Form bednets = TestModels.bednets(ParserType.COMPILEDREGEX);
+		Form nutrition = TestModels.nutrition(ParserType.COMPILEDREGEX);
+		for (int i = 0; i < messages.length; i++) {
+			assertSameResults(bednets, messages[i]);
+			assertSameResults(nutrition, messages[i]);
+		}
+	}
+
+	public void testCorpus() throws Exception {
+		Form bednets = TestModels.bednets(ParserType.COMPILEDREGEX);
+		Vector<String> corpus = TestModels.readCorpusMessages();
+		assertTrue(corpus.size() > 0);
+		for (int i = 0; i < corpus.size(); i++) {
+			assertSameResults(bednets, corpus.get(i));
+		}
+	}
+
+	public void testRecompileOnFieldChange() {
+		Form bednets = TestModels.bednets(ParserType.COMPILEDREGEX);
+		assertEquals(4, mCompiledParser.ParseMessage(bednets, "bednets nyc 100 30 80").size());
+		bednets.setFields(TestModels.nutrition(ParserType.COMPILEDREGEX).getFields());
+		assertSameResults(bednets, "bednets 12345 20 100 0.6 5 y n");
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.export.CsvWriter;
+import org.rapidsms.java.core.export.ExportCancelledException;
+import org.rapidsms.java.core.export.IExportProgress;
+
+public class CsvWriterTests extends TestCase {
+
+	private String write(boolean gzip, int bufferSize, String[] header, Object[][] rows) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CsvWriter writer = new CsvWriter(out, gzip, bufferSize);
+		writer.writeHeader(header);
+		for (int r = 0; r < rows.length; r++) {
+			for (int c = 0; c < rows[r].length; c++) {
+				Object value = rows[r][c];
+				if (value instanceof Long) {
+					writer.writeField(((Long) value).longValue());
+				} else {
+					writer.writeField((String) value);
+				}
+			}
+			writer.endRow();
+		}
+		writer.close();
+		assertEquals(rows.length, writer.getRowCount());
+
+		byte[] bytes = out.toByteArray();
+		if (!gzip) {
+			return new String(bytes, "UTF-8");
+		}
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			plain.write(buf, 0, read);
+		}
+		return new String(plain.toByteArray(), "UTF-8");
+	}
+
+	public void testEscaping() throws Exception {
+		Object[][] rows = { { "nyc", Long.valueOf(100), "bednets nyc 100 30 80" },
+				{ "lax", Long.valueOf(-1500), "bednets lax 1,500, 750" },
+				{ "say \"hi\"", Long.valueOf(0), "two\r\nlines" }, { null, Long.valueOf(Long.MIN_VALUE), "" } };
+		String expected = "location,count,message\r\n" + "nyc,100,bednets nyc 100 30 80\r\n"
+				+ "lax,-1500,\"bednets lax 1,500, 750\"\r\n" + "\"say \"\"hi\"\"\",0,\"two\r\nlines\"\r\n" + ","
+				+ Long.MIN_VALUE + ",\r\n";
+		assertEquals(expected, write(false, CsvWriter.DEFAULT_BUFFER_SIZE, new String[] { "location", "count",
+				"message" }, rows));
+	}
+
+	public void testEncodingAcrossBufferBoundaries() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			sb.append("caf\u00e9 \u20ac").append(i).append(" \ud83d\ude00,\"");
+		}
+		sb.append('\ud83d');
+		String field = sb.toString();
+		Object[][] rows = { { field, Long.valueOf(Long.MAX_VALUE) }, { "a", Long.valueOf(7) } };
+
+		String quoted = "\"" + field.replace("\"", "\"\"") + "\"";
+		String expected = "text,n\r\n" + quoted + "," + Long.MAX_VALUE + "\r\na,7\r\n";
+		// the lone surrogate at the end comes back as '?', like getBytes()
+		expected = new String(expected.getBytes("UTF-8"), "UTF-8");
+
+		String[] header = { "text", "n" };
+		assertEquals(expected, write(false, 64, header, rows));
+		assertEquals(expected, write(true, 64, header, rows));
+		assertEquals(expected, write(true, CsvWriter.DEFAULT_BUFFER_SIZE, header, rows));
+	}
+
+	public void testProgressAndCancel() throws Exception {
+		final long[] reported = new long[1];
+		IExportProgress progress = new IExportProgress() {
+			public void onProgress(long rows) {
+				reported[0] = rows;
+			}
+
+			public boolean isCancelled() {
+				return reported[0] >= 3 * CsvWriter.PROGRESS_INTERVAL;
+			}
+		};
+		CsvWriter writer = new CsvWriter(new ByteArrayOutputStream(), true);
+		writer.setProgress(progress);
+		writer.writeHeader(new String[] { "n" });
+		try {
+			for (int i = 0; i < 10 * CsvWriter.PROGRESS_INTERVAL; i++) {
+				writer.writeField(i);
+				writer.endRow();
+				if (i < 3 * CsvWriter.PROGRESS_INTERVAL - 1) {
+					assertEquals((i + 1) / CsvWriter.PROGRESS_INTERVAL * CsvWriter.PROGRESS_INTERVAL, reported[0]);
+				}
+			}
+			fail("export wasn't cancelled");
+		} catch (ExportCancelledException e) {
+			assertEquals(3 * CsvWriter.PROGRESS_INTERVAL, e.getRows());
+		}
+		writer.close();
+	}
+}
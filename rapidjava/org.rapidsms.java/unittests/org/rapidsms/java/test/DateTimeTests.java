@@ -17,16 +17,126 @@
 
 package org.rapidsms.java.test;
 
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
 import junit.framework.TestCase;
 
+import org.rapidsms.java.core.TimestampCodec;
+
 /**
  * @author Daniel Myung dmyung@dimagi.com
  * @created Jan 29, 2009 Summary:
  */
 public class DateTimeTests extends TestCase {
 
-	public void testDateTimeConversion() {
+	private static final String[] ZONES = { "UTC", "America/New_York", "Europe/London", "Africa/Lagos",
+			"Asia/Kolkata", "Australia/Lord_Howe", "Pacific/Kiritimati", "America/St_Johns" };
+	private static final String[] PATTERNS = { "yyyy-MM-dd HH:mm:ss", "MM/dd/yyyy HH:mm", "MM/dd/yyyy" };
 
+	public void testDateTimeConversion() throws Exception {
+		Random r = new Random(29);
+		for (int z = 0; z < ZONES.length; z++) {
+			TimeZone zone = TimeZone.getTimeZone(ZONES[z]);
+			for (int p = 0; p < PATTERNS.length; p++) {
+				TimestampCodec codec = new TimestampCodec(PATTERNS[p], zone);
+				DateFormat format = new SimpleDateFormat(PATTERNS[p]);
+				format.setTimeZone(zone);
+				long millis = -2500000000000L;
+				// random walk from 1890 to 2060 in steps from a second to a
+				// couple of months, so the caches get both hits and misses
+				while (millis < 2800000000000L) {
+					String expected = format.format(new Date(millis));
+					String text = codec.format(millis);
+					assertEquals(ZONES[z] + " " + millis, expected, text);
+					assertEquals(ZONES[z] + " " + text, format.parse(text).getTime(), codec.parseMillis(text));
+					millis += r.nextInt(4) == 0 ? r.nextInt(1000) * 1000L : (long) r.nextInt(Integer.MAX_VALUE) * 3;
+				}
+			}
+		}
 	}
 
+	public void testClockChanges() throws Exception {
+		// the hour that's skipped and the hour that happens twice
+		String[] times = { "2009-03-08 01:59:59", "2009-03-08 02:00:00", "2009-03-08 02:30:00", "2009-03-08 03:00:00",
+				"2009-11-01 00:59:59", "2009-11-01 01:00:00", "2009-11-01 01:30:00", "2009-11-01 02:00:00" };
+		TimeZone zone = TimeZone.getTimeZone("America/New_York");
+		TimestampCodec codec = new TimestampCodec("yyyy-MM-dd HH:mm:ss", zone);
+		DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		format.setTimeZone(zone);
+		for (int i = 0; i < times.length; i++) {
+			assertEquals(times[i], format.parse(times[i]).getTime(), codec.parseMillis(times[i]));
+		}
+	}
+
+	public void testOddInput() throws Exception {
+		TimestampCodec codec = new TimestampCodec("yyyy-MM-dd HH:mm:ss", TimeZone.getTimeZone("America/New_York"));
+		DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		format.setTimeZone(codec.getTimeZone());
+		// lenient roll overs, short fields, trailing junk, dates before the
+		// gregorian change
+		String[] texts = { "2009-02-30 10:00:00", "2009-13-01 10:00:00", "2009-01-01 24:00:00", "2009-1-5 3:04:05",
+				"2009-01-01 10:00:00.123", "1500-06-15 12:00:00", "1900-02-01 05:00:00" };
+		for (int i = 0; i < texts.length; i++) {
+			assertEquals(texts[i], format.parse(texts[i]).getTime(), codec.parseMillis(texts[i]));
+		}
+		assertEquals(format.format(new Date(-20000000000000L)), codec.format(-20000000000000L));
+		String[] bad = { "", "yesterday", "2009/01/01 10:00:00" };
+		for (int i = 0; i < bad.length; i++) {
+			try {
+				codec.parse(bad[i]);
+				fail(bad[i]);
+			} catch (ParseException e) {
+			}
+		}
+	}
+
+	public void testConcurrentUse() throws Exception {
+		final TimestampCodec codec = new TimestampCodec("yyyy-MM-dd HH:mm:ss", TimeZone.getTimeZone("Europe/London"));
+		final DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		format.setTimeZone(codec.getTimeZone());
+		final long base = format.parse("2009-03-29 00:00:00").getTime();
+		final String[] expected = new String[2 * 3600];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = format.format(new Date(base + i * 1000L));
+		}
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int n = 0; n < 20; n++) {
+							for (int i = offset; i < expected.length; i += 2) {
+								assertEquals(expected[i], codec.format(base + i * 1000L));
+								assertEquals(base + i * 1000L, codec.parseMillis(expected[i]));
+							}
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+		}
+		if (failure[0] != null) {
+			throw new AssertionError(failure[0]);
+		}
+	}
+
+	public void testSharedCodecs() {
+		assertEquals("yyyy-MM-dd HH:mm:ss", TimestampCodec.SQL.getPattern());
+		assertEquals(TimeZone.getDefault(), TimestampCodec.SQL.getTimeZone());
+		assertEquals(TimestampCodec.SQL.format(0), new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(0)));
+		assertEquals("x", TimestampCodec.DISPLAY_DATE.appendTo(86400000L * 365, new StringBuilder("x")).substring(0, 1));
+	}
 }
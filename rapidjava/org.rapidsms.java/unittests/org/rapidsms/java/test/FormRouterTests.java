@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.service.FormRouter;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Checks the FormRouter against the linear prefix scan it replaces.
+ */
+public class FormRouterTests extends TestCase {
+
+	private Form[] forms;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		String[] prefixes = { "bednets", "nutrition", "bed", "b", "nut", "malaria", "malaria test", "bednets" };
+		forms = new Form[prefixes.length];
+		for (int i = 0; i < prefixes.length; i++) {
+			forms[i] = new Form(i, "form" + i, prefixes[i], "", new Field[0], ParserType.COMPILEDREGEX);
+		}
+	}
+
+	private Form linearDetermineForm(String message) {
+		for (int i = 0; i < forms.length; i++) {
+			if (message.toLowerCase().trim().startsWith(forms[i].getPrefix() + " ")) {
+				return forms[i];
+			}
+		}
+		return null;
+	}
+
+	public void testMatchesLinearScan() throws Exception {
+		String[] messages = { "bednets nyc 100 30 80", "  BEDNETS kano 1 2 3", "bed 1 2", "b 1", "bednetsBOS 1 2",
+				"nutrition 1 2", "Nut 1", "nutritions 1", "malaria test 1 2", "malaria 1", "malaria", "bednets",
+				"bednets ", "", "   ", "x bednets 1", "bednets\t1 2", "b\n1" };
+		FormRouter router = new FormRouter(forms);
+		for (int i = 0; i < messages.length; i++) {
+			assertSame(messages[i], linearDetermineForm(messages[i]), router.determineForm(messages[i]));
+		}
+
+		Vector<String> corpus = TestModels.readCorpusMessages();
+		for (int i = 0; i < corpus.size(); i++) {
+			assertSame(forms[0], router.determineForm(corpus.get(i)));
+		}
+	}
+
+	public void testNoForms() {
+		FormRouter router = new FormRouter(new Form[0]);
+		assertNull(router.determineForm("bednets nyc 100 30 80"));
+		assertNull(router.determineForm(null));
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.GraphJsonWriter;
+
+public class GraphJsonWriterTests extends TestCase {
+
+	public void testSeries() {
+		GraphJsonWriter json = new GraphJsonWriter();
+		json.beginArray();
+		json.series("Yes", "lines", new long[] { 1000, 2000, 3000 }, new int[] { 1, 0, 5 }, 3);
+		json.series("Avg", null, new long[] { 1000, 2000 }, new double[] { 2.5, Double.NaN }, 2);
+		json.beginSeries("bar \"1\"", "bars").point(0, 7).endSeries();
+		json.endArray();
+		assertEquals("[{\"label\":\"Yes\",\"lines\":{\"show\":true},\"data\":[[1000,1],[2000,0],[3000,5]]},"
+				+ "{\"label\":\"Avg\",\"data\":[[1000,2.5],[2000,null]]},"
+				+ "{\"label\":\"bar \\\"1\\\"\",\"bars\":{\"show\":true},\"data\":[[0,7]]}]", json.toString());
+	}
+
+	public void testValues() {
+		GraphJsonWriter json = new GraphJsonWriter();
+		json.beginObject().name("a").value(1.0).name("b").value(-0.25).name("c").value(true);
+		json.name("d").value((String) null).name("e").value("x/\n\u0001\u2028");
+		json.name("f").beginArray().value(1L).rawValue("{\"g\":[]}").beginArray().endArray().endArray();
+		json.name("h").value(1e20).endObject();
+		assertEquals("{\"a\":1,\"b\":-0.25,\"c\":true,\"d\":null,\"e\":\"x\\/\\n\\u0001\\u2028\","
+				+ "\"f\":[1,{\"g\":[]},[]],\"h\":1.0E20}", json.toString());
+
+		// reused for the next document
+		json.reset().beginArray().value(2L).endArray();
+		assertEquals("[2]", json.toString());
+
+		json.reset().beginArray();
+		for (int i = 0; i < 10000; i++) {
+			json.point(i, i);
+		}
+		json.endArray();
+		assertTrue(json.getBuffer().capacity() > GraphJsonWriter.RETAINED_CAPACITY);
+		json.release();
+		assertEquals(0, json.length());
+		assertEquals(GraphJsonWriter.RETAINED_CAPACITY, json.getBuffer().capacity());
+	}
+}
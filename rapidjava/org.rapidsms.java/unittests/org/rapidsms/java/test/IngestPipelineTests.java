@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.ingest.IIngestStore;
+import org.rapidsms.java.core.ingest.IReplySender;
+import org.rapidsms.java.core.ingest.InboundMessage;
+import org.rapidsms.java.core.ingest.IngestPipeline;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.service.FormRouter;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Runs messages through the IngestPipeline stages against an in memory store.
+ */
+public class IngestPipelineTests extends TestCase {
+
+	/**
+	 * Hands out message ids and keeps what a real store would have saved.
+	 */
+	static class MemoryStore implements IIngestStore, IReplySender {
+		final List<InboundMessage> messages = new ArrayList<InboundMessage>();
+		final List<InboundMessage> formData = new ArrayList<InboundMessage>();
+		final List<InboundMessage> replies = new ArrayList<InboundMessage>();
+		final List<InboundMessage> failed = new ArrayList<InboundMessage>();
+		boolean fail = false;
+
+		public synchronized void store(List<InboundMessage> batch) throws Exception {
+			if (fail) {
+				throw new Exception("store failed");
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				InboundMessage message = batch.get(i);
+				message.setMessageId(messages.size() + 1);
+				messages.add(message);
+				if (message.isParsed()) {
+					formData.add(message);
+				}
+			}
+		}
+
+		public synchronized void storeFailed(List<InboundMessage> batch, Throwable cause) {
+			failed.addAll(batch);
+		}
+
+		public synchronized void sendReply(InboundMessage message) {
+			// replies only go out for saved messages
+			assertTrue(message.getMessageId() > 0);
+			replies.add(message);
+		}
+	}
+
+	private Form bednets;
+	private Form nutrition;
+	private MemoryStore store;
+	private IngestPipeline pipeline;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		bednets = TestModels.bednets(ParserType.COMPILEDREGEX);
+		nutrition = TestModels.nutrition(ParserType.COMPILEDREGEX);
+		store = new MemoryStore();
+		pipeline = new IngestPipeline(store, store, 100, 10, 10, TimeUnit.MILLISECONDS);
+		pipeline.setRouter(new FormRouter(new Form[] { bednets, nutrition }));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pipeline.shutdown(5, TimeUnit.SECONDS);
+		super.tearDown();
+	}
+
+	private InboundMessage submit(String body) throws InterruptedException {
+		InboundMessage message = new InboundMessage("6175551000", body, 1000L, 2000L);
+		assertTrue(pipeline.submit(message, 1, TimeUnit.SECONDS));
+		return message;
+	}
+
+	public void testRouteParseStore() throws Exception {
+		InboundMessage nets = submit("bednets nyc 100 30 80");
+		InboundMessage kids = submit("nutrition 12345 20 100 0.6 5 y n");
+		InboundMessage junk = submit("hello there");
+		assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+
+		assertEquals(3, store.messages.size());
+		assertEquals(2, store.formData.size());
+		assertEquals(3, store.replies.size());
+
+		assertSame(bednets, nets.getForm());
+		assertTrue(nets.isParsed());
+		assertEquals(100, nets.getRecord().getLong(1));
+		assertEquals(1, nets.getMessageId());
+
+		assertSame(nutrition, kids.getForm());
+		assertTrue(kids.isParsed());
+
+		assertNull(junk.getForm());
+		assertFalse(junk.isParsed());
+		assertEquals(3, junk.getMessageId());
+	}
+
+	public void testParseBody() throws Exception {
+		InboundMessage message = new InboundMessage("6175551000", "notifications@dimagi.com /  / bednets nyc 1 2 3",
+														1000L, 2000L);
+		message.setParseBody("bednets nyc 1 2 3");
+		pipeline.process(Collections.singletonList(message));
+		assertSame(bednets, message.getForm());
+		assertEquals("notifications@dimagi.com /  / bednets nyc 1 2 3", store.messages.get(0).getBody());
+	}
+
+	public void testFailedStoreDoesNotReply() throws Exception {
+		store.fail = true;
+		submit("bednets nyc 100 30 80");
+		assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+		assertEquals(1, store.failed.size());
+		assertTrue(store.replies.isEmpty());
+		assertEquals(-1, store.failed.get(0).getMessageId());
+	}
+
+	public void testCorpus() throws Exception {
+		Vector<String> corpus = TestModels.readCorpusMessages();
+		for (int i = 0; i < corpus.size(); i++) {
+			submit(corpus.get(i));
+		}
+		assertTrue(pipeline.flush(10, TimeUnit.SECONDS));
+		assertEquals(corpus.size(), store.messages.size());
+		assertEquals(corpus.size(), store.formData.size());
+		for (int i = 0; i < corpus.size(); i++) {
+			// saved in the order received
+			assertEquals(corpus.get(i), store.messages.get(i).getBody());
+			assertEquals(i + 1, store.messages.get(i).getMessageId());
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.parser.interpreter.BooleanInterpreter;
+import org.rapidsms.java.core.parser.interpreter.FloatInterpreter;
+import org.rapidsms.java.core.parser.interpreter.IParseInterpreter;
+import org.rapidsms.java.core.parser.interpreter.IntegerInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningBooleanInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningFloatInterpreter;
+import org.rapidsms.java.core.parser.interpreter.ScanningIntegerInterpreter;
+import org.rapidsms.java.core.parser.service.InterpreterFactory;
+
+/**
+ * Differential tests of the scanning interpreters against the regex ones.
+ */
+public class InterpreterTests extends TestCase {
+
+	String[] tokens = { "352", "0", "007", "100cm", "100 m", "5cm", "12 meters", "20kg", "21 kg", "2.5 kilos",
+			"2.5kg", "60%", "60 pct", "3/4", "3:4", "0.6", ".5", "12.", "1..5", "1.2.3", "y", "n", "yes", "no",
+			"true", "false", "t", "f", "n0", "1", "kano", "", " ", "abc", "2147483647", "16777217",
+			"123456789.123456789", "0.000000000001", "99999999999999999999999.5",
+			"12345678901234567890..5", "1234567890123456..5" };
+
+	private void assertSame(IParseInterpreter regex, IParseInterpreter scanning, String token) {
+		Object expected;
+		try {
+			expected = regex.interpretValue(token);
+		} catch (NumberFormatException ex) {
+			try {
+				scanning.interpretValue(token);
+				fail("expected NumberFormatException for " + token);
+			} catch (NumberFormatException ex2) {
+			}
+			return;
+		}
+		assertEquals(token, expected, scanning.interpretValue(token));
+	}
+
+	private void assertAllSame(IParseInterpreter regex, IParseInterpreter scanning) {
+		for (int i = 0; i < tokens.length; i++) {
+			assertSame(regex, scanning, tokens[i]);
+		}
+		// and a pile of random junk made of the characters that matter
+		Random r = new Random(1234);
+		String alphabet = "0123456789..//%:  tyfnkgcmeasl";
+		for (int i = 0; i < 20000; i++) {
+			int len = r.nextInt(12);
+			StringBuilder sb = new StringBuilder();
+			for (int c = 0; c < len; c++) {
+				sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+			}
+			assertSame(regex, scanning, sb.toString());
+		}
+	}
+
+	public void testInteger() {
+		assertAllSame(new IntegerInterpreter(), new ScanningIntegerInterpreter());
+		assertSame(new IntegerInterpreter(), new ScanningIntegerInterpreter(), "2147483648");
+	}
+
+	public void testFloat() {
+		assertAllSame(new FloatInterpreter(), new ScanningFloatInterpreter());
+	}
+
+	public void testBoolean() {
+		assertAllSame(new BooleanInterpreter(), new ScanningBooleanInterpreter());
+	}
+
+	public void testFactoryFlag() {
+		try {
+			InterpreterFactory.SetUseRegexInterpreters(true);
+			assertTrue(InterpreterFactory.GetParseInterpreter("integer") instanceof IntegerInterpreter);
+			assertTrue(InterpreterFactory.GetParseInterpreter("number") instanceof FloatInterpreter);
+			assertTrue(InterpreterFactory.GetParseInterpreter("boolean") instanceof BooleanInterpreter);
+		} finally {
+			InterpreterFactory.SetUseRegexInterpreters(false);
+		}
+		assertTrue(InterpreterFactory.GetParseInterpreter("integer") instanceof ScanningIntegerInterpreter);
+		assertTrue(InterpreterFactory.GetParseInterpreter("float") instanceof ScanningFloatInterpreter);
+		assertTrue(InterpreterFactory.GetParseInterpreter("boolean") instanceof ScanningBooleanInterpreter);
+	}
+}
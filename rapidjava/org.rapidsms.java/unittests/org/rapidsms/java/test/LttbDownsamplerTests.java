@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.LttbDownsampler;
+
+public class LttbDownsamplerTests extends TestCase {
+
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	public void testFewPointsAreKept() {
+		LttbDownsampler lttb = new LttbDownsampler(0, 100 * HOUR, 100);
+		for (int i = 0; i < 50; i++) {
+			lttb.add(i * 2 * HOUR, i % 7);
+		}
+		assertEquals(50, lttb.finish());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i * 2 * HOUR, lttb.getX(i));
+			assertEquals((double) (i % 7), lttb.getY(i), 0);
+		}
+	}
+
+	public void testEmptyAndSingle() {
+		LttbDownsampler empty = new LttbDownsampler(0, HOUR, 10);
+		assertEquals(0, empty.finish());
+
+		LttbDownsampler single = new LttbDownsampler(0, HOUR, 10);
+		single.add(5, 3.5);
+		assertEquals(1, single.finish());
+		assertEquals(5, single.getX(0));
+	}
+
+	public void testLargeSeries() {
+		int points = 100000;
+		int buckets = 480;
+		long start = 1230768000000L;
+		long end = start + points * 60000L;
+		Random r = new Random(3);
+		LttbDownsampler lttb = new LttbDownsampler(start, end, buckets);
+		int spike = 61234;
+		for (int i = 0; i < points; i++) {
+			double y = 100 + 20 * Math.sin(i / 500.0) + r.nextGaussian();
+			if (i == spike) {
+				y = 1000;
+			}
+			// a few readings share a timestamp
+			lttb.add(start + i * 60000L - (i % 3 == 2 ? 60000L : 0), y);
+		}
+		int kept = lttb.finish();
+		assertTrue(kept <= buckets + 2);
+		assertTrue(kept > buckets / 2);
+		assertEquals(points, lttb.getAdded());
+
+		assertEquals(start, lttb.getX(0));
+		assertEquals(start + (points - 1) * 60000L, lttb.getX(kept - 1));
+		boolean sawSpike = false;
+		for (int i = 0; i < kept; i++) {
+			if (i > 0) {
+				assertTrue(lttb.getX(i) >= lttb.getX(i - 1));
+			}
+			sawSpike |= lttb.getY(i) == 1000;
+		}
+		// the outlier is what a line chart has to show
+		assertTrue(sawSpike);
+	}
+
+	public void testOutOfRangeClamped() {
+		LttbDownsampler lttb = new LttbDownsampler(10 * HOUR, 20 * HOUR, 10);
+		for (int i = 0; i < 30; i++) {
+			lttb.add(i * HOUR, i);
+		}
+		int kept = lttb.finish();
+		assertTrue(kept <= 12);
+		assertEquals(0, lttb.getX(0));
+		assertEquals(29 * HOUR, lttb.getX(kept - 1));
+	}
+}
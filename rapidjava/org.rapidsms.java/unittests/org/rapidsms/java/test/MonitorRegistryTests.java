@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.model.IMonitorStore;
+import org.rapidsms.java.core.model.Monitor;
+import org.rapidsms.java.core.model.MonitorRegistry;
+
+/**
+ * Lookups and concurrent inserts on the MonitorRegistry.
+ */
+public class MonitorRegistryTests extends TestCase {
+
+	/**
+	 * Hands out ids like the monitor table would.
+	 */
+	static class CountingStore implements IMonitorStore {
+		final AtomicInteger inserts = new AtomicInteger();
+
+		public Monitor insertMonitor(String phone) {
+			int id = inserts.incrementAndGet();
+			return new Monitor(id, "", "", phone, phone, "", 0, false);
+		}
+	}
+
+	private static Monitor monitor(int id, String phone) {
+		return new Monitor(id, "", "", phone, phone, "", 0, false);
+	}
+
+	public void testLookups() {
+		MonitorRegistry registry = new MonitorRegistry(null);
+		registry.put(monitor(1, "+16175551000"));
+		registry.put(monitor(2, "MTN"));
+		registry.put(monitor(3, "08031234567"));
+
+		assertEquals(1, registry.getByPhone("+1 617 555 1000").getID());
+		assertEquals(1, registry.getByPhone("0016175551000").getID());
+		assertEquals(2, registry.getByPhone("MTN").getID());
+		assertEquals(3, registry.getByPhone("0803-123-4567").getID());
+		assertNull(registry.getByPhone("8031234567"));
+		assertNull(registry.getByPhone(null));
+		assertEquals("MTN", registry.get(2).getPhone());
+		assertNull(registry.get(4));
+		assertEquals(3, registry.size());
+	}
+
+	public void testGrowAndReplaceAll() {
+		MonitorRegistry registry = new MonitorRegistry("234");
+		List<Monitor> monitors = new ArrayList<Monitor>();
+		for (int i = 1; i <= 20000; i++) {
+			Monitor m = monitor(i, "0803" + (1000000 + i));
+			registry.put(m);
+			monitors.add(m);
+		}
+		for (int i = 1; i <= 20000; i++) {
+			assertEquals(i, registry.get(i).getID());
+			assertEquals(i, registry.getByPhone("+234803" + (1000000 + i)).getID());
+		}
+
+		MonitorRegistry loaded = new MonitorRegistry("234");
+		loaded.replaceAll(monitors);
+		assertEquals(20000, loaded.size());
+		assertEquals(777, loaded.getByPhone("0803" + (1000000 + 777)).getID());
+	}
+
+	public void testInsertIfAbsent() throws Exception {
+		final MonitorRegistry registry = new MonitorRegistry(null);
+		final CountingStore store = new CountingStore();
+		final int phones = 500;
+		int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < phones; i++) {
+							String phone = "+1617555" + (1000 + (i + offset * 37) % phones);
+							Monitor m = registry.getOrInsert(phone, store);
+							assertEquals(phone, m.getPhone());
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		// every phone saved exactly once
+		assertEquals(phones, store.inserts.get());
+		assertEquals(phones, registry.size());
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.CompiledFormParser;
+import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.IParseResult.ValueType;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.SimpleRegexParser;
+import org.rapidsms.java.core.parser.interpreter.ScanningFloatInterpreter;
+import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Checks the primitive values in a ParseRecord against the boxed results of the
+ * SimpleRegexParser.
+ */
+public class ParseRecordTests extends TestCase {
+
+	String[] messages = { "bednets nyc 100 30 80", "bednets lax 1,500, 750 1000", "  BEDNETS Kano 352 378 1974  ",
+			"bednets nyc 100 30", "bednets", "bednets 100 200 300", "nutrition 12345 20 100 0.6 5 y n",
+			"nutrition asdfwer 20kg 100cm 60% 5cm yes no", "nutrition rqwetqwgasdfasdfweqr 2 kg 100 m 3/4 5cm yes no",
+			"nutrition 55446 20kg 60% 5cm yes no", "Nutrition KH 2.5 Kilos 100 METERS 3:4 5 M True F",
+			"nutrition kh 0.125 kg 1 m 1/3 5cm n y", "aklsjdfl234", "" };
+
+	SimpleRegexParser mSimpleParser = new SimpleRegexParser();
+	CompiledFormParser mCompiledParser = new CompiledFormParser();
+
+	private void assertSameRecord(Form form, String message, ParseRecord record) {
+		Vector<IParseResult> expected = mSimpleParser.ParseMessage(form, message);
+		boolean parsed = mCompiledParser.ParseMessage(form, message, record);
+		if (expected == null) {
+			assertFalse(message, parsed);
+			return;
+		}
+		assertTrue(message, parsed);
+		assertEquals(message, expected.size(), record.size());
+		for (int i = 0; i < expected.size(); i++) {
+			IParseResult e = expected.get(i);
+			String what = message + " field " + i;
+			if (e == null) {
+				assertFalse(what, record.hasResult(i));
+				continue;
+			}
+			assertTrue(what, record.hasResult(i));
+			assertEquals(what, e.getParsedToken(), record.getToken(i));
+			assertEquals(what, e.getValueType(), record.getValueType(i));
+			assertEquals(what, e.getValue(), record.getValue(i));
+			ValueType type = e.getValueType();
+			if (type != ValueType.WORD && type != ValueType.NONE) {
+				assertEquals(what, e.getLong(), record.getLong(i));
+				// the double must be what the database got from the old
+				// value's toString()
+				assertEquals(what, e.getDouble(), record.getDouble(i), 0d);
+				assertEquals(what, e.getBoolean(), record.getBoolean(i));
+			}
+		}
+	}
+
+	public void testMatchesSimpleParser() throws Exception {
+		Form bednets = TestModels.bednets(ParserType.COMPILEDREGEX);
+		Form nutrition = TestModels.nutrition(ParserType.COMPILEDREGEX);
+		// one record reused across forms of different sizes
+		ParseRecord record = new ParseRecord();
+		for (int i = 0; i < messages.length; i++) {
+			assertSameRecord(bednets, messages[i], record);
+			assertSameRecord(nutrition, messages[i], record);
+		}
+		Vector<String> corpus = TestModels.readCorpusMessages();
+		for (int i = 0; i < corpus.size(); i++) {
+			assertSameRecord(bednets, corpus.get(i), record);
+		}
+	}
+
+	public void testToResults() {
+		Form nutrition = TestModels.nutrition(ParserType.COMPILEDREGEX);
+		String message = "nutrition asdfwer 20kg 100cm 60% 5cm yes no";
+		ParseRecord record = new ParseRecord();
+		assertTrue(ParsingService.ParseMessage(nutrition, message, record));
+		Vector<IParseResult> results = record.toResults();
+		Vector<IParseResult> expected = mSimpleParser.ParseMessage(nutrition, message);
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getValue(), results.get(i).getValue());
+			assertEquals(expected.get(i).getSource(), results.get(i).getSource());
+		}
+		assertEquals(ValueType.WORD, results.get(0).getValueType());
+		assertEquals(ValueType.FLOAT, results.get(1).getValueType());
+		assertEquals(ValueType.INTEGER, results.get(2).getValueType());
+		assertEquals(ValueType.BOOLEAN, results.get(5).getValueType());
+		assertTrue(results.get(5).getBoolean());
+		assertFalse(results.get(6).getBoolean());
+		assertEquals(100, results.get(2).getLong());
+		assertEquals(20d, results.get(1).getDouble(), 0d);
+		try {
+			results.get(0).getLong();
+			fail("a word has no number");
+		} catch (IllegalStateException ex) {
+		}
+	}
+
+	public void testSimpleParserIntoRecord() {
+		Form bednets = TestModels.bednets(ParserType.SIMPLEREGEX);
+		ParseRecord record = new ParseRecord();
+		assertTrue(ParsingService.ParseMessage(bednets, "bednets nyc 100 30 80", record));
+		assertEquals("nyc", record.getToken(0));
+		assertEquals(100, record.getLong(1));
+		assertEquals(80d, record.getDouble(3), 0d);
+		assertFalse(ParsingService.ParseMessage(bednets, "nutrition nyc 100 30 80", record));
+	}
+
+	public void testScanDouble() {
+		String[] tokens = { "0.6", "2.5 kilos", "60%", "3/4", "0.125", "12.", "1234567.5", "0.000001", "99.99",
+				"123456789012345678901234.5", "1.5.3" };
+		for (int i = 0; i < tokens.length; i++) {
+			float f = ScanningFloatInterpreter.scanFloat(tokens[i]);
+			assertEquals(tokens[i], Double.parseDouble(Float.toString(f)),
+							(double) (float) ScanningFloatInterpreter.scanDouble(tokens[i]), 1e-6 * Math.abs(f));
+		}
+		assertEquals(0.6d, ScanningFloatInterpreter.scanDouble("0.6"), 0d);
+		assertTrue(Double.isNaN(ScanningFloatInterpreter.scanDouble("1..5")));
+		assertTrue(Double.isNaN(ScanningFloatInterpreter.scanDouble("12345678901234567890..5")));
+		assertTrue(Double.isNaN(ScanningFloatInterpreter.scanDouble("kg")));
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.parser.IParseResult;
+import org.rapidsms.java.core.parser.ParseRecord;
+import org.rapidsms.java.core.parser.SimpleRegexParser;
+import org.rapidsms.java.core.parser.service.IParseRecordHandler;
+import org.rapidsms.java.core.parser.service.ParsingService;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * Checks the batch and streaming parsers against parsing one message at a time.
+ */
+public class ParsingServiceTests extends TestCase {
+
+	private Vector<String> mMessages;
+	private SimpleRegexParser mSimpleParser = new SimpleRegexParser();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> corpus = TestModels.readCorpusMessages();
+		mMessages = new Vector<String>();
+		// enough copies to be split over several chunks, with some junk
+		// mixed in that won't parse
+		for (int i = 0; i < 40; i++) {
+			mMessages.addAll(corpus);
+			mMessages.add("nutrition 1 2 3");
+			mMessages.add("bednetsnyc 1 2 3");
+		}
+		// the build box may well have a single core, make sure the work
+		// really is spread over threads
+		ParsingService.SetParsingThreads(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ParsingService.SetParsingThreads(Runtime.getRuntime().availableProcessors());
+		super.tearDown();
+	}
+
+	private void assertSameAsSingle(Form form, int index, ParseRecord record, boolean parsed) {
+		String message = mMessages.get(index);
+		Vector<IParseResult> expected = mSimpleParser.ParseMessage(form, message);
+		if (expected == null) {
+			assertFalse(message, parsed);
+			return;
+		}
+		assertTrue(message, parsed);
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) == null) {
+				assertFalse(message, record.hasResult(i));
+			} else {
+				assertEquals(message, expected.get(i).getValue(), record.getValue(i));
+			}
+		}
+	}
+
+	public void testParseBatch() {
+		ParserType[] types = { ParserType.COMPILEDREGEX, ParserType.SIMPLEREGEX };
+		for (int t = 0; t < types.length; t++) {
+			Form form = TestModels.bednets(types[t]);
+			List<ParseRecord> records = ParsingService.parseBatch(form, mMessages);
+			assertEquals(mMessages.size(), records.size());
+			for (int i = 0; i < records.size(); i++) {
+				assertSameAsSingle(form, i, records.get(i), records.get(i) != null);
+			}
+		}
+		assertEquals(0, ParsingService.parseBatch(TestModels.bednets(ParserType.COMPILEDREGEX),
+														new Vector<String>()).size());
+	}
+
+	public void testParseAllOrdered() {
+		final Form form = TestModels.bednets(ParserType.COMPILEDREGEX);
+		final long[] expectedIndex = { 0 };
+		long count = ParsingService.parseAll(form, mMessages.iterator(), new IParseRecordHandler() {
+			public void handleRecord(long index, String message, ParseRecord record, boolean parsed) {
+				assertEquals(expectedIndex[0]++, index);
+				assertSame(mMessages.get((int) index), message);
+				assertSameAsSingle(form, (int) index, record, parsed);
+			}
+		}, true);
+		assertEquals(mMessages.size(), count);
+		assertEquals(mMessages.size(), expectedIndex[0]);
+	}
+
+	public void testParseAllUnordered() {
+		final Form form = TestModels.bednets(ParserType.COMPILEDREGEX);
+		final boolean[] seen = new boolean[mMessages.size()];
+		final Thread caller = Thread.currentThread();
+		long count = ParsingService.parseAll(form, mMessages.iterator(), new IParseRecordHandler() {
+			public void handleRecord(long index, String message, ParseRecord record, boolean parsed) {
+				assertSame(caller, Thread.currentThread());
+				assertFalse(seen[(int) index]);
+				seen[(int) index] = true;
+				assertSameAsSingle(form, (int) index, record, parsed);
+			}
+		}, false);
+		assertEquals(mMessages.size(), count);
+		for (int i = 0; i < seen.length; i++) {
+			assertTrue(seen[i]);
+		}
+	}
+
+	public void testSingleThreaded() {
+		ParsingService.SetParsingThreads(1);
+		testParseBatch();
+		testParseAllOrdered();
+	}
+
+	public void testThreadsChangedMidStream() {
+		final Form form = TestModels.bednets(ParserType.COMPILEDREGEX);
+		final int[] handled = { 0 };
+		long count = ParsingService.parseAll(form, mMessages.iterator(), new IParseRecordHandler() {
+			public void handleRecord(long index, String message, ParseRecord record, boolean parsed) {
+				if (index == mMessages.size() / 2) {
+					// the stream keeps its threads, the next batch gets these
+					ParsingService.SetParsingThreads(2);
+				}
+				assertSameAsSingle(form, (int) index, record, parsed);
+				handled[0]++;
+			}
+		}, true);
+		assertEquals(mMessages.size(), count);
+		assertEquals(mMessages.size(), handled[0]);
+		testParseBatch();
+	}
+
+	public void testErrorsReachTheCaller() {
+		Form form = TestModels.nutrition(ParserType.COMPILEDREGEX);
+		// height is an integer field
+		mMessages.add(mMessages.size() / 2, "nutrition kh 20 kg 99999999999 cm 3/4 5 cm y n");
+		try {
+			ParsingService.parseBatch(form, mMessages);
+			fail("an int overflow should come back out of parseBatch");
+		} catch (NumberFormatException ex) {
+		}
+		try {
+			ParsingService.parseAll(form, mMessages.iterator(), new IParseRecordHandler() {
+				public void handleRecord(long index, String message, ParseRecord record, boolean parsed) {
+				}
+			}, true);
+			fail("an int overflow should come back out of parseAll");
+		} catch (NumberFormatException ex) {
+		}
+	}
+}
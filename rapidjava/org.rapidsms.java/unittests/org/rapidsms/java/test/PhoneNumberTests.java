@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.PhoneNumber;
+
+/**
+ * Normalizing and packing of sender phone numbers.
+ */
+public class PhoneNumberTests extends TestCase {
+
+	public void testInternational() {
+		assertEquals("+16175551000", PhoneNumber.normalize("+16175551000", null));
+		assertEquals("+16175551000", PhoneNumber.normalize("+1 (617) 555-1000", null));
+		assertEquals("+16175551000", PhoneNumber.normalize("001 617.555.1000", null));
+		assertEquals("+251912149840", PhoneNumber.normalize(" +251912149840 ", "1"));
+		assertEquals(PhoneNumber.pack("+16175551000", null), PhoneNumber.pack("0016175551000", null));
+	}
+
+	public void testNational() {
+		// without a country code national numbers stay as dialed, leading
+		// zeros and all
+		assertEquals("6175551000", PhoneNumber.normalize("617-555-1000", null));
+		assertEquals("08031234567", PhoneNumber.normalize("08031234567", null));
+		assertFalse(PhoneNumber.pack("08031234567", null) == PhoneNumber.pack("8031234567", null));
+		assertFalse(PhoneNumber.pack("6175551000", null) == PhoneNumber.pack("+6175551000", null));
+
+		// with one the trunk 0 is dropped and the code prepended
+		assertEquals("+2348031234567", PhoneNumber.normalize("08031234567", "234"));
+		assertEquals("+2348031234567", PhoneNumber.normalize("803 123 4567", "234"));
+		assertEquals(PhoneNumber.pack("+2348031234567", "234"), PhoneNumber.pack("0803-123-4567", "234"));
+	}
+
+	public void testNotANumber() {
+		String[] senders = { null, "", "   ", "+", "00", "MTN", "notifications@dimagi.com", "617x555", "1234567890123456",
+				"+0123", "61+75" };
+		for (int i = 0; i < senders.length; i++) {
+			assertEquals(senders[i], PhoneNumber.NOT_A_NUMBER, PhoneNumber.pack(senders[i], null));
+			assertNull(senders[i], PhoneNumber.normalize(senders[i], null));
+		}
+	}
+
+	public void testRoundTrip() {
+		String[] numbers = { "1", "0", "0123", "+1", "123456789012345", "+999999999999999", "012345678901234" };
+		for (int i = 0; i < numbers.length; i++) {
+			long key = PhoneNumber.pack(numbers[i], null);
+			assertTrue(numbers[i], key != PhoneNumber.NOT_A_NUMBER);
+			assertEquals(numbers[i], PhoneNumber.unpack(key));
+		}
+	}
+}
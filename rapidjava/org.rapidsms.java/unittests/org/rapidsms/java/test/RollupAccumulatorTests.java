@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.rollup.RollupAccumulator;
+import org.rapidsms.java.core.rollup.RollupBucket;
+
+public class RollupAccumulatorTests extends TestCase {
+
+	private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+	private static final TimeZone KOLKATA = TimeZone.getTimeZone("Asia/Kolkata");
+
+	private long localTime(TimeZone zone, int year, int month, int day, int hour, int minute) {
+		Calendar cal = new GregorianCalendar(zone);
+		cal.clear();
+		cal.set(year, month, day, hour, minute);
+		return cal.getTimeInMillis();
+	}
+
+	public void testBucketsFollowLocalTime() {
+		// either side of the spring forward in new york, 2am became 3am
+		long before = localTime(NEW_YORK, 2026, Calendar.MARCH, 8, 1, 30);
+		long after = localTime(NEW_YORK, 2026, Calendar.MARCH, 8, 3, 30);
+		long hourBefore = RollupAccumulator.localBucket(NEW_YORK, before, RollupAccumulator.HOUR_MILLIS);
+		long hourAfter = RollupAccumulator.localBucket(NEW_YORK, after, RollupAccumulator.HOUR_MILLIS);
+		// an hour apart in real time, two local hours apart
+		assertEquals(2, hourAfter - hourBefore);
+		assertEquals(RollupAccumulator.localBucket(NEW_YORK, before, RollupAccumulator.DAY_MILLIS),
+						RollupAccumulator.localBucket(NEW_YORK, after, RollupAccumulator.DAY_MILLIS));
+
+		assertEquals(localTime(NEW_YORK, 2026, Calendar.MARCH, 8, 3, 0),
+						RollupAccumulator.bucketStart(NEW_YORK, hourAfter, RollupAccumulator.HOUR_MILLIS));
+		assertEquals(localTime(NEW_YORK, 2026, Calendar.MARCH, 8, 0, 0),
+						RollupAccumulator.bucketStart(NEW_YORK, RollupAccumulator.localBucket(NEW_YORK, after,
+																								RollupAccumulator.DAY_MILLIS),
+														RollupAccumulator.DAY_MILLIS));
+
+		// half hour zones still get local hours
+		long kolkata = localTime(KOLKATA, 2026, Calendar.JUNE, 1, 23, 45);
+		long hour = RollupAccumulator.localBucket(KOLKATA, kolkata, RollupAccumulator.HOUR_MILLIS);
+		assertEquals(localTime(KOLKATA, 2026, Calendar.JUNE, 1, 23, 0),
+						RollupAccumulator.bucketStart(KOLKATA, hour, RollupAccumulator.HOUR_MILLIS));
+		assertEquals(23, hour % 24);
+	}
+
+	public void testRollupValues() {
+		assertEquals(12.5, RollupAccumulator.getRollupValue("number", Double.valueOf(12.5)), 0);
+		assertEquals(3.0, RollupAccumulator.getRollupValue("integer", "3"), 0);
+		assertEquals(1.0, RollupAccumulator.getRollupValue("boolean", "true"), 0);
+		assertEquals(0.0, RollupAccumulator.getRollupValue("yes/no", "false"), 0);
+		assertTrue(Double.isNaN(RollupAccumulator.getRollupValue("boolean", "")));
+		assertTrue(Double.isNaN(RollupAccumulator.getRollupValue("integer", "")));
+		assertTrue(Double.isNaN(RollupAccumulator.getRollupValue("integer", null)));
+		assertTrue(Double.isNaN(RollupAccumulator.getRollupValue("word", "nyc")));
+	}
+
+	public void testAccumulate() {
+		RollupAccumulator acc = new RollupAccumulator(NEW_YORK);
+		long t = localTime(NEW_YORK, 2026, Calendar.OCTOBER, 17, 9, 5);
+		acc.addMessage(t);
+		acc.addCount(7, t);
+		acc.addCount(7, t + 10 * 60 * 1000L);
+		acc.addCount(7, t + 60 * 60 * 1000L);
+		assertTrue(acc.addField(7, "bednets", "integer", t, Long.valueOf(100)));
+		assertTrue(acc.addField(7, "bednets", "integer", t + 60 * 60 * 1000L, "40"));
+		assertTrue(acc.addField(7, "used", "boolean", t, "true"));
+		assertTrue(acc.addField(7, "used", "boolean", t, "false"));
+		assertFalse(acc.addField(7, "used", "boolean", t, ""));
+		assertFalse(acc.addField(7, "city", "word", t, "nyc"));
+
+		// hourly: all messages 1, form count 2 + 1, bednets 1 + 1, used 1
+		assertEquals(6, acc.getHourly().size());
+		// daily: all messages, form count, bednets, used
+		assertEquals(4, acc.getDaily().size());
+
+		for (RollupBucket b : acc.getDaily()) {
+			if (b.getFormId() == RollupAccumulator.ALL_MESSAGES) {
+				assertEquals(1, b.getCount());
+			} else if (b.getField().equals(RollupAccumulator.COUNT_SERIES)) {
+				assertEquals(3, b.getCount());
+				assertEquals(0.0, b.getSum(), 0);
+			} else if (b.getField().equals("bednets")) {
+				assertEquals(2, b.getCount());
+				assertEquals(140.0, b.getSum(), 0);
+				assertEquals(40.0, b.getMin(), 0);
+				assertEquals(100.0, b.getMax(), 0);
+			} else {
+				assertEquals("used", b.getField());
+				assertEquals(2, b.getCount());
+				assertEquals(1.0, b.getSum(), 0);
+			}
+		}
+
+		acc.clear();
+		assertTrue(acc.isEmpty());
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.ingest.IRowListener;
+import org.rapidsms.java.core.ingest.RowFeed;
+import org.rapidsms.java.core.rollup.RollupAccumulator;
+
+public class RowFeedTests extends TestCase {
+
+	private static class Recorder implements IRowListener {
+		final ArrayList<Integer> forms = new ArrayList<Integer>();
+		final ArrayList<long[]> ids = new ArrayList<long[]>();
+
+		public void rowsCommitted(int formId, long[] ids) {
+			this.forms.add(Integer.valueOf(formId));
+			this.ids.add(ids);
+		}
+
+		long[] idsFor(int formId) {
+			int i = forms.indexOf(Integer.valueOf(formId));
+			return i < 0 ? null : ids.get(i);
+		}
+	}
+
+	public void testPublishesIdsByForm() {
+		RowFeed feed = new RowFeed();
+		Recorder recorder = new Recorder();
+		feed.addListener(recorder);
+		feed.addListener(recorder);
+
+		RowFeed.Rows rows = new RowFeed.Rows();
+		for (long id = 1; id <= 20; id++) {
+			rows.add(RollupAccumulator.ALL_MESSAGES, id);
+			if (id % 2 == 0) {
+				rows.add(3, 100 + id);
+			}
+		}
+		feed.publish(rows);
+
+		// added twice, told once
+		assertEquals(2, recorder.forms.size());
+		long[] messages = recorder.idsFor(RollupAccumulator.ALL_MESSAGES);
+		assertEquals(20, messages.length);
+		for (int i = 0; i < messages.length; i++) {
+			assertEquals(i + 1, messages[i]);
+		}
+		long[] formData = recorder.idsFor(3);
+		assertEquals(10, formData.length);
+		assertEquals(102, formData[0]);
+		assertEquals(120, formData[9]);
+	}
+
+	public void testRemovedListenerIsNotCalled() {
+		RowFeed feed = new RowFeed();
+		Recorder kept = new Recorder();
+		Recorder removed = new Recorder();
+		feed.addListener(kept);
+		feed.addListener(removed);
+		feed.removeListener(removed);
+
+		RowFeed.Rows rows = new RowFeed.Rows();
+		feed.publish(rows);
+		assertTrue(kept.forms.isEmpty());
+
+		rows.add(1, 5);
+		feed.publish(rows);
+		assertEquals(1, kept.forms.size());
+		assertTrue(removed.forms.isEmpty());
+	}
+
+	public void testPendingKeepsOneForm() {
+		RowFeed.Pending pending = new RowFeed.Pending(5);
+		// nothing is kept until a form is chosen
+		assertFalse(pending.add(3, new long[] { 1 }));
+		assertTrue(pending.isEmpty());
+
+		pending.reset(3);
+		assertTrue(pending.add(3, new long[] { 1, 2 }));
+		// only the first add schedules the taker
+		assertFalse(pending.add(3, new long[] { 3 }));
+		assertFalse(pending.add(RollupAccumulator.ALL_MESSAGES, new long[] { 40 }));
+		long[] ids = pending.take();
+		assertEquals(3, ids.length);
+		assertEquals(1, ids[0]);
+		assertEquals(3, ids[2]);
+		assertTrue(pending.isEmpty());
+		assertEquals(0, pending.take().length);
+
+		// switching forms drops what the old one had
+		assertTrue(pending.add(3, new long[] { 4 }));
+		pending.reset(RollupAccumulator.ALL_MESSAGES);
+		assertTrue(pending.isEmpty());
+		assertTrue(pending.add(RollupAccumulator.ALL_MESSAGES, new long[] { 40 }));
+	}
+
+	public void testPendingOverflowAsksForEverything() {
+		RowFeed.Pending pending = new RowFeed.Pending(5);
+		pending.reset(3);
+		assertTrue(pending.add(3, new long[] { 1, 2, 3 }));
+		assertFalse(pending.add(3, new long[] { 4, 5, 6 }));
+		assertFalse(pending.isEmpty());
+		assertFalse(pending.add(3, new long[] { 7 }));
+		assertNull(pending.take());
+
+		// and it starts over after
+		assertTrue(pending.isEmpty());
+		assertTrue(pending.add(3, new long[] { 8 }));
+		assertEquals(1, pending.take().length);
+	}
+}
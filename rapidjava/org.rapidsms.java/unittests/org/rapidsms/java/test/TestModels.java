@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Vector;
+
+import org.rapidsms.java.core.model.Field;
+import org.rapidsms.java.core.model.Form;
+import org.rapidsms.java.core.model.SimpleFieldType;
+import org.rapidsms.java.core.parser.service.ParsingService.ParserType;
+
+/**
+ * The bootstrap field types and forms from the rapidandroid definitions
+ * (assets/definitions/*.json), built in plain java so the core can be tested
+ * off the device.
+ */
+public class TestModels {
+
+	/**
+	 * The bednets corpus lives with the android project's assets, relative to
+	 * this project's root.
+	 */
+	public static final String CORPUS_PATH = "../../rapidandroid/org.rapidandroid/assets/testdata/rawdata.csv";
+
+	public static final SimpleFieldType WORD = new SimpleFieldType(1, "word", "^([A-Za-z]+)($|\\s)", "Word");
+	public static final SimpleFieldType NUMBER = new SimpleFieldType(2, "number", "^(\\d+)($|\\s)", "Number");
+	public static final SimpleFieldType WEIGHT = new SimpleFieldType(3, "float",
+																		"^((\\d+)|(\\d+\\.\\d+))(\\s*(kg|kilo|kilos))($|\\s)",
+																		"Weight");
+	public static final SimpleFieldType HEIGHT = new SimpleFieldType(4, "integer",
+																		"^(\\d+)(\\s*(cm|m|meter|meters))($|\\s)", "Height");
+	public static final SimpleFieldType RATIO = new SimpleFieldType(
+																	5,
+																	"float",
+																	"^((\\d+\\:\\d+)|(\\d+\\/\\d+)|(\\d+\\s*%)|(\\d+\\s*pct)|(\\d+\\.\\d+))",
+																	"Ratio");
+	public static final SimpleFieldType LENGTH = new SimpleFieldType(6, "integer", "^(\\d+)(\\s*(cm|m))($|\\s)",
+																		"Length");
+	public static final SimpleFieldType BOOL = new SimpleFieldType(7, "boolean",
+																	"^(t|f|true|false|y|no|yes|n|n0)(\\s|$)", "Yes/No");
+
+	public static Form bednets(ParserType parser) {
+		Field[] fields = new Field[] { new Field(1, 1, "Location", "Distribution site location", WORD),
+				new Field(2, 2, "received", "Number of bednets received", NUMBER),
+				new Field(3, 3, "given", "Number of bednets handed out", NUMBER),
+				new Field(4, 4, "balance", "Number of bednets in inventory", NUMBER) };
+		return new Form(1, "bednets", "bednets", "Bednet Distribution(supply)", fields, parser);
+	}
+
+	public static Form nutrition(ParserType parser) {
+		Field[] fields = new Field[] { new Field(5, 1, "child_id", "Child Identifier (6 digits)", WORD),
+				new Field(6, 2, "weight", "weight", WEIGHT), new Field(7, 3, "height", "height", HEIGHT),
+				new Field(8, 4, "ratio", "ratio", RATIO), new Field(9, 5, "muac", "muac", LENGTH),
+				new Field(10, 6, "oedema", "Does child suffer from oedema", BOOL),
+				new Field(11, 7, "diarrhoea", "does the child suffer from diarrhoea", BOOL) };
+		return new Form(2, "Nutrition", "nutrition", "Nutrition Information (monitorin and evaluation)", fields,
+						parser);
+	}
+
+	/**
+	 * Read the message bodies out of the bednets corpus (date,phone,body)
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public static Vector<String> readCorpusMessages() throws IOException {
+		Vector<String> messages = new Vector<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(CORPUS_PATH)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int split = line.indexOf(',', line.indexOf(',') + 1);
+				if (split > 0) {
+					messages.add(line.substring(split + 1));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return messages;
+	}
+}
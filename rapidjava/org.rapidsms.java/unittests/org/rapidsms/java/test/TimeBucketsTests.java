@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.chart.TimeBuckets;
+
+/**
+ * Checks the TimeBuckets arithmetic against GregorianCalendar.
+ */
+public class TimeBucketsTests extends TestCase {
+
+	private static final String[] ZONES = { "UTC", "America/New_York", "Africa/Kampala", "Asia/Kolkata",
+			"Australia/Lord_Howe", "Pacific/Apia" };
+
+	/**
+	 * The start of the bucket the slow way.
+	 */
+	private static long calendarFloor(TimeZone zone, int type, long millis) {
+		Calendar cal = new GregorianCalendar(zone);
+		cal.setTimeInMillis(millis);
+		cal.set(Calendar.MILLISECOND, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MINUTE, 0);
+		if (type == TimeBuckets.HOURLY) {
+			return cal.getTimeInMillis();
+		}
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		if (type == TimeBuckets.WEEKLY) {
+			cal.add(Calendar.DATE, Calendar.SUNDAY - cal.get(Calendar.DAY_OF_WEEK));
+		} else if (type == TimeBuckets.MONTHLY) {
+			cal.set(Calendar.DAY_OF_MONTH, 1);
+		} else if (type == TimeBuckets.YEARLY) {
+			cal.set(Calendar.DAY_OF_YEAR, 1);
+		}
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * ChartBroker.getDisplayType before TimeBuckets.
+	 */
+	private static int calendarDisplayType(TimeZone zone, long start, long end) {
+		Calendar endCal = new GregorianCalendar(zone);
+		endCal.setTimeInMillis(end);
+		Calendar tempCal = new GregorianCalendar(zone);
+		int[] fields = { Calendar.DATE, Calendar.MONTH, Calendar.YEAR, Calendar.YEAR };
+		int[] amounts = { 3, 3, 2, 4 };
+		for (int type = 0; type < fields.length; type++) {
+			tempCal.setTimeInMillis(start);
+			tempCal.add(fields[type], amounts[type]);
+			if (endCal.before(tempCal)) {
+				return type;
+			}
+		}
+		return TimeBuckets.YEARLY;
+	}
+
+	public void testFloorMatchesCalendar() {
+		Random random = new Random(7);
+		for (int z = 0; z < ZONES.length; z++) {
+			TimeZone zone = TimeZone.getTimeZone(ZONES[z]);
+			for (int i = 0; i < 2000; i++) {
+				// 1960 to 2060
+				long millis = -315619200000L + (long) (random.nextDouble() * 3155760000000L);
+				for (int type = TimeBuckets.HOURLY; type <= TimeBuckets.YEARLY; type++) {
+					long floor = TimeBuckets.floor(zone, type, millis);
+					long expected = calendarFloor(zone, type, millis);
+					if (type == TimeBuckets.HOURLY) {
+						// the hour repeated when the clocks go back is one
+						// local bucket, same as the rollups, so only the
+						// wall clock hours have to agree
+						assertEquals(ZONES[z] + " " + millis, expected + zone.getOffset(expected), floor
+								+ zone.getOffset(floor));
+						continue;
+					}
+					assertEquals(ZONES[z] + " " + type + " " + millis, expected, floor);
+				}
+			}
+		}
+	}
+
+	public void testDisplayTypeMatchesCalendar() {
+		Random random = new Random(11);
+		long[] spans = { 3600000L, 2 * 86400000L, 3 * 86400000L, 40 * 86400000L, 92 * 86400000L,
+				365 * 86400000L, 730 * 86400000L, 1461 * 86400000L, 3000 * 86400000L };
+		for (int z = 0; z < ZONES.length; z++) {
+			TimeZone zone = TimeZone.getTimeZone(ZONES[z]);
+			for (int i = 0; i < 500; i++) {
+				long start = (long) (random.nextDouble() * 2000000000000L);
+				for (int s = 0; s < spans.length; s++) {
+					long end = start + spans[s] + random.nextInt(3) * 86400000L - 86400000L;
+					assertEquals(ZONES[z] + " " + start + " " + end, calendarDisplayType(zone, start, end),
+									TimeBuckets.getDisplayType(zone, start, end));
+				}
+			}
+		}
+	}
+
+	public void testBucketsAndFill() {
+		TimeZone zone = TimeZone.getTimeZone("America/New_York");
+		// 2009-01-15 12:00 to 2009-06-15 12:00 local
+		Calendar cal = new GregorianCalendar(zone);
+		cal.clear();
+		cal.set(2009, Calendar.JANUARY, 15, 12, 0);
+		long first = cal.getTimeInMillis();
+		cal.set(2009, Calendar.JUNE, 15, 12, 0);
+		long last = cal.getTimeInMillis();
+
+		TimeBuckets months = new TimeBuckets(zone, TimeBuckets.MONTHLY, first, last);
+		assertEquals(6, months.size());
+		for (int i = 0; i < months.size(); i++) {
+			cal.clear();
+			cal.set(2009, Calendar.JANUARY + i, 1);
+			assertEquals(cal.getTimeInMillis(), months.getStart(i));
+			assertEquals(i, months.indexOf(months.getStart(i)));
+			assertEquals(i, months.indexOf(months.getStart(i) + 86400000L * 20));
+		}
+		assertEquals(-1, months.indexOf(months.getStart(0) - 1));
+		assertEquals(-1, months.indexOf(last + 86400000L * 20));
+
+		// march has the dst change, its days are still one bucket apiece
+		TimeBuckets days = new TimeBuckets(zone, TimeBuckets.DAILY, first, last);
+		cal.clear();
+		cal.set(2009, Calendar.JANUARY, 15);
+		for (int i = 0; i < days.size(); i++) {
+			assertEquals(cal.getTimeInMillis(), days.getStart(i));
+			cal.add(Calendar.DATE, 1);
+		}
+
+		long[] millis = { first, first + 1000, months.getStart(3) + 5, last + 86400000L * 60 };
+		int[] values = { 1, 2, 4, 8 };
+		int[] totals = months.fill(millis, values, millis.length);
+		assertEquals(6, totals.length);
+		assertEquals(3, totals[0]);
+		assertEquals(0, totals[1]);
+		assertEquals(0, totals[2]);
+		assertEquals(4, totals[3]);
+		assertEquals(0, totals[5]);
+
+		try {
+			new TimeBuckets(zone, TimeBuckets.DAILY, last, first);
+			fail("a backwards range");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.rapidsms.java.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.rapidsms.java.core.upload.ChunkedUploader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in process stand in for sandbox/httpendpoint's httpreceiver.py that speaks
+ * the ChunkedUploader protocol, so uploads can be tested without a network. It
+ * can be told to fail chunk requests, to go down after a number of chunks, and
+ * to corrupt a chunk, and it counts what it's sent.
+ * 
+ * Run main() to serve it on a port, saving finished uploads to a directory.
+ */
+public class UploadTestServer {
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private final File mUploadDir;
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, byte[]>> mChunks = new ConcurrentHashMap<String, ConcurrentHashMap<Integer, byte[]>>();
+	private final ConcurrentHashMap<String, byte[]> mCompleted = new ConcurrentHashMap<String, byte[]>();
+
+	private final AtomicInteger mFailNext = new AtomicInteger();
+	private final AtomicInteger mOutageAfter = new AtomicInteger(-1);
+	private final AtomicInteger mCorruptNext = new AtomicInteger();
+	private volatile boolean mOutage = false;
+
+	private final AtomicInteger mChunkRequests = new AtomicInteger();
+	private final AtomicInteger mChunksStored = new AtomicInteger();
+	private final AtomicInteger mInFlight = new AtomicInteger();
+	private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+	/**
+	 * @param port
+	 *            0 for any free port
+	 * @param uploadDir
+	 *            where finished uploads are saved, null to only keep them in
+	 *            memory
+	 * @throws IOException
+	 */
+	public UploadTestServer(int port, File uploadDir) throws IOException {
+		mUploadDir = uploadDir;
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/upload/status", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				status(exchange);
+			}
+		});
+		mServer.createContext("/upload/chunk", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				chunk(exchange);
+			}
+		});
+		mServer.createContext("/upload/complete", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				complete(exchange);
+			}
+		});
+		mServer.start();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8160;
+		File dir = new File(args.length > 1 ? args[1] : "uploads");
+		dir.mkdirs();
+		new UploadTestServer(port, dir);
+		System.out.println("serving http://127.0.0.1:" + port + "/upload, saving to " + dir.getAbsolutePath());
+	}
+
+	/**
+	 * @return the base url to give a ChunkedUploader
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload";
+	}
+
+	public void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Answer the next n chunk requests with a 503.
+	 */
+	public void failNext(int n) {
+		mFailNext.set(n);
+	}
+
+	/**
+	 * Take the link down once this many more chunks have been stored.
+	 */
+	public void outageAfter(int chunks) {
+		mOutageAfter.set(chunks);
+	}
+
+	public void setOutage(boolean outage) {
+		mOutage = outage;
+		mOutageAfter.set(-1);
+	}
+
+	/**
+	 * Flip a byte in each of the next n chunks as they arrive.
+	 */
+	public void corruptNext(int n) {
+		mCorruptNext.set(n);
+	}
+
+	public int getChunkRequests() {
+		return mChunkRequests.get();
+	}
+
+	public int getChunksStored() {
+		return mChunksStored.get();
+	}
+
+	/**
+	 * @return the most chunk requests that were being handled at once
+	 */
+	public int getMaxInFlight() {
+		return mMaxInFlight.get();
+	}
+
+	/**
+	 * @param name
+	 * @return the finished upload saved under the name, null if there isn't
+	 *         one
+	 */
+	public byte[] getCompleted(String name) {
+		return mCompleted.get(name);
+	}
+
+	private void status(HttpExchange exchange) throws IOException {
+		Map<String, String> params = parseQuery(exchange);
+		Map<Integer, byte[]> chunks = mChunks.get(params.get("upload"));
+		int held = 0;
+		if (chunks != null) {
+			while (chunks.containsKey(Integer.valueOf(held))) {
+				held++;
+			}
+		}
+		respond(exchange, 200, Integer.toString(held));
+	}
+
+	private void chunk(HttpExchange exchange) throws IOException {
+		int inFlight = mInFlight.incrementAndGet();
+		try {
+			int max;
+			while (inFlight > (max = mMaxInFlight.get()) && !mMaxInFlight.compareAndSet(max, inFlight)) {
+			}
+			mChunkRequests.incrementAndGet();
+			byte[] body = readAll(exchange.getRequestBody());
+			if (mOutage || mFailNext.getAndDecrement() > 0) {
+				respond(exchange, 503, "unavailable");
+				return;
+			}
+			Map<String, String> params = parseQuery(exchange);
+			String upload = params.get("upload");
+			String index = params.get("index");
+			String hash = exchange.getRequestHeaders().getFirst(ChunkedUploader.HEADER_CHUNK_SHA1);
+			if (upload == null || index == null || hash == null) {
+				respond(exchange, 400, "missing upload, index or hash");
+				return;
+			}
+			if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				body = readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+			}
+			if (mCorruptNext.getAndDecrement() > 0 && body.length > 0) {
+				body[0] ^= 0x7f;
+			}
+			if (!hex(sha1(body)).equals(hash)) {
+				respond(exchange, 422, "chunk hash mismatch");
+				return;
+			}
+			ConcurrentHashMap<Integer, byte[]> chunks = mChunks.get(upload);
+			if (chunks == null) {
+				mChunks.putIfAbsent(upload, new ConcurrentHashMap<Integer, byte[]>());
+				chunks = mChunks.get(upload);
+			}
+			chunks.put(Integer.valueOf(index), body);
+			mChunksStored.incrementAndGet();
+			if (mOutageAfter.get() > 0 && mOutageAfter.decrementAndGet() == 0) {
+				mOutage = true;
+			}
+			respond(exchange, 200, "ok");
+		} finally {
+			mInFlight.decrementAndGet();
+		}
+	}
+
+	private void complete(HttpExchange exchange) throws IOException {
+		readAll(exchange.getRequestBody());
+		Map<String, String> params = parseQuery(exchange);
+		String upload = params.get("upload");
+		String name = params.get("name");
+		int count = Integer.parseInt(params.get("chunks"));
+		Map<Integer, byte[]> chunks = mChunks.get(upload);
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			byte[] chunk = chunks == null ? null : chunks.get(Integer.valueOf(i));
+			if (chunk == null) {
+				respond(exchange, 409, "missing chunk " + i);
+				return;
+			}
+			joined.write(chunk);
+		}
+		byte[] file = joined.toByteArray();
+		if (!hex(sha1(file)).equals(params.get("sha1"))) {
+			respond(exchange, 409, "file hash mismatch");
+			return;
+		}
+		mCompleted.put(name, file);
+		mChunks.remove(upload);
+		if (mUploadDir != null) {
+			FileOutputStream out = new FileOutputStream(new File(mUploadDir, new File(name).getName()));
+			try {
+				out.write(file);
+			} finally {
+				out.close();
+			}
+		}
+		respond(exchange, 200, "ok");
+	}
+
+	private static Map<String, String> parseQuery(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return params;
+		}
+		String[] pairs = query.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int eq = pairs[i].indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8"), URLDecoder.decode(pairs[i]
+						.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] sha1(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
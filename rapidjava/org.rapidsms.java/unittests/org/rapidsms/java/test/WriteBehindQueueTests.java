@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009 Dimagi Inc., UNICEF
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.rapidsms.java.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.rapidsms.java.core.ingest.IBatchStore;
+import org.rapidsms.java.core.ingest.WriteBehindQueue;
+
+/**
+ * Batching, flushing and draining of the WriteBehindQueue against an in memory
+ * store.
+ */
+public class WriteBehindQueueTests extends TestCase {
+
+	/**
+	 * Records every batch it's given, optionally holding the writer up until
+	 * released.
+	 */
+	static class RecordingStore implements IBatchStore<Integer> {
+		final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		final List<Integer> failed = new ArrayList<Integer>();
+		CountDownLatch gate = null;
+		boolean fail = false;
+		boolean error = false;
+		boolean failFailing = false;
+
+		public synchronized void store(List<Integer> batch) throws Exception {
+			if (gate != null) {
+				gate.await();
+			}
+			if (fail) {
+				throw new Exception("store failed");
+			}
+			if (error) {
+				throw new OutOfMemoryError("store failed");
+			}
+			batches.add(new ArrayList<Integer>(batch));
+		}
+
+		public synchronized void storeFailed(List<Integer> batch, Throwable cause) {
+			failed.addAll(batch);
+			if (failFailing) {
+				throw new IllegalStateException("storeFailed failed");
+			}
+		}
+
+		synchronized List<Integer> stored() {
+			List<Integer> all = new ArrayList<Integer>();
+			for (List<Integer> batch : batches) {
+				all.addAll(batch);
+			}
+			return all;
+		}
+	}
+
+	private RecordingStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		store = new RecordingStore();
+	}
+
+	public void testSizeThreshold() throws Exception {
+		// the delay is long enough that only the size can close a batch
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 100, 10, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 30; i++) {
+			queue.put(i);
+		}
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertEquals(3, store.batches.size());
+		for (List<Integer> batch : store.batches) {
+			assertEquals(10, batch.size());
+		}
+		assertInOrder(30, store.stored());
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	public void testTimeThreshold() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 100, 1000, 50,
+																		TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		queue.put(0);
+		queue.put(1);
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(1, store.batches.size());
+		assertInOrder(2, store.stored());
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	public void testShutdownDrains() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 1000, 7, 1, TimeUnit.HOURS);
+		store.gate = new CountDownLatch(1);
+		for (int i = 0; i < 500; i++) {
+			queue.put(i);
+		}
+		store.gate.countDown();
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+		assertInOrder(500, store.stored());
+		try {
+			queue.put(500);
+			fail("put after shutdown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testShutdownIdle() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 10, 10, 1, TimeUnit.HOURS);
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+		assertTrue(store.batches.isEmpty());
+	}
+
+	public void testBackpressure() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 2, 1, 0, TimeUnit.MILLISECONDS);
+		store.gate = new CountDownLatch(1);
+		// one held by the writer, two waiting, then the queue is full
+		queue.put(0);
+		while (queue.size() > 0) {
+			Thread.sleep(1);
+		}
+		assertTrue(queue.offer(1, 1, TimeUnit.SECONDS));
+		assertTrue(queue.offer(2, 1, TimeUnit.SECONDS));
+		assertFalse(queue.offer(3, 10, TimeUnit.MILLISECONDS));
+		store.gate.countDown();
+		assertTrue(queue.offer(3, 5, TimeUnit.SECONDS));
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertInOrder(4, store.stored());
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	public void testFailedBatch() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 100, 100, 0,
+																		TimeUnit.MILLISECONDS);
+		store.fail = true;
+		queue.put(1);
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		store.fail = false;
+		queue.put(2);
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertEquals(1, store.failed.size());
+		assertEquals(Integer.valueOf(1), store.failed.get(0));
+		assertEquals(1, store.stored().size());
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	public void testErrorFromStore() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 100, 100, 0,
+																		TimeUnit.MILLISECONDS);
+		store.error = true;
+		queue.put(1);
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertEquals(1, store.failed.size());
+		// the writer is still there for the next batch
+		assertTrue(queue.isWriterAlive());
+		store.error = false;
+		queue.put(2);
+		assertTrue(queue.flush(5, TimeUnit.SECONDS));
+		assertEquals(1, store.stored().size());
+		assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+	}
+
+	public void testAbandonDeadWriter() throws Exception {
+		WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>(store, "test", 100, 1, 0,
+																		TimeUnit.MILLISECONDS);
+		store.gate = new CountDownLatch(1);
+		store.fail = true;
+		store.failFailing = true;
+		for (int i = 0; i < 5; i++) {
+			queue.put(i);
+		}
+		// the first batch's storeFailed() kills the writer
+		store.gate.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.isWriterAlive() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(queue.isWriterAlive());
+		assertFalse(queue.flush(5, TimeUnit.SECONDS));
+
+		List<Integer> stranded = queue.abandon();
+		assertEquals(4, stranded.size());
+		assertEquals(Integer.valueOf(1), stranded.get(0));
+		assertTrue(queue.isShutdown());
+		assertTrue(queue.flush(0, TimeUnit.SECONDS));
+	}
+
+	private void assertInOrder(int count, List<Integer> stored) {
+		assertEquals(count, stored.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(Integer.valueOf(i), stored.get(i));
+		}
+	}
+}
@@ -1,5 +1,7 @@
 import os
 import glob
+import hashlib
+import zlib
 localDir = os.path.dirname(__file__)
 absDir = os.path.join(os.getcwd(), localDir)
 uploadDir = os.path.join(absDir,'uploads')
@@ -49,6 +51,67 @@ class RapidSmsFile(object):
         fout.close()        
         return out % (myIdentifier, size, myFile.filename, myFile.type)
     upload.exposed = True
+
+    # The chunked protocol ChunkedUploader speaks (org.rapidsms.java.core.upload).
+    # Chunks are kept under uploads/.chunks/<upload id>/ until complete joins them.
+    def _chunkDir(self, upload):
+        if len(upload) != 40 or not all(c in '0123456789abcdef' for c in upload):
+            raise cherrypy.HTTPError(400, 'bad upload id')
+        return os.path.join(uploadDir, '.chunks', upload)
+
+    @cherrypy.expose
+    def status(self, upload):
+        chunkDir = self._chunkDir(upload)
+        held = 0
+        while os.path.exists(os.path.join(chunkDir, '%d.part' % held)):
+            held += 1
+        return str(held)
+
+    @cherrypy.expose
+    def chunk(self, upload, index):
+        chunkDir = self._chunkDir(upload)
+        data = cherrypy.request.body.read()
+        if cherrypy.request.headers.get('Content-Encoding') == 'gzip':
+            data = zlib.decompress(data, 16 + zlib.MAX_WBITS)
+        if hashlib.sha1(data).hexdigest() != cherrypy.request.headers.get('X-Chunk-SHA1'):
+            raise cherrypy.HTTPError(422, 'chunk hash mismatch')
+        if not os.path.exists(chunkDir):
+            os.makedirs(chunkDir)
+        # write then rename, so status never counts a half written chunk
+        part = os.path.join(chunkDir, '%d.part' % int(index))
+        fout = open(part + '.tmp', 'wb')
+        fout.write(data)
+        fout.close()
+        os.rename(part + '.tmp', part)
+        return 'ok'
+
+    @cherrypy.expose
+    def complete(self, upload, chunks, sha1, name):
+        chunkDir = self._chunkDir(upload)
+        digest = hashlib.sha1()
+        target = os.path.join(uploadDir, os.path.basename(name))
+        fout = open(target + '.tmp', 'wb')
+        for i in range(int(chunks)):
+            part = os.path.join(chunkDir, '%d.part' % i)
+            if not os.path.exists(part):
+                fout.close()
+                os.remove(target + '.tmp')
+                raise cherrypy.HTTPError(409, 'missing chunk %d' % i)
+            fin = open(part, 'rb')
+            data = fin.read()
+            fin.close()
+            digest.update(data)
+            fout.write(data)
+        fout.close()
+        if digest.hexdigest() != sha1:
+            os.remove(target + '.tmp')
+            raise cherrypy.HTTPError(409, 'file hash mismatch')
+        os.rename(target + '.tmp', target)
+        for part in glob.glob(os.path.join(chunkDir, '*.part')):
+            os.remove(part)
+        if os.path.exists(chunkDir):
+            os.rmdir(chunkDir)
+        return 'ok'
     
 class fileBrowser:   
     @cherrypy.expose